@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Instance;
+import com.obergner.hzserver.pluggable.MapOptions;
+
+/**
+ * <p>
+ * Looks up the maps configured in a {@link HazelcastInstance}'s
+ * {@link Config} that have already been created, without creating any
+ * others.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class ConfiguredMaps {
+
+	/**
+	 * @param hazelcastInstance
+	 * @return All maps that have a {@link Config#getMapConfigs() configuration}
+	 *         of their own - not merely a wildcard or <code>default</code> one
+	 *         - and that have been created in <code>hazelcastInstance</code>
+	 */
+	static List<IMap<?, ?>> createdIn(final HazelcastInstance hazelcastInstance) {
+		final Map<String, ?> mapConfigs = hazelcastInstance.getConfig()
+		        .getMapConfigs();
+		final List<IMap<?, ?>> result = new ArrayList<IMap<?, ?>>();
+		for (final Instance each : hazelcastInstance.getInstances()) {
+			if (!each.getInstanceType().isMap()) {
+				continue;
+			}
+			final IMap<?, ?> map = (IMap<?, ?>) each;
+			final String mapName = map.getName();
+			if (MapOptions.isConcrete(mapName)
+			        && mapConfigs.containsKey(mapName)) {
+				result.add(map);
+			}
+		}
+		return result;
+	}
+
+	private ConfiguredMaps() {
+		// Not intended to be instantiated
+	}
+}
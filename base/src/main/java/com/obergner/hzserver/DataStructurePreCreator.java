@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.HazelcastInstance;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Eagerly creates every map, queue and topic configured in a {@link Config}
+ * on a bounded thread pool, thus moving the cost of setting up partitions and
+ * initializing {@link com.hazelcast.core.MapStore}s from a data structure's
+ * first client to server startup.
+ * </p>
+ * <p>
+ * Records how long it took to create each data structure as a gauge named
+ * <code>&lt;type&gt;-creation-duration-millis</code>, scoped by the data
+ * structure's name. Data structures that fail to be created are logged and
+ * skipped - they will be created lazily, just as if they had never been
+ * pre-created.
+ * </p>
+ * <p>
+ * Wildcard and <code>default</code> configurations do not name a data
+ * structure and are therefore ignored.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class DataStructurePreCreator {
+
+	private final Logger	    log	                = LoggerFactory
+	                                                        .getLogger(getClass());
+
+	private final MetricsRegistry	metricsRegistry;
+
+	private final Class<?>	    metricsOwner;
+
+	private final int	        parallelism;
+
+	private final List<String[]>	registeredGauges	= new ArrayList<String[]>();
+
+	/**
+	 * @param metricsRegistry
+	 * @param metricsOwner
+	 *            The class to register creation time gauges for
+	 * @param parallelism
+	 *            The maximum number of data structures to create concurrently
+	 */
+	DataStructurePreCreator(final MetricsRegistry metricsRegistry,
+	        final Class<?> metricsOwner, final int parallelism) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		this.metricsOwner = checkNotNull(metricsOwner,
+		        "Argument 'metricsOwner' must not be null");
+		checkArgument(parallelism > 0,
+		        "Argument 'parallelism' must be greater than 0: %s",
+		        parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Create all maps, queues and topics configured in
+	 * <code>hazelcastInstance</code>'s {@link Config}, returning only after
+	 * all of them have been created or failed to be created.
+	 * 
+	 * @param hazelcastInstance
+	 * @return The number of data structures successfully created
+	 * @throws InterruptedException
+	 */
+	int preCreateAll(final HazelcastInstance hazelcastInstance)
+	        throws InterruptedException {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		final Config config = hazelcastInstance.getConfig();
+		final List<DataStructure> dataStructures = new ArrayList<DataStructure>();
+		for (final String mapName : config.getMapConfigs().keySet()) {
+			if (isConcreteName(mapName)) {
+				dataStructures.add(new DataStructure("map", mapName) {
+					@Override
+					void create() {
+						// Proxies are cheap - touching the map is what makes
+						// Hazelcast set up its record store and MapStore
+						hazelcastInstance.getMap(mapName).size();
+					}
+				});
+			}
+		}
+		for (final String queueName : config.getQConfigs().keySet()) {
+			if (isConcreteName(queueName)) {
+				dataStructures.add(new DataStructure("queue", queueName) {
+					@Override
+					void create() {
+						hazelcastInstance.getQueue(queueName).size();
+					}
+				});
+			}
+		}
+		for (final String topicName : config.getTopicConfigs().keySet()) {
+			if (isConcreteName(topicName)) {
+				dataStructures.add(new DataStructure("topic", topicName) {
+					@Override
+					void create() {
+						hazelcastInstance.getTopic(topicName);
+					}
+				});
+			}
+		}
+		if (dataStructures.isEmpty()) {
+			return 0;
+		}
+
+		this.log.info("Pre-creating {} data structures using {} threads ...",
+		        dataStructures.size(),
+		        Math.min(this.parallelism, dataStructures.size()));
+		final long start = System.currentTimeMillis();
+		final int created = createAll(dataStructures);
+		this.log.info("Pre-created {} out of {} data structures in [{}] ms",
+		        new Object[] { created, dataStructures.size(),
+		                System.currentTimeMillis() - start });
+		return created;
+	}
+
+	private int createAll(final List<DataStructure> dataStructures)
+	        throws InterruptedException {
+		final ExecutorService creatorPool = Executors.newFixedThreadPool(Math
+		        .min(this.parallelism, dataStructures.size()),
+		        new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-pre-creator-%d")
+		                .setDaemon(true).build());
+		try {
+			final List<Future<Long>> creationDurations = new ArrayList<Future<Long>>(
+			        dataStructures.size());
+			for (final DataStructure dataStructure : dataStructures) {
+				creationDurations.add(creatorPool.submit(dataStructure));
+			}
+
+			int created = 0;
+			for (int i = 0; i < dataStructures.size(); i++) {
+				final DataStructure dataStructure = dataStructures.get(i);
+				try {
+					registerCreationDurationGauge(dataStructure,
+					        creationDurations.get(i).get());
+					created++;
+				} catch (final ExecutionException e) {
+					this.log.error("Failed to pre-create " + dataStructure
+					        + " - it will be created lazily: "
+					        + e.getCause().getMessage(), e.getCause());
+				}
+			}
+			return created;
+		} finally {
+			creatorPool.shutdownNow();
+		}
+	}
+
+	private void registerCreationDurationGauge(
+	        final DataStructure dataStructure, final long creationDurationMillis) {
+		final String gaugeName = dataStructure.type
+		        + "-creation-duration-millis";
+		this.metricsRegistry.newGauge(this.metricsOwner, gaugeName,
+		        dataStructure.name, new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return creationDurationMillis;
+			        }
+		        });
+		synchronized (this.registeredGauges) {
+			this.registeredGauges.add(new String[] { gaugeName,
+			        dataStructure.name });
+		}
+		this.log.debug("Pre-created {} in [{}] ms", dataStructure,
+		        creationDurationMillis);
+	}
+
+	/**
+	 * Remove all creation time gauges registered so far.
+	 */
+	void removeMetrics() {
+		synchronized (this.registeredGauges) {
+			for (final String[] gauge : this.registeredGauges) {
+				this.metricsRegistry.removeMetric(this.metricsOwner, gauge[0],
+				        gauge[1]);
+			}
+			this.registeredGauges.clear();
+		}
+	}
+
+	private static boolean isConcreteName(final String name) {
+		return MapOptions.isConcrete(name);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DataStructurePreCreator@" + this.hashCode()
+		        + "[metricsOwner: " + this.metricsOwner + "|parallelism: "
+		        + this.parallelism + "]";
+	}
+
+	private abstract static class DataStructure implements Callable<Long> {
+
+		final String	type;
+
+		final String	name;
+
+		DataStructure(final String type, final String name) {
+			this.type = type;
+			this.name = name;
+		}
+
+		abstract void create();
+
+		/**
+		 * @return How long it took to create this data structure, in
+		 *         milliseconds
+		 */
+		@Override
+		public Long call() {
+			final long start = System.nanoTime();
+			create();
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		}
+
+		@Override
+		public String toString() {
+			return this.type + " [" + this.name + "]";
+		}
+	}
+}
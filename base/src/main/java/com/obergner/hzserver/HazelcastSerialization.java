@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import com.hazelcast.nio.Data;
+import com.hazelcast.nio.IOUtil;
+
+/**
+ * <p>
+ * Converts keys and values to and from the bytes Hazelcast serializes them
+ * to, so that anything that may be stored in a map may be persisted.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public final class HazelcastSerialization {
+
+	public static byte[] toBytes(final Object object) {
+		return IOUtil.toData(object).buffer;
+	}
+
+	public static Object fromBytes(final byte[] bytes) {
+		return IOUtil.toObject(new Data(bytes));
+	}
+
+	private HazelcastSerialization() {
+		// Not intended to be instantiated
+	}
+}
@@ -18,17 +18,39 @@
  */
 package com.obergner.hzserver;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.SmartLifecycle;
 
 import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.QueueConfig;
+import com.hazelcast.config.TopicConfig;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
 import com.hazelcast.impl.FactoryImpl;
 import com.hazelcast.impl.FactoryImpl.HazelcastInstanceProxy;
+import com.hazelcast.impl.PartitionManager;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.eviction.AdmissionEviction;
+import com.obergner.hzserver.expiry.TimingWheelExpiry;
+import com.obergner.hzserver.mapstore.CoalescingWriteBehind;
+import com.obergner.hzserver.mapstore.MapStoreWarmUp;
+import com.obergner.hzserver.mapstore.OffHeapLoaderCache;
+import com.obergner.hzserver.mapstore.SingleFlightLoading;
+import com.obergner.hzserver.snapshot.MapSnapshotter;
+import com.obergner.hzserver.pluggable.DataFile;
+import com.obergner.hzserver.pluggable.DeployWatcher;
+import com.obergner.hzserver.pluggable.MapOptions;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.MetricsRegistry;
 
@@ -40,10 +62,15 @@ import com.yammer.metrics.core.MetricsRegistry;
  * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
  * 
  */
-public class HazelcastService implements SmartLifecycle {
+public class HazelcastService implements SmartLifecycle,
+        DeployWatcher.Listener {
 
 	private static final String	            STARTUP_DURATION_GAUGE	= "startup-duration-millis";
 
+	private static final long	            MIGRATION_POLL_INTERVAL_MILLIS	= 100L;
+
+	private static final int	            MIGRATION_QUIET_POLLS	        = 3;
+
 	private final Logger	                log	                   = LoggerFactory
 	                                                                       .getLogger(getClass());
 
@@ -53,6 +80,46 @@ public class HazelcastService implements SmartLifecycle {
 
 	private volatile HazelcastInstanceProxy	hazelcastInstance;
 
+	/**
+	 * Set once {@link #start()} has completed, i.e. after snapshots have been
+	 * restored and map stores warmed up
+	 */
+	private volatile boolean	            running;
+
+	private boolean	                        preCreateDataStructures	= true;
+
+	private int	                            preCreationParallelism	= Runtime
+	                                                                       .getRuntime()
+	                                                                       .availableProcessors();
+
+	private DataStructurePreCreator	        dataStructurePreCreator;
+
+	private MapStoreWarmUp	                mapStoreWarmUp;
+
+	private MapOperationMetrics	            mapOperationMetrics;
+
+	private MapStatsCollector	            mapStatsCollector;
+
+	private HeapPressureEvictionController	heapPressureEvictionController;
+
+	private AdmissionEviction	            admissionEviction;
+
+	private TimingWheelExpiry	            timingWheelExpiry;
+
+	private MapSnapshotter	                mapSnapshotter;
+
+	private CoalescingWriteBehind	        coalescingWriteBehind;
+
+	private SingleFlightLoading	            singleFlightLoading;
+
+	private OffHeapLoaderCache	             offHeapLoaderCache;
+
+	private StartupTimeline	                startupTimeline;
+
+	private boolean	                        ownStartupTimeline;
+
+	private int	                            migrationTimeoutSeconds	        = 60;
+
 	/**
 	 * @param configuration
 	 */
@@ -64,6 +131,156 @@ public class HazelcastService implements SmartLifecycle {
 		        "Argument 'metricsRegistry' must not be null");
 	}
 
+	/**
+	 * @param preCreateDataStructures
+	 *            Whether to create all configured maps, queues and topics
+	 *            during startup instead of when they are first used. Defaults
+	 *            to <code>true</code>.
+	 */
+	public final void setPreCreateDataStructures(
+	        final boolean preCreateDataStructures) {
+		this.preCreateDataStructures = preCreateDataStructures;
+	}
+
+	/**
+	 * @param preCreationParallelism
+	 *            The maximum number of data structures to create concurrently
+	 *            during startup. Defaults to the number of available
+	 *            processors.
+	 */
+	public final void setPreCreationParallelism(final int preCreationParallelism) {
+		checkArgument(preCreationParallelism > 0,
+		        "Argument 'preCreationParallelism' must be greater than 0: %s",
+		        preCreationParallelism);
+		this.preCreationParallelism = preCreationParallelism;
+	}
+
+	/**
+	 * @param mapStoreWarmUp
+	 *            Loads all write-through maps from their MapStores upon
+	 *            startup instead of Hazelcast's initial load. Optional.
+	 */
+	public final void setMapStoreWarmUp(final MapStoreWarmUp mapStoreWarmUp) {
+		this.mapStoreWarmUp = mapStoreWarmUp;
+	}
+
+	/**
+	 * @param mapOperationMetrics
+	 *            Publishes operation latencies of our maps once we are
+	 *            started. Optional.
+	 */
+	public final void setMapOperationMetrics(
+	        final MapOperationMetrics mapOperationMetrics) {
+		this.mapOperationMetrics = mapOperationMetrics;
+	}
+
+	/**
+	 * @param mapStatsCollector
+	 *            Publishes entry counts and memory cost of our maps once we
+	 *            are started. Optional.
+	 */
+	public final void setMapStatsCollector(
+	        final MapStatsCollector mapStatsCollector) {
+		this.mapStatsCollector = mapStatsCollector;
+	}
+
+	/**
+	 * @param heapPressureEvictionController
+	 *            Evicts from opted-in maps when heap usage gets critical once
+	 *            we are started. Optional.
+	 */
+	public final void setHeapPressureEvictionController(
+	        final HeapPressureEvictionController heapPressureEvictionController) {
+		this.heapPressureEvictionController = heapPressureEvictionController;
+	}
+
+	/**
+	 * @param admissionEviction
+	 *            Applies the W-TinyLFU eviction policy to maps selecting it
+	 *            once we are started. Optional.
+	 */
+	public final void setAdmissionEviction(
+	        final AdmissionEviction admissionEviction) {
+		this.admissionEviction = admissionEviction;
+	}
+
+	/**
+	 * @param timingWheelExpiry
+	 *            Expires entries of maps opting in to timing wheel expiry once
+	 *            we are started. Optional.
+	 */
+	public final void setTimingWheelExpiry(
+	        final TimingWheelExpiry timingWheelExpiry) {
+		this.timingWheelExpiry = timingWheelExpiry;
+	}
+
+	/**
+	 * @param mapSnapshotter
+	 *            Restores opted-in maps from their latest local snapshot
+	 *            during startup, and snapshots them periodically and when we
+	 *            are stopped. Optional.
+	 */
+	public final void setMapSnapshotter(final MapSnapshotter mapSnapshotter) {
+		this.mapSnapshotter = mapSnapshotter;
+	}
+
+	/**
+	 * @param coalescingWriteBehind
+	 *            Writes maps opting in to coalescing write-behind to their
+	 *            MapStores in batches while we are running. Optional.
+	 */
+	public final void setCoalescingWriteBehind(
+	        final CoalescingWriteBehind coalescingWriteBehind) {
+		this.coalescingWriteBehind = coalescingWriteBehind;
+	}
+
+	/**
+	 * @param singleFlightLoading
+	 *            Coalesces concurrent loads of the same key for maps opting in
+	 *            to single-flight loading, refreshing their entries ahead of
+	 *            expiry once we are started. Optional.
+	 */
+	public final void setSingleFlightLoading(
+	        final SingleFlightLoading singleFlightLoading) {
+		this.singleFlightLoading = singleFlightLoading;
+	}
+
+	/**
+	 * @param offHeapLoaderCache
+	 *            Caches the values of maps opting in to an off-heap loader
+	 *            cache outside the heap. Optional.
+	 */
+	public final void setOffHeapLoaderCache(
+	        final OffHeapLoaderCache offHeapLoaderCache) {
+		this.offHeapLoaderCache = offHeapLoaderCache;
+	}
+
+	/**
+	 * @param startupTimeline
+	 *            Where to record how long each startup phase took. Defaults to
+	 *            a {@link StartupTimeline} of our own, created when starting
+	 *            and removed when stopping.
+	 */
+	public final void setStartupTimeline(final StartupTimeline startupTimeline) {
+		this.startupTimeline = checkNotNull(startupTimeline,
+		        "Argument 'startupTimeline' must not be null");
+		this.ownStartupTimeline = false;
+	}
+
+	/**
+	 * @param migrationTimeoutSeconds
+	 *            How long to wait for the partition migrations triggered by
+	 *            this node joining to complete before continuing startup
+	 *            regardless. Defaults to 60 seconds.
+	 */
+	public final void setMigrationTimeoutSeconds(
+	        final int migrationTimeoutSeconds) {
+		checkArgument(migrationTimeoutSeconds > 0,
+		        "Argument 'migrationTimeoutSeconds' must be greater than 0: %s",
+		        migrationTimeoutSeconds);
+		this.migrationTimeoutSeconds = migrationTimeoutSeconds;
+	}
+
 	/**
 	 * @see org.springframework.context.Lifecycle#start()
 	 */
@@ -73,10 +290,55 @@ public class HazelcastService implements SmartLifecycle {
 		        "{} has already been started", this);
 		this.log.info("Starting {} using ...", this.configuration);
 
-		final long start = System.currentTimeMillis();
+		if (this.startupTimeline == null) {
+			this.startupTimeline = new StartupTimeline(this.metricsRegistry);
+			this.ownStartupTimeline = true;
+		}
+
+		boolean started = false;
+		try {
+			startComponents();
+			started = true;
+		} finally {
+			if (!started) {
+				this.log.error("Failed to start {} - shutting down whatever has been started so far",
+				        this);
+				tearDown();
+			}
+		}
+		this.running = true;
+	}
+
+	private void startComponents() {
+		if (this.offHeapLoaderCache != null) {
+			this.offHeapLoaderCache.prepare(this.configuration);
+		}
+		if (this.coalescingWriteBehind != null) {
+			this.coalescingWriteBehind.prepare(this.configuration);
+			this.coalescingWriteBehind.start();
+		}
+		if (this.singleFlightLoading != null) {
+			this.singleFlightLoading.prepare(this.configuration);
+		}
+		if (this.mapStoreWarmUp != null) {
+			this.mapStoreWarmUp.prepare(this.configuration);
+		}
+		if (this.timingWheelExpiry != null) {
+			this.timingWheelExpiry.prepare(this.configuration);
+		}
+		if (this.mapSnapshotter != null) {
+			this.mapSnapshotter.prepare(this.configuration);
+		}
+		final long start = System.nanoTime();
+		final StartupTimeline.Phase nodeStart = this.startupTimeline
+		        .begin(StartupTimeline.NODE_START);
 		this.hazelcastInstance = FactoryImpl
 		        .newHazelcastInstanceProxy(this.configuration);
-		final long startupDuration = System.currentTimeMillis() - start;
+		nodeStart.end();
+		assignPartitions();
+		awaitMigrations();
+		final long startupDuration = TimeUnit.NANOSECONDS.toMillis(System
+		        .nanoTime() - start);
 		this.metricsRegistry.newGauge(getClass(), STARTUP_DURATION_GAUGE,
 		        new Gauge<Long>() {
 
@@ -86,9 +348,155 @@ public class HazelcastService implements SmartLifecycle {
 			        }
 		        });
 
+		if (this.preCreateDataStructures) {
+			final StartupTimeline.Phase preCreation = this.startupTimeline
+			        .begin(StartupTimeline.DATA_STRUCTURE_PRE_CREATION);
+			preCreateDataStructures();
+			preCreation.end();
+		}
+		if (this.mapSnapshotter != null) {
+			final StartupTimeline.Phase snapshotRestore = this.startupTimeline
+			        .begin(StartupTimeline.SNAPSHOT_RESTORE);
+			restoreSnapshot();
+			snapshotRestore.end();
+		}
+		if (this.mapStoreWarmUp != null) {
+			warmUpMapStores();
+		}
+		if (this.mapOperationMetrics != null) {
+			this.mapOperationMetrics.start(this.hazelcastInstance);
+		}
+		if (this.mapStatsCollector != null) {
+			this.mapStatsCollector.start(this.hazelcastInstance);
+		}
+		if (this.heapPressureEvictionController != null) {
+			this.heapPressureEvictionController.start(this.hazelcastInstance);
+		}
+		if (this.admissionEviction != null) {
+			this.admissionEviction.start(this.hazelcastInstance);
+		}
+		if (this.timingWheelExpiry != null) {
+			this.timingWheelExpiry.start(this.hazelcastInstance);
+		}
+		if (this.singleFlightLoading != null) {
+			this.singleFlightLoading.start(this.hazelcastInstance);
+		}
+		if (this.mapSnapshotter != null) {
+			this.mapSnapshotter.start(this.hazelcastInstance);
+		}
+
 		this.log.info("{} started in [{}] ms", this, startupDuration);
 	}
 
+	/**
+	 * Make sure every partition has been assigned an owner. Hazelcast assigns
+	 * partitions lazily, upon first being asked for them.
+	 */
+	private void assignPartitions() {
+		final StartupTimeline.Phase partitionAssignment = this.startupTimeline
+		        .begin(StartupTimeline.PARTITION_ASSIGNMENT);
+		ownersOf(this.hazelcastInstance.getPartitionService());
+		partitionAssignment.end();
+	}
+
+	/**
+	 * Wait until the partition migrations triggered by this node joining have
+	 * completed, i.e. until Hazelcast reports no migration in progress and
+	 * every partition's owner has stayed the same for
+	 * {@link #MIGRATION_QUIET_POLLS} consecutive polls, or until
+	 * {@link #setMigrationTimeoutSeconds(int) our timeout} expires. Migrations
+	 * are not announced before they begin, hence polling instead of listening
+	 * for {@link com.hazelcast.partition.MigrationEvent}s.
+	 */
+	private void awaitMigrations() {
+		final StartupTimeline.Phase migration = this.startupTimeline
+		        .begin(StartupTimeline.MIGRATION);
+		if (this.hazelcastInstance.getCluster().getMembers().size() < 2) {
+			migration.end();
+			return;
+		}
+		final PartitionService partitionService = this.hazelcastInstance
+		        .getPartitionService();
+		final PartitionManager partitionManager = this.hazelcastInstance
+		        .getFactory().node.concurrentMapManager.getPartitionManager();
+		final long deadline = System.nanoTime()
+		        + TimeUnit.SECONDS.toNanos(this.migrationTimeoutSeconds);
+		List<Member> owners = ownersOf(partitionService);
+		int quietPolls = 0;
+		try {
+			while (quietPolls < MIGRATION_QUIET_POLLS) {
+				if (System.nanoTime() - deadline >= 0) {
+					this.log.warn("Partition migrations did not complete within [{}] s - will continue startup",
+					        this.migrationTimeoutSeconds);
+					break;
+				}
+				TimeUnit.MILLISECONDS.sleep(MIGRATION_POLL_INTERVAL_MILLIS);
+				final List<Member> currentOwners = ownersOf(partitionService);
+				if (!isMigrating(partitionManager)
+				        && currentOwners.equals(owners)) {
+					quietPolls++;
+				} else {
+					quietPolls = 0;
+				}
+				owners = currentOwners;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.log.warn("Interrupted while waiting for partition migrations to complete - will continue startup");
+		}
+		migration.end();
+	}
+
+	private static List<Member> ownersOf(final PartitionService partitionService) {
+		final List<Member> owners = new ArrayList<Member>();
+		for (final Partition partition : partitionService.getPartitions()) {
+			owners.add(partition.getOwner());
+		}
+		return owners;
+	}
+
+	private static boolean isMigrating(final PartitionManager partitionManager) {
+		return partitionManager.getMigratingPartition() != null
+		        || partitionManager.getImmediateTasksCount() > 0
+		        || partitionManager.getScheduledTasksCount() > 0;
+	}
+
+	private void preCreateDataStructures() {
+		this.dataStructurePreCreator = new DataStructurePreCreator(
+		        this.metricsRegistry, getClass(), this.preCreationParallelism);
+		try {
+			this.dataStructurePreCreator.preCreateAll(this.hazelcastInstance);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.log.warn("Interrupted while pre-creating data structures - remaining data structures will be created lazily");
+		}
+	}
+
+	private void restoreSnapshot() {
+		try {
+			this.mapSnapshotter.restore(this.hazelcastInstance);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.log.warn("Interrupted while restoring snapshot - will continue startup with partially restored maps");
+		}
+	}
+
+	private void warmUpMapStores() {
+		this.mapStoreWarmUp.start(this.hazelcastInstance);
+		if (!this.mapStoreWarmUp.isGateStartup()) {
+			return;
+		}
+		this.log.info("Waiting for {} to finish ...", this.mapStoreWarmUp);
+		try {
+			this.mapStoreWarmUp.awaitCompletion(Long.MAX_VALUE,
+			        TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.log.warn("Interrupted while waiting for {} to finish - will continue startup",
+			        this.mapStoreWarmUp);
+		}
+	}
+
 	/**
 	 * @see org.springframework.context.Lifecycle#stop()
 	 */
@@ -97,13 +505,116 @@ public class HazelcastService implements SmartLifecycle {
 		checkState(this.hazelcastInstance != null, "{} is not running", this);
 		this.log.info("Shutting down Hazelcast instance {} ...",
 		        this.hazelcastInstance);
+		this.running = false;
+		tearDown();
+	}
 
+	/**
+	 * Stop and release everything {@link #start()} may have started, even if
+	 * it failed halfway through. Hence, every component we stop or release
+	 * here must tolerate never having been started.
+	 */
+	private void tearDown() {
 		this.metricsRegistry.removeMetric(getClass(), STARTUP_DURATION_GAUGE);
-		this.hazelcastInstance.shutdown();
+		if (this.ownStartupTimeline) {
+			this.startupTimeline.removeMetrics();
+			this.startupTimeline = null;
+			this.ownStartupTimeline = false;
+		}
+		if (this.mapSnapshotter != null) {
+			this.mapSnapshotter.stop();
+		}
+		if (this.mapOperationMetrics != null) {
+			this.mapOperationMetrics.stop();
+		}
+		if (this.mapStatsCollector != null) {
+			this.mapStatsCollector.stop();
+		}
+		if (this.heapPressureEvictionController != null) {
+			this.heapPressureEvictionController.stop();
+		}
+		if (this.admissionEviction != null) {
+			this.admissionEviction.stop();
+		}
+		if (this.timingWheelExpiry != null) {
+			this.timingWheelExpiry.stop();
+		}
+		if (this.singleFlightLoading != null) {
+			this.singleFlightLoading.stop();
+		}
+		if (this.mapStoreWarmUp != null && this.mapStoreWarmUp.isRunning()) {
+			this.mapStoreWarmUp.stop();
+		}
+		if (this.dataStructurePreCreator != null) {
+			this.dataStructurePreCreator.removeMetrics();
+			this.dataStructurePreCreator = null;
+		}
+		if (this.coalescingWriteBehind != null) {
+			this.coalescingWriteBehind.stop();
+		}
+		if (this.hazelcastInstance != null) {
+			this.hazelcastInstance.shutdown();
+			this.log.info("{} shut down", this.hazelcastInstance);
+			this.hazelcastInstance = null;
+		}
+		if (this.offHeapLoaderCache != null) {
+			this.offHeapLoaderCache.release();
+		}
+	}
 
-		this.log.info("{} shut down", this.hazelcastInstance);
+	/**
+	 * Add all {@link MapConfig}s, {@link QueueConfig}s and {@link TopicConfig}s
+	 * contained in <code>dataStructuresConfig</code> to the {@link Config} used
+	 * by our {@link HazelcastInstance}. Note that Hazelcast reads a data
+	 * structure's configuration when that data structure is first created, so
+	 * changes to a data structure that already exists will only take effect
+	 * after a restart. The same holds for {@link MapOptions#STARTUP_OPTIONS}
+	 * of maps deployed while we are running, which is why these are logged as
+	 * warnings.
+	 * 
+	 * @see com.obergner.hzserver.pluggable.DeployWatcher.Listener#deployed(com.obergner.hzserver.pluggable.DataFile,
+	 *      com.hazelcast.config.Config)
+	 */
+	@Override
+	public void deployed(final DataFile dataFile,
+	        final Config dataStructuresConfig) {
+		final HazelcastInstance runningInstance = this.hazelcastInstance;
+		final Config target = runningInstance != null ? runningInstance
+		        .getConfig() : this.configuration;
+		for (final MapConfig mapConfig : dataStructuresConfig.getMapConfigs()
+		        .values()) {
+			target.addMapConfig(mapConfig);
+			this.log.info("Deployed map [{}] from [{}]", mapConfig.getName(),
+			        dataFile);
+			if (runningInstance != null) {
+				warnAboutStartupOptions(mapConfig.getName(), dataFile,
+				        MapOptions.startupOptionsOf(dataStructuresConfig,
+				                mapConfig.getName()));
+			}
+		}
+		for (final QueueConfig queueConfig : dataStructuresConfig
+		        .getQConfigs().values()) {
+			target.addQueueConfig(queueConfig);
+			this.log.info("Deployed queue [{}] from [{}]",
+			        queueConfig.getName(), dataFile);
+		}
+		for (final TopicConfig topicConfig : dataStructuresConfig
+		        .getTopicConfigs().values()) {
+			target.addTopicConfig(topicConfig);
+			this.log.info("Deployed topic [{}] from [{}]",
+			        topicConfig.getName(), dataFile);
+		}
+		MapOptions.copy(dataStructuresConfig, target);
+	}
 
-		this.hazelcastInstance = null;
+	private void warnAboutStartupOptions(final String mapName,
+	        final DataFile dataFile, final List<String> startupOptions) {
+		if (!startupOptions.isEmpty()) {
+			this.log.warn(
+			        "Map [{}] deployed from [{}] while running sets {} - these will "
+			                + "NOT take effect before this server is restarted",
+			        new Object[] { mapName, dataFile, startupOptions });
+		}
 	}
 
 	/**
@@ -111,7 +622,7 @@ public class HazelcastService implements SmartLifecycle {
 	 */
 	@Override
 	public boolean isRunning() {
-		return this.hazelcastInstance != null;
+		return this.running;
 	}
 
 	/**
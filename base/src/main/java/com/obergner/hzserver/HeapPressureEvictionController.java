@@ -0,0 +1,616 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.query.Predicate;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Protects us from running out of heap by evicting entries from maps that opt
+ * in via {@link MapOptions#HEAP_PRESSURE_EVICTION}, long before Hazelcast's
+ * own size based eviction - if configured at all - would kick in.
+ * </p>
+ * <p>
+ * We judge heap usage by what is left after garbage collection, i.e. by the
+ * {@link MemoryPoolMXBean#getCollectionUsage() collection usage} of all heap
+ * memory pools, since raw heap usage includes garbage that is about to be
+ * collected and would have us evict long before we need to. Heap usage is
+ * checked periodically and whenever a garbage collection leaves a heap memory
+ * pool above our {@link #setHighWatermarkPercent(int) high watermark}. Once
+ * heap usage reaches the high watermark, we evict one
+ * {@link #setEvictionBatchSize(int) batch} of entries from every opted-in
+ * map per collection of our largest heap memory pool - usually the tenured
+ * generation -, until usage has dropped below our
+ * {@link #setLowWatermarkPercent(int) low watermark}. Waiting for that pool
+ * to be collected again lets evicted entries show up in its collection usage
+ * before we decide whether to evict more. If the JVM does not report
+ * collection usage for any heap memory pool, we fall back to raw heap usage
+ * and evict one batch per check.
+ * </p>
+ * <p>
+ * Victims are chosen from a random sample of each map's locally owned
+ * entries, either least recently used or least frequently used first. The
+ * sample is drawn by a query that accepts each local entry with just the
+ * probability needed to yield one sample, so that we never copy all local
+ * keys. Since entries are {@link IMap#evict(Object) evicted}, not removed,
+ * maps backed by a MapStore will transparently reload them.
+ * </p>
+ * <p>
+ * Publishes the current {@link #NORMAL pressure level} and heap usage after
+ * garbage collection as gauges, plus the number of entries evicted in total
+ * and per map as counters.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class HeapPressureEvictionController {
+
+	/**
+	 * Heap usage is below our low watermark.
+	 */
+	public static final int	            NORMAL	                = 0;
+
+	/**
+	 * Heap usage is between our low and high watermarks, and has not reached
+	 * the high watermark since it last dropped below the low watermark.
+	 */
+	public static final int	            ELEVATED	            = 1;
+
+	/**
+	 * Heap usage has reached our high watermark and not yet dropped below our
+	 * low watermark. We are evicting.
+	 */
+	public static final int	            HIGH	                = 2;
+
+	private static final int	        SAMPLES_PER_VICTIM	    = 4;
+
+	private final Logger	            log	                    = LoggerFactory
+	                                                                    .getLogger(getClass());
+
+	private final MetricsRegistry	    metricsRegistry;
+
+	private final MemoryMXBean	        memoryMXBean;
+
+	private final Counter	            evictedEntries;
+
+	private final List<MemoryPoolMXBean>	heapPools	            = new ArrayList<MemoryPoolMXBean>();
+
+	private final List<GarbageCollectorMXBean>	largestPoolCollectors	= new ArrayList<GarbageCollectorMXBean>();
+
+	private final NotificationListener	gcListener	            = new GcListener();
+
+	private final List<MemoryPoolMXBean>	monitoredPools	        = new ArrayList<MemoryPoolMXBean>();
+
+	private final List<String>	        mapsWithEvictionCounter	= new ArrayList<String>();
+
+	private int	                        lowWatermarkPercent	    = 75;
+
+	private int	                        highWatermarkPercent	= 85;
+
+	private int	                        evictionBatchSize	    = 100;
+
+	private long	                    checkIntervalMillis	    = 1000L;
+
+	private volatile int	            pressureLevel	        = NORMAL;
+
+	private long	                    collectionsAtLastEviction	= -1L;
+
+	private volatile HazelcastInstance	hazelcastInstance;
+
+	private ScheduledExecutorService	checker;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public HeapPressureEvictionController(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		this.memoryMXBean = ManagementFactory.getMemoryMXBean();
+		findHeapPools();
+		this.evictedEntries = metricsRegistry.newCounter(getClass(),
+		        "evicted-entries");
+		metricsRegistry.newGauge(getClass(), "pressure-level",
+		        new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return getPressureLevel();
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "heap-usage-percent",
+		        new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return heapUsagePercent();
+			        }
+		        });
+	}
+
+	/**
+	 * Find all heap memory pools that report their usage after garbage
+	 * collection, and the collectors of the largest one.
+	 */
+	private void findHeapPools() {
+		MemoryPoolMXBean largestPool = null;
+		for (final MemoryPoolMXBean pool : ManagementFactory
+		        .getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP
+			        && pool.isCollectionUsageThresholdSupported()) {
+				this.heapPools.add(pool);
+				if (largestPool == null
+				        || sizeOf(pool.getUsage()) > sizeOf(largestPool
+				                .getUsage())) {
+					largestPool = pool;
+				}
+			}
+		}
+		if (largestPool == null) {
+			return;
+		}
+		for (final GarbageCollectorMXBean collector : ManagementFactory
+		        .getGarbageCollectorMXBeans()) {
+			if (Arrays.asList(collector.getMemoryPoolNames()).contains(
+			        largestPool.getName())) {
+				this.largestPoolCollectors.add(collector);
+			}
+		}
+	}
+
+	private static long sizeOf(final MemoryUsage usage) {
+		return usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+	}
+
+	/**
+	 * @param lowWatermarkPercent
+	 *            Heap usage, in percent of maximum heap, below which we stop
+	 *            evicting. Defaults to 75.
+	 */
+	public void setLowWatermarkPercent(final int lowWatermarkPercent) {
+		checkArgument(lowWatermarkPercent > 0 && lowWatermarkPercent < 100,
+		        "Argument 'lowWatermarkPercent' must be between 1 and 99: %s",
+		        lowWatermarkPercent);
+		this.lowWatermarkPercent = lowWatermarkPercent;
+	}
+
+	/**
+	 * @param highWatermarkPercent
+	 *            Heap usage, in percent of maximum heap, at which we start
+	 *            evicting. Defaults to 85.
+	 */
+	public void setHighWatermarkPercent(final int highWatermarkPercent) {
+		checkArgument(highWatermarkPercent > 0 && highWatermarkPercent < 100,
+		        "Argument 'highWatermarkPercent' must be between 1 and 99: %s",
+		        highWatermarkPercent);
+		this.highWatermarkPercent = highWatermarkPercent;
+	}
+
+	/**
+	 * @param evictionBatchSize
+	 *            How many entries to evict from each opted-in map per check.
+	 *            Defaults to 100.
+	 */
+	public void setEvictionBatchSize(final int evictionBatchSize) {
+		checkArgument(evictionBatchSize > 0,
+		        "Argument 'evictionBatchSize' must be greater than 0: %s",
+		        evictionBatchSize);
+		this.evictionBatchSize = evictionBatchSize;
+	}
+
+	/**
+	 * @param checkIntervalMillis
+	 *            How often to check heap usage in the absence of garbage
+	 *            collection notifications. Defaults to 1 second.
+	 */
+	public void setCheckIntervalMillis(final long checkIntervalMillis) {
+		checkArgument(checkIntervalMillis > 0,
+		        "Argument 'checkIntervalMillis' must be greater than 0: %s",
+		        checkIntervalMillis);
+		this.checkIntervalMillis = checkIntervalMillis;
+	}
+
+	/**
+	 * Start watching heap usage, evicting from maps configured in
+	 * <code>hazelcastInstance</code> when necessary.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.checker == null, "%s has already been started", this);
+		checkState(this.lowWatermarkPercent < this.highWatermarkPercent,
+		        "Low watermark (%s%%) must be below high watermark (%s%%)",
+		        this.lowWatermarkPercent, this.highWatermarkPercent);
+		this.hazelcastInstance = hazelcastInstance;
+		this.checker = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-heap-pressure-%d")
+		                .setDaemon(true).build());
+		this.checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, this.checkIntervalMillis, this.checkIntervalMillis,
+		        TimeUnit.MILLISECONDS);
+		listenForGarbageCollections();
+		this.log.info(
+		        "Watching heap usage every [{}] ms - will evict at [{}%] until below [{}%]",
+		        new Object[] { this.checkIntervalMillis,
+		                this.highWatermarkPercent, this.lowWatermarkPercent });
+	}
+
+	private void listenForGarbageCollections() {
+		for (final MemoryPoolMXBean pool : this.heapPools) {
+			final long max = pool.getUsage().getMax();
+			if (max > 0) {
+				pool.setCollectionUsageThreshold(max
+				        * this.highWatermarkPercent / 100);
+				this.monitoredPools.add(pool);
+			}
+		}
+		((NotificationEmitter) this.memoryMXBean).addNotificationListener(
+		        this.gcListener, null, null);
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.checker != null;
+	}
+
+	/**
+	 * Stop watching heap usage.
+	 */
+	public synchronized void stop() {
+		if (this.checker == null) {
+			return;
+		}
+		try {
+			((NotificationEmitter) this.memoryMXBean)
+			        .removeNotificationListener(this.gcListener);
+		} catch (final ListenerNotFoundException e) {
+			// Never added, nothing to remove
+		}
+		for (final MemoryPoolMXBean pool : this.monitoredPools) {
+			pool.setCollectionUsageThreshold(0L);
+		}
+		this.monitoredPools.clear();
+		this.checker.shutdownNow();
+		this.checker = null;
+		this.hazelcastInstance = null;
+		this.pressureLevel = NORMAL;
+		this.collectionsAtLastEviction = -1L;
+		synchronized (this.mapsWithEvictionCounter) {
+			for (final String mapName : this.mapsWithEvictionCounter) {
+				this.metricsRegistry.removeMetric(getClass(),
+				        "evicted-entries", mapName);
+			}
+			this.mapsWithEvictionCounter.clear();
+		}
+	}
+
+	private synchronized void checkSoon() {
+		if (this.checker != null) {
+			this.checker.execute(new Runnable() {
+				@Override
+				public void run() {
+					check();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Update our pressure level and, if it is {@link #HIGH}, evict one batch
+	 * of entries from every opted-in map unless we already did so since our
+	 * largest heap memory pool was last collected.
+	 */
+	void check() {
+		try {
+			final int previousLevel = this.pressureLevel;
+			final int heapUsagePercent = heapUsagePercent();
+			this.pressureLevel = pressureLevelFor(heapUsagePercent,
+			        previousLevel);
+			if (this.pressureLevel != previousLevel) {
+				this.log.warn(
+				        "Heap pressure level changed from [{}] to [{}] at [{}%] heap usage after GC",
+				        new Object[] { previousLevel, this.pressureLevel,
+				                heapUsagePercent });
+			}
+			final HazelcastInstance instance = this.hazelcastInstance;
+			if (this.pressureLevel == HIGH && instance != null) {
+				final long collections = largestPoolCollections();
+				if (collections < 0
+				        || collections != this.collectionsAtLastEviction) {
+					this.collectionsAtLastEviction = collections;
+					evictFromOptedInMaps(instance);
+				}
+			}
+		} catch (final RuntimeException e) {
+			this.log.error("Failed to check heap pressure: " + e.getMessage(),
+			        e);
+		}
+	}
+
+	int pressureLevelFor(final int heapUsagePercent, final int currentLevel) {
+		if (heapUsagePercent >= this.highWatermarkPercent) {
+			return HIGH;
+		}
+		if (heapUsagePercent >= this.lowWatermarkPercent) {
+			return currentLevel == HIGH ? HIGH : ELEVATED;
+		}
+		return NORMAL;
+	}
+
+	private void evictFromOptedInMaps(final HazelcastInstance instance) {
+		for (final IMap<?, ?> map : ConfiguredMaps.createdIn(instance)) {
+			final String order = MapOptions.get(instance.getConfig(),
+			        map.getName(), MapOptions.HEAP_PRESSURE_EVICTION);
+			if (order == null) {
+				continue;
+			}
+			final EvictionOrder evictionOrder;
+			try {
+				evictionOrder = EvictionOrder.valueOf(order.toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				this.log.warn("Map [{}] has unknown {} [{}] - will not evict",
+				        new Object[] { map.getName(),
+				                MapOptions.HEAP_PRESSURE_EVICTION, order });
+				continue;
+			}
+			final int evicted = evictBatch(map, evictionOrder);
+			this.evictedEntries.inc(evicted);
+			evictionCounterOf(map.getName()).inc(evicted);
+			this.log.info("Evicted [{}] {} entries from map [{}]",
+			        new Object[] { evicted, evictionOrder, map.getName() });
+		}
+	}
+
+	/**
+	 * Evict up to one batch of entries from <code>map</code>, choosing
+	 * victims from a random sample of its locally owned entries.
+	 */
+	<K> int evictBatch(final IMap<K, ?> map, final EvictionOrder evictionOrder) {
+		final List<MapEntry<K, ?>> candidates = new ArrayList<MapEntry<K, ?>>();
+		for (final K key : sampleOf(map, this.evictionBatchSize
+		        * SAMPLES_PER_VICTIM)) {
+			final MapEntry<K, ?> entry = map.getMapEntry(key);
+			if (entry != null) {
+				candidates.add(entry);
+			}
+		}
+		Collections.sort(candidates, evictionOrder);
+
+		int evicted = 0;
+		for (final MapEntry<K, ?> victim : candidates.subList(0,
+		        Math.min(this.evictionBatchSize, candidates.size()))) {
+			if (map.evict(victim.getKey())) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Random sample of up to <code>sampleSize</code> of <code>map</code>'s
+	 * locally owned keys. Only keys accepted by a {@link RandomSample} are
+	 * ever copied, so this does not depend on how many entries we own.
+	 */
+	<K> List<K> sampleOf(final IMap<K, ?> map, final int sampleSize) {
+		final long ownedEntries = map.getLocalMapStats().getOwnedEntryCount();
+		final List<K> result = new ArrayList<K>(sampleSize);
+		if (ownedEntries <= 0) {
+			return result;
+		}
+		for (final K key : map.localKeySet(new RandomSample(Math.min(1.0,
+		        (double) sampleSize / ownedEntries)))) {
+			if (result.size() >= sampleSize) {
+				break;
+			}
+			result.add(key);
+		}
+		return result;
+	}
+
+	private Counter evictionCounterOf(final String mapName) {
+		synchronized (this.mapsWithEvictionCounter) {
+			if (!this.mapsWithEvictionCounter.contains(mapName)) {
+				this.mapsWithEvictionCounter.add(mapName);
+			}
+		}
+		return this.metricsRegistry.newCounter(getClass(), "evicted-entries",
+		        mapName);
+	}
+
+	/**
+	 * @return Heap usage after the latest garbage collection of each heap
+	 *         memory pool, in percent of maximum heap, or raw heap usage if no
+	 *         pool reports its collection usage
+	 */
+	int heapUsagePercent() {
+		final MemoryUsage heapUsage = this.memoryMXBean.getHeapMemoryUsage();
+		final long max = sizeOf(heapUsage);
+		if (this.heapPools.isEmpty()) {
+			return (int) (heapUsage.getUsed() * 100 / max);
+		}
+		long usedAfterCollection = 0L;
+		for (final MemoryPoolMXBean pool : this.heapPools) {
+			final MemoryUsage collectionUsage = pool.getCollectionUsage();
+			if (collectionUsage != null) {
+				usedAfterCollection += collectionUsage.getUsed();
+			}
+		}
+		return (int) (usedAfterCollection * 100 / max);
+	}
+
+	/**
+	 * @return How often our largest heap memory pool has been collected, or
+	 *         <code>-1</code> if we cannot tell
+	 */
+	private long largestPoolCollections() {
+		if (this.heapPools.isEmpty() || this.largestPoolCollectors.isEmpty()) {
+			return -1L;
+		}
+		long result = 0L;
+		for (final GarbageCollectorMXBean collector : this.largestPoolCollectors) {
+			result += Math.max(0L, collector.getCollectionCount());
+		}
+		return result;
+	}
+
+	/**
+	 * @return One of {@link #NORMAL}, {@link #ELEVATED} or {@link #HIGH}
+	 */
+	public int getPressureLevel() {
+		return this.pressureLevel;
+	}
+
+	/**
+	 * @return The number of entries evicted so far
+	 */
+	public long getEvictedEntries() {
+		return this.evictedEntries.count();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "HeapPressureEvictionController@" + this.hashCode()
+		        + "[lowWatermarkPercent: " + this.lowWatermarkPercent
+		        + "|highWatermarkPercent: " + this.highWatermarkPercent
+		        + "|evictionBatchSize: " + this.evictionBatchSize
+		        + "|checkIntervalMillis: " + this.checkIntervalMillis
+		        + "|pressureLevel: " + this.pressureLevel + "]";
+	}
+
+	/**
+	 * <p>
+	 * Checks heap pressure right away whenever a garbage collection leaves a
+	 * heap memory pool above our high watermark.
+	 * </p>
+	 */
+	private final class GcListener implements NotificationListener {
+
+		@Override
+		public void handleNotification(final Notification notification,
+		        final Object handback) {
+			if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+			        .equals(notification.getType())) {
+				checkSoon();
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Accepts each entry with a fixed probability, without looking at it.
+	 * </p>
+	 */
+	static final class RandomSample implements Predicate<Object, Object> {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final double		probability;
+
+		RandomSample(final double probability) {
+			this.probability = probability;
+		}
+
+		@Override
+		public boolean apply(final MapEntry<Object, Object> mapEntry) {
+			return Math.random() < this.probability;
+		}
+	}
+
+	/**
+	 * <p>
+	 * The order in which to evict entries, sorting the first victim first.
+	 * </p>
+	 */
+	enum EvictionOrder implements Comparator<MapEntry<?, ?>> {
+
+		/**
+		 * Least recently used first
+		 */
+		LRU {
+			@Override
+			public int compare(final MapEntry<?, ?> first,
+			        final MapEntry<?, ?> second) {
+				return compareLongs(first.getLastAccessTime(),
+				        second.getLastAccessTime());
+			}
+		},
+
+		/**
+		 * Least frequently used first
+		 */
+		LFU {
+			@Override
+			public int compare(final MapEntry<?, ?> first,
+			        final MapEntry<?, ?> second) {
+				return compareLongs(first.getHits(), second.getHits());
+			}
+		};
+
+		private static int compareLongs(final long first, final long second) {
+			return first < second ? -1 : first == second ? 0 : 1;
+		}
+	}
+}
@@ -20,6 +20,7 @@ package com.obergner.hzserver;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.Map;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
@@ -110,8 +111,12 @@ public final class Main {
 
 			@Override
 			public void onApplicationEvent(final ContextRefreshedEvent event) {
-				Main.this.serverInfo.logBootCompleted();
-
+				final Map<String, StartupTimeline> startupTimelines = event
+				        .getApplicationContext().getBeansOfType(
+				                StartupTimeline.class);
+				Main.this.serverInfo.logBootCompleted(startupTimelines
+				        .size() == 1 ? startupTimelines.values().iterator()
+				        .next() : null);
 			}
 		});
 		ctx.addApplicationListener(new ApplicationListener<ContextStoppedEvent>() {
@@ -0,0 +1,429 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Instance;
+import com.hazelcast.core.InstanceEvent;
+import com.hazelcast.core.InstanceListener;
+import com.hazelcast.impl.MProxy;
+import com.hazelcast.impl.MProxyImpl;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Times get, put, remove and lock operations on every map declared in our
+ * configuration and records their latencies in microseconds into
+ * {@link Histogram}s named <code>&lt;operation&gt;-latency-micros</code>,
+ * scoped by map name, plus one unscoped histogram per operation aggregating
+ * all maps. Each histogram's count doubles as the number of operations.
+ * </p>
+ * <p>
+ * Hazelcast 2.4 offers no interceptor for map operations. Every map proxy
+ * does, however, hand each operation - whether issued by code embedded in
+ * this member or by a client connected to it - to a delegate
+ * {@link MProxy}. We replace that delegate with a {@link TimedMProxy} that
+ * times the calls we are interested in using {@link System#nanoTime()}, and
+ * put the original delegate back once stopped. The delegate is the one
+ * non-volatile instance field of type {@link MProxy} a map proxy declares; we
+ * find it by its type, not by its name. Thus:
+ * <ul>
+ * <li>We publish the latency as seen by callers of this member, including
+ * the time taken to reach a remote partition owner. Operations other members
+ * issue against partitions we own are timed by those members.</li>
+ * <li>Recording a latency allocates nothing: histograms use a uniform sample,
+ * and each map's histograms are looked up once, when we start timing it.
+ * Operations are handed to the delegate by plain method calls.</li>
+ * <li>Operations are timed while {@link #isEnabled() enabled} only, which
+ * may be turned off and on at runtime via JMX. While disabled, an operation
+ * costs one volatile read on top of the delegation.</li>
+ * </ul>
+ * Maps created after we have been started are timed from their creation on.
+ * </p>
+ * <p>
+ * The aggregate mean and 99th percentile latencies are additionally exposed
+ * as attributes of this MBean, which is in turn exported via SNMP.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+@ManagedResource(objectName = "com.obergner.hzserver:name=MapOperationMetrics", description = "Latencies of operations on configured maps")
+public class MapOperationMetrics implements InstanceListener {
+
+	/**
+	 * <p>
+	 * The operations we time, each covering all {@link MProxy} methods
+	 * {@link TimedMProxy} records into its histograms.
+	 * </p>
+	 */
+	enum Operation {
+
+		GET("get-latency-micros"),
+
+		PUT("put-latency-micros"),
+
+		REMOVE("remove-latency-micros"),
+
+		LOCK("lock-latency-micros");
+
+		final String	metricName;
+
+		Operation(final String metricName) {
+			this.metricName = metricName;
+		}
+	}
+
+	private final Logger	                      log	                = LoggerFactory
+	                                                                            .getLogger(getClass());
+
+	private final MetricsRegistry	              metricsRegistry;
+
+	private final Map<String, TimedMap>	          timedMaps	            = new ConcurrentHashMap<String, TimedMap>();
+
+	private volatile boolean	                  enabled	            = true;
+
+	private volatile MapLatencies	              allMaps;
+
+	private HazelcastInstance	                  hazelcastInstance;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public MapOperationMetrics(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * Start timing operations on all maps configured in
+	 * <code>hazelcastInstance</code>, including those created later on.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.hazelcastInstance == null,
+		        "%s has already been started", this);
+		this.hazelcastInstance = hazelcastInstance;
+		this.allMaps = new MapLatencies(this.metricsRegistry, null);
+		hazelcastInstance.addInstanceListener(this);
+		for (final IMap<?, ?> map : ConfiguredMaps
+		        .createdIn(hazelcastInstance)) {
+			attach(map);
+		}
+		this.log.info("Timing operations on maps {}", this.timedMaps.keySet());
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.hazelcastInstance != null;
+	}
+
+	/**
+	 * Stop timing operations, restore every map's original delegate and
+	 * remove all metrics.
+	 */
+	public synchronized void stop() {
+		if (this.hazelcastInstance == null) {
+			return;
+		}
+		this.hazelcastInstance.removeInstanceListener(this);
+		for (final TimedMap timedMap : this.timedMaps.values()) {
+			timedMap.detach();
+			timedMap.latencies.remove(this.metricsRegistry);
+		}
+		this.timedMaps.clear();
+		this.allMaps.remove(this.metricsRegistry);
+		this.hazelcastInstance = null;
+	}
+
+	/**
+	 * @see com.hazelcast.core.InstanceListener#instanceCreated(com.hazelcast.core.InstanceEvent)
+	 */
+	@Override
+	public void instanceCreated(final InstanceEvent event) {
+		final Instance instance = event.getInstance();
+		if (!instance.getInstanceType().isMap()) {
+			return;
+		}
+		final IMap<?, ?> map = (IMap<?, ?>) instance;
+		synchronized (this) {
+			if (this.hazelcastInstance != null
+			        && MapOptions.isConcrete(map.getName())
+			        && this.hazelcastInstance.getConfig().getMapConfigs()
+			                .containsKey(map.getName())) {
+				attach(map);
+			}
+		}
+	}
+
+	/**
+	 * @see com.hazelcast.core.InstanceListener#instanceDestroyed(com.hazelcast.core.InstanceEvent)
+	 */
+	@Override
+	public void instanceDestroyed(final InstanceEvent event) {
+		// Its proxy, and thus our timing delegate, is gone along with it.
+		// Metrics are kept until we are stopped, or the map is recreated.
+	}
+
+	private void attach(final IMap<?, ?> map) {
+		if (this.timedMaps.containsKey(map.getName())
+		        && this.timedMaps.get(map.getName()).isAttachedTo(map)) {
+			return;
+		}
+		if (!(map instanceof MProxyImpl)) {
+			this.log.warn(
+			        "Map [{}] is a [{}], not a map proxy we know how to time - its operations will not be timed",
+			        map.getName(), map.getClass().getName());
+			return;
+		}
+		final TimedMap previous = this.timedMaps.remove(map.getName());
+		if (previous != null) {
+			previous.latencies.remove(this.metricsRegistry);
+		}
+		try {
+			final TimedMap timedMap = new TimedMap((MProxyImpl) map,
+			        new MapLatencies(this.metricsRegistry, map.getName()),
+			        this.allMaps);
+			timedMap.attach();
+			this.timedMaps.put(map.getName(), timedMap);
+		} catch (final Exception e) {
+			this.log.warn("Failed to time operations on map [" + map.getName()
+			        + "]: " + e.getMessage(), e);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// JMX
+	// ------------------------------------------------------------------------
+
+	@ManagedAttribute(description = "Whether operations on maps are currently being timed")
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	@ManagedAttribute(description = "Turn timing operations on maps on or off")
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+		this.log.info("Timing map operations is now {}", enabled ? "ON"
+		        : "OFF");
+	}
+
+	@ManagedAttribute(description = "Mean latency of get operations across all maps, in microseconds")
+	public double getGetLatencyMeanMicros() {
+		return meanMicros(Operation.GET);
+	}
+
+	@ManagedAttribute(description = "99th percentile latency of get operations across all maps, in microseconds")
+	public double getGetLatency99thPercentileMicros() {
+		return percentile99Micros(Operation.GET);
+	}
+
+	@ManagedAttribute(description = "Mean latency of put operations across all maps, in microseconds")
+	public double getPutLatencyMeanMicros() {
+		return meanMicros(Operation.PUT);
+	}
+
+	@ManagedAttribute(description = "99th percentile latency of put operations across all maps, in microseconds")
+	public double getPutLatency99thPercentileMicros() {
+		return percentile99Micros(Operation.PUT);
+	}
+
+	@ManagedAttribute(description = "Mean latency of remove operations across all maps, in microseconds")
+	public double getRemoveLatencyMeanMicros() {
+		return meanMicros(Operation.REMOVE);
+	}
+
+	@ManagedAttribute(description = "99th percentile latency of remove operations across all maps, in microseconds")
+	public double getRemoveLatency99thPercentileMicros() {
+		return percentile99Micros(Operation.REMOVE);
+	}
+
+	@ManagedAttribute(description = "Mean latency of lock operations across all maps, in microseconds")
+	public double getLockLatencyMeanMicros() {
+		return meanMicros(Operation.LOCK);
+	}
+
+	@ManagedAttribute(description = "99th percentile latency of lock operations across all maps, in microseconds")
+	public double getLockLatency99thPercentileMicros() {
+		return percentile99Micros(Operation.LOCK);
+	}
+
+	private double meanMicros(final Operation operation) {
+		final MapLatencies latencies = this.allMaps;
+		return latencies != null ? latencies.of(operation).mean() : 0.0;
+	}
+
+	private double percentile99Micros(final Operation operation) {
+		final MapLatencies latencies = this.allMaps;
+		return latencies != null ? latencies.of(operation).getSnapshot()
+		        .get99thPercentile() : 0.0;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MapOperationMetrics@" + this.hashCode() + "[enabled: "
+		        + this.enabled + "|maps: " + this.timedMaps.keySet() + "]";
+	}
+
+	/**
+	 * <p>
+	 * The latency histograms of a single map, or of all maps if created
+	 * without a scope.
+	 * </p>
+	 */
+	static final class MapLatencies {
+
+		private final String	  scope;
+
+		private final Histogram[]	byOperation	= new Histogram[Operation
+		                                            .values().length];
+
+		MapLatencies(final MetricsRegistry metricsRegistry, final String scope) {
+			this.scope = scope;
+			for (final Operation operation : Operation.values()) {
+				// Unbiased, i.e. uniform, samples do not allocate on update
+				this.byOperation[operation.ordinal()] = metricsRegistry
+				        .newHistogram(metricName(operation.metricName), false);
+			}
+		}
+
+		Histogram of(final Operation operation) {
+			return this.byOperation[operation.ordinal()];
+		}
+
+		void remove(final MetricsRegistry metricsRegistry) {
+			for (final Operation operation : Operation.values()) {
+				metricsRegistry.removeMetric(metricName(operation.metricName));
+			}
+		}
+
+		private MetricName metricName(final String name) {
+			return new MetricName(MapOperationMetrics.class, name, this.scope);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Times operations on a single map by having its proxy delegate to a
+	 * {@link TimedMProxy}.
+	 * </p>
+	 */
+	private final class TimedMap {
+
+		private final MProxyImpl	mapProxy;
+
+		private final MapLatencies	latencies;
+
+		private final MapLatencies	allLatencies;
+
+		private final Field		    delegateField;
+
+		private TimedMProxy		    timingDelegate;
+
+		TimedMap(final MProxyImpl mapProxy, final MapLatencies latencies,
+		        final MapLatencies allLatencies) {
+			this.mapProxy = mapProxy;
+			this.latencies = latencies;
+			this.allLatencies = allLatencies;
+			this.delegateField = delegateField();
+			this.delegateField.setAccessible(true);
+		}
+
+		void attach() throws IllegalAccessException {
+			final MProxy delegate = (MProxy) this.delegateField
+			        .get(this.mapProxy);
+			checkState(delegate != null, "Map proxy [%s] has no delegate yet",
+			        this.mapProxy);
+			this.timingDelegate = new TimedMProxy(delegate,
+			        MapOperationMetrics.this, this.latencies,
+			        this.allLatencies);
+			this.delegateField.set(this.mapProxy, this.timingDelegate);
+		}
+
+		boolean isAttachedTo(final IMap<?, ?> map) {
+			return this.mapProxy == map;
+		}
+
+		void detach() {
+			try {
+				if (this.delegateField.get(this.mapProxy) == this.timingDelegate) {
+					this.delegateField.set(this.mapProxy,
+					        this.timingDelegate.delegate());
+				}
+			} catch (final IllegalAccessException e) {
+				MapOperationMetrics.this.log.warn(
+				        "Failed to restore delegate of map ["
+				                + this.mapProxy.getName() + "]: "
+				                + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the one non-static, non-volatile field of type {@link MProxy}
+	 *         {@link MProxyImpl} declares, i.e. the delegate every map
+	 *         operation is handed to
+	 * @throws IllegalStateException
+	 *             If there is no such field, or more than one
+	 */
+	static Field delegateField() throws IllegalStateException {
+		Field delegateField = null;
+		for (final Field field : MProxyImpl.class.getDeclaredFields()) {
+			final int modifiers = field.getModifiers();
+			if (field.getType() != MProxy.class || Modifier.isStatic(modifiers)
+			        || Modifier.isVolatile(modifiers)) {
+				continue;
+			}
+			checkState(delegateField == null,
+			        "%s declares more than one delegate of type %s",
+			        MProxyImpl.class.getName(), MProxy.class.getName());
+			delegateField = field;
+		}
+		checkState(delegateField != null,
+		        "%s declares no delegate of type %s",
+		        MProxyImpl.class.getName(), MProxy.class.getName());
+		return delegateField;
+	}
+}
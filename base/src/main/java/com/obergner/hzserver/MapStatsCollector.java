@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.monitor.LocalMapStats;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Periodically samples the {@link LocalMapStats} of every configured map on a
+ * dedicated thread and publishes them as gauges grouped by the application
+ * that deployed each map, i.e. the subdirectory or bundle beneath our deploy
+ * directory its configuration was read from. Maps configured in our global
+ * configuration are attributed to application {@link #GLOBAL_APPLICATION}.
+ * </p>
+ * <p>
+ * Gauges are named
+ * <code>com.obergner.hzserver.applications:type=&lt;application&gt;,scope=&lt;map&gt;,name=&lt;stat&gt;</code>
+ * , plus one gauge per application and stat without a scope summing up all
+ * of that application's maps. Stats are {@link #STATS}. Gauges only ever
+ * report the latest sample, so reading them never touches Hazelcast.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class MapStatsCollector {
+
+	public static final String	        GLOBAL_APPLICATION	        = "global";
+
+	static final String	                GROUP	                    = "com.obergner.hzserver.applications";
+
+	static final List<String>	        STATS	                    = Collections
+	                                                                        .unmodifiableList(Arrays
+	                                                                                .asList("owned-entry-count",
+	                                                                                        "backup-entry-count",
+	                                                                                        "owned-entry-memory-cost",
+	                                                                                        "backup-entry-memory-cost",
+	                                                                                        "hits",
+	                                                                                        "dirty-entry-count"));
+
+	private final Logger	            log	                        = LoggerFactory
+	                                                                        .getLogger(getClass());
+
+	private final MetricsRegistry	    metricsRegistry;
+
+	private final Map<String, long[]>	latestSampleByMap	        = new ConcurrentHashMap<String, long[]>();
+
+	private final Map<String, String>	applicationByMap	        = new ConcurrentHashMap<String, String>();
+
+	private final List<MetricName>	    registeredGauges	        = new ArrayList<MetricName>();
+
+	private long	                    sampleIntervalMillis	    = 30000L;
+
+	private volatile HazelcastInstance	hazelcastInstance;
+
+	private ScheduledExecutorService	sampler;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public MapStatsCollector(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param sampleIntervalMillis
+	 *            How often to sample map stats. Defaults to 30 seconds.
+	 */
+	public void setSampleIntervalMillis(final long sampleIntervalMillis) {
+		checkArgument(sampleIntervalMillis > 0,
+		        "Argument 'sampleIntervalMillis' must be greater than 0: %s",
+		        sampleIntervalMillis);
+		this.sampleIntervalMillis = sampleIntervalMillis;
+	}
+
+	/**
+	 * Start sampling stats of all maps configured in
+	 * <code>hazelcastInstance</code>.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.sampler == null, "%s has already been started", this);
+		this.hazelcastInstance = hazelcastInstance;
+		this.sampler = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-map-stats-collector-%d")
+		                .setDaemon(true).build());
+		this.sampler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch (final RuntimeException e) {
+					MapStatsCollector.this.log.warn(
+					        "Failed to sample map stats: " + e.getMessage(), e);
+				}
+			}
+		}, 0L, this.sampleIntervalMillis, TimeUnit.MILLISECONDS);
+		this.log.info("Sampling map stats every [{}] ms",
+		        this.sampleIntervalMillis);
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.sampler != null;
+	}
+
+	/**
+	 * Stop sampling and remove all gauges.
+	 */
+	public synchronized void stop() {
+		if (this.sampler == null) {
+			return;
+		}
+		this.sampler.shutdownNow();
+		this.sampler = null;
+		this.hazelcastInstance = null;
+		synchronized (this.registeredGauges) {
+			for (final MetricName gauge : this.registeredGauges) {
+				this.metricsRegistry.removeMetric(gauge);
+			}
+			this.registeredGauges.clear();
+		}
+		this.latestSampleByMap.clear();
+		this.applicationByMap.clear();
+	}
+
+	/**
+	 * Take a new sample of every configured map that has been created.
+	 * Synchronized so that a caller never returns before the gauges of a map
+	 * first seen by a concurrent sample have been registered.
+	 */
+	synchronized void sample() {
+		final HazelcastInstance instance = this.hazelcastInstance;
+		if (instance == null) {
+			return;
+		}
+		for (final IMap<?, ?> map : ConfiguredMaps.createdIn(instance)) {
+			final LocalMapStats stats = map.getLocalMapStats();
+			final long[] sample = new long[] { stats.getOwnedEntryCount(),
+			        stats.getBackupEntryCount(),
+			        stats.getOwnedEntryMemoryCost(),
+			        stats.getBackupEntryMemoryCost(), stats.getHits(),
+			        stats.getDirtyEntryCount() };
+			final String mapName = map.getName();
+			if (this.latestSampleByMap.put(mapName, sample) == null) {
+				registerGauges(mapName,
+				        applicationOf(instance, mapName));
+			}
+		}
+	}
+
+	private static String applicationOf(
+	        final HazelcastInstance hazelcastInstance, final String mapName) {
+		final String application = MapOptions.get(
+		        hazelcastInstance.getConfig(), mapName,
+		        MapOptions.APPLICATION);
+		return application != null ? application : GLOBAL_APPLICATION;
+	}
+
+	private void registerGauges(final String mapName, final String application) {
+		final boolean firstMapOfApplication = !this.applicationByMap
+		        .containsValue(application);
+		this.applicationByMap.put(mapName, application);
+		for (int i = 0; i < STATS.size(); i++) {
+			final int stat = i;
+			registerGauge(new MetricName(GROUP, application, STATS.get(stat),
+			        mapName), new Gauge<Long>() {
+				@Override
+				public Long value() {
+					final long[] sample = MapStatsCollector.this.latestSampleByMap
+					        .get(mapName);
+					return sample != null ? sample[stat] : 0L;
+				}
+			});
+			if (firstMapOfApplication) {
+				registerGauge(new MetricName(GROUP, application,
+				        STATS.get(stat)), new Gauge<Long>() {
+					@Override
+					public Long value() {
+						return sumOf(application, stat);
+					}
+				});
+			}
+		}
+		this.log.info("Publishing stats of map [{}] deployed by application [{}]",
+		        mapName, application);
+	}
+
+	private void registerGauge(final MetricName name, final Gauge<Long> gauge) {
+		this.metricsRegistry.newGauge(name, gauge);
+		synchronized (this.registeredGauges) {
+			this.registeredGauges.add(name);
+		}
+	}
+
+	private long sumOf(final String application, final int stat) {
+		long result = 0L;
+		for (final Map.Entry<String, String> mapAndApplication : this.applicationByMap
+		        .entrySet()) {
+			if (application.equals(mapAndApplication.getValue())) {
+				final long[] sample = this.latestSampleByMap
+				        .get(mapAndApplication.getKey());
+				if (sample != null) {
+					result += sample[stat];
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MapStatsCollector@" + this.hashCode()
+		        + "[sampleIntervalMillis: " + this.sampleIntervalMillis
+		        + "|applicationByMap: " + this.applicationByMap + "]";
+	}
+}
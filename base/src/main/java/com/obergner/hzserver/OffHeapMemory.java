@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps track of the memory outside the heap we hold values of maps in, so
+ * that it may be reported alongside heap usage, e.g. by {@link ServerInfo}.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public final class OffHeapMemory {
+
+	private static final AtomicLong	USED_BYTES	    = new AtomicLong();
+
+	private static final AtomicLong	COMMITTED_BYTES	= new AtomicLong();
+
+	/**
+	 * @param deltaBytes
+	 *            By how many bytes the memory taken by values has grown, or
+	 *            shrunk if negative
+	 */
+	public static void addUsed(final long deltaBytes) {
+		USED_BYTES.addAndGet(deltaBytes);
+	}
+
+	/**
+	 * @param deltaBytes
+	 *            By how many bytes the memory allocated to hold values has
+	 *            grown, or shrunk if negative
+	 */
+	public static void addCommitted(final long deltaBytes) {
+		COMMITTED_BYTES.addAndGet(deltaBytes);
+	}
+
+	/**
+	 * @return The number of bytes outside the heap currently taken by values
+	 */
+	public static long usedBytes() {
+		return USED_BYTES.get();
+	}
+
+	/**
+	 * @return The number of bytes currently allocated outside the heap to
+	 *         hold values, used or not
+	 */
+	public static long committedBytes() {
+		return COMMITTED_BYTES.get();
+	}
+
+	private OffHeapMemory() {
+		// Not intended to be instantiated
+	}
+}
@@ -155,6 +155,10 @@ public final class ServerInfo implements Phased, ServerInfoMBean {
 		        getCommittedNonHeapMemoryInMBs()));
 		this.log.info(formatLogLine("Non Heap Memory Usage (Max/MB)",
 		        getMaxNonHeapMemoryInMBs()));
+		this.log.info(formatLogLine("Off Heap Memory Usage (Used/MB)",
+		        getUsedOffHeapMemoryInMBs()));
+		this.log.info(formatLogLine("Off Heap Memory Usage (Committed/MB)",
+		        getCommittedOffHeapMemoryInMBs()));
 		this.log.info("================================================================================================");
 	}
 
@@ -190,12 +194,35 @@ public final class ServerInfo implements Phased, ServerInfoMBean {
 	}
 
 	public void logBootCompleted() {
+		logBootCompleted(null);
+	}
+
+	/**
+	 * @param startupTimeline
+	 *            If not <code>null</code>, log how long each startup phase
+	 *            took
+	 */
+	public void logBootCompleted(final StartupTimeline startupTimeline) {
 		this.log.info("================================================================================================");
 		this.log.info("{} booted in [{}] ms", getName(),
 		        System.currentTimeMillis() - getStartTime().getTime());
+		if (startupTimeline != null) {
+			this.log.info("------------------------------------------------------------------------------------------------");
+			logStartupPhases(startupTimeline);
+		}
 		this.log.info("================================================================================================");
 	}
 
+	private void logStartupPhases(final StartupTimeline startupTimeline) {
+		for (final Map.Entry<String, Long> phase : startupTimeline
+		        .getDurationNanosByPhase().entrySet()) {
+			final long durationNanos = phase.getValue().longValue();
+			this.log.info(formatLogLine("Startup Phase " + phase.getKey()
+			        + " (ms)", durationNanos < 0 ? "-" : String.format(
+			        "%.3f", durationNanos / 1000000.0)));
+		}
+	}
+
 	public void logShutdownCompleted() {
 		this.log.info("================================================================================================");
 		this.log.info(
@@ -381,6 +408,22 @@ public final class ServerInfo implements Phased, ServerInfoMBean {
 		return bytesToMBs(memory().getNonHeapMemoryUsage().getMax());
 	}
 
+	/**
+	 * @see com.obergner.hzserver.ServerInfoMBean#getUsedOffHeapMemoryInMBs()
+	 */
+	@Override
+	public int getUsedOffHeapMemoryInMBs() {
+		return bytesToMBs(OffHeapMemory.usedBytes());
+	}
+
+	/**
+	 * @see com.obergner.hzserver.ServerInfoMBean#getCommittedOffHeapMemoryInMBs()
+	 */
+	@Override
+	public int getCommittedOffHeapMemoryInMBs() {
+		return bytesToMBs(OffHeapMemory.committedBytes());
+	}
+
 	@PreDestroy
 	public void unregister() throws MBeanRegistrationException,
 	        InstanceNotFoundException {
@@ -418,7 +461,10 @@ public final class ServerInfo implements Phased, ServerInfoMBean {
 		        + "|CommittedNonHeapMemoryInMBs: "
 		        + this.getCommittedNonHeapMemoryInMBs()
 		        + "|MaxNonHeapMemoryInMBs: " + this.getMaxNonHeapMemoryInMBs()
-		        + "]";
+		        + "|UsedOffHeapMemoryInMBs: "
+		        + this.getUsedOffHeapMemoryInMBs()
+		        + "|CommittedOffHeapMemoryInMBs: "
+		        + this.getCommittedOffHeapMemoryInMBs() + "]";
 	}
 
 }
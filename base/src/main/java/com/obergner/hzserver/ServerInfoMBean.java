@@ -79,4 +79,8 @@ public interface ServerInfoMBean {
 	int getCommittedNonHeapMemoryInMBs();
 
 	int getMaxNonHeapMemoryInMBs();
+
+	int getUsedOffHeapMemoryInMBs();
+
+	int getCommittedOffHeapMemoryInMBs();
 }
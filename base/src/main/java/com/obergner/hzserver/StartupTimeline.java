@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Records how long each phase of booting this server took, with nanosecond
+ * resolution. Phases are
+ * <ol>
+ * <li>{@link #CONFIG_BUILD}: building the merged configuration,</li>
+ * <li>{@link #NODE_START}: creating the Hazelcast node, i.e. binding its
+ * server socket and joining the cluster,</li>
+ * <li>{@link #PARTITION_ASSIGNMENT}: assigning an owner to every partition,</li>
+ * <li>{@link #MIGRATION}: completing partition migrations triggered by this
+ * node joining,</li>
+ * <li>{@link #DATA_STRUCTURE_PRE_CREATION}: pre-creating configured data
+ * structures,</li>
+ * <li>{@link #SNAPSHOT_RESTORE}: restoring maps from their latest snapshot
+ * and</li>
+ * <li>{@link #MAP_STORE_WARM_UP}: loading write-through maps from their
+ * MapStores.</li>
+ * </ol>
+ * Phases that have not been recorded yet - or never will be, since they have
+ * been disabled - report a duration of -1.
+ * </p>
+ * <p>
+ * Each phase's duration is published as a gauge named
+ * <code>&lt;phase&gt;-duration-micros</code> and as an attribute of this
+ * MBean, which is in turn exported via SNMP. Call {@link #removeMetrics()}
+ * when done with this timeline, lest its gauges outlive it.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+@ManagedResource(objectName = "com.obergner.hzserver:name=StartupTimeline", description = "How long each phase of booting this server took")
+public class StartupTimeline {
+
+	public static final String	     CONFIG_BUILD	                = "config-build";
+
+	public static final String	     NODE_START	                    = "node-start";
+
+	public static final String	     PARTITION_ASSIGNMENT	        = "partition-assignment";
+
+	public static final String	     MIGRATION	                    = "migration";
+
+	public static final String	     DATA_STRUCTURE_PRE_CREATION	= "data-structure-pre-creation";
+
+	public static final String	     SNAPSHOT_RESTORE	            = "snapshot-restore";
+
+	public static final String	     MAP_STORE_WARM_UP	            = "map-store-warm-up";
+
+	static final List<String>	     PHASES	                        = Collections
+	                                                                        .unmodifiableList(Arrays
+	                                                                                .asList(CONFIG_BUILD,
+	                                                                                        NODE_START,
+	                                                                                        PARTITION_ASSIGNMENT,
+	                                                                                        MIGRATION,
+	                                                                                        DATA_STRUCTURE_PRE_CREATION,
+	                                                                                        SNAPSHOT_RESTORE,
+	                                                                                        MAP_STORE_WARM_UP));
+
+	private static final Long	     NOT_RECORDED	                = Long.valueOf(-1L);
+
+	private final Logger	         log	                        = LoggerFactory
+	                                                                        .getLogger(getClass());
+
+	private final Map<String, Long>	durationNanosByPhase	        = new ConcurrentHashMap<String, Long>();
+
+	private final MetricsRegistry	metricsRegistry;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public StartupTimeline(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		for (final String phase : PHASES) {
+			metricsRegistry.newGauge(getClass(), phase + "-duration-micros",
+			        new Gauge<Long>() {
+				        @Override
+				        public Long value() {
+					        return durationMicrosOf(phase);
+				        }
+			        });
+		}
+	}
+
+	/**
+	 * Remove the gauges publishing each phase's duration from our
+	 * {@link MetricsRegistry}.
+	 */
+	public void removeMetrics() {
+		for (final String phase : PHASES) {
+			this.metricsRegistry.removeMetric(getClass(), phase
+			        + "-duration-micros");
+		}
+	}
+
+	/**
+	 * @param phase
+	 *            One of {@link #PHASES}
+	 * @return A {@link Phase} that will record its duration when
+	 *         {@link Phase#end() ended}
+	 */
+	public Phase begin(final String phase) {
+		checkArgument(PHASES.contains(phase), "Unknown startup phase: %s",
+		        phase);
+		return new Phase(phase, System.nanoTime());
+	}
+
+	/**
+	 * @param phase
+	 * @param durationNanos
+	 */
+	void record(final String phase, final long durationNanos) {
+		this.durationNanosByPhase.put(phase, Long.valueOf(durationNanos));
+		this.log.debug("Startup phase [{}] took [{}] ns", phase, durationNanos);
+	}
+
+	/**
+	 * @return The duration of each phase in nanoseconds, in the order phases
+	 *         occur
+	 */
+	public Map<String, Long> getDurationNanosByPhase() {
+		final Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (final String phase : PHASES) {
+			final Long durationNanos = this.durationNanosByPhase.get(phase);
+			result.put(phase, durationNanos != null ? durationNanos
+			        : NOT_RECORDED);
+		}
+		return result;
+	}
+
+	private long durationMicrosOf(final String phase) {
+		final Long durationNanos = this.durationNanosByPhase.get(phase);
+		return durationNanos != null ? TimeUnit.NANOSECONDS
+		        .toMicros(durationNanos.longValue()) : NOT_RECORDED
+		        .longValue();
+	}
+
+	// ------------------------------------------------------------------------
+	// JMX
+	// ------------------------------------------------------------------------
+
+	@ManagedAttribute(description = "How long building the merged configuration took, in microseconds")
+	public long getConfigBuildMicros() {
+		return durationMicrosOf(CONFIG_BUILD);
+	}
+
+	@ManagedAttribute(description = "How long binding the server socket and joining the cluster took, in microseconds")
+	public long getNodeStartMicros() {
+		return durationMicrosOf(NODE_START);
+	}
+
+	@ManagedAttribute(description = "How long assigning partitions took, in microseconds")
+	public long getPartitionAssignmentMicros() {
+		return durationMicrosOf(PARTITION_ASSIGNMENT);
+	}
+
+	@ManagedAttribute(description = "How long completing partition migrations took, in microseconds")
+	public long getMigrationMicros() {
+		return durationMicrosOf(MIGRATION);
+	}
+
+	@ManagedAttribute(description = "How long pre-creating data structures took, in microseconds")
+	public long getDataStructurePreCreationMicros() {
+		return durationMicrosOf(DATA_STRUCTURE_PRE_CREATION);
+	}
+
+	@ManagedAttribute(description = "How long restoring maps from their latest snapshot took, in microseconds")
+	public long getSnapshotRestoreMicros() {
+		return durationMicrosOf(SNAPSHOT_RESTORE);
+	}
+
+	@ManagedAttribute(description = "How long warming up write-through maps took, in microseconds")
+	public long getMapStoreWarmUpMicros() {
+		return durationMicrosOf(MAP_STORE_WARM_UP);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StartupTimeline@" + this.hashCode() + "[durationNanosByPhase: "
+		        + getDurationNanosByPhase() + "]";
+	}
+
+	/**
+	 * <p>
+	 * A startup phase that has begun but not yet ended.
+	 * </p>
+	 */
+	public final class Phase {
+
+		private final String	name;
+
+		private final long		startNanos;
+
+		Phase(final String name, final long startNanos) {
+			this.name = name;
+			this.startNanos = startNanos;
+		}
+
+		/**
+		 * Record this phase's duration.
+		 */
+		public void end() {
+			record(this.name, System.nanoTime() - this.startNanos);
+		}
+	}
+}
@@ -0,0 +1,591 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.impl.MProxy;
+import com.hazelcast.impl.monitor.MapOperationsCounter;
+import com.hazelcast.monitor.LocalMapStats;
+import com.hazelcast.query.Expression;
+import com.hazelcast.query.Predicate;
+import com.obergner.hzserver.MapOperationMetrics.MapLatencies;
+import com.obergner.hzserver.MapOperationMetrics.Operation;
+import com.yammer.metrics.core.Histogram;
+
+/**
+ * <p>
+ * An {@link MProxy} that times get, put, remove and lock operations before
+ * handing them to the {@link MProxy} it stands in for, and hands every other
+ * operation over as is.
+ * </p>
+ * <p>
+ * The histograms an operation is recorded into are looked up once, when we
+ * are created. Timing an operation thus costs two {@link System#nanoTime()}
+ * calls and two histogram updates, and allocates nothing. While timing is
+ * disabled, it costs one volatile read.
+ * </p>
+ *
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ *
+ */
+// MProxy extends the raw IMap
+@SuppressWarnings("rawtypes")
+final class TimedMProxy implements MProxy {
+
+	private static final long	      NOT_TIMED	   = Long.MIN_VALUE;
+
+	private final MProxy	          delegate;
+
+	private final MapOperationMetrics	metrics;
+
+	private final Histogram[]	      latencies	   = new Histogram[Operation
+	                                                   .values().length];
+
+	private final Histogram[]	      allLatencies	= new Histogram[Operation
+	                                                   .values().length];
+
+	TimedMProxy(final MProxy delegate, final MapOperationMetrics metrics,
+	        final MapLatencies latencies, final MapLatencies allLatencies) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+		for (final Operation operation : Operation.values()) {
+			this.latencies[operation.ordinal()] = latencies.of(operation);
+			this.allLatencies[operation.ordinal()] = allLatencies
+			        .of(operation);
+		}
+	}
+
+	MProxy delegate() {
+		return this.delegate;
+	}
+
+	private long start() {
+		return this.metrics.isEnabled() ? System.nanoTime() : NOT_TIMED;
+	}
+
+	private void stop(final Operation operation, final long start) {
+		if (start == NOT_TIMED) {
+			return;
+		}
+		final long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System
+		        .nanoTime() - start);
+		this.latencies[operation.ordinal()].update(latencyMicros);
+		this.allLatencies[operation.ordinal()].update(latencyMicros);
+	}
+
+	// ------------------------------------------------------------------------
+	// Timed
+	// ------------------------------------------------------------------------
+
+	@Override
+	public Object get(final Object key) {
+		final long start = start();
+		try {
+			return this.delegate.get(key);
+		} finally {
+			stop(Operation.GET, start);
+		}
+	}
+
+	@Override
+	public Object put(final Object key, final Object value) {
+		final long start = start();
+		try {
+			return this.delegate.put(key, value);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public Object put(final Object key, final Object value, final long ttl,
+	        final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			return this.delegate.put(key, value, ttl, timeunit);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public Object putIfAbsent(final Object key, final Object value) {
+		final long start = start();
+		try {
+			return this.delegate.putIfAbsent(key, value);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public Object putIfAbsent(final Object key, final Object value,
+	        final long ttl, final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			return this.delegate.putIfAbsent(key, value, ttl, timeunit);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public void putTransient(final Object key, final Object value,
+	        final long ttl, final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			this.delegate.putTransient(key, value, ttl, timeunit);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public void putAndUnlock(final Object key, final Object value) {
+		final long start = start();
+		try {
+			this.delegate.putAndUnlock(key, value);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public boolean tryPut(final Object key, final Object value,
+	        final long timeout, final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			return this.delegate.tryPut(key, value, timeout, timeunit);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public void set(final Object key, final Object value, final long ttl,
+	        final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			this.delegate.set(key, value, ttl, timeunit);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public Object replace(final Object key, final Object value) {
+		final long start = start();
+		try {
+			return this.delegate.replace(key, value);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public boolean replace(final Object key, final Object oldValue,
+	        final Object newValue) {
+		final long start = start();
+		try {
+			return this.delegate.replace(key, oldValue, newValue);
+		} finally {
+			stop(Operation.PUT, start);
+		}
+	}
+
+	@Override
+	public Object remove(final Object key) {
+		final long start = start();
+		try {
+			return this.delegate.remove(key);
+		} finally {
+			stop(Operation.REMOVE, start);
+		}
+	}
+
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		final long start = start();
+		try {
+			return this.delegate.remove(key, value);
+		} finally {
+			stop(Operation.REMOVE, start);
+		}
+	}
+
+	@Override
+	public Object tryRemove(final Object key, final long timeout,
+	        final TimeUnit timeunit) throws TimeoutException {
+		final long start = start();
+		try {
+			return this.delegate.tryRemove(key, timeout, timeunit);
+		} finally {
+			stop(Operation.REMOVE, start);
+		}
+	}
+
+	@Override
+	public boolean removeKey(final Object key) {
+		final long start = start();
+		try {
+			return this.delegate.removeKey(key);
+		} finally {
+			stop(Operation.REMOVE, start);
+		}
+	}
+
+	@Override
+	public void lock(final Object key) {
+		final long start = start();
+		try {
+			this.delegate.lock(key);
+		} finally {
+			stop(Operation.LOCK, start);
+		}
+	}
+
+	@Override
+	public boolean tryLock(final Object key) {
+		final long start = start();
+		try {
+			return this.delegate.tryLock(key);
+		} finally {
+			stop(Operation.LOCK, start);
+		}
+	}
+
+	@Override
+	public boolean tryLock(final Object key, final long time,
+	        final TimeUnit timeunit) {
+		final long start = start();
+		try {
+			return this.delegate.tryLock(key, time, timeunit);
+		} finally {
+			stop(Operation.LOCK, start);
+		}
+	}
+
+	@Override
+	public Object tryLockAndGet(final Object key, final long time,
+	        final TimeUnit timeunit) throws TimeoutException {
+		final long start = start();
+		try {
+			return this.delegate.tryLockAndGet(key, time, timeunit);
+		} finally {
+			stop(Operation.LOCK, start);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Not timed
+	// ------------------------------------------------------------------------
+
+	@Override
+	public int size() {
+		return this.delegate.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.delegate.isEmpty();
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return this.delegate.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(final Object value) {
+		return this.delegate.containsValue(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void putAll(final Map map) {
+		this.delegate.putAll(map);
+	}
+
+	@Override
+	public void clear() {
+		this.delegate.clear();
+	}
+
+	@Override
+	public void flush() {
+		this.delegate.flush();
+	}
+
+	@Override
+	public String getName() {
+		return this.delegate.getName();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map getAll(final Set keys) {
+		return this.delegate.getAll(keys);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Future getAsync(final Object key) {
+		return this.delegate.getAsync(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Future putAsync(final Object key, final Object value) {
+		return this.delegate.putAsync(key, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Future removeAsync(final Object key) {
+		return this.delegate.removeAsync(key);
+	}
+
+	@Override
+	public boolean isLocked(final Object key) {
+		return this.delegate.isLocked(key);
+	}
+
+	@Override
+	public void unlock(final Object key) {
+		this.delegate.unlock(key);
+	}
+
+	@Override
+	public void forceUnlock(final Object key) {
+		this.delegate.forceUnlock(key);
+	}
+
+	@Override
+	public boolean lockMap(final long time, final TimeUnit timeunit) {
+		return this.delegate.lockMap(time, timeunit);
+	}
+
+	@Override
+	public void unlockMap() {
+		this.delegate.unlockMap();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void addLocalEntryListener(final EntryListener listener) {
+		this.delegate.addLocalEntryListener(listener);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void addEntryListener(final EntryListener listener,
+	        final boolean includeValue) {
+		this.delegate.addEntryListener(listener, includeValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void removeEntryListener(final EntryListener listener) {
+		this.delegate.removeEntryListener(listener);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void addEntryListener(final EntryListener listener,
+	        final Object key, final boolean includeValue) {
+		this.delegate.addEntryListener(listener, key, includeValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void removeEntryListener(final EntryListener listener,
+	        final Object key) {
+		this.delegate.removeEntryListener(listener, key);
+	}
+
+	@Override
+	public MapEntry getMapEntry(final Object key) {
+		return this.delegate.getMapEntry(key);
+	}
+
+	@Override
+	public boolean evict(final Object key) {
+		return this.delegate.evict(key);
+	}
+
+	@Override
+	public Set keySet() {
+		return this.delegate.keySet();
+	}
+
+	@Override
+	public Collection values() {
+		return this.delegate.values();
+	}
+
+	@Override
+	public Set entrySet() {
+		return this.delegate.entrySet();
+	}
+
+	@Override
+	public Set keySet(final Predicate predicate) {
+		return this.delegate.keySet(predicate);
+	}
+
+	@Override
+	public Set entrySet(final Predicate predicate) {
+		return this.delegate.entrySet(predicate);
+	}
+
+	@Override
+	public Collection values(final Predicate predicate) {
+		return this.delegate.values(predicate);
+	}
+
+	@Override
+	public Set localKeySet() {
+		return this.delegate.localKeySet();
+	}
+
+	@Override
+	public Set localKeySet(final Predicate predicate) {
+		return this.delegate.localKeySet(predicate);
+	}
+
+	@Override
+	public void addIndex(final String attribute, final boolean ordered) {
+		this.delegate.addIndex(attribute, ordered);
+	}
+
+	@Override
+	public void addIndex(final Expression expression, final boolean ordered) {
+		this.delegate.addIndex(expression, ordered);
+	}
+
+	@Override
+	public LocalMapStats getLocalMapStats() {
+		return this.delegate.getLocalMapStats();
+	}
+
+	@Override
+	public InstanceType getInstanceType() {
+		return this.delegate.getInstanceType();
+	}
+
+	@Override
+	public void destroy() {
+		this.delegate.destroy();
+	}
+
+	@Override
+	public Object getId() {
+		return this.delegate.getId();
+	}
+
+	@Override
+	public void setHazelcastInstance(final HazelcastInstance hazelcastInstance) {
+		this.delegate.setHazelcastInstance(hazelcastInstance);
+	}
+
+	@Override
+	public String getLongName() {
+		return this.delegate.getLongName();
+	}
+
+	@Override
+	public void addGenericListener(final Object listener, final Object key,
+	        final boolean includeValue, final InstanceType instanceType) {
+		this.delegate.addGenericListener(listener, key, includeValue,
+		        instanceType);
+	}
+
+	@Override
+	public void removeGenericListener(final Object listener, final Object key) {
+		this.delegate.removeGenericListener(listener, key);
+	}
+
+	@Override
+	public boolean containsEntry(final Object key, final Object value) {
+		return this.delegate.containsEntry(key, value);
+	}
+
+	@Override
+	public boolean putFromLoad(final Object key, final Object value) {
+		return this.delegate.putFromLoad(key, value);
+	}
+
+	@Override
+	public boolean putMulti(final Object key, final Object value) {
+		return this.delegate.putMulti(key, value);
+	}
+
+	@Override
+	public boolean removeMulti(final Object key, final Object value) {
+		return this.delegate.removeMulti(key, value);
+	}
+
+	@Override
+	public boolean add(final Object value) {
+		return this.delegate.add(value);
+	}
+
+	@Override
+	public int valueCount(final Object key) {
+		return this.delegate.valueCount(key);
+	}
+
+	@Override
+	public Set allKeys() {
+		return this.delegate.allKeys();
+	}
+
+	@Override
+	public MapOperationsCounter getMapOperationCounter() {
+		return this.delegate.getMapOperationCounter();
+	}
+
+	@Override
+	public void putForSync(final Object key, final Object value) {
+		this.delegate.putForSync(key, value);
+	}
+
+	@Override
+	public void removeForSync(final Object key) {
+		this.delegate.removeForSync(key);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TimedMProxy@" + this.hashCode() + "[delegate: "
+		        + this.delegate + "]";
+	}
+}
@@ -0,0 +1,578 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Applies the {@link WTinyLfuPolicy W-TinyLFU} eviction policy to every map
+ * selecting it in its deploy fragment:
+ * 
+ * <pre>
+ * &lt;map-options name="sessions"&gt;
+ *     &lt;eviction-policy&gt;W-TINYLFU&lt;/eviction-policy&gt;
+ *     &lt;max-size&gt;1000000&lt;/max-size&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * Such maps should leave Hazelcast's own <code>eviction-policy</code> at
+ * <code>NONE</code>.
+ * </p>
+ * <p>
+ * Every member keeps one policy per partition it owns, each holding at most
+ * <code>max-size</code> divided by the number of partitions entries. A local
+ * entry listener feeds inserts, updates and removals of owned entries into
+ * the respective partition's policy, and each insert evicts at most one
+ * entry. Entries the listener never sees being inserted - those already
+ * present when we start and those in partitions migrated to us - are fed in
+ * by a pass over our {@link IMap#localKeySet() local keys}, which evicts any
+ * excess right away. Passes triggered by migrations in quick succession are
+ * coalesced, and partitions migrated away drop their policy.
+ * </p>
+ * <p>
+ * Since Hazelcast does not report reads to listeners, the hit counts of
+ * entries next in line for eviction are polled periodically instead, so that
+ * popular entries get promoted before they would be evicted. Each poll looks
+ * up at most {@link #setAccessSampleSize(int) accessSampleSize} entries
+ * across all maps and partitions, shared evenly among all partitions' policies
+ * visited in random order.
+ * </p>
+ * <p>
+ * Publishes per map meters <code>admission-evictions</code>, counting
+ * entries evicted to make room for new ones, and
+ * <code>admission-rejections</code>, counting new entries evicted right away
+ * since they were less popular than the entries they would have displaced.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class AdmissionEviction {
+
+	public static final String	         W_TINY_LFU	                  = "W-TINYLFU";
+
+	private final Logger	             log	                      = LoggerFactory
+	                                                                          .getLogger(getClass());
+
+	private final MetricsRegistry	     metricsRegistry;
+
+	private final List<MapAdmission>	 mapAdmissions	              = new ArrayList<MapAdmission>();
+
+	private int	                         accessSampleSize	          = 1000;
+
+	private long	                     accessSampleIntervalMillis	  = 5000L;
+
+	private ScheduledExecutorService	 executor;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public AdmissionEviction(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param accessSampleSize
+	 *            How many of the entries next in line for eviction to poll hit
+	 *            counts of per poll, across all maps and partitions. Defaults to
+	 *            1000.
+	 */
+	public void setAccessSampleSize(final int accessSampleSize) {
+		checkArgument(accessSampleSize > 0,
+		        "Argument 'accessSampleSize' must be greater than 0: %s",
+		        accessSampleSize);
+		this.accessSampleSize = accessSampleSize;
+	}
+
+	/**
+	 * @param accessSampleIntervalMillis
+	 *            How often to poll hit counts. Defaults to 5 seconds.
+	 */
+	public void setAccessSampleIntervalMillis(
+	        final long accessSampleIntervalMillis) {
+		checkArgument(accessSampleIntervalMillis > 0,
+		        "Argument 'accessSampleIntervalMillis' must be greater than 0: %s",
+		        accessSampleIntervalMillis);
+		this.accessSampleIntervalMillis = accessSampleIntervalMillis;
+	}
+
+	/**
+	 * Start applying our eviction policy to all maps configured in
+	 * <code>hazelcastInstance</code> that select it.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.executor == null, "%s has already been started", this);
+		this.executor = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-admission-eviction-%d")
+		                .setDaemon(true).build());
+
+		final Config config = hazelcastInstance.getConfig();
+		final PartitionService partitionService = hazelcastInstance
+		        .getPartitionService();
+		final int partitionCount = partitionService.getPartitions().size();
+		for (final String mapName : MapOptions.mapsSelecting(config,
+		        MapOptions.EVICTION_POLICY, W_TINY_LFU)) {
+			final int maxSize = maxSizeOf(config, mapName);
+			if (maxSize <= 0) {
+				this.log.warn(
+				        "Map [{}] selects eviction policy [{}] but has no valid {} - will not evict",
+				        new Object[] { mapName, W_TINY_LFU,
+				                MapOptions.MAX_SIZE });
+				continue;
+			}
+			final MapAdmission mapAdmission = new MapAdmission(
+			        hazelcastInstance.getMap(mapName), partitionService,
+			        (maxSize + partitionCount - 1) / partitionCount);
+			mapAdmission.attach();
+			this.mapAdmissions.add(mapAdmission);
+			this.log.info(
+			        "Applying eviction policy [{}] to map [{}] holding at most [{}] entries",
+			        new Object[] { W_TINY_LFU, mapName, maxSize });
+		}
+
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sampleAccesses();
+			}
+		}, this.accessSampleIntervalMillis, this.accessSampleIntervalMillis,
+		        TimeUnit.MILLISECONDS);
+	}
+
+	private int maxSizeOf(final Config config, final String mapName) {
+		final String maxSize = MapOptions.get(config, mapName,
+		        MapOptions.MAX_SIZE);
+		try {
+			return maxSize != null ? Integer.parseInt(maxSize) : 0;
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.executor != null;
+	}
+
+	/**
+	 * Stop applying our eviction policy.
+	 */
+	public synchronized void stop() {
+		if (this.executor == null) {
+			return;
+		}
+		for (final MapAdmission mapAdmission : this.mapAdmissions) {
+			mapAdmission.detach();
+		}
+		this.mapAdmissions.clear();
+		this.executor.shutdownNow();
+		this.executor = null;
+	}
+
+	/**
+	 * Poll the hit counts of entries next in line for eviction in all maps,
+	 * looking up no more than {@link #setAccessSampleSize(int)
+	 * accessSampleSize} entries in total.
+	 */
+	void sampleAccesses() {
+		final List<MapAdmission> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<MapAdmission>(this.mapAdmissions);
+		}
+		final List<PolicySample> samples = new ArrayList<PolicySample>();
+		for (final MapAdmission mapAdmission : snapshot) {
+			for (final WTinyLfuPolicy<Object> policy : mapAdmission.policies()) {
+				samples.add(new PolicySample(mapAdmission, policy));
+			}
+		}
+		if (samples.isEmpty()) {
+			return;
+		}
+		// Partitions beyond our budget get their turn in later polls
+		Collections.shuffle(samples);
+		final int perPolicy = Math.max(1, this.accessSampleSize
+		        / samples.size());
+		int budget = this.accessSampleSize;
+		for (final PolicySample sample : samples) {
+			if (budget <= 0) {
+				break;
+			}
+			try {
+				budget -= sample.mapAdmission.sampleAccesses(sample.policy,
+				        Math.min(perPolicy, budget));
+			} catch (final RuntimeException e) {
+				this.log.warn("Failed to sample accesses to "
+				        + sample.mapAdmission + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void evictLater(final IMap<Object, Object> map, final Object key) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				map.evict(key);
+			}
+		});
+	}
+
+	private void seedLater(final MapAdmission mapAdmission) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mapAdmission.seed();
+				} catch (final RuntimeException e) {
+					AdmissionEviction.this.log.warn("Failed to seed "
+					        + mapAdmission + ": " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	private synchronized void execute(final Runnable task) {
+		if (this.executor == null) {
+			return;
+		}
+		this.executor.execute(task);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AdmissionEviction@" + this.hashCode() + "[accessSampleSize: "
+		        + this.accessSampleSize + "|accessSampleIntervalMillis: "
+		        + this.accessSampleIntervalMillis + "|maps: "
+		        + this.mapAdmissions + "]";
+	}
+
+	/**
+	 * <p>
+	 * One partition's policy to poll hit counts for.
+	 * </p>
+	 */
+	private static final class PolicySample {
+
+		final MapAdmission		      mapAdmission;
+
+		final WTinyLfuPolicy<Object>	policy;
+
+		PolicySample(final MapAdmission mapAdmission,
+		        final WTinyLfuPolicy<Object> policy) {
+			this.mapAdmission = mapAdmission;
+			this.policy = policy;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Applies one {@link WTinyLfuPolicy} per owned partition to a single map.
+	 * Each policy is guarded by its own monitor.
+	 * </p>
+	 */
+	private final class MapAdmission implements EntryListener<Object, Object>,
+	        MigrationListener {
+
+		private final IMap<Object, Object>		                 map;
+
+		private final PartitionService		                     partitionService;
+
+		private final int		                                 partitionCapacity;
+
+		private final Map<Integer, WTinyLfuPolicy<Object>>	policiesByPartition	= new ConcurrentHashMap<Integer, WTinyLfuPolicy<Object>>();
+
+		private final Set<Integer>		                         partitionsToSeed	= Collections
+		                                                                         .newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+		private volatile boolean		                         seedAll;
+
+		private final Meter		                                 evictions;
+
+		private final Meter		                                 rejections;
+
+		@SuppressWarnings("unchecked")
+		MapAdmission(final IMap<?, ?> map,
+		        final PartitionService partitionService,
+		        final int partitionCapacity) {
+			this.map = (IMap<Object, Object>) map;
+			this.partitionService = partitionService;
+			this.partitionCapacity = partitionCapacity;
+			this.evictions = AdmissionEviction.this.metricsRegistry.newMeter(
+			        AdmissionEviction.class, "admission-evictions",
+			        map.getName(), "evictions", TimeUnit.SECONDS);
+			this.rejections = AdmissionEviction.this.metricsRegistry.newMeter(
+			        AdmissionEviction.class, "admission-rejections",
+			        map.getName(), "rejections", TimeUnit.SECONDS);
+			AdmissionEviction.this.metricsRegistry.newGauge(
+			        AdmissionEviction.class, "tracked-entries", map.getName(),
+			        new Gauge<Integer>() {
+				        @Override
+				        public Integer value() {
+					        return trackedEntries();
+				        }
+			        });
+		}
+
+		void attach() {
+			this.map.addLocalEntryListener(this);
+			this.partitionService.addMigrationListener(this);
+			this.seedAll = true;
+			seedLater(this);
+		}
+
+		void detach() {
+			this.map.removeEntryListener(this);
+			this.partitionService.removeMigrationListener(this);
+			for (final String metric : new String[] { "admission-evictions",
+			        "admission-rejections", "tracked-entries" }) {
+				AdmissionEviction.this.metricsRegistry.removeMetric(
+				        AdmissionEviction.class, metric, this.map.getName());
+			}
+			this.policiesByPartition.clear();
+		}
+
+		@Override
+		public void entryAdded(final EntryEvent<Object, Object> event) {
+			admit(event.getKey());
+		}
+
+		private void admit(final Object key) {
+			final WTinyLfuPolicy<Object> policy = policyOf(key);
+			final Object victim;
+			synchronized (policy) {
+				victim = policy.recordInsert(key);
+			}
+			if (victim == null) {
+				return;
+			}
+			if (victim.equals(key)) {
+				this.rejections.mark();
+			} else {
+				this.evictions.mark();
+			}
+			evictLater(this.map, victim);
+		}
+
+		@Override
+		public void entryUpdated(final EntryEvent<Object, Object> event) {
+			final Object key = event.getKey();
+			final WTinyLfuPolicy<Object> policy = policyOf(key);
+			synchronized (policy) {
+				policy.recordAccess(key);
+			}
+		}
+
+		@Override
+		public void entryRemoved(final EntryEvent<Object, Object> event) {
+			forget(event.getKey());
+		}
+
+		@Override
+		public void entryEvicted(final EntryEvent<Object, Object> event) {
+			forget(event.getKey());
+		}
+
+		private void forget(final Object key) {
+			final WTinyLfuPolicy<Object> policy = policyOf(key);
+			synchronized (policy) {
+				policy.recordRemoval(key);
+			}
+		}
+
+		private WTinyLfuPolicy<Object> policyOf(final Object key) {
+			return policyOf(Integer.valueOf(this.partitionService.getPartition(
+			        key).getPartitionId()));
+		}
+
+		private WTinyLfuPolicy<Object> policyOf(final Integer partitionId) {
+			WTinyLfuPolicy<Object> result = this.policiesByPartition
+			        .get(partitionId);
+			if (result == null) {
+				synchronized (this.policiesByPartition) {
+					result = this.policiesByPartition.get(partitionId);
+					if (result == null) {
+						result = new WTinyLfuPolicy<Object>(
+						        this.partitionCapacity);
+						this.policiesByPartition.put(partitionId, result);
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void migrationStarted(final MigrationEvent migrationEvent) {
+			// Nothing to do until it has completed
+		}
+
+		@Override
+		public void migrationCompleted(final MigrationEvent migrationEvent) {
+			final Integer partitionId = Integer.valueOf(migrationEvent
+			        .getPartitionId());
+			if (migrationEvent.getOldOwner() != null
+			        && migrationEvent.getOldOwner().localMember()) {
+				this.policiesByPartition.remove(partitionId);
+			}
+			if (migrationEvent.getNewOwner() != null
+			        && migrationEvent.getNewOwner().localMember()) {
+				this.partitionsToSeed.add(partitionId);
+				seedLater(this);
+			}
+		}
+
+		@Override
+		public void migrationFailed(final MigrationEvent migrationEvent) {
+			// Ownership did not change
+		}
+
+		/**
+		 * Admit all local entries of partitions that have been migrated to us
+		 * - or of all partitions if we have just been attached - that are not
+		 * yet tracked. Does nothing if an earlier pass already covered them.
+		 */
+		void seed() {
+			final boolean all = this.seedAll;
+			this.seedAll = false;
+			final Set<Integer> partitions = new HashSet<Integer>(
+			        this.partitionsToSeed);
+			this.partitionsToSeed.removeAll(partitions);
+			if (!all && partitions.isEmpty()) {
+				return;
+			}
+			int seeded = 0;
+			for (final Object key : this.map.localKeySet()) {
+				final Partition partition = this.partitionService
+				        .getPartition(key);
+				final Integer partitionId = Integer.valueOf(partition
+				        .getPartitionId());
+				if ((!all && !partitions.contains(partitionId))
+				        || partition.getOwner() == null
+				        || !partition.getOwner().localMember()) {
+					continue;
+				}
+				final WTinyLfuPolicy<Object> policy = policyOf(partitionId);
+				final boolean tracked;
+				synchronized (policy) {
+					tracked = policy.contains(key);
+				}
+				if (!tracked) {
+					admit(key);
+					seeded++;
+				}
+			}
+			AdmissionEviction.this.log.info(
+			        "Seeded [{}] entries of map [{}] from {} partitions",
+			        new Object[] { seeded, this.map.getName(),
+			                all ? "all local" : partitions.size() });
+		}
+
+		List<WTinyLfuPolicy<Object>> policies() {
+			return new ArrayList<WTinyLfuPolicy<Object>>(
+			        this.policiesByPartition.values());
+		}
+
+		/**
+		 * Poll the hit counts of up to <code>max</code> entries next in line
+		 * for eviction by <code>policy</code>, forgetting entries that are
+		 * gone.
+		 * 
+		 * @return The number of entries looked up
+		 */
+		int sampleAccesses(final WTinyLfuPolicy<Object> policy, final int max) {
+			final List<Object> keys;
+			synchronized (policy) {
+				keys = policy.nextVictims(max);
+			}
+			for (final Object key : keys) {
+				final MapEntry<Object, Object> entry = this.map.getMapEntry(key);
+				synchronized (policy) {
+					if (entry != null) {
+						policy.recordHits(key, entry.getHits());
+					} else {
+						policy.recordRemoval(key);
+					}
+				}
+			}
+			return keys.size();
+		}
+
+		private int trackedEntries() {
+			int result = 0;
+			for (final WTinyLfuPolicy<Object> policy : this.policiesByPartition
+			        .values()) {
+				synchronized (policy) {
+					result += policy.size();
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "MapAdmission@" + this.hashCode() + "[map: "
+			        + this.map.getName() + "|partitionCapacity: "
+			        + this.partitionCapacity + "|partitions: "
+			        + this.policiesByPartition.size() + "]";
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * A count-min sketch estimating how often each key has been seen, using four
+ * 4-bit counters per key. Once the number of increments reaches ten times
+ * the sketch's capacity all counters are halved, so that estimates reflect
+ * recent rather than all-time popularity.
+ * </p>
+ * <p>
+ * Instances are <strong>not</strong> thread safe.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class FrequencySketch {
+
+	private static final long[]	SEEDS	   = { 0xc3a5c85c97cb3127L,
+	        0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private static final long	RESET_MASK	= 0x7777777777777777L;
+
+	private static final long	ONE_MASK	= 0x1111111111111111L;
+
+	static final int	        MAX_COUNT	= 15;
+
+	private final long[]	    table;
+
+	private final int	        tableMask;
+
+	private final int	        sampleSize;
+
+	private int	                size;
+
+	/**
+	 * @param capacity
+	 *            The maximum number of keys whose frequency needs to be
+	 *            estimated accurately, usually a cache's capacity
+	 */
+	FrequencySketch(final int capacity) {
+		checkArgument(capacity > 0,
+		        "Argument 'capacity' must be greater than 0: %s", capacity);
+		final int tableSize = ceilingPowerOfTwo(capacity);
+		this.table = new long[tableSize];
+		this.tableMask = tableSize - 1;
+		this.sampleSize = capacity <= Integer.MAX_VALUE / 10 ? 10 * capacity
+		        : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param key
+	 * @return The estimated number of times <code>key</code> has been seen
+	 *         recently, at most 15
+	 */
+	int frequency(final Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			final int index = indexOf(hash, i);
+			final int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Record that <code>key</code> has been seen once more.
+	 * 
+	 * @param key
+	 */
+	void increment(final Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++this.size >= this.sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(final int index, final int counter) {
+		final int offset = counter << 2;
+		final long mask = 0xfL << offset;
+		if ((this.table[index] & mask) != mask) {
+			this.table[index] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Halve all counters, thus aging all frequencies.
+	 */
+	void reset() {
+		int oddCounters = 0;
+		for (int i = 0; i < this.table.length; i++) {
+			oddCounters += Long.bitCount(this.table[i] & ONE_MASK);
+			this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+		}
+		this.size = (this.size >>> 1) - (oddCounters >>> 2);
+	}
+
+	private int indexOf(final int hash, final int i) {
+		long result = (hash + SEEDS[i]) * SEEDS[i];
+		result += result >>> 32;
+		return ((int) result) & this.tableMask;
+	}
+
+	private static int spread(final int hashCode) {
+		int result = ((hashCode >>> 16) ^ hashCode) * 0x45d9f3b;
+		result = ((result >>> 16) ^ result) * 0x45d9f3b;
+		return (result >>> 16) ^ result;
+	}
+
+	private static int ceilingPowerOfTwo(final int value) {
+		final int highestOneBit = Integer.highestOneBit(value);
+		return highestOneBit == value ? value
+		        : highestOneBit < (1 << 30) ? highestOneBit << 1 : 1 << 30;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "FrequencySketch@" + this.hashCode() + "[tableSize: "
+		        + this.table.length + "|sampleSize: " + this.sampleSize
+		        + "|size: " + this.size + "]";
+	}
+}
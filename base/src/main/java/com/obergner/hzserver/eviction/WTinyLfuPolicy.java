@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Decides which key to evict whenever a new key pushes a cache beyond its
+ * capacity, following the W-TinyLFU scheme:
+ * <ul>
+ * <li>New keys enter a small LRU <em>window</em> taking up 1% of capacity,
+ * so that recency bursts are not rejected outright.</li>
+ * <li>Keys leaving the window become <em>candidates</em> for the main area,
+ * a segmented LRU consisting of a <em>probation</em> and a
+ * <em>protected</em> segment, the latter taking up 80% of the main area.
+ * Keys accessed while on probation are promoted to the protected segment.</li>
+ * <li>If the main area is full, a candidate is only admitted if a
+ * {@link FrequencySketch} estimates it to be more popular than the least
+ * recently used key on probation, which is evicted instead. Otherwise the
+ * candidate itself is evicted.</li>
+ * </ul>
+ * Each insert thus evicts at most one key, so there never is a sweep evicting
+ * a large share of a cache at once.
+ * </p>
+ * <p>
+ * Instances are <strong>not</strong> thread safe.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class WTinyLfuPolicy<K> {
+
+	private static final int	        WINDOW_PERCENTAGE	     = 1;
+
+	private static final int	        PROTECTED_PERCENTAGE	 = 80;
+
+	private final int	                capacity;
+
+	private final int	                windowCapacity;
+
+	private final int	                mainCapacity;
+
+	private final int	                protectedCapacity;
+
+	private final FrequencySketch	    sketch;
+
+	private final Map<K, Node<K>>	    nodes	                 = new HashMap<K, Node<K>>();
+
+	private final Queue<K>	            window	                 = new Queue<K>();
+
+	private final Queue<K>	            probation	             = new Queue<K>();
+
+	private final Queue<K>	            protectedSegment	     = new Queue<K>();
+
+	/**
+	 * @param capacity
+	 *            The maximum number of keys to keep
+	 */
+	WTinyLfuPolicy(final int capacity) {
+		checkArgument(capacity > 0,
+		        "Argument 'capacity' must be greater than 0: %s", capacity);
+		this.capacity = capacity;
+		this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENTAGE / 100);
+		this.mainCapacity = capacity - this.windowCapacity;
+		this.protectedCapacity = this.mainCapacity * PROTECTED_PERCENTAGE
+		        / 100;
+		this.sketch = new FrequencySketch(capacity);
+	}
+
+	/**
+	 * Record that <code>key</code> has been added to our cache.
+	 * 
+	 * @param key
+	 * @return The key to evict in turn - possibly <code>key</code> itself -
+	 *         or <code>null</code> if our cache is not full yet
+	 */
+	K recordInsert(final K key) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		if (this.nodes.containsKey(key)) {
+			recordAccess(key);
+			return null;
+		}
+		this.sketch.increment(key);
+		final Node<K> node = new Node<K>(key);
+		this.nodes.put(key, node);
+		this.window.addLast(node, Queue.WINDOW);
+		if (this.window.size <= this.windowCapacity) {
+			return null;
+		}
+
+		final Node<K> candidate = this.window.removeFirst();
+		this.probation.addLast(candidate, Queue.PROBATION);
+		if (this.probation.size + this.protectedSegment.size <= this.mainCapacity) {
+			return null;
+		}
+
+		final Node<K> victim = this.probation.first() != candidate ? this.probation
+		        .first() : this.protectedSegment.first();
+		final Node<K> evicted = victim != null
+		        && this.sketch.frequency(candidate.key) > this.sketch
+		                .frequency(victim.key) ? victim : candidate;
+		remove(evicted);
+		return evicted.key;
+	}
+
+	/**
+	 * Record that <code>key</code> has been read or updated.
+	 * 
+	 * @param key
+	 */
+	void recordAccess(final K key) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		this.sketch.increment(key);
+		final Node<K> node = this.nodes.get(key);
+		if (node == null) {
+			return;
+		}
+		switch (node.queue) {
+		case Queue.WINDOW:
+			this.window.moveToLast(node);
+			break;
+		case Queue.PROBATION:
+			this.probation.remove(node);
+			this.protectedSegment.addLast(node, Queue.PROTECTED);
+			if (this.protectedSegment.size > this.protectedCapacity) {
+				this.probation.addLast(this.protectedSegment.removeFirst(),
+				        Queue.PROBATION);
+			}
+			break;
+		default:
+			this.protectedSegment.moveToLast(node);
+			break;
+		}
+	}
+
+	/**
+	 * Record that <code>key</code>'s total number of hits is now
+	 * <code>hits</code>, for caches that do not report each access but count
+	 * hits per key.
+	 * 
+	 * @param key
+	 * @param hits
+	 */
+	void recordHits(final K key, final long hits) {
+		final Node<K> node = this.nodes.get(key);
+		if (node == null) {
+			return;
+		}
+		final long newHits = Math.min(hits - node.hits,
+		        FrequencySketch.MAX_COUNT);
+		node.hits = hits;
+		for (long i = 0; i < newHits; i++) {
+			recordAccess(key);
+		}
+	}
+
+	/**
+	 * @param max
+	 * @return Up to <code>max</code> keys that are next in line for being
+	 *         evicted or demoted, i.e. those on probation followed by the
+	 *         least recently used protected ones
+	 */
+	List<K> nextVictims(final int max) {
+		final List<K> result = new ArrayList<K>(Math.min(max, size()));
+		for (Node<K> node = this.probation.first(); node != null
+		        && result.size() < max; node = node.next) {
+			result.add(node.key);
+		}
+		for (Node<K> node = this.protectedSegment.first(); node != null
+		        && result.size() < max; node = node.next) {
+			result.add(node.key);
+		}
+		return result;
+	}
+
+	/**
+	 * Record that <code>key</code> has been removed from our cache by other
+	 * means than us evicting it.
+	 * 
+	 * @param key
+	 */
+	void recordRemoval(final K key) {
+		final Node<K> node = this.nodes.get(key);
+		if (node != null) {
+			remove(node);
+		}
+	}
+
+	private void remove(final Node<K> node) {
+		this.nodes.remove(node.key);
+		switch (node.queue) {
+		case Queue.WINDOW:
+			this.window.remove(node);
+			break;
+		case Queue.PROBATION:
+			this.probation.remove(node);
+			break;
+		default:
+			this.protectedSegment.remove(node);
+			break;
+		}
+	}
+
+	/**
+	 * @return The number of keys currently kept
+	 */
+	int size() {
+		return this.nodes.size();
+	}
+
+	/**
+	 * @param key
+	 * @return <code>true</code> if <code>key</code> is currently kept
+	 */
+	boolean contains(final K key) {
+		return this.nodes.containsKey(key);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "WTinyLfuPolicy@" + this.hashCode() + "[capacity: "
+		        + this.capacity + "|window: " + this.window.size + "/"
+		        + this.windowCapacity + "|probation: " + this.probation.size
+		        + "|protected: " + this.protectedSegment.size + "/"
+		        + this.protectedCapacity + "]";
+	}
+
+	private static final class Node<K> {
+
+		final K		key;
+
+		int		    queue;
+
+		long		hits;
+
+		Node<K>		previous;
+
+		Node<K>		next;
+
+		Node(final K key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * <p>
+	 * An intrusive doubly linked LRU queue, least recently used first.
+	 * </p>
+	 */
+	private static final class Queue<K> {
+
+		static final int	WINDOW		= 0;
+
+		static final int	PROBATION	= 1;
+
+		static final int	PROTECTED	= 2;
+
+		private Node<K>		head;
+
+		private Node<K>		tail;
+
+		int		            size;
+
+		Node<K> first() {
+			return this.head;
+		}
+
+		void addLast(final Node<K> node, final int queue) {
+			node.queue = queue;
+			node.previous = this.tail;
+			node.next = null;
+			if (this.tail != null) {
+				this.tail.next = node;
+			} else {
+				this.head = node;
+			}
+			this.tail = node;
+			this.size++;
+		}
+
+		Node<K> removeFirst() {
+			final Node<K> first = this.head;
+			remove(first);
+			return first;
+		}
+
+		void moveToLast(final Node<K> node) {
+			if (node != this.tail) {
+				final int queue = node.queue;
+				remove(node);
+				addLast(node, queue);
+			}
+		}
+
+		void remove(final Node<K> node) {
+			if (node.previous != null) {
+				node.previous.next = node.next;
+			} else {
+				this.head = node.next;
+			}
+			if (node.next != null) {
+				node.next.previous = node.previous;
+			} else {
+				this.tail = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+			this.size--;
+		}
+	}
+}
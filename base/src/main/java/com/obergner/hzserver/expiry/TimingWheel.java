@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.expiry;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A hierarchical timing wheel tracking one deadline per key. Level 0 has
+ * {@link #SLOTS_PER_LEVEL} slots of one tick each, and each higher level has
+ * as many slots spanning a full revolution of the level below. Deadlines are
+ * filed into the lowest level whose span covers them and cascade down one
+ * level whenever the level below completes a revolution, so that scheduling,
+ * rescheduling and cancelling a deadline take constant time, and each
+ * deadline is moved at most once per level before it expires.
+ * </p>
+ * <p>
+ * Deadlines beyond the span of the highest level are filed into its last
+ * slot and refiled once that slot cascades.
+ * </p>
+ * <p>
+ * Instances are <strong>not</strong> thread safe.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class TimingWheel<K> {
+
+	static final int	           SLOTS_PER_LEVEL	= 64;
+
+	private static final int	   SLOT_BITS	    = 6;
+
+	private static final int	   SLOT_MASK	    = SLOTS_PER_LEVEL - 1;
+
+	private final long	           tickMillis;
+
+	private final Slot<K>[][]	   levels;
+
+	private final Map<K, Timer<K>>	timersByKey	    = new HashMap<K, Timer<K>>();
+
+	private long	               currentTick;
+
+	/**
+	 * @param tickMillis
+	 *            The resolution of this wheel
+	 * @param numberOfLevels
+	 *            Yielding a span of <code>tickMillis</code> times
+	 *            {@link #SLOTS_PER_LEVEL} to the power of
+	 *            <code>numberOfLevels</code> milliseconds
+	 * @param nowMillis
+	 *            The time this wheel starts at
+	 */
+	TimingWheel(final long tickMillis, final int numberOfLevels,
+	        final long nowMillis) {
+		checkArgument(tickMillis > 0,
+		        "Argument 'tickMillis' must be greater than 0: %s", tickMillis);
+		checkArgument(numberOfLevels > 0 && numberOfLevels <= 8,
+		        "Argument 'numberOfLevels' must be between 1 and 8: %s",
+		        numberOfLevels);
+		this.tickMillis = tickMillis;
+		// No generic array creation in Java
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Slot<K>[][] slots = new Slot[numberOfLevels][SLOTS_PER_LEVEL];
+		this.levels = slots;
+		for (int level = 0; level < numberOfLevels; level++) {
+			for (int slot = 0; slot < SLOTS_PER_LEVEL; slot++) {
+				this.levels[level][slot] = new Slot<K>();
+			}
+		}
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * Make <code>key</code> expire at <code>deadlineMillis</code>, replacing
+	 * any deadline previously scheduled for it.
+	 * 
+	 * @param key
+	 * @param deadlineMillis
+	 */
+	void schedule(final K key, final long deadlineMillis) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		Timer<K> timer = this.timersByKey.get(key);
+		if (timer != null) {
+			timer.unlink();
+		} else {
+			timer = new Timer<K>(key);
+			this.timersByKey.put(key, timer);
+		}
+		// Round up, so that we never expire a key early
+		timer.deadlineTick = (deadlineMillis + this.tickMillis - 1)
+		        / this.tickMillis;
+		file(timer, 1L);
+	}
+
+	/**
+	 * Forget about <code>key</code>'s deadline, if any.
+	 * 
+	 * @param key
+	 */
+	void cancel(final K key) {
+		final Timer<K> timer = this.timersByKey.remove(key);
+		if (timer != null) {
+			timer.unlink();
+		}
+	}
+
+	/**
+	 * Advance this wheel to <code>nowMillis</code>, removing all keys whose
+	 * deadline has passed.
+	 * 
+	 * @param nowMillis
+	 * @return All keys whose deadline has passed, in no particular order
+	 */
+	List<K> advance(final long nowMillis) {
+		final List<K> result = new ArrayList<K>();
+		final long targetTick = nowMillis / this.tickMillis;
+		while (this.currentTick < targetTick) {
+			this.currentTick++;
+			cascade(1);
+			final Slot<K> due = this.levels[0][(int) (this.currentTick & SLOT_MASK)];
+			for (Timer<K> timer = due.removeAll(); timer != null;) {
+				final Timer<K> next = timer.next;
+				timer.next = null;
+				timer.previous = null;
+				if (timer.deadlineTick <= this.currentTick) {
+					this.timersByKey.remove(timer.key);
+					result.add(timer.key);
+				} else {
+					file(timer, 1L);
+				}
+				timer = next;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * If the level below <code>level</code> has just completed a revolution,
+	 * refile all deadlines in <code>level</code>'s current slot, after
+	 * cascading the levels above if necessary.
+	 */
+	private void cascade(final int level) {
+		if (level >= this.levels.length
+		        || (this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+			return;
+		}
+		cascade(level + 1);
+		final Slot<K> slot = this.levels[level][(int) ((this.currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+		for (Timer<K> timer = slot.removeAll(); timer != null;) {
+			final Timer<K> next = timer.next;
+			timer.next = null;
+			timer.previous = null;
+			// Deadlines due right now still make it into the current level 0
+			// slot, as that is emptied only after cascading
+			file(timer, 0L);
+			timer = next;
+		}
+	}
+
+	private void file(final Timer<K> timer, final long minTicksAhead) {
+		final long ticksAhead = Math.max(timer.deadlineTick - this.currentTick,
+		        minTicksAhead);
+		for (int level = 0; level < this.levels.length; level++) {
+			if (ticksAhead < (1L << (SLOT_BITS * (level + 1)))) {
+				final long tick = this.currentTick + ticksAhead;
+				this.levels[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)]
+				        .add(timer);
+				return;
+			}
+		}
+		// Beyond our span: park in the farthest slot of our highest level
+		final int top = this.levels.length - 1;
+		final long farthestTick = this.currentTick
+		        + (1L << (SLOT_BITS * (top + 1))) - 1;
+		this.levels[top][(int) ((farthestTick >>> (SLOT_BITS * top)) & SLOT_MASK)]
+		        .add(timer);
+	}
+
+	/**
+	 * @param key
+	 * @return <code>true</code> if a deadline is scheduled for
+	 *         <code>key</code>
+	 */
+	boolean contains(final K key) {
+		return this.timersByKey.containsKey(key);
+	}
+
+	/**
+	 * @return The number of keys whose deadline is tracked
+	 */
+	int size() {
+		return this.timersByKey.size();
+	}
+
+	/**
+	 * @return The time this wheel has been advanced to
+	 */
+	long currentMillis() {
+		return this.currentTick * this.tickMillis;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TimingWheel@" + this.hashCode() + "[tickMillis: "
+		        + this.tickMillis + "|levels: " + this.levels.length
+		        + "|currentTick: " + this.currentTick + "|size: " + size()
+		        + "]";
+	}
+
+	private static final class Timer<K> {
+
+		final K		key;
+
+		long		deadlineTick;
+
+		Slot<K>		slot;
+
+		Timer<K>	previous;
+
+		Timer<K>	next;
+
+		Timer(final K key) {
+			this.key = key;
+		}
+
+		void unlink() {
+			if (this.slot != null) {
+				this.slot.remove(this);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * A doubly linked list of {@link Timer}s.
+	 * </p>
+	 */
+	private static final class Slot<K> {
+
+		private Timer<K>	head;
+
+		void add(final Timer<K> timer) {
+			timer.slot = this;
+			timer.previous = null;
+			timer.next = this.head;
+			if (this.head != null) {
+				this.head.previous = timer;
+			}
+			this.head = timer;
+		}
+
+		void remove(final Timer<K> timer) {
+			if (timer.previous != null) {
+				timer.previous.next = timer.next;
+			} else {
+				this.head = timer.next;
+			}
+			if (timer.next != null) {
+				timer.next.previous = timer.previous;
+			}
+			timer.previous = null;
+			timer.next = null;
+			timer.slot = null;
+		}
+
+		/**
+		 * Empty this slot.
+		 * 
+		 * @return The first of all timers this slot contained, linked via
+		 *         {@link Timer#next}
+		 */
+		Timer<K> removeAll() {
+			final Timer<K> result = this.head;
+			this.head = null;
+			for (Timer<K> timer = result; timer != null; timer = timer.next) {
+				timer.slot = null;
+			}
+			return result;
+		}
+	}
+}
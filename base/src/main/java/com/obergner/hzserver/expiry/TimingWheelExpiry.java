@@ -0,0 +1,498 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.expiry;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Expires entries of maps that opt in via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map-options name="sessions"&gt;
+ *     &lt;expiry&gt;TIMING-WHEEL&lt;/expiry&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * using a {@link TimingWheel} per map instead of Hazelcast's own periodic
+ * scan of all records. Such maps configure <code>time-to-live-seconds</code>
+ * and/or <code>max-idle-seconds</code> as usual.
+ * </p>
+ * <p>
+ * Before our {@link HazelcastInstance} is created, {@link #prepare(Config)}
+ * takes over these settings from each opted-in map's {@link MapConfig},
+ * clearing them so that Hazelcast will not expire those maps on its own.
+ * They are kept in the {@link Config}'s {@link MapOptions}, where a restart
+ * using the same {@link Config} and other features find them.
+ * Once started, a local entry listener schedules a deadline for every owned
+ * entry that is inserted or updated, and cancels it once the entry is
+ * removed. Since Hazelcast does not report reads to listeners, a deadline
+ * that has passed is verified against the entry's update and access times
+ * before the entry gets evicted, and is pushed back if the entry has been
+ * used in the meantime. Entries owned before we started, or in partitions
+ * migrated to us, are verified on the next tick.
+ * </p>
+ * <p>
+ * Publishes per map a meter <code>expired</code>, and gauges
+ * <code>wheel-lag-millis</code> - how long after its deadline the last tick
+ * was finished processing - and <code>scheduled-entries</code>.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class TimingWheelExpiry {
+
+	public static final String	            TIMING_WHEEL	   = "TIMING-WHEEL";
+
+	private static final int	            NUMBER_OF_LEVELS	= 4;
+
+	private final Logger	                log	               = LoggerFactory
+	                                                                   .getLogger(getClass());
+
+	private final MetricsRegistry	        metricsRegistry;
+
+	private final Map<String, Lifetimes>	lifetimesByMap	   = new HashMap<String, Lifetimes>();
+
+	private final List<MapExpiry>	        mapExpiries	       = new ArrayList<MapExpiry>();
+
+	private long	                        tickMillis	       = 1000L;
+
+	private ScheduledExecutorService	    executor;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public TimingWheelExpiry(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param tickMillis
+	 *            The resolution of our {@link TimingWheel}s, i.e. how late an
+	 *            entry may at most be expired. Defaults to 1 second.
+	 */
+	public void setTickMillis(final long tickMillis) {
+		checkArgument(tickMillis > 0,
+		        "Argument 'tickMillis' must be greater than 0: %s", tickMillis);
+		this.tickMillis = tickMillis;
+	}
+
+	/**
+	 * Take over time to live and max idle settings from all maps in
+	 * <code>config</code> that opt in to timing wheel expiry. Must be called
+	 * before a {@link HazelcastInstance} is created from <code>config</code>.
+	 * 
+	 * @param config
+	 */
+	public synchronized void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		this.lifetimesByMap.clear();
+		for (final String mapName : MapOptions.mapsSelecting(config,
+		        MapOptions.EXPIRY, TIMING_WHEEL)) {
+			final Lifetimes lifetimes = new Lifetimes(
+			        TimeUnit.SECONDS.toMillis(MapOptions.timeToLiveSecondsOf(
+			                config, mapName)),
+			        TimeUnit.SECONDS.toMillis(MapOptions.maxIdleSecondsOf(
+			                config, mapName)));
+			if (lifetimes.isUnlimited()) {
+				this.log.warn(
+				        "Map [{}] selects {} expiry but neither sets a time to live nor a max idle time - will not expire",
+				        mapName, TIMING_WHEEL);
+				continue;
+			}
+			MapOptions.takeOverLifetimes(config, mapName);
+			this.lifetimesByMap.put(mapName, lifetimes);
+			this.log.info("Map [{}] will be expired using a timing wheel: {}",
+			        mapName, lifetimes);
+		}
+	}
+
+	/**
+	 * Start expiring all maps taken over in {@link #prepare(Config)}.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.executor == null, "%s has already been started", this);
+		this.executor = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-timing-wheel-expiry-%d")
+		                .setDaemon(true).build());
+
+		final PartitionService partitionService = hazelcastInstance
+		        .getPartitionService();
+		for (final Map.Entry<String, Lifetimes> lifetimes : this.lifetimesByMap
+		        .entrySet()) {
+			final MapExpiry mapExpiry = new MapExpiry(
+			        hazelcastInstance.getMap(lifetimes.getKey()),
+			        partitionService, lifetimes.getValue());
+			mapExpiry.attach();
+			this.mapExpiries.add(mapExpiry);
+		}
+
+		this.executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.executor != null;
+	}
+
+	/**
+	 * Stop expiring maps. Note that maps taken over in
+	 * {@link #prepare(Config)} will <strong>not</strong> be expired by
+	 * Hazelcast either.
+	 */
+	public synchronized void stop() {
+		if (this.executor == null) {
+			return;
+		}
+		for (final MapExpiry mapExpiry : this.mapExpiries) {
+			mapExpiry.detach();
+		}
+		this.mapExpiries.clear();
+		this.executor.shutdownNow();
+		this.executor = null;
+	}
+
+	/**
+	 * Advance the timing wheels of all maps to now, expiring all entries that
+	 * are due.
+	 */
+	void tick() {
+		final List<MapExpiry> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<MapExpiry>(this.mapExpiries);
+		}
+		for (final MapExpiry mapExpiry : snapshot) {
+			try {
+				mapExpiry.tick(System.currentTimeMillis());
+			} catch (final RuntimeException e) {
+				this.log.warn("Failed to expire entries of " + mapExpiry
+				        + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TimingWheelExpiry@" + this.hashCode() + "[tickMillis: "
+		        + this.tickMillis + "|maps: " + this.lifetimesByMap.keySet()
+		        + "]";
+	}
+
+	/**
+	 * <p>
+	 * A map's time to live and max idle time in milliseconds, <code>0</code>
+	 * meaning unlimited.
+	 * </p>
+	 */
+	static final class Lifetimes {
+
+		private final long	timeToLiveMillis;
+
+		private final long	maxIdleMillis;
+
+		Lifetimes(final long timeToLiveMillis, final long maxIdleMillis) {
+			this.timeToLiveMillis = timeToLiveMillis;
+			this.maxIdleMillis = maxIdleMillis;
+		}
+
+		boolean isUnlimited() {
+			return this.timeToLiveMillis <= 0 && this.maxIdleMillis <= 0;
+		}
+
+		/**
+		 * @param nowMillis
+		 * @return The earliest time an entry inserted or updated at
+		 *         <code>nowMillis</code> may expire
+		 */
+		long earliestDeadline(final long nowMillis) {
+			if (this.timeToLiveMillis <= 0) {
+				return nowMillis + this.maxIdleMillis;
+			}
+			if (this.maxIdleMillis <= 0) {
+				return nowMillis + this.timeToLiveMillis;
+			}
+			return nowMillis
+			        + Math.min(this.timeToLiveMillis, this.maxIdleMillis);
+		}
+
+		/**
+		 * @param lastUpdateTime
+		 * @param lastAccessTime
+		 * @return When an entry last updated at <code>lastUpdateTime</code>
+		 *         and last accessed at <code>lastAccessTime</code> expires
+		 */
+		long deadline(final long lastUpdateTime, final long lastAccessTime) {
+			long result = Long.MAX_VALUE;
+			if (this.timeToLiveMillis > 0) {
+				result = lastUpdateTime + this.timeToLiveMillis;
+			}
+			if (this.maxIdleMillis > 0) {
+				result = Math.min(result,
+				        Math.max(lastUpdateTime, lastAccessTime)
+				                + this.maxIdleMillis);
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "Lifetimes@" + this.hashCode() + "[timeToLiveMillis: "
+			        + this.timeToLiveMillis + "|maxIdleMillis: "
+			        + this.maxIdleMillis + "]";
+		}
+	}
+
+	/**
+	 * <p>
+	 * Expires a single map. Its {@link TimingWheel} is guarded by its own
+	 * monitor, while verifying and evicting due entries happens outside of it.
+	 * </p>
+	 */
+	private final class MapExpiry implements EntryListener<Object, Object>,
+	        MigrationListener {
+
+		private final IMap<Object, Object>	map;
+
+		private final PartitionService		partitionService;
+
+		private final Lifetimes		        lifetimes;
+
+		private final TimingWheel<Object>	wheel;
+
+		private final Meter		            expired;
+
+		private volatile boolean		    rescanPending	= true;
+
+		private volatile long		        lagMillis;
+
+		@SuppressWarnings("unchecked")
+		MapExpiry(final IMap<?, ?> map,
+		        final PartitionService partitionService,
+		        final Lifetimes lifetimes) {
+			this.map = (IMap<Object, Object>) map;
+			this.partitionService = partitionService;
+			this.lifetimes = lifetimes;
+			this.wheel = new TimingWheel<Object>(
+			        TimingWheelExpiry.this.tickMillis, NUMBER_OF_LEVELS,
+			        System.currentTimeMillis());
+			this.expired = TimingWheelExpiry.this.metricsRegistry.newMeter(
+			        TimingWheelExpiry.class, "expired", map.getName(),
+			        "expirations", TimeUnit.SECONDS);
+			TimingWheelExpiry.this.metricsRegistry.newGauge(
+			        TimingWheelExpiry.class, "wheel-lag-millis", map.getName(),
+			        new Gauge<Long>() {
+				        @Override
+				        public Long value() {
+					        return MapExpiry.this.lagMillis;
+				        }
+			        });
+			TimingWheelExpiry.this.metricsRegistry.newGauge(
+			        TimingWheelExpiry.class, "scheduled-entries",
+			        map.getName(), new Gauge<Integer>() {
+				        @Override
+				        public Integer value() {
+					        synchronized (MapExpiry.this.wheel) {
+						        return MapExpiry.this.wheel.size();
+					        }
+				        }
+			        });
+		}
+
+		void attach() {
+			this.map.addLocalEntryListener(this);
+			this.partitionService.addMigrationListener(this);
+		}
+
+		void detach() {
+			this.map.removeEntryListener(this);
+			this.partitionService.removeMigrationListener(this);
+			for (final String metric : new String[] { "expired",
+			        "wheel-lag-millis", "scheduled-entries" }) {
+				TimingWheelExpiry.this.metricsRegistry.removeMetric(
+				        TimingWheelExpiry.class, metric, this.map.getName());
+			}
+		}
+
+		@Override
+		public void entryAdded(final EntryEvent<Object, Object> event) {
+			schedule(event.getKey());
+		}
+
+		@Override
+		public void entryUpdated(final EntryEvent<Object, Object> event) {
+			schedule(event.getKey());
+		}
+
+		@Override
+		public void entryRemoved(final EntryEvent<Object, Object> event) {
+			cancel(event.getKey());
+		}
+
+		@Override
+		public void entryEvicted(final EntryEvent<Object, Object> event) {
+			cancel(event.getKey());
+		}
+
+		private void schedule(final Object key) {
+			final long deadline = this.lifetimes.earliestDeadline(System
+			        .currentTimeMillis());
+			synchronized (this.wheel) {
+				this.wheel.schedule(key, deadline);
+			}
+		}
+
+		private void cancel(final Object key) {
+			synchronized (this.wheel) {
+				this.wheel.cancel(key);
+			}
+		}
+
+		@Override
+		public void migrationStarted(final MigrationEvent migrationEvent) {
+			// Nothing to do until it has completed
+		}
+
+		@Override
+		public void migrationCompleted(final MigrationEvent migrationEvent) {
+			final Member newOwner = migrationEvent.getNewOwner();
+			if (newOwner != null && newOwner.localMember()) {
+				this.rescanPending = true;
+			}
+		}
+
+		@Override
+		public void migrationFailed(final MigrationEvent migrationEvent) {
+			// Ownership did not change
+		}
+
+		void tick(final long nowMillis) {
+			if (this.rescanPending) {
+				this.rescanPending = false;
+				scheduleUntracked(nowMillis);
+			}
+			final List<Object> due;
+			final long wheelMillis;
+			synchronized (this.wheel) {
+				due = this.wheel.advance(nowMillis);
+				wheelMillis = this.wheel.currentMillis();
+			}
+			for (final Object key : due) {
+				expireIfDue(key);
+			}
+			this.lagMillis = Math.max(System.currentTimeMillis()
+			        - wheelMillis, 0L);
+		}
+
+		/**
+		 * Schedule all locally owned entries we do not track yet for
+		 * verification on the next tick.
+		 */
+		private void scheduleUntracked(final long nowMillis) {
+			for (final Object key : this.map.localKeySet()) {
+				synchronized (this.wheel) {
+					if (!this.wheel.contains(key)) {
+						this.wheel.schedule(key, nowMillis);
+					}
+				}
+			}
+		}
+
+		private void expireIfDue(final Object key) {
+			if (!this.partitionService.getPartition(key).getOwner()
+			        .localMember()) {
+				// Migrated away: its new owner takes care of it
+				return;
+			}
+			final MapEntry<Object, Object> entry = this.map.getMapEntry(key);
+			if (entry == null) {
+				return;
+			}
+			final long deadline = this.lifetimes.deadline(
+			        Math.max(entry.getCreationTime(), entry.getLastUpdateTime()),
+			        entry.getLastAccessTime());
+			if (deadline <= System.currentTimeMillis()) {
+				if (this.map.evict(key)) {
+					this.expired.mark();
+				}
+				return;
+			}
+			synchronized (this.wheel) {
+				// Unless it has been updated in the meantime
+				if (!this.wheel.contains(key)) {
+					this.wheel.schedule(key, deadline);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "MapExpiry@" + this.hashCode() + "[map: "
+			        + this.map.getName() + "|lifetimes: " + this.lifetimes
+			        + "|wheel: " + this.wheel + "]";
+		}
+	}
+}
@@ -0,0 +1,656 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.PartitionService;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * <p>
+ * Wraps the {@link MapStore} configured for a map, buffering writes and
+ * deletes in memory and passing them on to that store in batches. Repeated
+ * writes to a key that has not been passed on yet replace the buffered value
+ * while keeping its place in line, so that only the latest value is stored.
+ * Reads see buffered writes and deletes before consulting the store.
+ * </p>
+ * <p>
+ * Buffered entries are passed on in the order they were first buffered, via
+ * {@link MapStore#storeAll(Map)} and {@link MapStore#deleteAll(Collection)},
+ * as soon as {@link #run() our flusher} finds either <code>maxBatchSize</code>
+ * entries buffered or the oldest of them buffered for
+ * <code>maxDelayMillis</code>. A batch that fails is put back in front of the
+ * line, unless superseded in the meantime, and retried after
+ * <code>maxDelayMillis</code>. Writers block while
+ * <code>maxPendingEntries</code> keys are buffered, which has these keys
+ * passed on right away.
+ * </p>
+ * <p>
+ * Entries are buffered on the member owning their key's partition. When a
+ * partition starts migrating away from this member, its buffered keys are
+ * moved to the front of the line and passed on right away, so that they are
+ * stored before the partition's new owner starts storing later writes to
+ * them. This narrows, but does not close, the window in which a stale value
+ * may overwrite a newer one: should passing these keys on fail, they are
+ * retried after <code>maxDelayMillis</code> like any other batch, and may
+ * then overwrite what the new owner has stored in the meantime.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class CoalescingMapStore implements MapStore<Object, Object>,
+        MapLoaderLifecycleSupport, MigrationListener, Runnable {
+
+	private static final Object	           DELETED	  = new Object();
+
+	private final Logger	               log	      = LoggerFactory
+	                                                          .getLogger(getClass());
+
+	private final String	               mapName;
+
+	private final MapStore<Object, Object>	delegate;
+
+	private final int	                   maxBatchSize;
+
+	private final int	                   maxPendingEntries;
+
+	private final long	                   maxDelayNanos;
+
+	private final ReentrantLock	           lock	      = new ReentrantLock();
+
+	private final Condition	               notFull	  = this.lock
+	                                                          .newCondition();
+
+	private final Condition	               flushDue	  = this.lock
+	                                                          .newCondition();
+
+	private Map<Object, Pending>	       pending	  = new LinkedHashMap<Object, Pending>();
+
+	private Map<Object, Pending>	       inFlight	  = Collections
+	                                                          .emptyMap();
+
+	/**
+	 * How many entries at the front of {@link #pending} are to be passed on
+	 * without waiting for <code>maxDelayMillis</code>, since their partition
+	 * is migrating away.
+	 */
+	private int	                           urgentEntries;
+
+	private volatile PartitionService	   partitionService;
+
+	private boolean	                       stopping	  = false;
+
+	private boolean	                       stopped	  = false;
+
+	private final MetricsRegistry	       metricsRegistry;
+
+	private final Histogram	               batchSize;
+
+	private final Timer	                   flushLatency;
+
+	private final Meter	                   coalescedWrites;
+
+	private final Meter	                   throttledWrites;
+
+	private final Meter	                   failedFlushes;
+
+	CoalescingMapStore(final String mapName,
+	        final MapStore<Object, Object> delegate, final int maxBatchSize,
+	        final int maxPendingEntries, final long maxDelayMillis,
+	        final MetricsRegistry metricsRegistry) {
+		this.mapName = checkNotNull(mapName,
+		        "Argument 'mapName' must not be null");
+		this.delegate = checkNotNull(delegate,
+		        "Argument 'delegate' must not be null");
+		checkArgument(maxBatchSize > 0,
+		        "Argument 'maxBatchSize' must be greater than 0: %s",
+		        maxBatchSize);
+		checkArgument(maxPendingEntries > 0,
+		        "Argument 'maxPendingEntries' must be greater than 0: %s",
+		        maxPendingEntries);
+		checkArgument(maxDelayMillis > 0,
+		        "Argument 'maxDelayMillis' must be greater than 0: %s",
+		        maxDelayMillis);
+		this.maxBatchSize = maxBatchSize;
+		this.maxPendingEntries = maxPendingEntries;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+
+		metricsRegistry.newGauge(CoalescingWriteBehind.class, "queue-depth",
+		        mapName, new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return pendingEntries();
+			        }
+		        });
+		this.batchSize = metricsRegistry.newHistogram(
+		        CoalescingWriteBehind.class, "batch-size", mapName, false);
+		this.flushLatency = metricsRegistry.newTimer(
+		        CoalescingWriteBehind.class, "flush-latency", mapName,
+		        TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		this.coalescedWrites = metricsRegistry.newMeter(
+		        CoalescingWriteBehind.class, "coalesced-writes", mapName,
+		        "writes", TimeUnit.SECONDS);
+		this.throttledWrites = metricsRegistry.newMeter(
+		        CoalescingWriteBehind.class, "throttled-writes", mapName,
+		        "writes", TimeUnit.SECONDS);
+		this.failedFlushes = metricsRegistry.newMeter(
+		        CoalescingWriteBehind.class, "failed-flushes", mapName,
+		        "flushes", TimeUnit.SECONDS);
+	}
+
+	// ------------------------------------------------------------------------
+	// Flushing
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Pass buffered entries on to our delegate until {@link #stop()} has been
+	 * called and all entries buffered by then have been passed on.
+	 */
+	@Override
+	public void run() {
+		this.log.info("Writing map [{}] behind to {}", this.mapName,
+		        this.delegate);
+		try {
+			Map<Object, Pending> batch;
+			while ((batch = awaitBatch()) != null) {
+				flush(batch);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.log.warn(
+			        "Interrupted while writing map [{}] behind - {} entries have not been stored",
+			        this.mapName, pendingEntries());
+		} finally {
+			this.lock.lock();
+			try {
+				this.stopped = true;
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		this.log.info("Stopped writing map [{}] behind", this.mapName);
+	}
+
+	private Map<Object, Pending> awaitBatch() throws InterruptedException {
+		this.lock.lock();
+		try {
+			int batchSize;
+			while (true) {
+				if (this.pending.isEmpty()) {
+					if (this.stopping) {
+						return null;
+					}
+					this.flushDue.await();
+					continue;
+				}
+				final long delayNanos = this.stopping
+				        || this.pending.size() >= this.maxBatchSize
+				        || this.pending.size() >= this.maxPendingEntries ? 0L
+				        : this.pending.values().iterator().next().enqueuedAtNanos
+				                + this.maxDelayNanos - System.nanoTime();
+				if (delayNanos <= 0L) {
+					batchSize = this.maxBatchSize;
+					break;
+				}
+				if (this.urgentEntries > 0) {
+					// Leave entries not due yet to coalesce further
+					batchSize = Math.min(this.urgentEntries, this.maxBatchSize);
+					break;
+				}
+				this.flushDue.awaitNanos(delayNanos);
+			}
+			final Map<Object, Pending> batch = new LinkedHashMap<Object, Pending>();
+			final Iterator<Map.Entry<Object, Pending>> entries = this.pending
+			        .entrySet().iterator();
+			while (entries.hasNext() && batch.size() < batchSize) {
+				final Map.Entry<Object, Pending> entry = entries.next();
+				batch.put(entry.getKey(), entry.getValue());
+				entries.remove();
+			}
+			this.urgentEntries = Math.max(0, this.urgentEntries
+			        - batch.size());
+			this.inFlight = batch;
+			return batch;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+
+	private void flush(final Map<Object, Pending> batch)
+	        throws InterruptedException {
+		final Map<Object, Object> stores = new HashMap<Object, Object>();
+		final List<Object> deletes = new ArrayList<Object>();
+		for (final Map.Entry<Object, Pending> entry : batch.entrySet()) {
+			if (entry.getValue().value == DELETED) {
+				deletes.add(entry.getKey());
+			} else {
+				stores.put(entry.getKey(), entry.getValue().value);
+			}
+		}
+		boolean failed = false;
+		final TimerContext flushTime = this.flushLatency.time();
+		try {
+			if (!deletes.isEmpty()) {
+				this.delegate.deleteAll(deletes);
+			}
+			if (!stores.isEmpty()) {
+				this.delegate.storeAll(stores);
+			}
+			this.batchSize.update(batch.size());
+		} catch (final RuntimeException e) {
+			failed = true;
+			this.failedFlushes.mark();
+			this.log.warn("Failed to write [" + batch.size()
+			        + "] entries of map [" + this.mapName + "] to "
+			        + this.delegate + " - will retry: " + e.getMessage(), e);
+		} finally {
+			flushTime.stop();
+		}
+
+		this.lock.lock();
+		try {
+			this.inFlight = Collections.emptyMap();
+			if (failed) {
+				if (this.stopping) {
+					this.log.error(
+					        "Giving up on [{}] entries of map [{}] since we are stopping",
+					        batch.size(), this.mapName);
+				} else {
+					requeue(batch);
+					this.flushDue.await(this.maxDelayNanos,
+					        TimeUnit.NANOSECONDS);
+				}
+			}
+			this.notFull.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void requeue(final Map<Object, Pending> batch) {
+		final Map<Object, Pending> requeued = new LinkedHashMap<Object, Pending>(
+		        batch);
+		requeued.keySet().removeAll(this.pending.keySet());
+		requeued.putAll(this.pending);
+		this.pending = requeued;
+	}
+
+	/**
+	 * Have {@link #run()} pass on all entries buffered for keys in partition
+	 * <code>partitionId</code> right away, ahead of all other entries except
+	 * those already due.
+	 * 
+	 * @param partitionId
+	 */
+	void flushPartition(final int partitionId) {
+		final List<Object> keys;
+		this.lock.lock();
+		try {
+			keys = new ArrayList<Object>(this.pending.keySet());
+		} finally {
+			this.lock.unlock();
+		}
+		// Partitioning serializes each key, so don't do it while holding our
+		// lock
+		final Set<Object> migrating = new LinkedHashSet<Object>();
+		for (final Object key : keys) {
+			if (this.partitionService.getPartition(key).getPartitionId() == partitionId) {
+				migrating.add(key);
+			}
+		}
+		if (migrating.isEmpty()) {
+			return;
+		}
+		this.lock.lock();
+		try {
+			final Map<Object, Pending> reordered = new LinkedHashMap<Object, Pending>();
+			final Iterator<Map.Entry<Object, Pending>> entries = this.pending
+			        .entrySet().iterator();
+			while (entries.hasNext() && reordered.size() < this.urgentEntries) {
+				final Map.Entry<Object, Pending> entry = entries.next();
+				reordered.put(entry.getKey(), entry.getValue());
+				entries.remove();
+			}
+			for (final Object key : migrating) {
+				final Pending migratingEntry = this.pending.remove(key);
+				// Unless passed on since we collected its key
+				if (migratingEntry != null) {
+					reordered.put(key, migratingEntry);
+				}
+			}
+			this.urgentEntries = reordered.size();
+			reordered.putAll(this.pending);
+			this.pending = reordered;
+			this.flushDue.signal();
+		} finally {
+			this.lock.unlock();
+		}
+		this.log.info(
+		        "Partition [{}] of map [{}] is migrating away - storing its {} buffered entries right away",
+		        new Object[] { Integer.valueOf(partitionId), this.mapName,
+		                Integer.valueOf(migrating.size()) });
+	}
+
+	/**
+	 * Have {@link #run()} pass on all entries buffered so far and return,
+	 * writing any subsequent entries straight through to our delegate.
+	 */
+	void stop() {
+		this.lock.lock();
+		try {
+			this.stopping = true;
+			this.flushDue.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	int pendingEntries() {
+		this.lock.lock();
+		try {
+			return this.pending.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	void removeMetrics() {
+		for (final String metric : new String[] { "queue-depth", "batch-size",
+		        "flush-latency", "coalesced-writes", "throttled-writes",
+		        "failed-flushes" }) {
+			this.metricsRegistry.removeMetric(CoalescingWriteBehind.class,
+			        metric, this.mapName);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// MapStore
+	// ------------------------------------------------------------------------
+
+	@Override
+	public void store(final Object key, final Object value) {
+		if (!enqueue(key, value)) {
+			this.delegate.store(key, value);
+		}
+	}
+
+	@Override
+	public void storeAll(final Map<Object, Object> map) {
+		for (final Map.Entry<Object, Object> entry : map.entrySet()) {
+			store(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public void delete(final Object key) {
+		if (!enqueue(key, DELETED)) {
+			this.delegate.delete(key);
+		}
+	}
+
+	@Override
+	public void deleteAll(final Collection<Object> keys) {
+		for (final Object key : keys) {
+			delete(key);
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if we have been stopped and
+	 *         <code>value</code> needs to be written straight through
+	 */
+	private boolean enqueue(final Object key, final Object value) {
+		this.lock.lock();
+		try {
+			boolean throttled = false;
+			while (true) {
+				if (this.stopped) {
+					return false;
+				}
+				final Pending existing = this.pending.get(key);
+				if (existing != null) {
+					existing.value = value;
+					this.coalescedWrites.mark();
+					return true;
+				}
+				if (this.pending.size() < this.maxPendingEntries) {
+					break;
+				}
+				if (!throttled) {
+					this.throttledWrites.mark();
+					throttled = true;
+				}
+				this.flushDue.signal();
+				this.notFull.await();
+			}
+			this.pending.put(key, new Pending(value, System.nanoTime()));
+			// The first entry starts the max delay our writer waits for
+			if (this.pending.size() == 1
+			        || this.pending.size() >= this.maxBatchSize) {
+				this.flushDue.signal();
+			}
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to buffer ["
+			        + key + "] for map [" + this.mapName + "]", e);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoader
+	// ------------------------------------------------------------------------
+
+	@Override
+	public Object load(final Object key) {
+		this.lock.lock();
+		try {
+			final Pending buffered = buffered(key);
+			if (buffered != null) {
+				return buffered.value != DELETED ? buffered.value : null;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return this.delegate.load(key);
+	}
+
+	@Override
+	public Map<Object, Object> loadAll(final Collection<Object> keys) {
+		final Map<Object, Object> result = new HashMap<Object, Object>();
+		final List<Object> keysToLoad = new ArrayList<Object>();
+		this.lock.lock();
+		try {
+			for (final Object key : keys) {
+				final Pending buffered = buffered(key);
+				if (buffered == null) {
+					keysToLoad.add(key);
+				} else if (buffered.value != DELETED) {
+					result.put(key, buffered.value);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		if (!keysToLoad.isEmpty()) {
+			final Map<Object, Object> loaded = this.delegate
+			        .loadAll(keysToLoad);
+			if (loaded != null) {
+				result.putAll(loaded);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Set<Object> loadAllKeys() {
+		final Set<Object> result = this.delegate.loadAllKeys();
+		if (result == null) {
+			return null;
+		}
+		this.lock.lock();
+		try {
+			applyTo(result, this.inFlight);
+			applyTo(result, this.pending);
+		} finally {
+			this.lock.unlock();
+		}
+		return result;
+	}
+
+	private static void applyTo(final Set<Object> keys,
+	        final Map<Object, Pending> buffer) {
+		for (final Map.Entry<Object, Pending> entry : buffer.entrySet()) {
+			if (entry.getValue().value == DELETED) {
+				keys.remove(entry.getKey());
+			} else {
+				keys.add(entry.getKey());
+			}
+		}
+	}
+
+	private Pending buffered(final Object key) {
+		final Pending result = this.pending.get(key);
+		return result != null ? result : this.inFlight.get(key);
+	}
+
+	// ------------------------------------------------------------------------
+	// MigrationListener
+	// ------------------------------------------------------------------------
+
+	@Override
+	public void migrationStarted(final MigrationEvent migrationEvent) {
+		final Member oldOwner = migrationEvent.getOldOwner();
+		if (oldOwner != null && oldOwner.localMember()) {
+			flushPartition(migrationEvent.getPartitionId());
+		}
+	}
+
+	@Override
+	public void migrationCompleted(final MigrationEvent migrationEvent) {
+		// Our buffered entries have been passed on when it started
+	}
+
+	@Override
+	public void migrationFailed(final MigrationEvent migrationEvent) {
+		// Our buffered entries have been passed on when it started
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoaderLifecycleSupport
+	// ------------------------------------------------------------------------
+
+	@Override
+	public void init(final HazelcastInstance hazelcastInstance,
+	        final Properties properties, final String mapName) {
+		this.partitionService = hazelcastInstance.getPartitionService();
+		this.partitionService.addMigrationListener(this);
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).init(
+			        hazelcastInstance, properties, mapName);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (this.partitionService != null) {
+			this.partitionService.removeMigrationListener(this);
+		}
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).destroy();
+		}
+	}
+
+	MapStore<Object, Object> getDelegate() {
+		return this.delegate;
+	}
+
+	long getMaxDelayMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.maxDelayNanos);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CoalescingMapStore@" + this.hashCode() + "[mapName: "
+		        + this.mapName + "|maxBatchSize: " + this.maxBatchSize
+		        + "|maxPendingEntries: " + this.maxPendingEntries
+		        + "|maxDelayMillis: " + getMaxDelayMillis() + "|delegate: "
+		        + this.delegate + "]";
+	}
+
+	/**
+	 * <p>
+	 * A value - or {@link CoalescingMapStore#DELETED} - waiting to be passed
+	 * on, and when its key was first buffered. Guarded by
+	 * {@link CoalescingMapStore#lock}.
+	 * </p>
+	 */
+	private static final class Pending {
+
+		Object		       value;
+
+		final long		enqueuedAtNanos;
+
+		Pending(final Object value, final long enqueuedAtNanos) {
+			this.value = value;
+			this.enqueuedAtNanos = enqueuedAtNanos;
+		}
+	}
+}
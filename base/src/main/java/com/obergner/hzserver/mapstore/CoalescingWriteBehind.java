@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapStore;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Writes maps that opt in via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map-options name="queue-map"&gt;
+ *     &lt;write-behind&gt;COALESCING&lt;/write-behind&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * behind to their {@link MapStore}, whatever its class, instead of leaving
+ * this to Hazelcast.
+ * </p>
+ * <p>
+ * Before our {@link HazelcastInstance} is created, {@link #prepare(Config)}
+ * wraps each opted-in map's {@link MapStore} in a {@link CoalescingMapStore},
+ * taking over its <code>write-delay-seconds</code> as the longest time a
+ * write may stay buffered - or <code>flushIntervalMillis</code> if it is 0 -
+ * and setting it to 0 so that Hazelcast hands every write to us right away.
+ * {@link #start()} starts a flusher thread per map, {@link #stop()} stores
+ * all buffered entries and stops them again.
+ * </p>
+ * <p>
+ * Publishes per map a gauge <code>queue-depth</code>, a histogram
+ * <code>batch-size</code>, a timer <code>flush-latency</code>, and meters
+ * <code>coalesced-writes</code>, <code>throttled-writes</code> - writes that
+ * had to wait for the backlog to shrink - and <code>failed-flushes</code>.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class CoalescingWriteBehind {
+
+	public static final String	           COALESCING	            = "COALESCING";
+
+	private static final long	           STOP_TIMEOUT_SECONDS	    = 60L;
+
+	private final Logger	               log	                    = LoggerFactory
+	                                                                        .getLogger(getClass());
+
+	private final MetricsRegistry	       metricsRegistry;
+
+	private final List<CoalescingMapStore>	mapStores	            = new ArrayList<CoalescingMapStore>();
+
+	private int	                           maxBatchSize	            = 500;
+
+	private int	                           maxPendingEntries	    = 10000;
+
+	private long	                       flushIntervalMillis	    = 1000L;
+
+	private ExecutorService	               flushers;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public CoalescingWriteBehind(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param maxBatchSize
+	 *            The maximum number of entries to pass to a
+	 *            {@link MapStore} in one go. A map's buffered entries are
+	 *            stored as soon as this many have been buffered. Defaults to
+	 *            500.
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		checkArgument(maxBatchSize > 0,
+		        "Argument 'maxBatchSize' must be greater than 0: %s",
+		        maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param maxPendingEntries
+	 *            The maximum number of keys to buffer per map. Writes to
+	 *            other keys block until buffered entries have been stored.
+	 *            Defaults to 10000.
+	 */
+	public void setMaxPendingEntries(final int maxPendingEntries) {
+		checkArgument(maxPendingEntries > 0,
+		        "Argument 'maxPendingEntries' must be greater than 0: %s",
+		        maxPendingEntries);
+		this.maxPendingEntries = maxPendingEntries;
+	}
+
+	/**
+	 * @param flushIntervalMillis
+	 *            The longest time a write may stay buffered in maps that do
+	 *            not set a <code>write-delay-seconds</code>. Defaults to 1
+	 *            second.
+	 */
+	public void setFlushIntervalMillis(final long flushIntervalMillis) {
+		checkArgument(flushIntervalMillis > 0,
+		        "Argument 'flushIntervalMillis' must be greater than 0: %s",
+		        flushIntervalMillis);
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Wrap the {@link MapStore}s of all maps in <code>config</code> that opt
+	 * in to coalescing write-behind. Must be called before a
+	 * {@link HazelcastInstance} is created from <code>config</code>.
+	 * 
+	 * @param config
+	 */
+	public synchronized void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		checkState(this.flushers == null, "%s has already been started", this);
+		removeMetrics();
+		this.mapStores.clear();
+		for (final String mapName : MapOptions.mapsSelecting(config,
+		        MapOptions.WRITE_BEHIND, COALESCING)) {
+			final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+			final CoalescingMapStore mapStore = wrapMapStoreOf(mapConfig);
+			if (mapStore != null) {
+				this.mapStores.add(mapStore);
+				this.log.info("Map [{}] will be written behind by {}",
+				        mapName, mapStore);
+			}
+		}
+	}
+
+	private CoalescingMapStore wrapMapStoreOf(final MapConfig mapConfig) {
+		final String mapName = mapConfig.getName();
+		final MapStoreConfig mapStoreConfig = mapConfig.getMapStoreConfig();
+		if (mapStoreConfig == null || !mapStoreConfig.isEnabled()) {
+			this.log.warn(
+			        "Map [{}] selects {} write-behind but has no enabled MapStore - ignored",
+			        mapName, COALESCING);
+			return null;
+		}
+		Object implementation;
+		try {
+			implementation = MapStoreConfigs.implementationOf(mapStoreConfig);
+		} catch (final Exception e) {
+			this.log.warn("Failed to instantiate MapStore ["
+			        + mapStoreConfig.getClassName() + "] for map [" + mapName
+			        + "] - leaving it to Hazelcast: " + e.getMessage(), e);
+			return null;
+		}
+		long maxDelayMillis = mapStoreConfig.getWriteDelaySeconds() > 0 ? TimeUnit.SECONDS
+		        .toMillis(mapStoreConfig.getWriteDelaySeconds())
+		        : this.flushIntervalMillis;
+		if (implementation instanceof CoalescingMapStore) {
+			// Wrapped when we were last started
+			maxDelayMillis = ((CoalescingMapStore) implementation)
+			        .getMaxDelayMillis();
+			implementation = ((CoalescingMapStore) implementation)
+			        .getDelegate();
+		}
+		if (!(implementation instanceof MapStore)) {
+			this.log.warn(
+			        "Map [{}] selects {} write-behind but [{}] is not a MapStore - ignored",
+			        new Object[] { mapName, COALESCING, implementation });
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		final CoalescingMapStore result = new CoalescingMapStore(mapName,
+		        (MapStore<Object, Object>) implementation, this.maxBatchSize,
+		        this.maxPendingEntries, maxDelayMillis, this.metricsRegistry);
+		mapStoreConfig.setImplementation(result);
+		mapStoreConfig.setWriteDelaySeconds(0);
+		return result;
+	}
+
+	/**
+	 * Start writing all maps wrapped in {@link #prepare(Config)} behind. Since
+	 * writes block once a map's backlog is full, this should be called before
+	 * anything gets written to these maps.
+	 */
+	public synchronized void start() {
+		checkState(this.flushers == null, "%s has already been started", this);
+		this.flushers = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+		        .setNameFormat("hz-server-write-behind-%d").setDaemon(true)
+		        .build());
+		for (final CoalescingMapStore mapStore : this.mapStores) {
+			this.flushers.execute(mapStore);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start()} has been called, but
+	 *         {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.flushers != null;
+	}
+
+	/**
+	 * Store all buffered entries and stop writing behind. Subsequent writes
+	 * are passed straight through to each map's {@link MapStore}.
+	 */
+	public synchronized void stop() {
+		if (this.flushers == null) {
+			return;
+		}
+		this.log.info("Stopping {} ...", this);
+		for (final CoalescingMapStore mapStore : this.mapStores) {
+			mapStore.stop();
+		}
+		this.flushers.shutdown();
+		try {
+			if (!this.flushers.awaitTermination(STOP_TIMEOUT_SECONDS,
+			        TimeUnit.SECONDS)) {
+				this.log.warn(
+				        "Not all buffered entries have been stored after {} seconds - giving up",
+				        STOP_TIMEOUT_SECONDS);
+				this.flushers.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.flushers.shutdownNow();
+		}
+		removeMetrics();
+		this.flushers = null;
+		this.log.info("Stopped {}", this);
+	}
+
+	private void removeMetrics() {
+		for (final CoalescingMapStore mapStore : this.mapStores) {
+			mapStore.removeMetrics();
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CoalescingWriteBehind@" + this.hashCode() + "[maxBatchSize: "
+		        + this.maxBatchSize + "|maxPendingEntries: "
+		        + this.maxPendingEntries + "|flushIntervalMillis: "
+		        + this.flushIntervalMillis + "|mapStores: " + this.mapStores
+		        + "]";
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.hazelcast.config.MapStoreConfig;
+
+/**
+ * <p>
+ * Helpers for dealing with {@link MapStoreConfig}s.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class MapStoreConfigs {
+
+	/**
+	 * @param mapStoreConfig
+	 * @return <code>mapStoreConfig</code>'s implementation if set, otherwise
+	 *         a new instance of its class, or <code>null</code> if it names no
+	 *         class
+	 * @throws Exception
+	 *             If that class cannot be instantiated
+	 */
+	static Object implementationOf(final MapStoreConfig mapStoreConfig)
+	        throws Exception {
+		checkNotNull(mapStoreConfig,
+		        "Argument 'mapStoreConfig' must not be null");
+		if (mapStoreConfig.getImplementation() != null) {
+			return mapStoreConfig.getImplementation();
+		}
+		if (mapStoreConfig.getClassName() == null) {
+			return null;
+		}
+		final ClassLoader classLoader = Thread.currentThread()
+		        .getContextClassLoader() != null ? Thread.currentThread()
+		        .getContextClassLoader() : MapStoreConfigs.class
+		        .getClassLoader();
+		return Class.forName(mapStoreConfig.getClassName(), true, classLoader)
+		        .newInstance();
+	}
+
+	private MapStoreConfigs() {
+		// Not intended to be instantiated
+	}
+}
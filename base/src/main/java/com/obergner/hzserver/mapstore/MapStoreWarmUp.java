@@ -0,0 +1,610 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.StartupTimeline;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.HealthCheck;
+import com.yammer.metrics.core.HealthCheckRegistry;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Loads the contents of all write-through maps, i.e. maps having a
+ * {@link MapStoreConfig MapStore} with a write delay of 0 seconds, from their
+ * {@link MapLoader}s upon startup, replacing Hazelcast's own initial load.
+ * </p>
+ * <p>
+ * Before our {@link HazelcastInstance} is created, {@link #prepare(Config)}
+ * wraps each such map's {@link MapLoader} so that Hazelcast will not load any
+ * keys on its own. After it has been created, {@link #start(HazelcastInstance)}
+ * asks each {@link MapLoader} for all its keys, keeps only those whose
+ * partition is owned by the local member and loads them in batches - aligned
+ * to partition boundaries - on a bounded pool of worker threads.
+ * </p>
+ * <p>
+ * Progress is published per map as gauges <code>loaded-entries</code>,
+ * <code>total-entries</code>, <code>loaded-bytes</code> and
+ * <code>eta-seconds</code>, scoped by map name, and in aggregate via JMX. A
+ * health check named {@value #HEALTH_CHECK} reports this member as unhealthy
+ * until the warm-up has finished. If {@link #setGateStartup(boolean)
+ * gateStartup} is set, starting our
+ * {@link com.obergner.hzserver.HazelcastService} will block until then.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+@ManagedResource(objectName = "com.obergner.hzserver:name=MapStoreWarmUp", description = "Loads write-through maps from their MapStores upon startup")
+public class MapStoreWarmUp {
+
+	static final String	                      HEALTH_CHECK	        = "map-store-warm-up";
+
+	private static final String	              LOADED_ENTRIES_GAUGE	= "loaded-entries";
+
+	private static final String	              TOTAL_ENTRIES_GAUGE	= "total-entries";
+
+	private static final String	              LOADED_BYTES_GAUGE	= "loaded-bytes";
+
+	private static final String	              ETA_GAUGE	            = "eta-seconds";
+
+	private static final int	              DEFAULT_BATCH_SIZE	= 1000;
+
+	private final Logger	                  log	                = LoggerFactory
+	                                                                        .getLogger(getClass());
+
+	private final MetricsRegistry	          metricsRegistry;
+
+	private final HealthCheckRegistry	      healthCheckRegistry;
+
+	private final HealthCheck	              healthCheck	        = new WarmUpHealthCheck();
+
+	private int	                              parallelism	        = Runtime
+	                                                                        .getRuntime()
+	                                                                        .availableProcessors();
+
+	private int	                              batchSize	            = DEFAULT_BATCH_SIZE;
+
+	private boolean	                          gateStartup	        = false;
+
+	private final Map<String, WarmUpMapLoader>	mapLoaders	        = new LinkedHashMap<String, WarmUpMapLoader>();
+
+	private final Map<String, Progress>	      progressByMap	        = new ConcurrentHashMap<String, Progress>();
+
+	private final AtomicInteger	              pendingTasks	        = new AtomicInteger();
+
+	private volatile ExecutorService	      workers;
+
+	private volatile CountDownLatch	          completion	        = new CountDownLatch(
+	                                                                        1);
+
+	private StartupTimeline	                  startupTimeline;
+
+	private volatile StartupTimeline.Phase	  warmUpPhase;
+
+	private volatile long	                  startedAtMillis;
+
+	private volatile long	                  durationMillis	    = -1L;
+
+	/**
+	 * @param metricsRegistry
+	 * @param healthCheckRegistry
+	 */
+	public MapStoreWarmUp(final MetricsRegistry metricsRegistry,
+	        final HealthCheckRegistry healthCheckRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		this.healthCheckRegistry = checkNotNull(healthCheckRegistry,
+		        "Argument 'healthCheckRegistry' must not be null");
+	}
+
+	/**
+	 * @param parallelism
+	 *            The maximum number of threads to load batches on. Defaults
+	 *            to the number of available processors.
+	 */
+	public final void setParallelism(final int parallelism) {
+		checkArgument(parallelism > 0,
+		        "Argument 'parallelism' must be greater than 0: %s",
+		        parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param batchSize
+	 *            The maximum number of keys to load in one go. Defaults to
+	 *            {@value #DEFAULT_BATCH_SIZE}.
+	 */
+	public final void setBatchSize(final int batchSize) {
+		checkArgument(batchSize > 0,
+		        "Argument 'batchSize' must be greater than 0: %s", batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param gateStartup
+	 *            Whether starting the
+	 *            {@link com.obergner.hzserver.HazelcastService} should block
+	 *            until this warm-up has finished. Defaults to
+	 *            <code>false</code>.
+	 */
+	public final void setGateStartup(final boolean gateStartup) {
+		this.gateStartup = gateStartup;
+	}
+
+	/**
+	 * @param startupTimeline
+	 *            Where to record how long warming up took. Optional.
+	 */
+	public final void setStartupTimeline(final StartupTimeline startupTimeline) {
+		this.startupTimeline = startupTimeline;
+	}
+
+	/**
+	 * @return Whether starting the
+	 *         {@link com.obergner.hzserver.HazelcastService} should block until
+	 *         this warm-up has finished
+	 */
+	public final boolean isGateStartup() {
+		return this.gateStartup;
+	}
+
+	/**
+	 * Take over loading every write-through map configured in
+	 * <code>config</code> from Hazelcast. Must be called before a
+	 * {@link HazelcastInstance} is created from <code>config</code>.
+	 * 
+	 * @param config
+	 */
+	public void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		synchronized (this.mapLoaders) {
+			this.mapLoaders.clear();
+			for (final MapConfig mapConfig : config.getMapConfigs().values()) {
+				final WarmUpMapLoader mapLoader = wrapMapLoaderOf(mapConfig);
+				if (mapLoader != null) {
+					this.mapLoaders.put(mapConfig.getName(), mapLoader);
+					this.log.info(
+					        "Map [{}] will be warmed up from MapLoader [{}]",
+					        mapConfig.getName(), mapLoader.getDelegate());
+				}
+			}
+		}
+	}
+
+	private WarmUpMapLoader wrapMapLoaderOf(final MapConfig mapConfig) {
+		final String mapName = mapConfig.getName();
+		final MapStoreConfig mapStoreConfig = mapConfig.getMapStoreConfig();
+		if (!MapOptions.isConcrete(mapName) || mapStoreConfig == null
+		        || !mapStoreConfig.isEnabled()
+		        || mapStoreConfig.getWriteDelaySeconds() > 0) {
+			return null;
+		}
+		final Object implementation = mapStoreConfig.getImplementation() != null ? mapStoreConfig
+		        .getImplementation() : instantiate(mapName,
+		        mapStoreConfig.getClassName());
+		if (implementation instanceof WarmUpMapLoader) {
+			return (WarmUpMapLoader) implementation;
+		}
+		if (!(implementation instanceof MapLoader)) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		final WarmUpMapLoader result = WarmUpMapStore
+		        .wrap((MapLoader<Object, Object>) implementation);
+		mapStoreConfig.setImplementation(result);
+		return result;
+	}
+
+	private Object instantiate(final String mapName, final String className) {
+		if (className == null) {
+			return null;
+		}
+		try {
+			final ClassLoader classLoader = Thread.currentThread()
+			        .getContextClassLoader() != null ? Thread.currentThread()
+			        .getContextClassLoader() : getClass().getClassLoader();
+			return Class.forName(className, true, classLoader).newInstance();
+		} catch (final Exception e) {
+			this.log.warn("Failed to instantiate MapStore [" + className
+			        + "] for map [" + mapName
+			        + "] - this map will not be warmed up: " + e.getMessage(),
+			        e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start loading all maps registered in {@link #prepare(Config)} in the
+	 * background.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.workers == null, "%s has already been started", this);
+		this.log.info("Starting {} ...", this);
+
+		this.completion = new CountDownLatch(1);
+		this.durationMillis = -1L;
+		this.healthCheckRegistry.register(this.healthCheck);
+		final Map<String, WarmUpMapLoader> mapLoadersToWarmUp;
+		synchronized (this.mapLoaders) {
+			mapLoadersToWarmUp = new LinkedHashMap<String, WarmUpMapLoader>(
+			        this.mapLoaders);
+		}
+		this.startedAtMillis = System.currentTimeMillis();
+		this.warmUpPhase = this.startupTimeline != null ? this.startupTimeline
+		        .begin(StartupTimeline.MAP_STORE_WARM_UP) : null;
+		this.workers = Executors.newFixedThreadPool(this.parallelism,
+		        new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-warm-up-%d").setDaemon(true)
+		                .build());
+		if (mapLoadersToWarmUp.isEmpty()) {
+			complete();
+			return;
+		}
+
+		this.pendingTasks.set(mapLoadersToWarmUp.size());
+		for (final Map.Entry<String, WarmUpMapLoader> mapLoader : mapLoadersToWarmUp
+		        .entrySet()) {
+			final IMap<Object, Object> map = hazelcastInstance
+			        .getMap(mapLoader.getKey());
+			final Progress progress = new Progress();
+			this.progressByMap.put(map.getName(), progress);
+			registerGauges(map, progress);
+			this.workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loadKeys(hazelcastInstance.getPartitionService(),
+						        mapLoader.getValue(), map, progress);
+					} catch (final RuntimeException e) {
+						MapStoreWarmUp.this.log.error("Failed to load keys of map ["
+						        + map.getName()
+						        + "] - this map will not be warmed up: "
+						        + e.getMessage(), e);
+					} finally {
+						taskDone();
+					}
+				}
+			});
+		}
+	}
+
+	private void loadKeys(final PartitionService partitionService,
+	        final WarmUpMapLoader mapLoader, final IMap<Object, Object> map,
+	        final Progress progress) {
+		final Set<Object> keys = mapLoader.loadAllKeysToWarmUp();
+		final List<List<Object>> batches = partitionAlignedBatches(
+		        partitionService, keys != null ? keys : new HashSet<Object>());
+		int ownedKeys = 0;
+		for (final List<Object> batch : batches) {
+			ownedKeys += batch.size();
+		}
+		progress.totalEntries.set(ownedKeys);
+		this.log.info("Warming up map [{}]: loading {} keys in {} batches ...",
+		        new Object[] { map.getName(), ownedKeys, batches.size() });
+
+		this.pendingTasks.addAndGet(batches.size());
+		for (final List<Object> batch : batches) {
+			this.workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Hazelcast loads all missing keys from our MapLoader
+						// without writing them back to our MapStore
+						map.getAll(new HashSet<Object>(batch));
+						progress.loadedEntries.addAndGet(batch.size());
+					} catch (final RuntimeException e) {
+						progress.failedEntries.addAndGet(batch.size());
+						MapStoreWarmUp.this.log.error("Failed to load "
+						        + batch.size() + " entries of map ["
+						        + map.getName() + "]: " + e.getMessage(), e);
+					} finally {
+						taskDone();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Group those <code>keys</code> whose partition is owned by the local
+	 * member into batches of at most {@link #batchSize} keys. A partition is
+	 * only split across batches if it holds more than {@link #batchSize} keys.
+	 */
+	List<List<Object>> partitionAlignedBatches(
+	        final PartitionService partitionService, final Set<Object> keys) {
+		final Map<Integer, List<Object>> ownedKeysByPartition = new TreeMap<Integer, List<Object>>();
+		for (final Object key : keys) {
+			final Partition partition = partitionService
+			        .getPartition(key);
+			final Member owner = partition.getOwner();
+			if (owner != null && !owner.localMember()) {
+				continue;
+			}
+			List<Object> partitionKeys = ownedKeysByPartition.get(partition
+			        .getPartitionId());
+			if (partitionKeys == null) {
+				partitionKeys = new ArrayList<Object>();
+				ownedKeysByPartition.put(partition.getPartitionId(),
+				        partitionKeys);
+			}
+			partitionKeys.add(key);
+		}
+
+		final List<List<Object>> result = new ArrayList<List<Object>>();
+		List<Object> currentBatch = new ArrayList<Object>();
+		for (final List<Object> partitionKeys : ownedKeysByPartition.values()) {
+			for (int from = 0; from < partitionKeys.size(); from += this.batchSize) {
+				final List<Object> chunk = partitionKeys.subList(from,
+				        Math.min(from + this.batchSize, partitionKeys.size()));
+				if (!currentBatch.isEmpty()
+				        && currentBatch.size() + chunk.size() > this.batchSize) {
+					result.add(currentBatch);
+					currentBatch = new ArrayList<Object>();
+				}
+				currentBatch.addAll(chunk);
+			}
+		}
+		if (!currentBatch.isEmpty()) {
+			result.add(currentBatch);
+		}
+		return result;
+	}
+
+	private void taskDone() {
+		if (this.pendingTasks.decrementAndGet() == 0) {
+			complete();
+		}
+	}
+
+	private void complete() {
+		this.durationMillis = System.currentTimeMillis()
+		        - this.startedAtMillis;
+		long loadedEntries = 0;
+		long failedEntries = 0;
+		for (final Progress progress : this.progressByMap.values()) {
+			loadedEntries += progress.loadedEntries.get();
+			failedEntries += progress.failedEntries.get();
+		}
+		this.log.info(
+		        "Warmed up {} maps in [{}] ms: loaded {} entries, failed to load {} entries",
+		        new Object[] { this.progressByMap.size(), this.durationMillis,
+		                loadedEntries, failedEntries });
+		if (this.warmUpPhase != null) {
+			this.warmUpPhase.end();
+		}
+		this.completion.countDown();
+		final ExecutorService finishedWorkers = this.workers;
+		if (finishedWorkers != null) {
+			finishedWorkers.shutdown();
+		}
+	}
+
+	/**
+	 * @param timeout
+	 * @param unit
+	 * @return <code>true</code> if this warm-up has finished within
+	 *         <code>timeout</code>
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion(final long timeout, final TimeUnit unit)
+	        throws InterruptedException {
+		return this.completion.await(timeout, unit);
+	}
+
+	/**
+	 * @return Whether {@link #start(HazelcastInstance)} has been called and
+	 *         {@link #stop()} has not
+	 */
+	public boolean isRunning() {
+		return this.workers != null;
+	}
+
+	/**
+	 * Abort this warm-up if it is still running and remove all metrics it
+	 * registered.
+	 */
+	public void stop() {
+		checkState(this.workers != null, "%s is not running", this);
+		this.log.info("Stopping {} ...", this);
+
+		this.workers.shutdownNow();
+		this.workers = null;
+		this.healthCheckRegistry.unregister(this.healthCheck);
+		for (final String mapName : this.progressByMap.keySet()) {
+			for (final String gauge : new String[] { LOADED_ENTRIES_GAUGE,
+			        TOTAL_ENTRIES_GAUGE, LOADED_BYTES_GAUGE, ETA_GAUGE }) {
+				this.metricsRegistry.removeMetric(getClass(), gauge, mapName);
+			}
+		}
+		this.progressByMap.clear();
+
+		this.log.info("{} stopped", this);
+	}
+
+	private void registerGauges(final IMap<Object, Object> map,
+	        final Progress progress) {
+		this.metricsRegistry.newGauge(getClass(), LOADED_ENTRIES_GAUGE,
+		        map.getName(), new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return progress.loadedEntries.get();
+			        }
+		        });
+		this.metricsRegistry.newGauge(getClass(), TOTAL_ENTRIES_GAUGE,
+		        map.getName(), new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return progress.totalEntries.get();
+			        }
+		        });
+		this.metricsRegistry.newGauge(getClass(), LOADED_BYTES_GAUGE,
+		        map.getName(), new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return map.getLocalMapStats()
+				                .getOwnedEntryMemoryCost();
+			        }
+		        });
+		this.metricsRegistry.newGauge(getClass(), ETA_GAUGE, map.getName(),
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return progress.etaSeconds();
+			        }
+		        });
+	}
+
+	// ------------------------------------------------------------------------
+	// JMX
+	// ------------------------------------------------------------------------
+
+	@ManagedAttribute(description = "Whether all write-through maps have been warmed up")
+	public boolean isCompleted() {
+		return this.completion.getCount() == 0;
+	}
+
+	@ManagedAttribute(description = "How long it took to warm up all write-through maps, in milliseconds, or -1 if still running")
+	public long getDurationMillis() {
+		return this.durationMillis;
+	}
+
+	@ManagedAttribute(description = "The number of entries loaded so far")
+	public long getLoadedEntries() {
+		long result = 0;
+		for (final Progress progress : this.progressByMap.values()) {
+			result += progress.loadedEntries.get();
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description = "The number of entries to load, as far as known yet")
+	public long getTotalEntries() {
+		long result = 0;
+		for (final Progress progress : this.progressByMap.values()) {
+			result += Math.max(progress.totalEntries.get(), 0);
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description = "The estimated number of seconds until all write-through maps will have been warmed up, or -1 if unknown")
+	public long getEtaSeconds() {
+		if (isCompleted()) {
+			return 0;
+		}
+		long result = -1;
+		for (final Progress progress : this.progressByMap.values()) {
+			result = Math.max(result, progress.etaSeconds());
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MapStoreWarmUp@" + this.hashCode() + "[parallelism: "
+		        + this.parallelism + "|batchSize: " + this.batchSize
+		        + "|gateStartup: " + this.gateStartup + "|maps: "
+		        + this.mapLoaders.keySet() + "]";
+	}
+
+	private static final class Progress {
+
+		final long	    start	        = System.currentTimeMillis();
+
+		final AtomicLong	totalEntries	= new AtomicLong(-1L);
+
+		final AtomicLong	loadedEntries	= new AtomicLong();
+
+		final AtomicLong	failedEntries	= new AtomicLong();
+
+		long etaSeconds() {
+			final long total = this.totalEntries.get();
+			final long done = this.loadedEntries.get()
+			        + this.failedEntries.get();
+			if (total < 0 || done == 0) {
+				return -1;
+			}
+			if (done >= total) {
+				return 0;
+			}
+			final long elapsedMillis = System.currentTimeMillis() - this.start;
+			return TimeUnit.MILLISECONDS.toSeconds(elapsedMillis
+			        * (total - done) / done);
+		}
+	}
+
+	private final class WarmUpHealthCheck extends HealthCheck {
+
+		WarmUpHealthCheck() {
+			super(HEALTH_CHECK);
+		}
+
+		@Override
+		protected Result check() {
+			if (isCompleted()) {
+				return Result.healthy();
+			}
+			return Result.unhealthy("Warming up write-through maps: "
+			        + getLoadedEntries() + " out of " + getTotalEntries()
+			        + " entries loaded, ETA " + getEtaSeconds() + " s");
+		}
+	}
+}
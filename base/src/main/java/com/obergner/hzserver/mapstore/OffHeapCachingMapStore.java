@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.HazelcastSerialization;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Caches a serialized copy of every value loaded from or stored to a map in
+ * {@link OffHeapSlabs}, and {@link #load(Object) loads} values from there
+ * before asking the {@link MapLoader} configured for that map. Entries
+ * evicted from the heap are thus loaded back from memory outside the heap
+ * instead of from a database. Writes are passed through to the configured
+ * loader if that is a {@link MapStore}.
+ * </p>
+ * <p>
+ * Our copy is a cache local to the member owning an entry, not storage: it is
+ * neither backed up nor migrated. That configured loader therefore remains
+ * the source of truth for entries this member does not have a copy of. Once
+ * a partition starts migrating to or has migrated away from this member, we
+ * drop our copies of its values: another member owns them in between, and
+ * copies kept from before would be stale once that partition returns.
+ * </p>
+ * <p>
+ * Values that do not fit into our slabs any more are not cached, and
+ * counted as <code>rejected-values</code>.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class OffHeapCachingMapStore implements MapStore<Object, Object>,
+        MapLoaderLifecycleSupport {
+
+	private static final String[]	        METRICS	= new String[] {
+	        "used-bytes", "committed-bytes", "entries", "compactions", "hits",
+	        "rejected-values"	                };
+
+	private final String	                mapName;
+
+	private final MapLoader<Object, Object>	delegate;
+
+	private final OffHeapSlabs	            slabs;
+
+	private final MetricsRegistry	        metricsRegistry;
+
+	private final Meter	                    hits;
+
+	private final Meter	                    rejectedValues;
+
+	private final Invalidation	            invalidation	= new Invalidation();
+
+	private volatile PartitionService	    partitionService;
+
+	/**
+	 * @param mapName
+	 * @param delegate
+	 *            The {@link MapLoader} configured for <code>mapName</code>
+	 * @param slabs
+	 * @param metricsRegistry
+	 */
+	OffHeapCachingMapStore(final String mapName,
+	        final MapLoader<Object, Object> delegate, final OffHeapSlabs slabs,
+	        final MetricsRegistry metricsRegistry) {
+		this.mapName = checkNotNull(mapName,
+		        "Argument 'mapName' must not be null");
+		this.delegate = checkNotNull(delegate,
+		        "Argument 'delegate' must not be null");
+		this.slabs = checkNotNull(slabs, "Argument 'slabs' must not be null");
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "used-bytes", mapName,
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return slabs.usedBytes();
+			        }
+		        });
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "committed-bytes",
+		        mapName, new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return slabs.committedBytes();
+			        }
+		        });
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "entries", mapName,
+		        new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return slabs.size();
+			        }
+		        });
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "compactions",
+		        mapName, new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return slabs.compactions();
+			        }
+		        });
+		this.hits = metricsRegistry.newMeter(OffHeapLoaderCache.class, "hits",
+		        mapName, "loads", TimeUnit.SECONDS);
+		this.rejectedValues = metricsRegistry.newMeter(OffHeapLoaderCache.class,
+		        "rejected-values", mapName, "values", TimeUnit.SECONDS);
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoader
+	// ------------------------------------------------------------------------
+
+	@Override
+	public Object load(final Object key) {
+		final byte[] bytes = this.slabs.get(key);
+		if (bytes != null) {
+			this.hits.mark();
+			return valueOf(bytes);
+		}
+		final Object result = this.delegate.load(key);
+		if (result != null) {
+			keep(key, result);
+		}
+		return result;
+	}
+
+	@Override
+	public Map<Object, Object> loadAll(final Collection<Object> keys) {
+		final Map<Object, Object> result = new HashMap<Object, Object>();
+		final List<Object> misses = new ArrayList<Object>();
+		for (final Object key : keys) {
+			final byte[] bytes = this.slabs.get(key);
+			if (bytes != null) {
+				result.put(key, valueOf(bytes));
+			} else {
+				misses.add(key);
+			}
+		}
+		this.hits.mark(result.size());
+		if (!misses.isEmpty()) {
+			final Map<Object, Object> loaded = this.delegate.loadAll(misses);
+			if (loaded != null) {
+				for (final Map.Entry<Object, Object> entry : loaded.entrySet()) {
+					if (entry.getValue() != null) {
+						keep(entry.getKey(), entry.getValue());
+						result.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Set<Object> loadAllKeys() {
+		return this.delegate.loadAllKeys();
+	}
+
+	// ------------------------------------------------------------------------
+	// MapStore
+	// ------------------------------------------------------------------------
+
+	@Override
+	public void store(final Object key, final Object value) {
+		if (this.delegate instanceof MapStore) {
+			delegateStore().store(key, value);
+		}
+		keep(key, value);
+	}
+
+	@Override
+	public void storeAll(final Map<Object, Object> map) {
+		if (this.delegate instanceof MapStore) {
+			delegateStore().storeAll(map);
+		}
+		for (final Map.Entry<Object, Object> entry : map.entrySet()) {
+			keep(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public void delete(final Object key) {
+		if (this.delegate instanceof MapStore) {
+			delegateStore().delete(key);
+		}
+		this.slabs.remove(key);
+	}
+
+	@Override
+	public void deleteAll(final Collection<Object> keys) {
+		if (this.delegate instanceof MapStore) {
+			delegateStore().deleteAll(keys);
+		}
+		for (final Object key : keys) {
+			this.slabs.remove(key);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private MapStore<Object, Object> delegateStore() {
+		return (MapStore<Object, Object>) this.delegate;
+	}
+
+	private void keep(final Object key, final Object value) {
+		final PartitionService current = this.partitionService;
+		checkState(current != null, "%s has not been initialized", this);
+		if (!this.slabs.put(key, current.getPartition(key).getPartitionId(),
+		        HazelcastSerialization.toBytes(value))) {
+			this.rejectedValues.mark();
+		}
+	}
+
+	private Object valueOf(final byte[] bytes) {
+		return HazelcastSerialization.fromBytes(bytes);
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoaderLifecycleSupport
+	// ------------------------------------------------------------------------
+
+	@Override
+	public void init(final HazelcastInstance hazelcastInstance,
+	        final Properties properties, final String mapName) {
+		this.partitionService = hazelcastInstance.getPartitionService();
+		this.partitionService.addMigrationListener(this.invalidation);
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).init(
+			        hazelcastInstance, properties, mapName);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		final PartitionService current = this.partitionService;
+		if (current != null) {
+			current.removeMigrationListener(this.invalidation);
+		}
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).destroy();
+		}
+	}
+
+	String getMapName() {
+		return this.mapName;
+	}
+
+	MapLoader<Object, Object> getDelegate() {
+		return this.delegate;
+	}
+
+	/**
+	 * Drop all values cached off heap, releasing their slabs.
+	 */
+	void release() {
+		this.slabs.clear();
+	}
+
+	void removeMetrics() {
+		for (final String metric : METRICS) {
+			this.metricsRegistry.removeMetric(OffHeapLoaderCache.class, metric,
+			        this.mapName);
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "OffHeapCachingMapStore@" + this.hashCode() + "[mapName: "
+		        + this.mapName + "|slabs: " + this.slabs + "|delegate: "
+		        + this.delegate + "]";
+	}
+
+	/**
+	 * <p>
+	 * Drops our copies of the values of partitions migrating to or away from
+	 * this member.
+	 * </p>
+	 */
+	private final class Invalidation implements MigrationListener {
+
+		@Override
+		public void migrationStarted(final MigrationEvent migrationEvent) {
+			if (isLocal(migrationEvent.getNewOwner())) {
+				invalidate(migrationEvent);
+			}
+		}
+
+		@Override
+		public void migrationCompleted(final MigrationEvent migrationEvent) {
+			if (isLocal(migrationEvent.getOldOwner())
+			        || isLocal(migrationEvent.getNewOwner())) {
+				invalidate(migrationEvent);
+			}
+		}
+
+		@Override
+		public void migrationFailed(final MigrationEvent migrationEvent) {
+			// Ownership did not change
+		}
+
+		private boolean isLocal(final Member member) {
+			return member != null && member.localMember();
+		}
+
+		private void invalidate(final MigrationEvent migrationEvent) {
+			OffHeapCachingMapStore.this.slabs.removePartition(migrationEvent
+			        .getPartitionId());
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoader;
+import com.obergner.hzserver.OffHeapMemory;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Caches the values of maps that opt in via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map name="documents"&gt;
+ *     &lt;max-size policy="used_heap_size"&gt;512&lt;/max-size&gt;
+ *     &lt;eviction-policy&gt;LRU&lt;/eviction-policy&gt;
+ *     ...
+ * &lt;/map&gt;
+ * 
+ * &lt;map-options name="documents"&gt;
+ *     &lt;loader-cache&gt;OFF-HEAP&lt;/loader-cache&gt;
+ *     &lt;off-heap-capacity-mb&gt;4096&lt;/off-heap-capacity-mb&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * in memory outside the heap, allocated in slabs of <code>slabSizeBytes</code>
+ * up to <code>off-heap-capacity-mb</code> - or <code>defaultCapacityMb</code>
+ * if not set - per map.
+ * </p>
+ * <p>
+ * This is a second level cache in front of a map's {@link MapLoader}, not
+ * off-heap storage: Hazelcast 2.4 keeps every entry it holds on heap, and
+ * offers no hook to keep its values anywhere else. Before our
+ * {@link HazelcastInstance} is created, {@link #prepare(Config)} therefore
+ * puts an {@link OffHeapCachingMapStore} in front of each opted-in map's
+ * {@link MapLoader}. That store keeps a copy of every value loaded or
+ * written, so that a map may be configured to evict all but its hottest
+ * entries from the heap - using <code>max-size</code> and
+ * <code>eviction-policy</code> - and have evicted entries loaded back from
+ * off heap rather than from its {@link MapLoader}. How much heap an
+ * <code>OFF-HEAP</code> loader cache saves depends entirely on that map's
+ * eviction settings, and a map that evicts nothing saves none.
+ * </p>
+ * <p>
+ * Values cached off heap are local to the member owning them, and are
+ * neither backed up nor migrated. Once an entry has been evicted, its
+ * {@link MapLoader} is the only copy left on any other member taking over its
+ * partition. Maps selecting an <code>OFF-HEAP</code> loader cache without
+ * configuring a {@link MapLoader} would lose evicted entries whenever a
+ * member leaves, and are therefore refused.
+ * </p>
+ * <p>
+ * Expiring an entry does not delete it from its map's {@link MapLoader}, which
+ * would load it back just like we do. Maps that set a time to live or a
+ * maximum idle time may therefore use a loader cache as well.
+ * </p>
+ * <p>
+ * Publishes per map gauges <code>used-bytes</code>,
+ * <code>committed-bytes</code>, <code>entries</code> and
+ * <code>compactions</code>, and meters <code>hits</code> and
+ * <code>rejected-values</code> - values that did not fit. Gauges
+ * <code>used-bytes</code> and <code>committed-bytes</code> without a scope
+ * sum these up over all maps.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class OffHeapLoaderCache {
+
+	public static final String	        OFF_HEAP	        = "OFF-HEAP";
+
+	private final Logger	            log	                = LoggerFactory
+	                                                                .getLogger(getClass());
+
+	private final MetricsRegistry	    metricsRegistry;
+
+	private final List<OffHeapCachingMapStore>	mapStores	        = new ArrayList<OffHeapCachingMapStore>();
+
+	private int	                        slabSizeBytes	    = 16 * 1024 * 1024;
+
+	private long	                    defaultCapacityMb	= 256L;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public OffHeapLoaderCache(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "used-bytes",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return OffHeapMemory.usedBytes();
+			        }
+		        });
+		metricsRegistry.newGauge(OffHeapLoaderCache.class, "committed-bytes",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return OffHeapMemory.committedBytes();
+			        }
+		        });
+	}
+
+	/**
+	 * @param slabSizeBytes
+	 *            How much memory to allocate at a time. Defaults to 16 MB.
+	 */
+	public void setSlabSizeBytes(final int slabSizeBytes) {
+		checkArgument(slabSizeBytes >= OffHeapSlabs.ALIGNMENT,
+		        "Argument 'slabSizeBytes' must be at least %s: %s",
+		        OffHeapSlabs.ALIGNMENT, slabSizeBytes);
+		this.slabSizeBytes = slabSizeBytes;
+	}
+
+	/**
+	 * @param defaultCapacityMb
+	 *            How many megabytes a map not setting
+	 *            {@link MapOptions#OFF_HEAP_CAPACITY_MB} may take at most.
+	 *            Defaults to 256. All maps together must stay well below
+	 *            <code>-XX:MaxDirectMemorySize</code>, which direct buffers
+	 *            used for networking count against, too.
+	 */
+	public void setDefaultCapacityMb(final long defaultCapacityMb) {
+		checkArgument(defaultCapacityMb > 0,
+		        "Argument 'defaultCapacityMb' must be greater than 0: %s",
+		        defaultCapacityMb);
+		this.defaultCapacityMb = defaultCapacityMb;
+	}
+
+	/**
+	 * Put an {@link OffHeapCachingMapStore} in front of the {@link MapLoader}s of all
+	 * maps in <code>config</code> that opt in to an off-heap loader cache,
+	 * ignoring those that do not configure a {@link MapLoader}, and releasing
+	 * whatever these maps cached off heap when we were last prepared. Must be
+	 * called before a {@link HazelcastInstance} is created from
+	 * <code>config</code>, and before anyone else wraps these maps'
+	 * {@link MapLoader}s.
+	 * 
+	 * @param config
+	 */
+	public synchronized void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		release();
+		for (final String mapName : MapOptions.mapsSelecting(config,
+		        MapOptions.LOADER_CACHE, OFF_HEAP)) {
+			final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+			final OffHeapCachingMapStore mapStore = wrapMapLoaderOf(config,
+			        mapConfig);
+			if (mapStore != null) {
+				this.mapStores.add(mapStore);
+				this.log.info("Map [{}] will cache its values off heap in {}",
+				        mapName, mapStore);
+			}
+		}
+	}
+
+	private OffHeapCachingMapStore wrapMapLoaderOf(final Config config,
+	        final MapConfig mapConfig) {
+		final String mapName = mapConfig.getName();
+		final MapStoreConfig mapStoreConfig = mapConfig.getMapStoreConfig();
+		Object implementation = null;
+		if (mapStoreConfig != null && mapStoreConfig.isEnabled()) {
+			try {
+				implementation = MapStoreConfigs
+				        .implementationOf(mapStoreConfig);
+			} catch (final Exception e) {
+				this.log.warn("Failed to instantiate MapLoader ["
+				        + mapStoreConfig.getClassName() + "] for map ["
+				        + mapName + "] - leaving it to Hazelcast: "
+				        + e.getMessage(), e);
+				return null;
+			}
+		}
+		if (implementation == null) {
+			this.log.warn(
+			        "Map [{}] selects an {} loader cache but has no MapLoader to load values lost with their member from - ignored",
+			        mapName, OFF_HEAP);
+			return null;
+		}
+		if (implementation instanceof OffHeapCachingMapStore) {
+			// Wrapped when we were last prepared
+			implementation = ((OffHeapCachingMapStore) implementation).getDelegate();
+		}
+		if (!(implementation instanceof MapLoader)) {
+			this.log.warn(
+			        "Map [{}] selects an {} loader cache but [{}] is not a MapLoader - ignored",
+			        new Object[] { mapName, OFF_HEAP, implementation });
+			return null;
+		}
+		if (MapConfig.DEFAULT_EVICTION_POLICY.equalsIgnoreCase(mapConfig
+		        .getEvictionPolicy())) {
+			this.log.warn(
+			        "Map [{}] selects an {} loader cache but evicts nothing - it will save no heap",
+			        mapName, OFF_HEAP);
+		}
+		@SuppressWarnings("unchecked")
+		final OffHeapCachingMapStore result = new OffHeapCachingMapStore(
+		        mapName, (MapLoader<Object, Object>) implementation,
+		        new OffHeapSlabs(this.slabSizeBytes, capacityMbOf(config,
+		                mapName) * 1024L * 1024L), this.metricsRegistry);
+		mapStoreConfig.setImplementation(result);
+		return result;
+	}
+
+	private long capacityMbOf(final Config config, final String mapName) {
+		final String capacityMb = MapOptions.get(config, mapName,
+		        MapOptions.OFF_HEAP_CAPACITY_MB);
+		if (capacityMb == null) {
+			return this.defaultCapacityMb;
+		}
+		try {
+			final long result = Long.parseLong(capacityMb.trim());
+			if (result > 0) {
+				return result;
+			}
+		} catch (final NumberFormatException e) {
+			// Fall through
+		}
+		this.log.warn("Map [{}] sets an illegal {} [{}] - using {} MB",
+		        new Object[] { mapName, MapOptions.OFF_HEAP_CAPACITY_MB,
+		                capacityMb, this.defaultCapacityMb });
+		return this.defaultCapacityMb;
+	}
+
+	/**
+	 * Drop all values cached off heap by maps wrapped in
+	 * {@link #prepare(Config)}. Should be called once our
+	 * {@link HazelcastInstance} has been shut down.
+	 */
+	public synchronized void release() {
+		for (final OffHeapCachingMapStore mapStore : this.mapStores) {
+			mapStore.release();
+			mapStore.removeMetrics();
+		}
+		this.mapStores.clear();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "OffHeapLoaderCache@" + this.hashCode() + "[slabSizeBytes: "
+		        + this.slabSizeBytes + "|defaultCapacityMb: "
+		        + this.defaultCapacityMb + "|mapStores: " + this.mapStores
+		        + "]";
+	}
+}
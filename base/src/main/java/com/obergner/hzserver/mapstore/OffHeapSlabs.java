@@ -0,0 +1,471 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.obergner.hzserver.OffHeapMemory;
+
+/**
+ * <p>
+ * Serialized values kept outside the heap, in slabs of direct
+ * {@link ByteBuffer}s allocated as needed up to a fixed capacity. All that
+ * remains on heap is an index mapping each key to the location of its value.
+ * </p>
+ * <p>
+ * Each value takes a chunk of a slab, laid out as
+ * 
+ * <pre>
+ * length (int) | partition id (int) | bytes | padding
+ * </pre>
+ * 
+ * and rounded up to a multiple of {@link #ALIGNMENT}. The partition id of
+ * each value's key lets us drop all values of a partition at once, without
+ * taking up further heap. Freed chunks go to a
+ * free list per chunk size, to be reused by values of the same size. Should
+ * neither a free chunk nor fresh space be left for a value, the slab with
+ * the most free chunks is compacted by moving all its live chunks to its
+ * start, so that its free chunks coalesce into fresh space at its end.
+ * </p>
+ * <p>
+ * Should allocating a slab fail since the JVM's direct memory is exhausted,
+ * we make do with the slabs allocated so far until {@link #clear() cleared}.
+ * </p>
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class OffHeapSlabs {
+
+	static final int	                    ALIGNMENT	  = 16;
+
+	private static final int	            PARTITION_ID_OFFSET	= 4;
+
+	private static final int	            HEADER_LENGTH	= PARTITION_ID_OFFSET + 4;
+
+	private final int	                    slabSizeBytes;
+
+	private final int	                    maxSlabs;
+
+	private final List<ByteBuffer>	        slabs	      = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Per slab, the offset up to which it has been allocated
+	 */
+	private final int[]	                    ends;
+
+	/**
+	 * Per slab, how many bytes its free chunks take
+	 */
+	private final long[]	                freeBytes;
+
+	private final Map<Object, Long>	        index	      = new HashMap<Object, Long>();
+
+	private final Map<Integer, Deque<Long>>	freeLists	  = new HashMap<Integer, Deque<Long>>();
+
+	private final Lock	                    lock	      = new ReentrantLock();
+
+	private final Logger	                log	          = LoggerFactory
+	                                                              .getLogger(getClass());
+
+	private int	                            current;
+
+	/**
+	 * How many slabs we may allocate, less than {@link #maxSlabs} once
+	 * direct memory has been exhausted
+	 */
+	private int	                            allocatableSlabs;
+
+	private volatile long	                usedBytes;
+
+	private volatile long	                committedBytes;
+
+	private volatile long	                compactions;
+
+	/**
+	 * @param slabSizeBytes
+	 *            How large a slab to allocate at a time
+	 * @param capacityBytes
+	 *            How many bytes all slabs may take at most, rounded up to a
+	 *            multiple of <code>slabSizeBytes</code>
+	 */
+	OffHeapSlabs(final int slabSizeBytes, final long capacityBytes) {
+		checkArgument(slabSizeBytes >= ALIGNMENT,
+		        "Argument 'slabSizeBytes' must be at least %s: %s", ALIGNMENT,
+		        slabSizeBytes);
+		checkArgument(capacityBytes > 0,
+		        "Argument 'capacityBytes' must be greater than 0: %s",
+		        capacityBytes);
+		this.slabSizeBytes = slabSizeBytes - slabSizeBytes % ALIGNMENT;
+		final long maxSlabs = (capacityBytes + this.slabSizeBytes - 1)
+		        / this.slabSizeBytes;
+		checkArgument(maxSlabs <= Integer.MAX_VALUE,
+		        "Argument 'capacityBytes' is too large for slabs of %s bytes",
+		        slabSizeBytes);
+		this.maxSlabs = (int) maxSlabs;
+		this.allocatableSlabs = this.maxSlabs;
+		this.ends = new int[this.maxSlabs];
+		this.freeBytes = new long[this.maxSlabs];
+	}
+
+	/**
+	 * Store <code>value</code> under <code>key</code>, replacing any value
+	 * stored before.
+	 * 
+	 * @param key
+	 * @param partitionId
+	 *            The partition <code>key</code> belongs to
+	 * @param value
+	 * @return <code>true</code> if <code>value</code> has been stored,
+	 *         <code>false</code> if it did not fit, leaving no value stored
+	 *         under <code>key</code>
+	 */
+	boolean put(final Object key, final int partitionId, final byte[] value) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		checkNotNull(value, "Argument 'value' must not be null");
+		final int chunkSize = chunkSize(value.length);
+		this.lock.lock();
+		try {
+			free(this.index.remove(key));
+			if (chunkSize > this.slabSizeBytes) {
+				return false;
+			}
+			final long location = allocate(chunkSize);
+			if (location < 0) {
+				return false;
+			}
+			final ByteBuffer view = this.slabs.get(slabOf(location))
+			        .duplicate();
+			view.position(offsetOf(location));
+			view.putInt(value.length);
+			view.putInt(partitionId);
+			view.put(value);
+			this.index.put(key, Long.valueOf(location));
+			addUsed(chunkSize);
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return A copy of the value stored under <code>key</code>, or
+	 *         <code>null</code> if there is none
+	 */
+	byte[] get(final Object key) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		this.lock.lock();
+		try {
+			final Long location = this.index.get(key);
+			if (location == null) {
+				return null;
+			}
+			final ByteBuffer view = this.slabs.get(slabOf(location))
+			        .duplicate();
+			view.position(offsetOf(location));
+			final byte[] result = new byte[view.getInt()];
+			view.position(offsetOf(location) + HEADER_LENGTH);
+			view.get(result);
+			return result;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return <code>true</code> if a value was stored under <code>key</code>
+	 */
+	boolean remove(final Object key) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		this.lock.lock();
+		try {
+			final Long location = this.index.remove(key);
+			free(location);
+			return location != null;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all values whose keys belong to partition
+	 * <code>partitionId</code>.
+	 * 
+	 * @param partitionId
+	 * @return The number of values removed
+	 */
+	int removePartition(final int partitionId) {
+		this.lock.lock();
+		try {
+			int result = 0;
+			for (final Iterator<Long> locations = this.index.values()
+			        .iterator(); locations.hasNext();) {
+				final Long location = locations.next();
+				if (this.slabs.get(slabOf(location)).getInt(
+				        offsetOf(location) + PARTITION_ID_OFFSET) == partitionId) {
+					locations.remove();
+					free(location);
+					result++;
+				}
+			}
+			return result;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all values and release all slabs.
+	 */
+	void clear() {
+		this.lock.lock();
+		try {
+			this.index.clear();
+			this.freeLists.clear();
+			addCommitted(-this.committedBytes);
+			addUsed(-this.usedBytes);
+			this.slabs.clear();
+			for (int slab = 0; slab < this.maxSlabs; slab++) {
+				this.ends[slab] = 0;
+				this.freeBytes[slab] = 0;
+			}
+			this.current = 0;
+			this.allocatableSlabs = this.maxSlabs;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private long allocate(final int chunkSize) {
+		final Deque<Long> freeList = this.freeLists.get(Integer
+		        .valueOf(chunkSize));
+		if (freeList != null && !freeList.isEmpty()) {
+			final long result = freeList.pop().longValue();
+			this.freeBytes[slabOf(result)] -= chunkSize;
+			return result;
+		}
+		if (this.current < this.slabs.size()
+		        && this.ends[this.current] + chunkSize <= this.slabSizeBytes) {
+			return bump(this.current, chunkSize);
+		}
+		if (this.slabs.size() < this.allocatableSlabs) {
+			try {
+				this.slabs.add(ByteBuffer.allocateDirect(this.slabSizeBytes));
+				addCommitted(this.slabSizeBytes);
+				this.current = this.slabs.size() - 1;
+				return bump(this.current, chunkSize);
+			} catch (final OutOfMemoryError e) {
+				// Each failed attempt costs a full GC - do not retry
+				this.allocatableSlabs = this.slabs.size();
+				this.log.warn("Direct memory exhausted after allocating ["
+				        + this.slabs.size() + "] of [" + this.maxSlabs
+				        + "] slabs - raise -XX:MaxDirectMemorySize or lower "
+				        + "off-heap capacity: " + e.getMessage());
+			}
+		}
+		for (int slab = 0; slab < this.slabs.size(); slab++) {
+			if (this.ends[slab] + chunkSize <= this.slabSizeBytes) {
+				this.current = slab;
+				return bump(slab, chunkSize);
+			}
+		}
+		int victim = -1;
+		long reclaimable = 0;
+		for (int slab = 0; slab < this.slabs.size(); slab++) {
+			final long slabReclaimable = this.freeBytes[slab]
+			        + this.slabSizeBytes - this.ends[slab];
+			if (slabReclaimable > reclaimable) {
+				victim = slab;
+				reclaimable = slabReclaimable;
+			}
+		}
+		if (reclaimable < chunkSize) {
+			return -1;
+		}
+		compact(victim);
+		this.current = victim;
+		return bump(victim, chunkSize);
+	}
+
+	private long bump(final int slab, final int chunkSize) {
+		final long result = locationOf(slab, this.ends[slab]);
+		this.ends[slab] += chunkSize;
+		return result;
+	}
+
+	private void free(final Long location) {
+		if (location == null) {
+			return;
+		}
+		final int slab = slabOf(location);
+		final int chunkSize = chunkSize(this.slabs.get(slab).getInt(
+		        offsetOf(location)));
+		final Integer freeListKey = Integer.valueOf(chunkSize);
+		Deque<Long> freeList = this.freeLists.get(freeListKey);
+		if (freeList == null) {
+			freeList = new ArrayDeque<Long>();
+			this.freeLists.put(freeListKey, freeList);
+		}
+		freeList.push(location);
+		this.freeBytes[slab] += chunkSize;
+		addUsed(-chunkSize);
+	}
+
+	/**
+	 * Move all live chunks of <code>slab</code> to its start, in order, and
+	 * forget about its free chunks.
+	 */
+	private void compact(final int slab) {
+		final List<Map.Entry<Object, Long>> live = new ArrayList<Map.Entry<Object, Long>>();
+		for (final Map.Entry<Object, Long> entry : this.index.entrySet()) {
+			if (slabOf(entry.getValue()) == slab) {
+				live.add(entry);
+			}
+		}
+		Collections.sort(live, new Comparator<Map.Entry<Object, Long>>() {
+			@Override
+			public int compare(final Map.Entry<Object, Long> o1,
+			        final Map.Entry<Object, Long> o2) {
+				return o1.getValue().compareTo(o2.getValue());
+			}
+		});
+		final ByteBuffer buffer = this.slabs.get(slab);
+		int end = 0;
+		for (final Map.Entry<Object, Long> entry : live) {
+			final int offset = offsetOf(entry.getValue());
+			final int chunkSize = chunkSize(buffer.getInt(offset));
+			if (offset != end) {
+				final byte[] chunk = new byte[chunkSize];
+				final ByteBuffer view = buffer.duplicate();
+				view.position(offset);
+				view.get(chunk);
+				view.position(end);
+				view.put(chunk);
+				entry.setValue(Long.valueOf(locationOf(slab, end)));
+			}
+			end += chunkSize;
+		}
+		this.ends[slab] = end;
+		this.freeBytes[slab] = 0;
+		for (final Deque<Long> freeList : this.freeLists.values()) {
+			for (final Iterator<Long> locations = freeList.iterator(); locations
+			        .hasNext();) {
+				if (slabOf(locations.next()) == slab) {
+					locations.remove();
+				}
+			}
+		}
+		this.compactions++;
+	}
+
+	private void addUsed(final long deltaBytes) {
+		this.usedBytes += deltaBytes;
+		OffHeapMemory.addUsed(deltaBytes);
+	}
+
+	private void addCommitted(final long deltaBytes) {
+		this.committedBytes += deltaBytes;
+		OffHeapMemory.addCommitted(deltaBytes);
+	}
+
+	private static int chunkSize(final int valueLength) {
+		final int length = HEADER_LENGTH + valueLength;
+		return (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static long locationOf(final int slab, final int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slabOf(final long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offsetOf(final long location) {
+		return (int) location;
+	}
+
+	/**
+	 * @return The number of values stored
+	 */
+	int size() {
+		this.lock.lock();
+		try {
+			return this.index.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of bytes taken by stored values, including their
+	 *         length and padding
+	 */
+	long usedBytes() {
+		return this.usedBytes;
+	}
+
+	/**
+	 * @return The number of bytes taken by all slabs allocated so far
+	 */
+	long committedBytes() {
+		return this.committedBytes;
+	}
+
+	/**
+	 * @return How many times a slab has been compacted
+	 */
+	long compactions() {
+		return this.compactions;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "OffHeapSlabs@" + this.hashCode() + "[slabSizeBytes: "
+		        + this.slabSizeBytes + "|maxSlabs: " + this.maxSlabs
+		        + "|usedBytes: " + this.usedBytes + "|committedBytes: "
+		        + this.committedBytes + "|compactions: "
+		        + this.compactions + "]";
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoader;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Loads entries missing from maps that opt in via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map-options name="accounts"&gt;
+ *     &lt;loading&gt;SINGLE-FLIGHT&lt;/loading&gt;
+ *     &lt;refresh-ahead-seconds&gt;30&lt;/refresh-ahead-seconds&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * from their {@link MapLoader} at most once at a time per key and member,
+ * however many clients concurrently ask for it, so that a hot key expiring
+ * does not send a herd of identical queries to the backing database.
+ * </p>
+ * <p>
+ * Before our {@link HazelcastInstance} is created, {@link #prepare(Config)}
+ * wraps each opted-in map's {@link MapLoader} in a
+ * {@link SingleFlightMapLoader}. Maps that also set
+ * {@link MapOptions#REFRESH_AHEAD_SECONDS refresh-ahead-seconds} and a
+ * <code>time-to-live-seconds</code> greater than that are served stale while
+ * being revalidated: once {@link #start(HazelcastInstance) started}, every
+ * <code>refreshIntervalMillis</code> we reload those keys that are about to
+ * expire and have recently been read.
+ * </p>
+ * <p>
+ * Publishes per map meters <code>loads</code>, <code>coalesced-waits</code> -
+ * loads that waited for a load of the same key already in flight - and
+ * <code>refreshes</code>, and a gauge <code>refresh-candidates</code>.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class SingleFlightLoading {
+
+	public static final String	              SINGLE_FLIGHT	        = "SINGLE-FLIGHT";
+
+	private final Logger	                  log	                = LoggerFactory
+	                                                                        .getLogger(getClass());
+
+	private final MetricsRegistry	          metricsRegistry;
+
+	private final List<SingleFlightMapLoader>	mapLoaders	        = new ArrayList<SingleFlightMapLoader>();
+
+	private long	                          refreshIntervalMillis	= 1000L;
+
+	private ScheduledExecutorService	      executor;
+
+	/**
+	 * @param metricsRegistry
+	 */
+	public SingleFlightLoading(final MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param refreshIntervalMillis
+	 *            How often to look for keys to refresh ahead of their expiry.
+	 *            Defaults to 1 second.
+	 */
+	public void setRefreshIntervalMillis(final long refreshIntervalMillis) {
+		checkArgument(refreshIntervalMillis > 0,
+		        "Argument 'refreshIntervalMillis' must be greater than 0: %s",
+		        refreshIntervalMillis);
+		this.refreshIntervalMillis = refreshIntervalMillis;
+	}
+
+	/**
+	 * Wrap the {@link MapLoader}s of all maps in <code>config</code> that opt
+	 * in to single-flight loading. Must be called before a
+	 * {@link HazelcastInstance} is created from <code>config</code>, and
+	 * before anyone else takes over these maps' time to live.
+	 * 
+	 * @param config
+	 */
+	public synchronized void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		checkState(this.executor == null, "%s has already been started", this);
+		removeMetrics();
+		this.mapLoaders.clear();
+		for (final String mapName : MapOptions.mapsSelecting(config,
+		        MapOptions.LOADING, SINGLE_FLIGHT)) {
+			final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+			final SingleFlightMapLoader mapLoader = wrapMapLoaderOf(config,
+			        mapConfig);
+			if (mapLoader != null) {
+				this.mapLoaders.add(mapLoader);
+				this.log.info("Map [{}] will be loaded by {}", mapName,
+				        mapLoader);
+			}
+		}
+	}
+
+	private SingleFlightMapLoader wrapMapLoaderOf(final Config config,
+	        final MapConfig mapConfig) {
+		final String mapName = mapConfig.getName();
+		final MapStoreConfig mapStoreConfig = mapConfig.getMapStoreConfig();
+		if (mapStoreConfig == null || !mapStoreConfig.isEnabled()) {
+			this.log.warn(
+			        "Map [{}] selects {} loading but has no enabled MapLoader - ignored",
+			        mapName, SINGLE_FLIGHT);
+			return null;
+		}
+		Object implementation;
+		try {
+			implementation = MapStoreConfigs.implementationOf(mapStoreConfig);
+		} catch (final Exception e) {
+			this.log.warn("Failed to instantiate MapLoader ["
+			        + mapStoreConfig.getClassName() + "] for map [" + mapName
+			        + "] - leaving it to Hazelcast: " + e.getMessage(), e);
+			return null;
+		}
+		if (implementation instanceof SingleFlightMapLoader) {
+			// Wrapped when we were last started
+			implementation = ((SingleFlightMapLoader) implementation)
+			        .getDelegate();
+		}
+		if (!(implementation instanceof MapLoader)) {
+			this.log.warn(
+			        "Map [{}] selects {} loading but [{}] is not a MapLoader - ignored",
+			        new Object[] { mapName, SINGLE_FLIGHT, implementation });
+			return null;
+		}
+
+		final long timeToLiveMillis = TimeUnit.SECONDS.toMillis(MapOptions
+		        .timeToLiveSecondsOf(config, mapName));
+		long refreshAheadMillis = TimeUnit.SECONDS
+		        .toMillis(refreshAheadSecondsOf(config, mapName));
+		if (refreshAheadMillis > 0 && refreshAheadMillis >= timeToLiveMillis) {
+			this.log.warn(
+			        "Map [{}] sets {} [{} ms] but no time to live greater than that - will not refresh ahead",
+			        new Object[] { mapName, MapOptions.REFRESH_AHEAD_SECONDS,
+			                refreshAheadMillis });
+			refreshAheadMillis = 0;
+		}
+		@SuppressWarnings("unchecked")
+		final SingleFlightMapLoader result = SingleFlightMapStore.wrap(mapName,
+		        (MapLoader<Object, Object>) implementation, timeToLiveMillis,
+		        refreshAheadMillis, this.metricsRegistry);
+		mapStoreConfig.setImplementation(result);
+		return result;
+	}
+
+	private long refreshAheadSecondsOf(final Config config,
+	        final String mapName) {
+		final String refreshAheadSeconds = MapOptions.get(config, mapName,
+		        MapOptions.REFRESH_AHEAD_SECONDS);
+		if (refreshAheadSeconds == null) {
+			return 0L;
+		}
+		try {
+			return Long.parseLong(refreshAheadSeconds.trim());
+		} catch (final NumberFormatException e) {
+			this.log.warn("Map [{}] sets an illegal {} [{}] - ignored",
+			        new Object[] { mapName, MapOptions.REFRESH_AHEAD_SECONDS,
+			                refreshAheadSeconds });
+			return 0L;
+		}
+	}
+
+	/**
+	 * Start refreshing keys of all maps wrapped in {@link #prepare(Config)}
+	 * that refresh ahead of expiry.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.executor == null, "%s has already been started", this);
+		this.executor = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-refresh-ahead-%d")
+		                .setDaemon(true).build());
+		for (final SingleFlightMapLoader mapLoader : this.mapLoaders) {
+			if (!mapLoader.isRefreshAhead()) {
+				continue;
+			}
+			final IMap<Object, Object> map = hazelcastInstance
+			        .getMap(mapLoader.getMapName());
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					refresh(mapLoader, map);
+				}
+			}, this.refreshIntervalMillis, this.refreshIntervalMillis,
+			        TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void refresh(final SingleFlightMapLoader mapLoader,
+	        final IMap<Object, Object> map) {
+		try {
+			final int refreshed = mapLoader.refresh(map,
+			        System.currentTimeMillis());
+			if (refreshed > 0) {
+				this.log.debug("Refreshed [{}] entries of map [{}]",
+				        refreshed, map.getName());
+			}
+		} catch (final RuntimeException e) {
+			this.log.warn("Failed to refresh entries of map [" + map.getName()
+			        + "]: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.executor != null;
+	}
+
+	/**
+	 * Stop refreshing keys ahead of expiry. Maps wrapped in
+	 * {@link #prepare(Config)} keep being loaded single-flight.
+	 */
+	public synchronized void stop() {
+		if (this.executor == null) {
+			return;
+		}
+		this.executor.shutdownNow();
+		this.executor = null;
+	}
+
+	private void removeMetrics() {
+		for (final SingleFlightMapLoader mapLoader : this.mapLoaders) {
+			mapLoader.removeMetrics();
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SingleFlightLoading@" + this.hashCode()
+		        + "[refreshIntervalMillis: " + this.refreshIntervalMillis
+		        + "|mapLoaders: " + this.mapLoaders + "]";
+	}
+}
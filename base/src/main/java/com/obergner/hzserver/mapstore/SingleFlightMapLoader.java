@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Wraps the {@link MapLoader} configured for a map so that concurrent
+ * {@link #load(Object) loads} of the same key share a single call to that
+ * loader: the first caller loads, all others wait for and return its result.
+ * {@link #loadAll(Collection)} and {@link #loadAllKeys()} are passed through
+ * unchanged.
+ * </p>
+ * <p>
+ * If <code>refreshAheadMillis</code> is greater than 0, every key loaded is
+ * remembered together with when it was loaded. Once such a key comes within
+ * <code>refreshAheadMillis</code> of its map's time to live,
+ * {@link #refresh(IMap, long)} reloads it in the background and puts it back
+ * - bypassing any {@link MapStore} - provided it has been read within the
+ * last <code>refreshAheadMillis</code>. Clients thus keep reading the stale
+ * value while it is being revalidated, and frequently read keys do not
+ * expire. Keys not read for that long are forgotten and left to expire.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+class SingleFlightMapLoader implements MapLoader<Object, Object>,
+        MapLoaderLifecycleSupport {
+
+	private final String	                                mapName;
+
+	private final MapLoader<Object, Object>	                delegate;
+
+	private final long	                                    timeToLiveMillis;
+
+	private final long	                                    refreshAheadMillis;
+
+	private final ConcurrentMap<Object, FutureTask<Object>>	inFlight	   = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+	private final ConcurrentMap<Object, Long>	            loadedAtMillis	= new ConcurrentHashMap<Object, Long>();
+
+	private final MetricsRegistry	                        metricsRegistry;
+
+	private final Meter	                                    loads;
+
+	private final Meter	                                    coalescedWaits;
+
+	private final Meter	                                    refreshes;
+
+	SingleFlightMapLoader(final String mapName,
+	        final MapLoader<Object, Object> delegate,
+	        final long timeToLiveMillis, final long refreshAheadMillis,
+	        final MetricsRegistry metricsRegistry) {
+		this.mapName = checkNotNull(mapName,
+		        "Argument 'mapName' must not be null");
+		this.delegate = checkNotNull(delegate,
+		        "Argument 'delegate' must not be null");
+		checkArgument(refreshAheadMillis <= 0
+		        || refreshAheadMillis < timeToLiveMillis,
+		        "Argument 'refreshAheadMillis' must be less than the time to live [%s ms]: %s",
+		        timeToLiveMillis, refreshAheadMillis);
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.refreshAheadMillis = refreshAheadMillis;
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+
+		this.loads = metricsRegistry.newMeter(SingleFlightLoading.class,
+		        "loads", mapName, "loads", TimeUnit.SECONDS);
+		this.coalescedWaits = metricsRegistry.newMeter(
+		        SingleFlightLoading.class, "coalesced-waits", mapName,
+		        "loads", TimeUnit.SECONDS);
+		this.refreshes = metricsRegistry.newMeter(SingleFlightLoading.class,
+		        "refreshes", mapName, "loads", TimeUnit.SECONDS);
+		metricsRegistry.newGauge(SingleFlightLoading.class,
+		        "refresh-candidates", mapName, new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return SingleFlightMapLoader.this.loadedAtMillis
+				                .size();
+			        }
+		        });
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoader
+	// ------------------------------------------------------------------------
+
+	@Override
+	public final Object load(final Object key) {
+		return singleFlight(key, this.loads);
+	}
+
+	private Object singleFlight(final Object key, final Meter leaders) {
+		final FutureTask<Object> load = new FutureTask<Object>(
+		        new Callable<Object>() {
+			        @Override
+			        public Object call() {
+				        return SingleFlightMapLoader.this.delegate.load(key);
+			        }
+		        });
+		final FutureTask<Object> existing = this.inFlight.putIfAbsent(key,
+		        load);
+		if (existing != null) {
+			this.coalescedWaits.mark();
+			return await(key, existing);
+		}
+		leaders.mark();
+		try {
+			load.run();
+			final Object result = await(key, load);
+			if (result != null && isRefreshAhead()) {
+				loaded(key);
+			}
+			return result;
+		} finally {
+			this.inFlight.remove(key, load);
+		}
+	}
+
+	private Object await(final Object key, final FutureTask<Object> load) {
+		try {
+			return load.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for [" + key
+			        + "] of map [" + this.mapName + "] to be loaded", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException("Failed to load [" + key
+			        + "] of map [" + this.mapName + "]: "
+			        + cause.getMessage(), cause);
+		}
+	}
+
+	@Override
+	public final Map<Object, Object> loadAll(final Collection<Object> keys) {
+		return this.delegate.loadAll(keys);
+	}
+
+	@Override
+	public final Set<Object> loadAllKeys() {
+		return this.delegate.loadAllKeys();
+	}
+
+	// ------------------------------------------------------------------------
+	// Refresh ahead
+	// ------------------------------------------------------------------------
+
+	final boolean isRefreshAhead() {
+		return this.refreshAheadMillis > 0;
+	}
+
+	/**
+	 * Remember that <code>key</code> has been given a fresh value, starting
+	 * its time to live.
+	 */
+	final void loaded(final Object key) {
+		this.loadedAtMillis.put(key, Long.valueOf(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Forget about <code>key</code>, e.g. since it has been deleted.
+	 */
+	final void forget(final Object key) {
+		this.loadedAtMillis.remove(key);
+	}
+
+	/**
+	 * Reload all keys that are about to expire and have recently been read,
+	 * putting them back into <code>map</code>.
+	 * 
+	 * @param map
+	 * @param nowMillis
+	 * @return The number of keys refreshed
+	 */
+	final int refresh(final IMap<Object, Object> map, final long nowMillis) {
+		int result = 0;
+		for (final Map.Entry<Object, Long> loaded : this.loadedAtMillis
+		        .entrySet()) {
+			final long loadedAt = loaded.getValue().longValue();
+			if (loadedAt + this.timeToLiveMillis - this.refreshAheadMillis > nowMillis) {
+				continue;
+			}
+			final Object key = loaded.getKey();
+			if (!this.loadedAtMillis.remove(key, loaded.getValue())) {
+				// Loaded or stored again in the meantime
+				continue;
+			}
+			final MapEntry<Object, Object> entry = map.getMapEntry(key);
+			if (entry == null
+			        || entry.getLastAccessTime() < nowMillis
+			                - this.refreshAheadMillis) {
+				continue;
+			}
+			final Object value = singleFlight(key, this.refreshes);
+			if (value != null) {
+				map.putTransient(key, value, this.timeToLiveMillis,
+				        TimeUnit.MILLISECONDS);
+				result++;
+			}
+		}
+		return result;
+	}
+
+	// ------------------------------------------------------------------------
+	// MapLoaderLifecycleSupport
+	// ------------------------------------------------------------------------
+
+	@Override
+	public final void init(final HazelcastInstance hazelcastInstance,
+	        final Properties properties, final String mapName) {
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).init(
+			        hazelcastInstance, properties, mapName);
+		}
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).destroy();
+		}
+	}
+
+	final String getMapName() {
+		return this.mapName;
+	}
+
+	final MapLoader<Object, Object> getDelegate() {
+		return this.delegate;
+	}
+
+	final long getRefreshAheadMillis() {
+		return this.refreshAheadMillis;
+	}
+
+	final void removeMetrics() {
+		for (final String metric : new String[] { "loads", "coalesced-waits",
+		        "refreshes", "refresh-candidates" }) {
+			this.metricsRegistry.removeMetric(SingleFlightLoading.class,
+			        metric, this.mapName);
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + this.hashCode()
+		        + "[mapName: " + this.mapName + "|refreshAheadMillis: "
+		        + this.refreshAheadMillis + "|delegate: " + this.delegate
+		        + "]";
+	}
+}
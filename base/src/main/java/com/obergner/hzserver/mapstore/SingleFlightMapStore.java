@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapStore;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * A {@link SingleFlightMapLoader} for a {@link MapStore}, passing writes
+ * through to that store.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class SingleFlightMapStore extends SingleFlightMapLoader implements
+        MapStore<Object, Object> {
+
+	private final MapStore<Object, Object>	delegate;
+
+	SingleFlightMapStore(final String mapName,
+	        final MapStore<Object, Object> delegate,
+	        final long timeToLiveMillis, final long refreshAheadMillis,
+	        final MetricsRegistry metricsRegistry) {
+		super(mapName, delegate, timeToLiveMillis, refreshAheadMillis,
+		        metricsRegistry);
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void store(final Object key, final Object value) {
+		this.delegate.store(key, value);
+		if (isRefreshAhead()) {
+			loaded(key);
+		}
+	}
+
+	@Override
+	public void storeAll(final Map<Object, Object> map) {
+		this.delegate.storeAll(map);
+		if (isRefreshAhead()) {
+			for (final Object key : map.keySet()) {
+				loaded(key);
+			}
+		}
+	}
+
+	@Override
+	public void delete(final Object key) {
+		this.delegate.delete(key);
+		forget(key);
+	}
+
+	@Override
+	public void deleteAll(final Collection<Object> keys) {
+		this.delegate.deleteAll(keys);
+		for (final Object key : keys) {
+			forget(key);
+		}
+	}
+
+	/**
+	 * @param mapName
+	 * @param delegate
+	 * @param timeToLiveMillis
+	 * @param refreshAheadMillis
+	 * @param metricsRegistry
+	 * @return A {@link SingleFlightMapStore} if <code>delegate</code> is a
+	 *         {@link MapStore}, a plain {@link SingleFlightMapLoader}
+	 *         otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	static SingleFlightMapLoader wrap(final String mapName,
+	        final MapLoader<Object, Object> delegate,
+	        final long timeToLiveMillis, final long refreshAheadMillis,
+	        final MetricsRegistry metricsRegistry) {
+		return delegate instanceof MapStore ? new SingleFlightMapStore(
+		        mapName, (MapStore<Object, Object>) delegate, timeToLiveMillis,
+		        refreshAheadMillis, metricsRegistry)
+		        : new SingleFlightMapLoader(mapName, delegate,
+		                timeToLiveMillis, refreshAheadMillis, metricsRegistry);
+	}
+}
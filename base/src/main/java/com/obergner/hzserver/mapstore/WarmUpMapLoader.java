@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+
+/**
+ * <p>
+ * Wraps the {@link MapLoader} configured for a map, hiding its keys from
+ * Hazelcast's own initial load so that {@link MapStoreWarmUp} may take over.
+ * Everything else is passed through unchanged.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+class WarmUpMapLoader implements MapLoader<Object, Object>,
+        MapLoaderLifecycleSupport {
+
+	private final MapLoader<Object, Object>	delegate;
+
+	WarmUpMapLoader(final MapLoader<Object, Object> delegate) {
+		this.delegate = checkNotNull(delegate,
+		        "Argument 'delegate' must not be null");
+	}
+
+	/**
+	 * @return All keys our delegate knows about, for {@link MapStoreWarmUp}
+	 *         to load
+	 */
+	final Set<Object> loadAllKeysToWarmUp() {
+		return this.delegate.loadAllKeys();
+	}
+
+	@Override
+	public final Object load(final Object key) {
+		return this.delegate.load(key);
+	}
+
+	@Override
+	public final Map<Object, Object> loadAll(final Collection<Object> keys) {
+		return this.delegate.loadAll(keys);
+	}
+
+	/**
+	 * @return Always <code>null</code>, thus disabling Hazelcast's initial
+	 *         load
+	 */
+	@Override
+	public final Set<Object> loadAllKeys() {
+		return null;
+	}
+
+	@Override
+	public final void init(final HazelcastInstance hazelcastInstance,
+	        final Properties properties, final String mapName) {
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).init(
+			        hazelcastInstance, properties, mapName);
+		}
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.delegate instanceof MapLoaderLifecycleSupport) {
+			((MapLoaderLifecycleSupport) this.delegate).destroy();
+		}
+	}
+
+	MapLoader<Object, Object> getDelegate() {
+		return this.delegate;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + this.hashCode()
+		        + "[delegate: " + this.delegate + "]";
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapStore;
+
+/**
+ * <p>
+ * A {@link WarmUpMapLoader} for a {@link MapStore}, passing writes through to
+ * that store.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class WarmUpMapStore extends WarmUpMapLoader implements
+        MapStore<Object, Object> {
+
+	private final MapStore<Object, Object>	delegate;
+
+	WarmUpMapStore(final MapStore<Object, Object> delegate) {
+		super(delegate);
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void store(final Object key, final Object value) {
+		this.delegate.store(key, value);
+	}
+
+	@Override
+	public void storeAll(final Map<Object, Object> map) {
+		this.delegate.storeAll(map);
+	}
+
+	@Override
+	public void delete(final Object key) {
+		this.delegate.delete(key);
+	}
+
+	@Override
+	public void deleteAll(final Collection<Object> keys) {
+		this.delegate.deleteAll(keys);
+	}
+
+	/**
+	 * @param delegate
+	 * @return A {@link WarmUpMapStore} if <code>delegate</code> is a
+	 *         {@link MapStore}, a plain {@link WarmUpMapLoader} otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	static WarmUpMapLoader wrap(final MapLoader<Object, Object> delegate) {
+		return delegate instanceof MapStore ? new WarmUpMapStore(
+		        (MapStore<Object, Object>) delegate) : new WarmUpMapLoader(
+		        delegate);
+	}
+}
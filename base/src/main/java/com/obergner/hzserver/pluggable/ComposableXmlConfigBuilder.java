@@ -49,6 +49,8 @@ public class ComposableXmlConfigBuilder {
 
 	private final ComposableXmlConfigParser	configParser;
 
+	private MergedXmlConfig	                mergedXmlConfig;
+
 	public ComposableXmlConfigBuilder(final String xmlFileName)
 	        throws FileNotFoundException {
 		this(new FileInputStream(xmlFileName));
@@ -65,6 +67,41 @@ public class ComposableXmlConfigBuilder {
 		return this;
 	}
 
+	/**
+	 * @param dataFile
+	 *            A {@link DataFile} containing distributed data structure
+	 *            definitions, possibly an entry in a deploy bundle
+	 * @return this
+	 */
+	public ComposableXmlConfigBuilder addDataFile(final DataFile dataFile) {
+		this.configParser.addDataFile(dataFile);
+		return this;
+	}
+
+	/**
+	 * @param parallelism
+	 *            The maximum number of threads to use for parsing data
+	 *            structures configuration files
+	 * @return this
+	 */
+	public ComposableXmlConfigBuilder parallelism(final int parallelism) {
+		this.configParser.parallelism(parallelism);
+		return this;
+	}
+
+	/**
+	 * @param mergedXmlConfig
+	 *            Where to render the merged XML configuration to instead of
+	 *            storing it in the {@link Config} built, see
+	 *            {@link MergedXmlConfig}
+	 * @return this
+	 */
+	public ComposableXmlConfigBuilder renderXmlConfigTo(
+	        final MergedXmlConfig mergedXmlConfig) {
+		this.mergedXmlConfig = mergedXmlConfig;
+		return this;
+	}
+
 	/**
 	 * @return
 	 * @see com.hazelcast.config.XmlConfigBuilder#build()
@@ -77,7 +114,11 @@ public class ComposableXmlConfigBuilder {
 			        new ByteArrayInputStream("IGNORED".getBytes()))
 			        .build(configDoc.getDocumentElement());
 
-			injectXmlConfigIntoConfig(config, configDoc);
+			if (this.mergedXmlConfig != null) {
+				this.mergedXmlConfig.render(configDoc);
+			} else {
+				injectXmlConfigIntoConfig(config, configDoc);
+			}
 
 			this.log.info("Hazelcast configuration successfully built: {}",
 			        config);
@@ -20,15 +20,25 @@ package com.obergner.hzserver.pluggable;
 
 import static com.google.common.base.Preconditions.checkState;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.core.io.Resource;
 
+import com.google.common.io.ByteStreams;
 import com.hazelcast.config.Config;
+import com.obergner.hzserver.StartupTimeline;
 
 /**
  * <p>
@@ -41,6 +51,8 @@ import com.hazelcast.config.Config;
 public class ComposableXmlConfigFactoryBean implements FactoryBean<Config>,
         InitializingBean {
 
+	private final Logger	log	        = LoggerFactory.getLogger(getClass());
+
 	private Config	 product;
 
 	private Resource	globalXmlConfigFile;
@@ -49,6 +61,15 @@ public class ComposableXmlConfigFactoryBean implements FactoryBean<Config>,
 
 	private String	 dataFileSuffix;
 
+	private MergedXmlConfig	mergedXmlConfig;
+
+	private int	     parallelism	= Runtime.getRuntime()
+	                                    .availableProcessors();
+
+	private StartupTimeline	startupTimeline;
+
+	private final Map<DataFile, DataFileState>	bootDataFiles	= new TreeMap<DataFile, DataFileState>();
+
 	/**
 	 * @param globalXmlConfigFile
 	 *            The globalXmlConfigFile to set
@@ -75,6 +96,43 @@ public class ComposableXmlConfigFactoryBean implements FactoryBean<Config>,
 		this.dataFileSuffix = dataFileSuffix;
 	}
 
+	/**
+	 * @param mergedXmlConfig
+	 *            Where to render the merged XML configuration to instead of
+	 *            keeping it in the {@link Config} produced. Optional.
+	 */
+	public final void setMergedXmlConfig(final MergedXmlConfig mergedXmlConfig) {
+		this.mergedXmlConfig = mergedXmlConfig;
+	}
+
+	/**
+	 * @param parallelism
+	 *            The maximum number of threads to use for parsing data files.
+	 *            Defaults to the number of available processors, 1 disables
+	 *            parallel parsing.
+	 */
+	public final void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param startupTimeline
+	 *            Where to record how long building the configuration took.
+	 *            Optional.
+	 */
+	public final void setStartupTimeline(final StartupTimeline startupTimeline) {
+		this.startupTimeline = startupTimeline;
+	}
+
+	/**
+	 * @return The data files the {@link Config} we created has been built
+	 *         from, each in the state it was in when we scanned it
+	 */
+	Map<DataFile, DataFileState> bootDataFiles() {
+		checkState(this.product != null, "No Config has been created yet");
+		return Collections.unmodifiableMap(this.bootDataFiles);
+	}
+
 	/**
 	 * @see org.springframework.beans.factory.FactoryBean#getObject()
 	 */
@@ -108,40 +166,54 @@ public class ComposableXmlConfigFactoryBean implements FactoryBean<Config>,
 		        "Property 'dataRootDirectory' has not been set");
 		checkState(this.globalXmlConfigFile != null,
 		        "Property 'globalXmlConfigFile' has not been set");
-		InputStream globalXmlConfigStream = null;
-		try {
-			globalXmlConfigStream = this.globalXmlConfigFile.getInputStream();
-			final ComposableXmlConfigBuilder configBuilder = new ComposableXmlConfigBuilder(
-			        globalXmlConfigStream);
-			final DataFileScanCallback dataFileScanCallback = new DataFileScanCallback(
-			        configBuilder);
-
-			final DirectoryScanner directoryScanner = new DirectoryScanner(
-			        this.dataRootDirectory.getFile(), this.dataFileSuffix,
-			        dataFileScanCallback);
-			directoryScanner.scan();
-
-			this.product = configBuilder.build();
-		} finally {
-			if (globalXmlConfigStream != null) {
-				globalXmlConfigStream.close();
-			}
+		final StartupTimeline.Phase configBuild = this.startupTimeline != null ? this.startupTimeline
+		        .begin(StartupTimeline.CONFIG_BUILD) : null;
+		this.product = createConfig();
+		if (configBuild != null) {
+			configBuild.end();
 		}
 	}
 
-	private static final class DataFileScanCallback implements
-	        DirectoryScanner.Callback {
-
-		private final ComposableXmlConfigBuilder	configBuilder;
+	private Config createConfig() throws IOException {
+		final byte[] globalXmlConfig = readGlobalXmlConfig();
+		final List<DataFile> dataFiles = scanDataFiles();
+		return buildConfig(globalXmlConfig, dataFiles);
+	}
 
-		DataFileScanCallback(final ComposableXmlConfigBuilder configBuilder) {
-			this.configBuilder = configBuilder;
+	private byte[] readGlobalXmlConfig() throws IOException {
+		final InputStream globalXmlConfigStream = this.globalXmlConfigFile
+		        .getInputStream();
+		try {
+			return ByteStreams.toByteArray(globalXmlConfigStream);
+		} finally {
+			globalXmlConfigStream.close();
 		}
+	}
+
+	private List<DataFile> scanDataFiles() throws IOException {
+		final List<DataFile> dataFiles = new ArrayList<DataFile>();
+		final DirectoryScanner directoryScanner = new DirectoryScanner(
+		        this.dataRootDirectory.getFile(), this.dataFileSuffix,
+		        new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        dataFiles.add(scannedFile);
+				        ComposableXmlConfigFactoryBean.this.bootDataFiles.put(
+				                scannedFile, new DataFileState(scannedFile));
+			        }
+		        });
+		directoryScanner.scan();
+		return dataFiles;
+	}
 
-		@Override
-		public void scanned(final File scannedFile) {
-			this.configBuilder
-			        .addDistributedDataStructuresConfiguration(scannedFile);
+	private Config buildConfig(final byte[] globalXmlConfig,
+	        final List<DataFile> dataFiles) {
+		final ComposableXmlConfigBuilder configBuilder = new ComposableXmlConfigBuilder(
+		        new ByteArrayInputStream(globalXmlConfig)).parallelism(
+		        this.parallelism).renderXmlConfigTo(this.mergedXmlConfig);
+		for (final DataFile dataFile : dataFiles) {
+			configBuilder.addDataFile(dataFile);
 		}
+		return configBuilder.build();
 	}
 }
@@ -18,25 +18,31 @@
  */
 package com.obergner.hzserver.pluggable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.InputStream;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.obergner.hzserver.pluggable.StreamingFragmentMerger.ParsedFragment;
 
 /**
  * <p>
@@ -48,19 +54,17 @@ import org.xml.sax.InputSource;
  */
 class ComposableXmlConfigParser {
 
-	private final static String	QUEUE_NODES_SELECTOR	                = "//hazelcast/queue";
-
-	private final static String	MAP_NODES_SELECTOR	                    = "//hazelcast/map";
+	private static final String	           PROPERTIES_ELEMENT	                    = "properties";
 
-	private final static String	MULTIMAP_NODES_SELECTOR	                = "//hazelcast/multimap";
+	private static final String	           PROPERTY_ELEMENT	                        = "property";
 
-	private final static String	TOPIC_NODES_SELECTOR	                = "//hazelcast/topic";
+	private final InputStream	           xmlConfigInputStream;
 
-	private final static String	SEMAPHORE_NODES_SELECTOR	            = "//hazelcast/semaphore";
+	private final Set<DataFile>	           distributedDataStructuresConfigurations	= new LinkedHashSet<DataFile>();
 
-	private final InputStream	xmlConfigInputStream;
+	private final StreamingFragmentMerger	fragmentMerger	                        = new StreamingFragmentMerger();
 
-	private final Set<File>	    distributedDataStructuresConfigurations	= new HashSet<File>();
+	private int	                           parallelism	                            = 1;
 
 	/**
 	 * @param xmlConfigInputStream
@@ -74,8 +78,29 @@ class ComposableXmlConfigParser {
 	        final File distributedDataStructuresConfigFile) {
 		checkNotNull(distributedDataStructuresConfigFile,
 		        "Argument 'distributedDataStructuresConfigFile' must not be null");
-		this.distributedDataStructuresConfigurations
-		        .add(distributedDataStructuresConfigFile);
+		return addDataFile(DataFile.of(distributedDataStructuresConfigFile));
+	}
+
+	ComposableXmlConfigParser addDataFile(final DataFile dataFile) {
+		checkNotNull(dataFile, "Argument 'dataFile' must not be null");
+		this.distributedDataStructuresConfigurations.add(dataFile);
+		return this;
+	}
+
+	/**
+	 * Parse data structures configuration files on up to
+	 * <code>parallelism</code> threads. Configurations are nonetheless merged
+	 * in the order they have been added. Defaults to 1, i.e. parse everything
+	 * on the calling thread.
+	 * 
+	 * @param parallelism
+	 * @return this
+	 */
+	ComposableXmlConfigParser parallelism(final int parallelism) {
+		checkArgument(parallelism > 0,
+		        "Argument 'parallelism' must be greater than 0: %s",
+		        parallelism);
+		this.parallelism = parallelism;
 		return this;
 	}
 
@@ -84,50 +109,148 @@ class ComposableXmlConfigParser {
 		        .newDocumentBuilder();
 		final Document result = builder.parse(this.xmlConfigInputStream);
 
-		final XPathFactory xpathFactory = XPathFactory.newInstance();
-
-		insertDistributedDataStructuresConfigurations(builder, xpathFactory,
-		        result.getDocumentElement());
+		if (this.parallelism > 1
+		        && this.distributedDataStructuresConfigurations.size() > 1) {
+			insertDistributedDataStructuresConfigurationsInParallel(builder,
+			        result.getDocumentElement());
+		} else {
+			insertDistributedDataStructuresConfigurations(result
+			        .getDocumentElement());
+		}
 
 		return result;
 	}
 
+	/**
+	 * Reads each data structures configuration file exactly once, routing all
+	 * queues, maps, multimaps, topics and semaphores it contains in a single
+	 * pass.
+	 */
 	private void insertDistributedDataStructuresConfigurations(
-	        final DocumentBuilder builder, final XPathFactory xpathFactory,
 	        final Node hazelcastNode) throws Exception {
-		for (final File mapConfigFile : this.distributedDataStructuresConfigurations) {
-			appendFragmentToParentNode(builder, xpathFactory, hazelcastNode,
-			        mapConfigFile, QUEUE_NODES_SELECTOR);
-			appendFragmentToParentNode(builder, xpathFactory, hazelcastNode,
-			        mapConfigFile, MAP_NODES_SELECTOR);
-			appendFragmentToParentNode(builder, xpathFactory, hazelcastNode,
-			        mapConfigFile, MULTIMAP_NODES_SELECTOR);
-			appendFragmentToParentNode(builder, xpathFactory, hazelcastNode,
-			        mapConfigFile, TOPIC_NODES_SELECTOR);
-			appendFragmentToParentNode(builder, xpathFactory, hazelcastNode,
-			        mapConfigFile, SEMAPHORE_NODES_SELECTOR);
+		for (final DataFile dataStructuresConfigFile : this.distributedDataStructuresConfigurations) {
+			append(dataStructuresConfigFile, this.fragmentMerger.read(
+			        dataStructuresConfigFile, hazelcastNode.getOwnerDocument()),
+			        hazelcastNode);
 		}
 	}
 
-	private void appendFragmentToParentNode(
-	        final DocumentBuilder documentBuilder,
-	        final XPathFactory xpathFactory, final Node parentNode,
-	        final File xmlFragmentFile, final String nodesToAppendSelector)
+	/**
+	 * Reads each data structures configuration file into a scratch document of
+	 * its own on a dedicated thread pool, then appends the results to
+	 * <code>hazelcastNode</code> on the calling thread in the order the files
+	 * have been added.
+	 */
+	private void insertDistributedDataStructuresConfigurationsInParallel(
+	        final DocumentBuilder builder, final Node hazelcastNode)
 	        throws Exception {
-		final Document importedDocument = documentBuilder
-		        .parse(new InputSource(new FileReader(xmlFragmentFile)));
-
-		final XPath selector = xpathFactory.newXPath();
-		final XPathExpression selectorExpr = selector
-		        .compile(nodesToAppendSelector);
-		final NodeList nodesToAppend = (NodeList) selectorExpr.evaluate(
-		        importedDocument, XPathConstants.NODESET);
-
-		for (int i = 0; i < nodesToAppend.getLength(); i++) {
-			final Node nodeToAppend = nodesToAppend.item(i);
-			final Node importedNodeToAppend = parentNode.getOwnerDocument()
-			        .importNode(nodeToAppend, true);
-			parentNode.appendChild(importedNodeToAppend);
+		final ExecutorService parserPool = Executors.newFixedThreadPool(
+		        Math.min(this.parallelism,
+		                this.distributedDataStructuresConfigurations.size()),
+		        new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-config-parser-%d")
+		                .setDaemon(true).build());
+		try {
+			final List<Future<ParsedFragment>> parsedFragments = new ArrayList<Future<ParsedFragment>>(
+			        this.distributedDataStructuresConfigurations.size());
+			for (final DataFile dataStructuresConfigFile : this.distributedDataStructuresConfigurations) {
+				final Document scratchDocument = builder.newDocument();
+				parsedFragments.add(parserPool
+				        .submit(new Callable<ParsedFragment>() {
+					        @Override
+					        public ParsedFragment call() throws Exception {
+						        return ComposableXmlConfigParser.this.fragmentMerger
+						                .read(dataStructuresConfigFile,
+						                        scratchDocument);
+					        }
+				        }));
+			}
+			final Iterator<DataFile> dataStructuresConfigFiles = this.distributedDataStructuresConfigurations
+			        .iterator();
+			for (final Future<ParsedFragment> parsedFragment : parsedFragments) {
+				append(dataStructuresConfigFiles.next(),
+				        awaitParsedFragment(parsedFragment), hazelcastNode);
+			}
+		} finally {
+			parserPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Append <code>parsedFragment</code> to <code>hazelcastNode</code>,
+	 * recording the {@link DataFile#getApplication() application} that
+	 * deployed each of its maps as a {@link MapOptions#APPLICATION map option}.
+	 * Each child element of a <code>map-options</code> element is recorded as
+	 * a map option named after that child, e.g.
+	 * 
+	 * <pre>
+	 * &lt;map-options name="orders"&gt;
+	 *     &lt;heap-pressure-eviction&gt;LRU&lt;/heap-pressure-eviction&gt;
+	 * &lt;/map-options&gt;
+	 * </pre>
+	 */
+	private void append(final DataFile dataStructuresConfigFile,
+	        final ParsedFragment parsedFragment, final Node hazelcastNode) {
+		this.fragmentMerger.append(parsedFragment, hazelcastNode);
+		for (final String mapName : parsedFragment.namesOf("map")) {
+			setProperty(hazelcastNode,
+			        MapOptions.propertyName(mapName, MapOptions.APPLICATION),
+			        dataStructuresConfigFile.getApplication());
+		}
+		for (final Element mapOptions : parsedFragment.mapOptions()) {
+			final String mapName = mapOptions.getAttribute("name");
+			for (Node option = mapOptions.getFirstChild(); option != null; option = option
+			        .getNextSibling()) {
+				if (option.getNodeType() == Node.ELEMENT_NODE) {
+					setProperty(hazelcastNode, MapOptions.propertyName(
+					        mapName, localNameOf(option)), option
+					        .getTextContent().trim());
+				}
+			}
+		}
+	}
+
+	private static String localNameOf(final Node node) {
+		final String nodeName = node.getNodeName();
+		return nodeName.substring(nodeName.indexOf(':') + 1);
+	}
+
+	/**
+	 * Add a <code>property</code> to <code>hazelcastNode</code>'s
+	 * <code>properties</code> element, creating the latter if necessary.
+	 */
+	private static void setProperty(final Node hazelcastNode,
+	        final String name, final String value) {
+		final Document document = hazelcastNode.getOwnerDocument();
+		Element properties = null;
+		for (Node child = hazelcastNode.getFirstChild(); child != null; child = child
+		        .getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE
+			        && PROPERTIES_ELEMENT.equals(child.getNodeName())) {
+				properties = (Element) child;
+				break;
+			}
+		}
+		if (properties == null) {
+			properties = document.createElement(PROPERTIES_ELEMENT);
+			hazelcastNode.appendChild(properties);
+		}
+		final Element property = document.createElement(PROPERTY_ELEMENT);
+		property.setAttribute("name", name);
+		property.appendChild(document.createTextNode(value));
+		properties.appendChild(property);
+	}
+
+	private ParsedFragment awaitParsedFragment(
+	        final Future<ParsedFragment> parsedFragment) throws Exception {
+		try {
+			return parsedFragment.get();
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
 		}
 	}
 }
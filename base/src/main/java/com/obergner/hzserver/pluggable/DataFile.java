@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * A data file containing distributed data structure definitions, deployed by
+ * an application. Either a plain file somewhere beneath that application's
+ * directory or an entry in a deploy bundle, i.e. a <code>.zip</code> or
+ * <code>.jar</code> archive.
+ * </p>
+ * <p>
+ * Two {@link DataFile}s are equal if they share the same
+ * {@link #getLocation() location}.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public abstract class DataFile implements Comparable<DataFile> {
+
+	/**
+	 * @param file
+	 * @return A {@link DataFile} for a plain <code>file</code>, deployed by the
+	 *         application named after <code>file</code>'s parent directory
+	 */
+	public static DataFile of(final File file) {
+		checkNotNull(file, "Argument 'file' must not be null");
+		final File parent = file.getAbsoluteFile().getParentFile();
+		return of(parent != null ? parent.getName() : "", file);
+	}
+
+	static DataFile of(final String application, final File file) {
+		return new PlainFile(application, file);
+	}
+
+	static DataFile of(final String application, final File bundle,
+	        final String entryName, final byte[] content,
+	        final long lastModified) {
+		return new BundleEntry(application, bundle, entryName, content,
+		        lastModified);
+	}
+
+	private final String	application;
+
+	private final String	location;
+
+	DataFile(final String application, final String location) {
+		this.application = checkNotNull(application,
+		        "Argument 'application' must not be null");
+		this.location = checkNotNull(location,
+		        "Argument 'location' must not be null");
+	}
+
+	/**
+	 * @return The name of the application that deployed this data file, i.e.
+	 *         the name of the deploy directory's subdirectory or bundle it
+	 *         lives in
+	 */
+	public final String getApplication() {
+		return this.application;
+	}
+
+	/**
+	 * @return Where this data file lives, unique across all data files
+	 */
+	public final String getLocation() {
+		return this.location;
+	}
+
+	/**
+	 * @return A new {@link InputStream} for reading this data file's contents.
+	 *         Callers are responsible for closing it.
+	 * @throws IOException
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * @return When this data file was last modified, in milliseconds since the
+	 *         epoch
+	 */
+	public abstract long lastModified();
+
+	/**
+	 * @return This data file's length in bytes
+	 */
+	public abstract long length();
+
+	@Override
+	public final int compareTo(final DataFile other) {
+		return this.location.compareTo(other.location);
+	}
+
+	@Override
+	public final int hashCode() {
+		return this.location.hashCode();
+	}
+
+	@Override
+	public final boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DataFile)) {
+			return false;
+		}
+		return this.location.equals(((DataFile) obj).location);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public final String toString() {
+		return this.location;
+	}
+
+	private static final class PlainFile extends DataFile {
+
+		private final File	file;
+
+		PlainFile(final String application, final File file) {
+			super(application, file.getAbsolutePath());
+			this.file = file;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new BufferedInputStream(new FileInputStream(this.file));
+		}
+
+		@Override
+		public long lastModified() {
+			return this.file.lastModified();
+		}
+
+		@Override
+		public long length() {
+			return this.file.length();
+		}
+	}
+
+	/**
+	 * Holds its content in memory since bundles are read sequentially, in one
+	 * go, and data files are small.
+	 */
+	private static final class BundleEntry extends DataFile {
+
+		private final byte[]	content;
+
+		private final long	 lastModified;
+
+		BundleEntry(final String application, final File bundle,
+		        final String entryName, final byte[] content,
+		        final long lastModified) {
+			super(application, bundle.getAbsolutePath() + "!/" + entryName);
+			this.content = checkNotNull(content,
+			        "Argument 'content' must not be null");
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(this.content);
+		}
+
+		@Override
+		public long lastModified() {
+			return this.lastModified;
+		}
+
+		@Override
+		public long length() {
+			return this.content.length;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+/**
+ * <p>
+ * A {@link DataFile}'s last modification time and length at the time this
+ * state was taken. If either differs between two states of the same data
+ * file, that data file has been changed in between.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class DataFileState {
+
+	private final long	lastModified;
+
+	private final long	length;
+
+	DataFileState(final DataFile dataFile) {
+		this.lastModified = dataFile.lastModified();
+		this.length = dataFile.length();
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (this.lastModified ^ (this.lastModified >>> 32)) * 31
+		        + (int) (this.length ^ (this.length >>> 32));
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DataFileState)) {
+			return false;
+		}
+		final DataFileState other = (DataFileState) obj;
+		return this.lastModified == other.lastModified
+		        && this.length == other.length;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DataFileState@" + this.hashCode() + "[lastModified: "
+		        + this.lastModified + "|length: " + this.length + "]";
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * <p>
+ * Periodically rescans the deploy directory using a {@link DirectoryScanner}
+ * and hands each data file that has been added or changed since the previous
+ * scan - and only that file - to a {@link Listener}, parsed into a
+ * {@link Config} containing just the distributed data structures that file
+ * defines.
+ * </p>
+ * <p>
+ * Data files contained in deploy bundles are tracked individually, so
+ * replacing a bundle only redeploys those entries that actually changed.
+ * </p>
+ * <p>
+ * Data files that went into the boot configuration are <strong>not</strong>
+ * reported. If we know the {@link ComposableXmlConfigFactoryBean} that built
+ * it, these are exactly the data files it scanned, as they were when it
+ * scanned them. A data file added or changed while the boot configuration
+ * was being built is thus reported by our first scan. Otherwise, we fall back
+ * to treating the data files present when we are started as part of the boot
+ * configuration. Deleted data files are forgotten but not reported.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class DeployWatcher implements SmartLifecycle {
+
+	/**
+	 * <p>
+	 * Notified whenever a data file has been added or changed.
+	 * </p>
+	 */
+	public interface Listener {
+
+		void deployed(DataFile dataFile, Config dataStructuresConfig);
+	}
+
+	private static final String	                 DEPLOY_DURATION_TIMER	      = "deploy-duration";
+
+	private static final String	                 FAILED_DEPLOYS_COUNTER	      = "failed-deploys";
+
+	private static final long	                 DEFAULT_SCAN_INTERVAL_MILLIS	= 5000L;
+
+	private static final String	                 EMPTY_CONFIG	              = "<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\"/>";
+
+	private final Logger	                     log	                      = LoggerFactory
+	                                                                                  .getLogger(getClass());
+
+	private final File	                         dataRootDirectory;
+
+	private final String	                     dataFileSuffix;
+
+	private final Listener	                     listener;
+
+	private final MetricsRegistry	             metricsRegistry;
+
+	private long	                             scanIntervalMillis	          = DEFAULT_SCAN_INTERVAL_MILLIS;
+
+	private ComposableXmlConfigFactoryBean	     bootConfig;
+
+	private final Map<DataFile, DataFileState>	 knownDataFiles	              = new TreeMap<DataFile, DataFileState>();
+
+	private final Map<DataFile, DataFileState>	 scannedDataFiles	          = new TreeMap<DataFile, DataFileState>();
+
+	private DirectoryScanner	                 directoryScanner;
+
+	private volatile ScheduledExecutorService	scanner;
+
+	private Timer	                             deployDuration;
+
+	private Counter	                             failedDeploys;
+
+	/**
+	 * @param dataRootDirectory
+	 * @param dataFileSuffix
+	 * @param listener
+	 * @param metricsRegistry
+	 */
+	public DeployWatcher(final File dataRootDirectory,
+	        final String dataFileSuffix, final Listener listener,
+	        final MetricsRegistry metricsRegistry) {
+		this.dataRootDirectory = checkNotNull(dataRootDirectory,
+		        "Argument 'dataRootDirectory' must not be null");
+		this.dataFileSuffix = dataFileSuffix;
+		this.listener = checkNotNull(listener,
+		        "Argument 'listener' must not be null");
+		this.metricsRegistry = checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+	}
+
+	/**
+	 * @param scanIntervalMillis
+	 *            The scanIntervalMillis to set. Defaults to
+	 *            {@value #DEFAULT_SCAN_INTERVAL_MILLIS}.
+	 */
+	public final void setScanIntervalMillis(final long scanIntervalMillis) {
+		checkArgument(scanIntervalMillis > 0,
+		        "Argument 'scanIntervalMillis' must be greater than 0: %s",
+		        scanIntervalMillis);
+		this.scanIntervalMillis = scanIntervalMillis;
+	}
+
+	/**
+	 * @param bootConfig
+	 *            The factory that built the boot configuration, telling us
+	 *            which data files it contains. Optional.
+	 */
+	public final void setBootConfig(
+	        final ComposableXmlConfigFactoryBean bootConfig) {
+		this.bootConfig = bootConfig;
+	}
+
+	/**
+	 * @see org.springframework.context.Lifecycle#start()
+	 */
+	@Override
+	public void start() {
+		checkState(this.scanner == null, "{} has already been started", this);
+		this.log.info("Starting {} ...", this);
+
+		this.deployDuration = this.metricsRegistry.newTimer(getClass(),
+		        DEPLOY_DURATION_TIMER, TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+		this.failedDeploys = this.metricsRegistry.newCounter(getClass(),
+		        FAILED_DEPLOYS_COUNTER);
+		synchronized (this.knownDataFiles) {
+			// Kept across scans so that unchanged deploy bundles are not
+			// read again on every scan
+			this.directoryScanner = new DirectoryScanner(
+			        this.dataRootDirectory, this.dataFileSuffix,
+			        new DirectoryScanner.Callback() {
+				        @Override
+				        public void scanned(final DataFile scannedFile) {
+					        DeployWatcher.this.scannedDataFiles.put(
+					                scannedFile, new DataFileState(scannedFile));
+				        }
+			        }, true);
+			this.knownDataFiles.clear();
+			this.knownDataFiles.putAll(this.bootConfig != null ? this.bootConfig
+			        .bootDataFiles() : currentDataFiles());
+		}
+
+		this.scanner = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-deploy-watcher-%d")
+		                .setDaemon(true).build());
+		this.scanner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scan();
+				} catch (final RuntimeException e) {
+					DeployWatcher.this.log.error("Failed to scan ["
+					        + DeployWatcher.this.dataRootDirectory + "]: "
+					        + e.getMessage(), e);
+				}
+			}
+		}, this.scanIntervalMillis, this.scanIntervalMillis,
+		        TimeUnit.MILLISECONDS);
+
+		this.log.info("{} started - boot configuration holds {} data files",
+		        this, this.knownDataFiles.size());
+	}
+
+	/**
+	 * Scan the deploy directory once, deploying every data file that has been
+	 * added or changed since the previous scan.
+	 * 
+	 * @return The number of data files deployed
+	 */
+	int scan() {
+		final List<DataFile> changedDataFiles = new ArrayList<DataFile>();
+		synchronized (this.knownDataFiles) {
+			final Map<DataFile, DataFileState> currentDataFiles = currentDataFiles();
+			for (final Map.Entry<DataFile, DataFileState> current : currentDataFiles
+			        .entrySet()) {
+				if (!current.getValue().equals(
+				        this.knownDataFiles.get(current.getKey()))) {
+					changedDataFiles.add(current.getKey());
+				}
+			}
+			this.knownDataFiles.clear();
+			this.knownDataFiles.putAll(currentDataFiles);
+		}
+
+		int deployed = 0;
+		for (final DataFile changedDataFile : changedDataFiles) {
+			if (deploy(changedDataFile)) {
+				deployed++;
+			}
+		}
+		return deployed;
+	}
+
+	/**
+	 * Must be called while holding our {@link #knownDataFiles} lock.
+	 */
+	private Map<DataFile, DataFileState> currentDataFiles() {
+		this.scannedDataFiles.clear();
+		this.directoryScanner.scan();
+		final Map<DataFile, DataFileState> result = new TreeMap<DataFile, DataFileState>(
+		        this.scannedDataFiles);
+		this.scannedDataFiles.clear();
+		return result;
+	}
+
+	private boolean deploy(final DataFile dataFile) {
+		this.log.info("Deploying new or changed data file [{}] ...", dataFile);
+		final TimerContext deployTime = this.deployDuration.time();
+		try {
+			final Config dataStructuresConfig = new ComposableXmlConfigBuilder(
+			        new ByteArrayInputStream(emptyConfig()))
+			        .addDataFile(dataFile).build();
+			this.listener.deployed(dataFile, dataStructuresConfig);
+			this.log.info("Data file [{}] deployed", dataFile);
+			return true;
+		} catch (final Exception e) {
+			this.failedDeploys.inc();
+			this.log.error("Failed to deploy data file [" + dataFile + "]: "
+			        + e.getMessage(), e);
+			return false;
+		} finally {
+			deployTime.stop();
+		}
+	}
+
+	private static byte[] emptyConfig() throws UnsupportedEncodingException {
+		return EMPTY_CONFIG.getBytes("UTF-8");
+	}
+
+	/**
+	 * @see org.springframework.context.Lifecycle#stop()
+	 */
+	@Override
+	public void stop() {
+		checkState(this.scanner != null, "{} is not running", this);
+		this.log.info("Stopping {} ...", this);
+
+		this.scanner.shutdownNow();
+		this.scanner = null;
+		this.metricsRegistry.removeMetric(getClass(), DEPLOY_DURATION_TIMER);
+		this.metricsRegistry.removeMetric(getClass(), FAILED_DEPLOYS_COUNTER);
+
+		this.log.info("{} stopped", this);
+	}
+
+	/**
+	 * @see org.springframework.context.Lifecycle#isRunning()
+	 */
+	@Override
+	public boolean isRunning() {
+		return this.scanner != null;
+	}
+
+	/**
+	 * Start right before and stop right after the
+	 * {@link com.obergner.hzserver.HazelcastService}.
+	 * 
+	 * @see org.springframework.context.Phased#getPhase()
+	 */
+	@Override
+	public int getPhase() {
+		return Integer.MAX_VALUE - 1;
+	}
+
+	/**
+	 * @see org.springframework.context.SmartLifecycle#isAutoStartup()
+	 */
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	/**
+	 * @see org.springframework.context.SmartLifecycle#stop(java.lang.Runnable)
+	 */
+	@Override
+	public void stop(final Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DeployWatcher@" + this.hashCode() + "[dataRootDirectory: "
+		        + this.dataRootDirectory + "|dataFileSuffix: "
+		        + this.dataFileSuffix + "|scanIntervalMillis: "
+		        + this.scanIntervalMillis + "|listener: " + this.listener
+		        + "]";
+	}
+}
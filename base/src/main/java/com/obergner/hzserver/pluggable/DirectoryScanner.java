@@ -21,17 +21,46 @@ package com.obergner.hzserver.pluggable;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
+
 /**
  * <p>
- * TODO: Document DirectoryScanner
+ * Scans a deploy directory for {@link DataFile}s. Each subdirectory of that
+ * deploy directory, and each deploy bundle - a <code>.zip</code> or
+ * <code>.jar</code> archive - directly contained in it, represents one
+ * application.
+ * </p>
+ * <p>
+ * Application directories are scanned recursively, at any depth, for files
+ * matching our suffix and for nested deploy bundles. Deploy bundles are read
+ * sequentially, in one go, without extracting them. Everything is handed to
+ * our {@link Callback} in lexicographical order so that the order data files
+ * get merged in does not depend on the file system.
+ * </p>
  * <p>
+ * When {@link #scan() scanning} repeatedly, a deploy bundle whose
+ * modification time and length have not changed since the previous scan is
+ * not opened again: the entries read by that scan are handed out instead.
+ * </p>
  * 
  * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
  * 
@@ -40,19 +69,26 @@ public class DirectoryScanner {
 
 	public interface Callback {
 
-		void scanned(File scannedFile);
+		void scanned(DataFile scannedFile);
 	}
 
-	private static final String	DEFAULT_SUFFIX	= ".xml";
+	private static final String	      DEFAULT_SUFFIX	= ".xml";
+
+	private static final List<String>	BUNDLE_SUFFIXES	= Arrays.asList(
+	                                                        ".zip", ".jar");
+
+	private final Logger	          log	           = LoggerFactory
+	                                                       .getLogger(getClass());
 
-	private final Logger	    log	           = LoggerFactory
-	                                                   .getLogger(getClass());
+	private final File	              rootDirectory;
 
-	private final File	        rootDirectory;
+	private final String	          suffix;
 
-	private final String	    suffix;
+	private final Callback	          callback;
 
-	private final Callback	    callback;
+	private final boolean	          quiet;
+
+	private Map<File, ScannedBundle>	scannedBundles	= new HashMap<File, ScannedBundle>();
 
 	/**
 	 * @param rootDirectory
@@ -61,6 +97,19 @@ public class DirectoryScanner {
 	 */
 	public DirectoryScanner(final File rootDirectory, final String suffix,
 	        final Callback callback) {
+		this(rootDirectory, suffix, callback, false);
+	}
+
+	/**
+	 * @param rootDirectory
+	 * @param suffix
+	 * @param callback
+	 * @param quiet
+	 *            If <code>true</code>, log progress at DEBUG instead of INFO
+	 *            level. Intended for periodic rescans.
+	 */
+	public DirectoryScanner(final File rootDirectory, final String suffix,
+	        final Callback callback, final boolean quiet) {
 		this.rootDirectory = checkNotNull(rootDirectory,
 		        "Argument 'rootDirectory' must not be null");
 		checkState(rootDirectory.canRead(),
@@ -68,64 +117,144 @@ public class DirectoryScanner {
 		this.suffix = suffix != null ? suffix : DEFAULT_SUFFIX;
 		this.callback = checkNotNull(callback,
 		        "Argument 'callback' must not be null");
+		this.quiet = quiet;
 	}
 
-	public void scan() {
-		this.log.info(
-		        "Scanning files matching [*{}] in subdirectories of [{}] ...",
+	public synchronized void scan() {
+		info("Scanning files matching [*{}] in applications deployed to [{}] ...",
 		        this.suffix, this.rootDirectory);
-		final FileFilter isDirectory = new FileFilter() {
+		final FileFilter isApplication = new FileFilter() {
 
 			@Override
 			public boolean accept(final File arg0) {
-				return arg0.isDirectory();
+				return arg0.isDirectory() || isBundle(arg0);
 			}
 		};
-		final File[] subdirs = this.rootDirectory.listFiles(isDirectory);
-		this.log.info(
-		        "Found {} subdirectories located in [{}]: {}",
-		        new Object[] { subdirs.length, this.rootDirectory,
-		                Arrays.toString(subdirs) });
-		for (final File subdir : subdirs) {
-			scanDirectory(subdir);
+		final File[] applications = this.rootDirectory
+		        .listFiles(isApplication);
+		// Keep the order data files are handed to our callback - and thus the
+		// order they get merged in - independent of the file system
+		Arrays.sort(applications);
+		info("Found {} applications deployed to [{}]: {}", new Object[] {
+		        applications.length, this.rootDirectory,
+		        Arrays.toString(applications) });
+		final Set<String> visitedDirectories = new HashSet<String>();
+		final Map<File, ScannedBundle> rescannedBundles = new HashMap<File, ScannedBundle>();
+		for (final File application : applications) {
+			final int scanned;
+			if (application.isDirectory()) {
+				scanned = scanDirectory(application.getName(), application,
+				        visitedDirectories, rescannedBundles);
+			} else {
+				scanned = scanBundle(applicationNameOf(application),
+				        application, rescannedBundles);
+			}
+			info("Scanned {} files matching [*{}] deployed by application [{}]",
+			        scanned, this.suffix, application);
 		}
-		this.log.info(
-		        "Finished scanning files matching [*{}] in subdirectories of [{}]",
+		// Forget bundles that have been removed
+		this.scannedBundles = rescannedBundles;
+		info("Finished scanning files matching [*{}] in applications deployed to [{}]",
 		        this.suffix, this.rootDirectory);
 	}
 
-	private void scanDirectory(final File directory) {
+	private int scanDirectory(final String application, final File directory,
+	        final Set<String> visitedDirectories,
+	        final Map<File, ScannedBundle> rescannedBundles) {
 		try {
-			this.log.info(
-			        "Scanning files in directory [{}] matching [*{}] ...",
-			        directory, this.suffix);
-			final FileFilter suffixBasedFilter = new FileFilter() {
-				@Override
-				public boolean accept(final File pathname) {
-					return pathname.isFile()
-					        && pathname.getName().endsWith(
-					                DirectoryScanner.this.suffix);
+			if (!visitedDirectories.add(directory.getCanonicalPath())) {
+				this.log.warn(
+				        "Directory [{}] has already been scanned - is there a symbolic link cycle? Will be skipped",
+				        directory);
+				return 0;
+			}
+			this.log.debug("Scanning directory [{}] ...", directory);
+			final File[] children = directory.listFiles();
+			if (children == null) {
+				throw new IOException("Failed to list contents of directory ["
+				        + directory + "]");
+			}
+			Arrays.sort(children);
+			int scanned = 0;
+			for (final File child : children) {
+				if (child.isDirectory()) {
+					scanned += scanDirectory(application, child,
+					        visitedDirectories, rescannedBundles);
+				} else if (isBundle(child)) {
+					scanned += scanBundle(application, child,
+					        rescannedBundles);
+				} else if (child.isFile()
+				        && child.getName().endsWith(this.suffix)) {
+					scanFile(DataFile.of(application, child));
+					scanned++;
 				}
-			};
-			final File[] allMatchingFiles = directory
-			        .listFiles(suffixBasedFilter);
-			this.log.debug(
-			        "Found {} files matching [*{}] in directory [{}]: {}",
-			        new Object[] { allMatchingFiles.length, this.suffix,
-			                directory, Arrays.toString(allMatchingFiles) });
-			for (final File matchingFile : allMatchingFiles) {
-				scanFile(matchingFile);
 			}
-			this.log.info(
-			        "Scanned {} files in directory [{}] matching [*{}] ...",
-			        allMatchingFiles.length, directory, this.suffix);
+			return scanned;
 		} catch (final Exception e) {
 			this.log.error("Failed to scan directory [" + directory
 			        + "] - will be skipped", e);
+			return 0;
 		}
 	}
 
-	private void scanFile(final File file) {
+	private int scanBundle(final String application, final File bundle,
+	        final Map<File, ScannedBundle> rescannedBundles) {
+		try {
+			final ScannedBundle previouslyScanned = this.scannedBundles
+			        .get(bundle);
+			final ScannedBundle scannedBundle;
+			if (previouslyScanned != null
+			        && previouslyScanned.isUnchanged(bundle)) {
+				this.log.debug(
+				        "Deploy bundle [{}] has not changed since it was last scanned",
+				        bundle);
+				scannedBundle = previouslyScanned;
+			} else {
+				this.log.debug("Scanning deploy bundle [{}] ...", bundle);
+				// Taken before reading so that a concurrent change is seen by
+				// the next scan
+				final long lastModified = bundle.lastModified();
+				final long length = bundle.length();
+				scannedBundle = new ScannedBundle(lastModified, length,
+				        readMatchingEntries(application, bundle));
+			}
+			rescannedBundles.put(bundle, scannedBundle);
+			final List<DataFile> matchingEntries = scannedBundle.matchingEntries;
+			for (final DataFile matchingEntry : matchingEntries) {
+				scanFile(matchingEntry);
+			}
+			return matchingEntries.size();
+		} catch (final Exception e) {
+			this.log.error("Failed to scan deploy bundle [" + bundle
+			        + "] - will be skipped", e);
+			return 0;
+		}
+	}
+
+	private List<DataFile> readMatchingEntries(final String application,
+	        final File bundle) throws IOException {
+		final List<DataFile> result = new ArrayList<DataFile>();
+		final ZipInputStream bundleStream = new ZipInputStream(
+		        new BufferedInputStream(new FileInputStream(bundle)));
+		try {
+			ZipEntry entry;
+			while ((entry = bundleStream.getNextEntry()) != null) {
+				if (!entry.isDirectory()
+				        && entry.getName().endsWith(this.suffix)) {
+					result.add(DataFile.of(application, bundle,
+					        entry.getName(),
+					        ByteStreams.toByteArray(bundleStream),
+					        entry.getTime()));
+				}
+			}
+		} finally {
+			bundleStream.close();
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private void scanFile(final DataFile file) {
 		try {
 			this.log.debug("Scanning file [{}] ...", file);
 			this.callback.scanned(file);
@@ -136,6 +265,32 @@ public class DirectoryScanner {
 		}
 	}
 
+	private static boolean isBundle(final File file) {
+		if (!file.isFile()) {
+			return false;
+		}
+		final String name = file.getName().toLowerCase();
+		for (final String bundleSuffix : BUNDLE_SUFFIXES) {
+			if (name.endsWith(bundleSuffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String applicationNameOf(final File bundle) {
+		final String name = bundle.getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+
+	private void info(final String format, final Object... args) {
+		if (this.quiet) {
+			this.log.debug(format, args);
+		} else {
+			this.log.info(format, args);
+		}
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -143,6 +298,32 @@ public class DirectoryScanner {
 	public String toString() {
 		return "DirectoryScanner@" + this.hashCode() + "[rootDirectory: "
 		        + this.rootDirectory + "|suffix: " + this.suffix
-		        + "|callback: " + this.callback + "]";
+		        + "|callback: " + this.callback + "|quiet: " + this.quiet
+		        + "]";
+	}
+
+	/**
+	 * The entries matching our suffix read from a deploy bundle, and that
+	 * bundle's modification time and length when they were read.
+	 */
+	private static final class ScannedBundle {
+
+		private final long		     lastModified;
+
+		private final long		     length;
+
+		private final List<DataFile>	matchingEntries;
+
+		ScannedBundle(final long lastModified, final long length,
+		        final List<DataFile> matchingEntries) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.matchingEntries = matchingEntries;
+		}
+
+		boolean isUnchanged(final File bundle) {
+			return this.lastModified == bundle.lastModified()
+			        && this.length == bundle.length();
+		}
 	}
 }
@@ -0,0 +1,363 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+
+/**
+ * <p>
+ * Settings of individual maps that Hazelcast itself does not know about, e.g.
+ * the application that deployed a map. These are carried in a {@link Config}'s
+ * {@link Config#getProperties() properties}, each named
+ * <code>hzserver.map.&lt;map name&gt;.&lt;option&gt;</code>, and thus
+ * survive rendering a {@link Config} to XML and building it back.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public final class MapOptions {
+
+	/**
+	 * The name of the application that deployed a map, i.e. the
+	 * {@link DataFile#getApplication() application} of the {@link DataFile} it
+	 * was declared in.
+	 */
+	public static final String	APPLICATION	           = "application";
+
+	/**
+	 * The order - <code>LRU</code> or <code>LFU</code> - in which to evict a
+	 * map's entries when heap usage gets critical. Maps that do not set this
+	 * option are never evicted from on heap pressure.
+	 */
+	public static final String	HEAP_PRESSURE_EVICTION	= "heap-pressure-eviction";
+
+	/**
+	 * The name of an eviction policy to apply to a map in addition to, or
+	 * rather instead of, Hazelcast's own, e.g. <code>W-TINYLFU</code>.
+	 */
+	public static final String	EVICTION_POLICY	       = "eviction-policy";
+
+	/**
+	 * The maximum number of entries a map using an
+	 * {@link #EVICTION_POLICY eviction policy} should hold cluster wide.
+	 */
+	public static final String	MAX_SIZE	           = "max-size";
+
+	/**
+	 * How to expire a map's entries once their time to live or max idle time
+	 * has passed, e.g. <code>TIMING-WHEEL</code>. Maps that do not set this
+	 * option are expired by Hazelcast.
+	 */
+	public static final String	EXPIRY	               = "expiry";
+
+	/**
+	 * Whether - <code>true</code> or <code>false</code> - to snapshot a map's
+	 * entries to local disk, so that they survive a full cluster restart.
+	 * Defaults to <code>false</code>.
+	 */
+	public static final String	SNAPSHOT	           = "snapshot";
+
+	/**
+	 * Whether - <code>true</code> or <code>false</code> - to log all
+	 * mutations of a map's entries to local disk, so that mutations made
+	 * since its last snapshot survive a full cluster restart, too. Defaults to
+	 * <code>false</code>.
+	 */
+	public static final String	CHANGE_LOG	           = "change-log";
+
+	/**
+	 * How to write a map's entries behind to its MapStore, e.g.
+	 * <code>COALESCING</code>. Maps that do not set this option are written
+	 * to their MapStore by Hazelcast.
+	 */
+	public static final String	WRITE_BEHIND	       = "write-behind";
+
+	/**
+	 * How to load a map's entries from its MapLoader on a miss, e.g.
+	 * <code>SINGLE-FLIGHT</code>. Maps that do not set this option are loaded
+	 * by Hazelcast.
+	 */
+	public static final String	LOADING	               = "loading";
+
+	/**
+	 * How many seconds before its time to live is up to reload a recently
+	 * read entry of a map using {@link #LOADING SINGLE-FLIGHT} loading, so
+	 * that it does not expire. Defaults to 0, i.e. entries expire as usual.
+	 */
+	public static final String	REFRESH_AHEAD_SECONDS	= "refresh-ahead-seconds";
+
+	/**
+	 * Where to cache the values a map loads from or stores to its MapLoader,
+	 * e.g. <code>OFF-HEAP</code>, so that entries evicted from the heap are
+	 * loaded back from there. Maps that do not set this option load evicted
+	 * entries from their MapLoader. The cache is local to each member: it is
+	 * neither backed up nor migrated, and maps without a MapLoader may not
+	 * select it. Hazelcast keeps values on heap as well until their entries
+	 * are evicted, so that it only saves heap if the map configures Hazelcast
+	 * eviction.
+	 */
+	public static final String	LOADER_CACHE	          = "loader-cache";
+
+	/**
+	 * How many megabytes of memory outside the heap a map using an
+	 * {@link #LOADER_CACHE OFF-HEAP} loader cache may take at most.
+	 */
+	public static final String	OFF_HEAP_CAPACITY_MB	= "off-heap-capacity-mb";
+
+	/**
+	 * The time to live in seconds a map's {@link MapConfig} set before a
+	 * feature expiring that map on its own, e.g. timing wheel expiry, took
+	 * it over and cleared it. Not set in deploy fragments, but by that
+	 * feature.
+	 */
+	public static final String	TAKEN_OVER_TIME_TO_LIVE_SECONDS	= "taken-over-time-to-live-seconds";
+
+	/**
+	 * The max idle time in seconds a map's {@link MapConfig} set before a
+	 * feature expiring that map on its own took it over and cleared it.
+	 */
+	public static final String	TAKEN_OVER_MAX_IDLE_SECONDS	= "taken-over-max-idle-seconds";
+
+	/**
+	 * The options only applied to a map when we start, not when it is
+	 * deployed while we are running.
+	 */
+	public static final List<String>	STARTUP_OPTIONS	= Collections
+	                                                    .unmodifiableList(Arrays.asList(
+	                EVICTION_POLICY, MAX_SIZE, EXPIRY, CHANGE_LOG, WRITE_BEHIND,
+	                LOADING, REFRESH_AHEAD_SECONDS, LOADER_CACHE,
+	                OFF_HEAP_CAPACITY_MB));
+
+	private static final String	PREFIX	               = "hzserver.map.";
+
+	private static final String	DEFAULT_CONFIG_NAME	   = "default";
+
+	/**
+	 * @param mapName
+	 * @param option
+	 * @return The name of the {@link Config} property holding
+	 *         <code>option</code> for the map named <code>mapName</code>
+	 */
+	public static String propertyName(final String mapName,
+	        final String option) {
+		checkNotNull(mapName, "Argument 'mapName' must not be null");
+		checkNotNull(option, "Argument 'option' must not be null");
+		return PREFIX + mapName + "." + option;
+	}
+
+	/**
+	 * @param config
+	 * @param mapName
+	 * @param option
+	 * @return <code>option</code>'s value for the map named
+	 *         <code>mapName</code>, or <code>null</code> if not set
+	 */
+	public static String get(final Config config, final String mapName,
+	        final String option) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		return config.getProperty(propertyName(mapName, option));
+	}
+
+	/**
+	 * @param config
+	 * @param mapName
+	 * @param option
+	 * @param value
+	 */
+	public static void set(final Config config, final String mapName,
+	        final String option, final String value) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		checkNotNull(value, "Argument 'value' must not be null");
+		config.setProperty(propertyName(mapName, option), value);
+	}
+
+	/**
+	 * Record the time to live and max idle time the map named
+	 * <code>mapName</code> configures, and clear them in its
+	 * {@link MapConfig}, so that Hazelcast does not expire that map. Taking
+	 * them over again, e.g. when we are restarted using the same
+	 * {@link Config}, keeps the recorded ones.
+	 * 
+	 * @param config
+	 * @param mapName
+	 */
+	public static void takeOverLifetimes(final Config config,
+	        final String mapName) {
+		final int timeToLiveSeconds = timeToLiveSecondsOf(config, mapName);
+		final int maxIdleSeconds = maxIdleSecondsOf(config, mapName);
+		set(config, mapName, TAKEN_OVER_TIME_TO_LIVE_SECONDS,
+		        String.valueOf(timeToLiveSeconds));
+		set(config, mapName, TAKEN_OVER_MAX_IDLE_SECONDS,
+		        String.valueOf(maxIdleSeconds));
+		final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+		mapConfig.setTimeToLiveSeconds(0);
+		mapConfig.setMaxIdleSeconds(0);
+	}
+
+	/**
+	 * @param config
+	 * @param mapName
+	 * @return The time to live in seconds of the map named
+	 *         <code>mapName</code>, even if it has been
+	 *         {@link #takeOverLifetimes(Config, String) taken over}, or 0 if
+	 *         unlimited
+	 */
+	public static int timeToLiveSecondsOf(final Config config,
+	        final String mapName) {
+		final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+		if (mapConfig == null) {
+			return 0;
+		}
+		if (mapConfig.getTimeToLiveSeconds() > 0
+		        || mapConfig.getMaxIdleSeconds() > 0) {
+			return mapConfig.getTimeToLiveSeconds();
+		}
+		return intOf(config, mapName, TAKEN_OVER_TIME_TO_LIVE_SECONDS);
+	}
+
+	/**
+	 * @param config
+	 * @param mapName
+	 * @return The max idle time in seconds of the map named
+	 *         <code>mapName</code>, even if it has been
+	 *         {@link #takeOverLifetimes(Config, String) taken over}, or 0 if
+	 *         unlimited
+	 */
+	public static int maxIdleSecondsOf(final Config config,
+	        final String mapName) {
+		final MapConfig mapConfig = config.getMapConfigs().get(mapName);
+		if (mapConfig == null) {
+			return 0;
+		}
+		if (mapConfig.getTimeToLiveSeconds() > 0
+		        || mapConfig.getMaxIdleSeconds() > 0) {
+			return mapConfig.getMaxIdleSeconds();
+		}
+		return intOf(config, mapName, TAKEN_OVER_MAX_IDLE_SECONDS);
+	}
+
+	private static int intOf(final Config config, final String mapName,
+	        final String option) {
+		final String value = get(config, mapName, option);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param mapName
+	 * @return <code>true</code> if <code>mapName</code> names a concrete map,
+	 *         i.e. is neither <code>default</code> nor a wildcard
+	 */
+	public static boolean isConcrete(final String mapName) {
+		checkNotNull(mapName, "Argument 'mapName' must not be null");
+		return !DEFAULT_CONFIG_NAME.equals(mapName)
+		        && mapName.indexOf('*') < 0;
+	}
+
+	/**
+	 * @param config
+	 * @param option
+	 * @return The names of all concrete maps configured in
+	 *         <code>config</code> that set <code>option</code>, whatever its
+	 *         value
+	 */
+	public static List<String> mapsSetting(final Config config,
+	        final String option) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		final List<String> result = new ArrayList<String>();
+		for (final String mapName : config.getMapConfigs().keySet()) {
+			if (isConcrete(mapName) && get(config, mapName, option) != null) {
+				result.add(mapName);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param config
+	 * @param option
+	 * @param value
+	 * @return The names of all concrete maps configured in
+	 *         <code>config</code> that set <code>option</code> to
+	 *         <code>value</code>, ignoring case
+	 */
+	public static List<String> mapsSelecting(final Config config,
+	        final String option, final String value) {
+		checkNotNull(value, "Argument 'value' must not be null");
+		final List<String> result = new ArrayList<String>();
+		for (final String mapName : mapsSetting(config, option)) {
+			if (value.equalsIgnoreCase(get(config, mapName, option))) {
+				result.add(mapName);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param config
+	 * @param mapName
+	 * @return Those {@link #STARTUP_OPTIONS} set for the map named
+	 *         <code>mapName</code>
+	 */
+	public static List<String> startupOptionsOf(final Config config,
+	        final String mapName) {
+		final List<String> result = new ArrayList<String>();
+		for (final String option : STARTUP_OPTIONS) {
+			if (get(config, mapName, option) != null) {
+				result.add(option);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copy all map options set in <code>source</code> to <code>target</code>.
+	 * 
+	 * @param source
+	 * @param target
+	 */
+	public static void copy(final Config source, final Config target) {
+		checkNotNull(source, "Argument 'source' must not be null");
+		checkNotNull(target, "Argument 'target' must not be null");
+		for (final String name : source.getProperties().stringPropertyNames()) {
+			if (name.startsWith(PREFIX)) {
+				target.setProperty(name, source.getProperty(name));
+			}
+		}
+	}
+
+	private MapOptions() {
+		// Not intended to be instantiated
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.w3c.dom.Document;
+
+import com.google.common.base.Charsets;
+import com.hazelcast.impl.Util;
+
+/**
+ * <p>
+ * The merged Hazelcast XML configuration, rendered once straight into a file
+ * instead of into {@link com.hazelcast.config.Config#setXmlConfig(String)
+ * Config's xmlConfig}. The text itself is only produced - decoded from a
+ * read-only memory mapping of that file - when somebody actually asks for it,
+ * e.g. via JMX.
+ * </p>
+ * <p>
+ * Note that {@link com.hazelcast.config.Config#getXmlConfig()} will return
+ * <code>null</code> when using this class. Hazelcast itself only reads it to
+ * answer Management Center requests.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+@ManagedResource(objectName = "com.obergner.hzserver:name=MergedXmlConfig", description = "The merged Hazelcast XML configuration")
+public class MergedXmlConfig {
+
+	private final File	               file;
+
+	private volatile MappedByteBuffer	mappedFile;
+
+	/**
+	 * @param file
+	 *            Where to render the merged configuration to
+	 */
+	public MergedXmlConfig(final File file) {
+		this.file = checkNotNull(file, "Argument 'file' must not be null");
+	}
+
+	/**
+	 * @return The file the merged configuration is rendered to
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	void render(final Document mergedConfig) throws IOException {
+		final OutputStream out = open();
+		try {
+			Util.streamXML(mergedConfig, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void render(final byte[] mergedConfig) throws IOException {
+		final OutputStream out = open();
+		try {
+			out.write(mergedConfig);
+		} finally {
+			out.close();
+		}
+	}
+
+	private OutputStream open() throws IOException {
+		final File parent = this.file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create directory [" + parent
+			        + "]");
+		}
+		this.mappedFile = null;
+		return new BufferedOutputStream(new FileOutputStream(this.file));
+	}
+
+	/**
+	 * @return The merged configuration's size in bytes, 0 if it has not yet
+	 *         been rendered
+	 */
+	@ManagedAttribute(description = "The merged configuration's size in bytes")
+	public long getSizeInBytes() {
+		return this.file.length();
+	}
+
+	@ManagedAttribute(description = "The file the merged configuration has been rendered to")
+	public String getLocation() {
+		return this.file.getAbsolutePath();
+	}
+
+	/**
+	 * @return The merged configuration as text
+	 * @throws IOException
+	 */
+	public String getXmlConfig() throws IOException {
+		return Charsets.UTF_8.newDecoder().decode(mappedFile().duplicate())
+		        .toString();
+	}
+
+	/**
+	 * Exposes {@link #getXmlConfig()} via JMX. Not named like a getter, since
+	 * Spring's MBean assembler would otherwise treat it as an attribute's
+	 * accessor.
+	 * 
+	 * @return The merged configuration as text
+	 * @throws IOException
+	 */
+	@ManagedOperation(description = "Returns the merged configuration as text")
+	public String renderXmlConfig() throws IOException {
+		return getXmlConfig();
+	}
+
+	private MappedByteBuffer mappedFile() throws IOException {
+		MappedByteBuffer result = this.mappedFile;
+		if (result == null) {
+			final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				result = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+				        0, raf.length());
+			} finally {
+				// The mapping stays valid after closing its channel
+				raf.close();
+			}
+			this.mappedFile = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MergedXmlConfig@" + this.hashCode() + "[file: " + this.file
+		        + "]";
+	}
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * <p>
+ * Merges the distributed data structure definitions contained in an XML
+ * fragment file into a target {@link Document}, reading each fragment exactly
+ * once using StAX.
+ * </p>
+ * <p>
+ * Every {@link #DATA_STRUCTURE_ELEMENTS data structure element} that is a
+ * direct child of a <code>hazelcast</code> element is routed in a single pass.
+ * Within one fragment, routed elements are appended grouped by type in the
+ * order given by {@link #DATA_STRUCTURE_ELEMENTS}, i.e. all queues first, then
+ * all maps and so forth, thus yielding the same document the former XPath
+ * based merge produced.
+ * </p>
+ * <p>
+ * Direct children of a <code>hazelcast</code> element named
+ * {@link #MAP_OPTIONS_ELEMENT} are not appended anywhere, since Hazelcast
+ * does not know about them. They are merely collected, to be turned into
+ * {@link MapOptions} by the caller.
+ * </p>
+ * <p>
+ * Instances are thread safe. Since StAX does not guarantee an
+ * {@link XMLInputFactory} to be, each thread reading fragments uses an
+ * {@link XMLInputFactory} of its own.
+ * </p>
+ *
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ *
+ */
+final class StreamingFragmentMerger {
+
+	static final List<String>	 DATA_STRUCTURE_ELEMENTS	= Collections
+	                                                         .unmodifiableList(Arrays
+	                                                                 .asList("queue",
+	                                                                         "map",
+	                                                                         "multimap",
+	                                                                         "topic",
+	                                                                         "semaphore"));
+
+	static final String	         MAP_OPTIONS_ELEMENT	 = "map-options";
+
+	private static final String	 HAZELCAST_ELEMENT	     = "hazelcast";
+
+	private final ThreadLocal<XMLInputFactory>	inputFactories;
+
+	StreamingFragmentMerger() {
+		this.inputFactories = new ThreadLocal<XMLInputFactory>() {
+			@Override
+			protected XMLInputFactory initialValue() {
+				return XMLInputFactory.newInstance();
+			}
+		};
+	}
+
+	/**
+	 * Append all data structure definitions contained in
+	 * <code>fragmentFile</code> to <code>parentNode</code>.
+	 *
+	 * @param fragmentFile
+	 * @param parentNode
+	 * @return The number of data structure definitions appended
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	int merge(final File fragmentFile, final Node parentNode)
+	        throws IOException, XMLStreamException {
+		checkNotNull(fragmentFile, "Argument 'fragmentFile' must not be null");
+		return merge(DataFile.of(fragmentFile), parentNode);
+	}
+
+	/**
+	 * Append all data structure definitions contained in
+	 * <code>fragmentFile</code> to <code>parentNode</code>.
+	 *
+	 * @param fragmentFile
+	 * @param parentNode
+	 * @return The number of data structure definitions appended
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	int merge(final DataFile fragmentFile, final Node parentNode)
+	        throws IOException, XMLStreamException {
+		checkNotNull(parentNode, "Argument 'parentNode' must not be null");
+		return append(read(fragmentFile, parentNode.getOwnerDocument()),
+		        parentNode);
+	}
+
+	/**
+	 * Append all data structure definitions contained in the XML fragment read
+	 * from <code>fragmentStream</code> to <code>parentNode</code>. Does
+	 * <strong>not</strong> close <code>fragmentStream</code>.
+	 *
+	 * @param fragmentStream
+	 * @param parentNode
+	 * @return The number of data structure definitions appended
+	 * @throws XMLStreamException
+	 */
+	int merge(final InputStream fragmentStream, final Node parentNode)
+	        throws XMLStreamException {
+		checkNotNull(parentNode, "Argument 'parentNode' must not be null");
+		return append(read(fragmentStream, parentNode.getOwnerDocument()),
+		        parentNode);
+	}
+
+	/**
+	 * Read all data structure definitions contained in
+	 * <code>fragmentFile</code> into {@link Element}s owned by
+	 * <code>ownerDocument</code>, <strong>without</strong> appending them
+	 * anywhere. Safe to call concurrently as long as each thread uses its own
+	 * <code>ownerDocument</code>.
+	 *
+	 * @param fragmentFile
+	 * @param ownerDocument
+	 * @return The {@link ParsedFragment} read, to be passed to
+	 *         {@link #append(ParsedFragment, Node)}
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	ParsedFragment read(final DataFile fragmentFile,
+	        final Document ownerDocument) throws IOException,
+	        XMLStreamException {
+		checkNotNull(fragmentFile, "Argument 'fragmentFile' must not be null");
+		final InputStream fragmentStream = fragmentFile.openStream();
+		try {
+			return read(fragmentStream, ownerDocument);
+		} finally {
+			fragmentStream.close();
+		}
+	}
+
+	/**
+	 * Append all data structure definitions contained in
+	 * <code>parsedFragment</code> to <code>parentNode</code>, adopting them into
+	 * <code>parentNode</code>'s owner document if necessary.
+	 *
+	 * @param parsedFragment
+	 * @param parentNode
+	 * @return The number of data structure definitions appended
+	 */
+	int append(final ParsedFragment parsedFragment, final Node parentNode) {
+		checkNotNull(parsedFragment,
+		        "Argument 'parsedFragment' must not be null");
+		checkNotNull(parentNode, "Argument 'parentNode' must not be null");
+		final Document targetDocument = parentNode.getOwnerDocument();
+
+		int appended = 0;
+		for (final List<Element> elementsOfType : parsedFragment.elementsByType
+		        .values()) {
+			for (final Element element : elementsOfType) {
+				parentNode
+				        .appendChild(element.getOwnerDocument() == targetDocument ? element
+				                : targetDocument.adoptNode(element));
+				appended++;
+			}
+		}
+		return appended;
+	}
+
+	private ParsedFragment read(final InputStream fragmentStream,
+	        final Document ownerDocument) throws XMLStreamException {
+		checkNotNull(fragmentStream,
+		        "Argument 'fragmentStream' must not be null");
+		checkNotNull(ownerDocument,
+		        "Argument 'ownerDocument' must not be null");
+		final ParsedFragment result = new ParsedFragment();
+
+		final XMLStreamReader reader = this.inputFactories.get()
+		        .createXMLStreamReader(fragmentStream);
+		try {
+			final LinkedList<String> openElements = new LinkedList<String>();
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if (HAZELCAST_ELEMENT.equals(openElements.peek())
+					        && result.elementsByType.containsKey(name)) {
+						result.elementsByType.get(name).add(
+						        readElement(reader, ownerDocument));
+					} else if (HAZELCAST_ELEMENT.equals(openElements.peek())
+					        && MAP_OPTIONS_ELEMENT.equals(name)) {
+						result.mapOptions.add(readElement(reader,
+						        ownerDocument));
+					} else {
+						openElements.push(name);
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					openElements.pop();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Build the element <code>reader</code> is currently positioned on,
+	 * including all its descendants, as a DOM {@link Element} owned by
+	 * <code>targetDocument</code>. Upon return <code>reader</code> is
+	 * positioned on the element's matching <code>END_ELEMENT</code>.
+	 */
+	private Element readElement(final XMLStreamReader reader,
+	        final Document targetDocument) throws XMLStreamException {
+		final Element root = createElement(reader, targetDocument);
+		Node current = root;
+		while (true) {
+			final int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				final Element child = createElement(reader, targetDocument);
+				current.appendChild(child);
+				current = child;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (current == root) {
+					return root;
+				}
+				current = current.getParentNode();
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				appendText(current, reader.getText(), targetDocument);
+				break;
+			case XMLStreamConstants.CDATA:
+				current.appendChild(targetDocument.createCDATASection(reader
+				        .getText()));
+				break;
+			case XMLStreamConstants.COMMENT:
+				current.appendChild(targetDocument.createComment(reader
+				        .getText()));
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				current.appendChild(targetDocument.createProcessingInstruction(
+				        reader.getPITarget(), reader.getPIData()));
+				break;
+			default:
+				// Nothing a DOM import would have preserved
+				break;
+			}
+		}
+	}
+
+	private Element createElement(final XMLStreamReader reader,
+	        final Document targetDocument) {
+		final Element result = targetDocument.createElement(qualifiedName(
+		        reader.getPrefix(), reader.getLocalName()));
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			final String prefix = reader.getNamespacePrefix(i);
+			result.setAttribute(isEmpty(prefix) ? "xmlns" : "xmlns:"
+			        + prefix, reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			result.setAttribute(
+			        qualifiedName(reader.getAttributePrefix(i),
+			                reader.getAttributeLocalName(i)),
+			        reader.getAttributeValue(i));
+		}
+		return result;
+	}
+
+	private void appendText(final Node parent, final String text,
+	        final Document targetDocument) {
+		final Node lastChild = parent.getLastChild();
+		if (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE) {
+			((Text) lastChild).appendData(text);
+		} else {
+			parent.appendChild(targetDocument.createTextNode(text));
+		}
+	}
+
+	private static String qualifiedName(final String prefix,
+	        final String localName) {
+		return isEmpty(prefix) ? localName : prefix + ":" + localName;
+	}
+
+	private static boolean isEmpty(final String s) {
+		return s == null || s.length() == 0;
+	}
+
+	/**
+	 * <p>
+	 * The data structure definitions read from a single fragment, grouped by
+	 * type in the order given by {@link #DATA_STRUCTURE_ELEMENTS}, plus its
+	 * {@link #MAP_OPTIONS_ELEMENT map options}.
+	 * </p>
+	 */
+	static final class ParsedFragment {
+
+		private final Map<String, List<Element>>	elementsByType	= new LinkedHashMap<String, List<Element>>();
+
+		private final List<Element>		         mapOptions		= new ArrayList<Element>();
+
+		ParsedFragment() {
+			for (final String elementName : DATA_STRUCTURE_ELEMENTS) {
+				this.elementsByType.put(elementName, new ArrayList<Element>());
+			}
+		}
+
+		/**
+		 * @param type
+		 *            One of {@link #DATA_STRUCTURE_ELEMENTS}
+		 * @return The names of all data structures of type <code>type</code>
+		 *         read, in document order
+		 */
+		List<String> namesOf(final String type) {
+			final List<String> result = new ArrayList<String>();
+			for (final Element element : this.elementsByType.get(type)) {
+				result.add(element.getAttribute("name"));
+			}
+			return result;
+		}
+
+		/**
+		 * @return All {@link #MAP_OPTIONS_ELEMENT map options} elements read,
+		 *         in document order
+		 */
+		List<Element> mapOptions() {
+			return Collections.unmodifiableList(this.mapOptions);
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StreamingFragmentMerger@" + this.hashCode()
+		        + "[dataStructureElements: " + DATA_STRUCTURE_ELEMENTS + "]";
+	}
+}
@@ -0,0 +1,1127 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.obergner.hzserver.HazelcastSerialization;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * An append-only log of all mutations of entries owned by the local member,
+ * in all maps that opt in via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map-options name="sequence"&gt;
+ *     &lt;change-log&gt;true&lt;/change-log&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * so that writes made since the last snapshot taken by {@link MapSnapshotter}
+ * survive a full cluster restart, too.
+ * </p>
+ * <p>
+ * Local entry listeners hand each mutation as a {@link ChangeLogRecord},
+ * stamped with the cluster time it is logged at, to a bounded queue. They run
+ * on Hazelcast's event threads and must therefore never block: once that
+ * queue is full, records are dropped and counted instead, and the active
+ * segment is marked as missing records of the affected map. The same holds
+ * for all records of a group commit that fails to be written, after which
+ * the writer truncates whatever part of it made it into the active segment
+ * and rolls over to a fresh one. Replaying skips
+ * a map for as long as any segment is marked so, since an incomplete log
+ * might bring back stale values. Such a mark is dropped along with the
+ * records of that segment once a snapshot covers that map. A dedicated
+ * writer thread drains
+ * that queue, appends everything it drained to the active segment file and
+ * forces it to disk once per such group commit. Segments are rolled once
+ * they exceed {@link #setSegmentSizeBytes(long) segmentSizeBytes} and
+ * whenever a snapshot is taken, after which all records preceding it are
+ * dropped for maps covered by that snapshot. In between, sealed segments are
+ * compacted in the background, keeping only the latest record per key.
+ * Evictions are not logged, since evicting an entry frees memory rather than
+ * deleting data.
+ * </p>
+ * <p>
+ * Replaying restores the latest record per key via {@link RestoredVersions},
+ * so that across all members the value logged last wins, removals included,
+ * while entries written since the cluster was formed are kept. Puts are
+ * restored with whatever is left of their map's time to live.
+ * </p>
+ * <p>
+ * Publishes histograms <code>write-latency-micros</code> - from a mutation
+ * being queued to it being on disk - and <code>group-commit-size</code>,
+ * meters <code>appended-records</code> and <code>dropped-records</code> and
+ * gauges <code>queued-records</code>,
+ * <code>segment-count</code> and <code>log-bytes</code>.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class ChangeLog {
+
+	static final String	                  SEGMENT_SUFFIX	           = ".log";
+
+	private static final String	          COMPACTED_SUFFIX	           = ".compacted";
+
+	private static final String	          INCOMPLETE_SUFFIX	           = ".incomplete";
+
+	private final Logger	              log	                       = LoggerFactory
+	                                                                           .getLogger(getClass());
+
+	private final File	                  directory;
+
+	private final Histogram	              writeLatency;
+
+	private final Histogram	              groupCommitSize;
+
+	private final Meter	                  appendedRecords;
+
+	private final Meter	                  droppedRecords;
+
+	private final AtomicBoolean	          dropping	                   = new AtomicBoolean();
+
+	private final Object	              segmentLock	               = new Object();
+
+	private final Object	              compactionLock	           = new Object();
+
+	private final List<MapChanges>	      mapChanges	               = new ArrayList<MapChanges>();
+
+	private final Set<String>	          incompleteMaps	           = new CopyOnWriteArraySet<String>();
+
+	private long	                      segmentSizeBytes	           = 64L * 1024L * 1024L;
+
+	private int	                          maxGroupCommitSize	       = 1000;
+
+	private int	                          queueCapacity	               = 100000;
+
+	private long	                      compactionIntervalSeconds	   = 600L;
+
+	private volatile BlockingQueue<PendingRecord>	queue;
+
+	private volatile boolean	          running;
+
+	private ExecutorService	              writer;
+
+	private ScheduledExecutorService	  compactor;
+
+	private FileChannel	                  activeSegment;
+
+	private long	                      activeSequence;
+
+	/**
+	 * Whether the active segment's marker lacks some of
+	 * {@link #incompleteMaps}, since writing it failed.
+	 */
+	private volatile boolean	          markerPending;
+
+	/**
+	 * @param directory
+	 *            Where to store log segments
+	 * @param metricsRegistry
+	 */
+	public ChangeLog(final File directory, final MetricsRegistry metricsRegistry) {
+		this.directory = checkNotNull(directory,
+		        "Argument 'directory' must not be null");
+		checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		this.writeLatency = metricsRegistry.newHistogram(getClass(),
+		        "write-latency-micros", true);
+		this.groupCommitSize = metricsRegistry.newHistogram(getClass(),
+		        "group-commit-size", false);
+		this.appendedRecords = metricsRegistry.newMeter(getClass(),
+		        "appended-records", "records", TimeUnit.SECONDS);
+		this.droppedRecords = metricsRegistry.newMeter(getClass(),
+		        "dropped-records", "records", TimeUnit.SECONDS);
+		metricsRegistry.newGauge(getClass(), "queued-records",
+		        new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        final BlockingQueue<PendingRecord> current = ChangeLog.this.queue;
+				        return current != null ? current.size() : 0;
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "segment-count",
+		        new Gauge<Integer>() {
+			        @Override
+			        public Integer value() {
+				        return segments().size();
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "log-bytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				long result = 0;
+				for (final File segment : segments().values()) {
+					result += segment.length();
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * @param segmentSizeBytes
+	 *            The size beyond which to roll the active segment. Defaults to
+	 *            64 MB.
+	 */
+	public void setSegmentSizeBytes(final long segmentSizeBytes) {
+		checkArgument(segmentSizeBytes > 0,
+		        "Argument 'segmentSizeBytes' must be greater than 0: %s",
+		        segmentSizeBytes);
+		this.segmentSizeBytes = segmentSizeBytes;
+	}
+
+	/**
+	 * @param maxGroupCommitSize
+	 *            The maximum number of records to force to disk at once.
+	 *            Defaults to 1000.
+	 */
+	public void setMaxGroupCommitSize(final int maxGroupCommitSize) {
+		checkArgument(maxGroupCommitSize > 0,
+		        "Argument 'maxGroupCommitSize' must be greater than 0: %s",
+		        maxGroupCommitSize);
+		this.maxGroupCommitSize = maxGroupCommitSize;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            How many records may wait for being written before further
+	 *            records are dropped, marking this log incomplete. Defaults to
+	 *            100000.
+	 */
+	public void setQueueCapacity(final int queueCapacity) {
+		checkArgument(queueCapacity > 0,
+		        "Argument 'queueCapacity' must be greater than 0: %s",
+		        queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param compactionIntervalSeconds
+	 *            How often to compact sealed segments, <code>0</code>
+	 *            meaning never. Defaults to 10 minutes.
+	 */
+	public void setCompactionIntervalSeconds(
+	        final long compactionIntervalSeconds) {
+		checkArgument(compactionIntervalSeconds >= 0,
+		        "Argument 'compactionIntervalSeconds' must not be negative: %s",
+		        compactionIntervalSeconds);
+		this.compactionIntervalSeconds = compactionIntervalSeconds;
+	}
+
+	// ------------------------------------------------------------------------
+	// Replay
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Restore the entries recorded in this log in those of
+	 * <code>mapNames</code> in <code>hazelcastInstance</code>, unless newer
+	 * versions of them have already been restored or written. Must be called
+	 * before {@link #start(HazelcastInstance)}.
+	 * 
+	 * @param hazelcastInstance
+	 * @param mapNames
+	 * @return The number of entries restored
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long replay(final HazelcastInstance hazelcastInstance,
+	        final Collection<String> mapNames) throws IOException,
+	        InterruptedException {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		return apply(hazelcastInstance, read(mapNames), new RestoredVersions(
+		        hazelcastInstance, RestoredVersions.MAX_RESTORE_SECONDS));
+	}
+
+	/**
+	 * Read all records in this log belonging to one of <code>mapNames</code>,
+	 * keeping only the latest record per key. Maps this log is missing records
+	 * of are skipped. Must be called before {@link #start(HazelcastInstance)}.
+	 * 
+	 * @param mapNames
+	 * @return Each map's latest record per key
+	 * @throws IOException
+	 */
+	Map<String, Map<Object, ChangeLogRecord>> read(
+	        final Collection<String> mapNames) throws IOException {
+		checkNotNull(mapNames, "Argument 'mapNames' must not be null");
+		checkState(!isRunning(), "Cannot read while running: %s", this);
+		final Map<String, Map<Object, ChangeLogRecord>> latestByMap = new HashMap<String, Map<Object, ChangeLogRecord>>();
+		if (mapNames.isEmpty()) {
+			return latestByMap;
+		}
+		final Set<String> incomplete = new HashSet<String>();
+		for (final File marker : files(INCOMPLETE_SUFFIX).values()) {
+			incomplete.addAll(readIncomplete(marker));
+		}
+		for (final String mapName : mapNames) {
+			if (incomplete.contains(mapName)) {
+				this.log.error(
+				        "Change log is missing records of map [{}] dropped while its queue was full or lost to a failed write - not replaying it",
+				        mapName);
+			}
+		}
+		for (final File segment : segments().values()) {
+			final boolean complete = ChangeLogRecord.readAll(segment,
+			        new ChangeLogRecord.Handler() {
+				        @Override
+				        public void handle(final ChangeLogRecord record) {
+					        if (!mapNames.contains(record.getMapName())
+					                || incomplete.contains(record.getMapName())) {
+						        return;
+					        }
+					        Map<Object, ChangeLogRecord> latest = latestByMap
+					                .get(record.getMapName());
+					        if (latest == null) {
+						        latest = new HashMap<Object, ChangeLogRecord>();
+						        latestByMap.put(record.getMapName(), latest);
+					        }
+					        latest.put(HazelcastSerialization.fromBytes(record
+					                .getKey()), record);
+				        }
+			        });
+			if (!complete) {
+				this.log.warn(
+				        "Change log segment [{}] ends in a torn record - read all records preceding it",
+				        segment);
+			}
+		}
+		return latestByMap;
+	}
+
+	/**
+	 * Move all records in this log aside into the subdirectory
+	 * <code>discardedName</code>, as when joining a running cluster whose
+	 * entries supersede them. Must be called before
+	 * {@link #start(HazelcastInstance)}.
+	 * 
+	 * @param discardedName
+	 * @throws IOException
+	 */
+	void discard(final String discardedName) throws IOException {
+		checkNotNull(discardedName,
+		        "Argument 'discardedName' must not be null");
+		checkState(!isRunning(), "Cannot discard while running: %s", this);
+		synchronized (this.compactionLock) {
+			final List<File> discardedFiles = new ArrayList<File>(segments()
+			        .values());
+			discardedFiles.addAll(files(INCOMPLETE_SUFFIX).values());
+			if (discardedFiles.isEmpty()) {
+				return;
+			}
+			final File discarded = new File(this.directory, discardedName);
+			if (!discarded.isDirectory() && !discarded.mkdirs()) {
+				throw new IOException("Failed to create directory ["
+				        + discarded + "]");
+			}
+			for (final File file : discardedFiles) {
+				final File target = new File(discarded, file.getName());
+				if (!file.renameTo(target)) {
+					throw new IOException("Failed to rename [" + file
+					        + "] to [" + target + "]");
+				}
+			}
+			this.log.warn("Moved change log aside to [{}] - delete it once no longer needed",
+			        discarded);
+		}
+	}
+
+	/**
+	 * Restore each record in <code>latestByMap</code>, as returned by
+	 * {@link #read(Collection)}, via <code>restoredVersions</code>.
+	 * 
+	 * @param hazelcastInstance
+	 * @param latestByMap
+	 * @param restoredVersions
+	 * @return The number of entries restored
+	 * @throws InterruptedException
+	 */
+	long apply(final HazelcastInstance hazelcastInstance,
+	        final Map<String, Map<Object, ChangeLogRecord>> latestByMap,
+	        final RestoredVersions restoredVersions)
+	        throws InterruptedException {
+		long result = 0;
+		for (final Map.Entry<String, Map<Object, ChangeLogRecord>> latest : latestByMap
+		        .entrySet()) {
+			final IMap<Object, Object> map = hazelcastInstance.getMap(latest
+			        .getKey());
+			final long timeToLiveMillis = TimeUnit.SECONDS
+			        .toMillis(MapOptions.timeToLiveSecondsOf(
+			                hazelcastInstance.getConfig(), latest.getKey()));
+			final List<RestoredVersions.Candidate> candidates = new ArrayList<RestoredVersions.Candidate>(
+			        latest.getValue().size());
+			for (final Map.Entry<Object, ChangeLogRecord> entry : latest
+			        .getValue().entrySet()) {
+				final ChangeLogRecord record = entry.getValue();
+				final long expirationTime = timeToLiveMillis > 0 ? record
+				        .getTimestamp() + timeToLiveMillis
+				        : SnapshotSegment.NO_EXPIRATION;
+				candidates.add(new RestoredVersions.Candidate(entry.getKey(),
+				        record.getKey(), record.isRemove() ? null : record
+				                .getValue(), record.getTimestamp(),
+				        expirationTime));
+			}
+			try {
+				result += restoredVersions.restore(map, candidates,
+				        hazelcastInstance.getCluster().getClusterTime());
+			} catch (final ExecutionException e) {
+				this.log.error("Failed to restore change log records of map ["
+				        + latest.getKey() + "]: " + e.getCause().getMessage(),
+				        e.getCause());
+			}
+		}
+		this.log.info("Restored [{}] entries from change log to maps {}",
+		        result, latestByMap.keySet());
+		return result;
+	}
+
+	// ------------------------------------------------------------------------
+	// Append
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Start logging all mutations of maps configured in
+	 * <code>hazelcastInstance</code> that opt in to this change log, to a new
+	 * segment.
+	 * 
+	 * @param hazelcastInstance
+	 * @throws IOException
+	 *             If no new segment can be created
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance)
+	        throws IOException {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(!this.running, "%s has already been started", this);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Failed to create directory ["
+			        + this.directory + "]");
+		}
+		synchronized (this.segmentLock) {
+			// Never append to a segment we may have crashed writing
+			openSegment(nextSequence());
+		}
+		this.queue = new ArrayBlockingQueue<PendingRecord>(this.queueCapacity);
+		this.running = true;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+		        .setNameFormat("hz-server-change-log-writer-%d")
+		        .setDaemon(true).build());
+		this.writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+		if (this.compactionIntervalSeconds > 0) {
+			this.compactor = Executors
+			        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			                .setNameFormat("hz-server-change-log-compaction-%d")
+			                .setDaemon(true).build());
+			this.compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (final IOException e) {
+						ChangeLog.this.log.error(
+						        "Failed to compact change log: "
+						                + e.getMessage(), e);
+					}
+				}
+			}, this.compactionIntervalSeconds, this.compactionIntervalSeconds,
+			        TimeUnit.SECONDS);
+		}
+
+		for (final String mapName : loggedMapsIn(hazelcastInstance.getConfig())) {
+			final MapChanges changes = new MapChanges(
+			        hazelcastInstance.getMap(mapName),
+			        hazelcastInstance.getCluster());
+			changes.attach();
+			this.mapChanges.add(changes);
+			this.log.info("Logging changes to map [{}] in [{}]", mapName,
+			        this.directory);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Stop logging mutations, once all queued records have been written.
+	 */
+	public synchronized void stop() {
+		if (!this.running) {
+			return;
+		}
+		for (final MapChanges changes : this.mapChanges) {
+			changes.detach();
+		}
+		this.mapChanges.clear();
+		if (this.compactor != null) {
+			this.compactor.shutdownNow();
+			this.compactor = null;
+		}
+		this.running = false;
+		this.writer.shutdown();
+		try {
+			if (!this.writer.awaitTermination(30, TimeUnit.SECONDS)) {
+				this.log.warn(
+				        "Timed out waiting for [{}] queued records to be written",
+				        this.queue.size());
+				this.writer.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.writer.shutdownNow();
+		}
+		this.writer = null;
+		synchronized (this.segmentLock) {
+			closeActiveSegment();
+		}
+	}
+
+	void append(final ChangeLogRecord record) {
+		final BlockingQueue<PendingRecord> current = this.queue;
+		if (!this.running || current == null) {
+			return;
+		}
+		if (current.offer(new PendingRecord(record.getMapName(), record
+		        .encode(), System.nanoTime()))) {
+			if (this.dropping.compareAndSet(true, false)) {
+				this.log.info("Change log queue has room again - resumed logging changes");
+			}
+			return;
+		}
+		this.droppedRecords.mark();
+		markIncomplete(record.getMapName());
+		if (this.dropping.compareAndSet(false, true)) {
+			this.log.warn("Change log queue is full - dropping records until it has room again, maps missing records will not be replayed until a snapshot covers them");
+		}
+	}
+
+	private void markIncomplete(final String mapName) {
+		if (this.incompleteMaps.contains(mapName) && !this.markerPending) {
+			return;
+		}
+		synchronized (this.segmentLock) {
+			// Even if the active segment failed to open: its marker will be
+			// dropped along with it once a snapshot covers it
+			if (!this.incompleteMaps.add(mapName) && !this.markerPending) {
+				return;
+			}
+			writeMarker();
+		}
+	}
+
+	private void writeMarker() {
+		try {
+			writeIncomplete(markerOf(this.activeSequence), this.incompleteMaps);
+			this.markerPending = false;
+		} catch (final IOException e) {
+			this.markerPending = true;
+			this.log.error("Failed to mark change log segment ["
+			        + this.activeSequence + "] as missing records of maps "
+			        + this.incompleteMaps
+			        + " - will retry, replaying it may restore stale values: "
+			        + e.getMessage(), e);
+		}
+	}
+
+	private void writeLoop() {
+		final List<PendingRecord> batch = new ArrayList<PendingRecord>();
+		while (this.running || !this.queue.isEmpty()) {
+			try {
+				final PendingRecord first = this.queue.poll(100,
+				        TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				this.queue.drainTo(batch, this.maxGroupCommitSize - 1);
+				groupCommit(batch);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final RuntimeException e) {
+				// Never let the writer thread die, or nothing will be logged
+				this.log.error("Failed to append [" + batch.size()
+				        + "] records to change log - maps missing them will not be replayed until a snapshot covers them: "
+				        + e.getMessage(), e);
+				markIncomplete(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void groupCommit(final List<PendingRecord> batch) {
+		synchronized (this.segmentLock) {
+			long batchStart = -1L;
+			try {
+				if (this.activeSegment == null) {
+					// Failed to open it before - retry
+					openActiveSegment();
+				}
+				batchStart = this.activeSegment.position();
+				for (final PendingRecord pending : batch) {
+					final ByteBuffer buffer = ByteBuffer.wrap(pending.bytes);
+					while (buffer.hasRemaining()) {
+						this.activeSegment.write(buffer);
+					}
+				}
+				this.activeSegment.force(false);
+			} catch (final IOException e) {
+				this.log.error("Failed to append [" + batch.size()
+				        + "] records to change log segment ["
+				        + this.activeSequence
+				        + "] - maps missing them will not be replayed until a snapshot covers them: "
+				        + e.getMessage(), e);
+				markIncomplete(batch);
+				if (this.activeSegment != null) {
+					abandonActiveSegment(batchStart);
+				}
+				return;
+			}
+			rollIfFull();
+		}
+		final long now = System.nanoTime();
+		for (final PendingRecord pending : batch) {
+			this.writeLatency.update(TimeUnit.NANOSECONDS.toMicros(now
+			        - pending.enqueuedNanos));
+		}
+		this.groupCommitSize.update(batch.size());
+		this.appendedRecords.mark(batch.size());
+	}
+
+	// ------------------------------------------------------------------------
+	// Segments
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Seal the active segment, if any, so that all records appended so far
+	 * precede the returned sequence number.
+	 * 
+	 * @return The sequence number of the first segment holding records
+	 *         appended after this call
+	 * @throws IOException
+	 */
+	long roll() throws IOException {
+		synchronized (this.segmentLock) {
+			if (this.activeSegment == null && this.running) {
+				// Failed to open the active segment: skip past it, so that
+				// its marker is dropped once the snapshot about to be taken
+				// covers the records lost meanwhile
+				advanceTo(Math.max(nextSequence(), this.activeSequence + 1));
+				return this.activeSequence;
+			}
+			if (this.activeSegment == null) {
+				return nextSequence();
+			}
+			rollActiveSegment();
+			return this.activeSequence;
+		}
+	}
+
+	/**
+	 * Drop all records of <code>mapNames</code> from segments preceding
+	 * <code>beforeSequence</code>, since a snapshot covers them.
+	 * 
+	 * @param beforeSequence
+	 * @param mapNames
+	 * @throws IOException
+	 */
+	void truncate(final long beforeSequence, final Set<String> mapNames)
+	        throws IOException {
+		synchronized (this.compactionLock) {
+			for (final Map.Entry<Long, File> segment : segments().headMap(
+			        Long.valueOf(beforeSequence)).entrySet()) {
+				final List<ChangeLogRecord> retained = new ArrayList<ChangeLogRecord>();
+				ChangeLogRecord.readAll(segment.getValue(),
+				        new ChangeLogRecord.Handler() {
+					        @Override
+					        public void handle(final ChangeLogRecord record) {
+						        if (!mapNames.contains(record.getMapName())) {
+							        retained.add(record);
+						        }
+					        }
+				        });
+				if (retained.isEmpty()) {
+					delete(segment.getValue());
+				} else {
+					rewrite(segment.getValue(), retained);
+				}
+			}
+			for (final Map.Entry<Long, File> marker : files(INCOMPLETE_SUFFIX)
+			        .headMap(Long.valueOf(beforeSequence)).entrySet()) {
+				final Set<String> incomplete = readIncomplete(marker.getValue());
+				incomplete.removeAll(mapNames);
+				if (incomplete.isEmpty()) {
+					delete(marker.getValue());
+				} else {
+					writeIncomplete(marker.getValue(), incomplete);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge all sealed segments into the latest of them, keeping only the
+	 * latest record per map and key.
+	 * 
+	 * @throws IOException
+	 */
+	void compact() throws IOException {
+		synchronized (this.compactionLock) {
+			final SortedMap<Long, File> sealed;
+			synchronized (this.segmentLock) {
+				sealed = this.activeSegment != null ? segments().headMap(
+				        Long.valueOf(this.activeSequence)) : segments();
+			}
+			if (sealed.size() < 2) {
+				return;
+			}
+			final Map<RecordKey, ChangeLogRecord> latest = new LinkedHashMap<RecordKey, ChangeLogRecord>();
+			long before = 0;
+			for (final File segment : sealed.values()) {
+				before += segment.length();
+				ChangeLogRecord.readAll(segment, new ChangeLogRecord.Handler() {
+					@Override
+					public void handle(final ChangeLogRecord record) {
+						final RecordKey key = new RecordKey(record);
+						latest.remove(key);
+						latest.put(key, record);
+					}
+				});
+			}
+			// Replacing the latest segment first keeps the log valid should
+			// we crash before all older segments have been deleted
+			final File target = sealed.get(sealed.lastKey());
+			final SortedMap<Long, File> markers = files(INCOMPLETE_SUFFIX)
+			        .headMap(Long.valueOf(sealed.lastKey().longValue() + 1L));
+			if (!markers.isEmpty()) {
+				final Set<String> incomplete = new HashSet<String>();
+				for (final File marker : markers.values()) {
+					incomplete.addAll(readIncomplete(marker));
+				}
+				writeIncomplete(markerOf(sealed.lastKey().longValue()),
+				        incomplete);
+			}
+			rewrite(target, latest.values());
+			for (final File segment : sealed.headMap(sealed.lastKey()).values()) {
+				delete(segment);
+			}
+			for (final File marker : markers.headMap(sealed.lastKey())
+			        .values()) {
+				delete(marker);
+			}
+			this.log.info(
+			        "Compacted [{}] change log segments from [{}] to [{}] bytes",
+			        new Object[] { sealed.size(), before, target.length() });
+		}
+	}
+
+	private void rewrite(final File segment,
+	        final Collection<ChangeLogRecord> records) throws IOException {
+		final File compacted = new File(segment.getPath() + COMPACTED_SUFFIX);
+		final FileOutputStream out = new FileOutputStream(compacted);
+		try {
+			for (final ChangeLogRecord record : records) {
+				out.write(record.encode());
+			}
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		if (!compacted.renameTo(segment)) {
+			throw new IOException("Failed to rename [" + compacted + "] to ["
+			        + segment + "]");
+		}
+	}
+
+	private void delete(final File segment) throws IOException {
+		if (!segment.delete()) {
+			throw new IOException("Failed to delete [" + segment + "]");
+		}
+	}
+
+	/**
+	 * @return All segments by sequence number, in ascending order
+	 */
+	SortedMap<Long, File> segments() {
+		return files(SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return All segments marked as missing records, by sequence number, in
+	 *         ascending order
+	 */
+	SortedMap<Long, File> incompleteSegments() {
+		return files(INCOMPLETE_SUFFIX);
+	}
+
+	private SortedMap<Long, File> files(final String suffix) {
+		final SortedMap<Long, File> result = new TreeMap<Long, File>();
+		final File[] files = this.directory.listFiles();
+		if (files == null) {
+			return result;
+		}
+		for (final File file : files) {
+			final String name = file.getName();
+			if (!name.endsWith(suffix)) {
+				continue;
+			}
+			try {
+				result.put(Long.valueOf(name.substring(0, name.length()
+				        - suffix.length())), file);
+			} catch (final NumberFormatException e) {
+				this.log.warn("Ignoring unexpected file [{}] in change log",
+				        file);
+			}
+		}
+		return result;
+	}
+
+	private long nextSequence() {
+		final SortedMap<Long, File> existing = segments();
+		return existing.isEmpty() ? 1L : existing.lastKey().longValue() + 1L;
+	}
+
+	private void markIncomplete(final List<PendingRecord> batch) {
+		for (final PendingRecord pending : batch) {
+			markIncomplete(pending.mapName);
+		}
+	}
+
+	private void rollIfFull() {
+		try {
+			if (this.activeSegment.position() >= this.segmentSizeBytes) {
+				rollActiveSegment();
+			}
+		} catch (final IOException e) {
+			this.log.error("Failed to roll change log segment ["
+			        + this.activeSequence + "] - will retry on next append: "
+			        + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Drop whatever part of a failed group commit starting at
+	 * <code>batchStart</code> made it into the active segment, so that
+	 * replaying does not stop at a torn record, and roll over to a fresh
+	 * segment.
+	 */
+	private void abandonActiveSegment(final long batchStart) {
+		if (batchStart >= 0) {
+			try {
+				this.activeSegment.truncate(batchStart);
+			} catch (final IOException e) {
+				this.log.warn("Failed to truncate change log segment ["
+				        + this.activeSequence + "] to [" + batchStart
+				        + "] bytes - replaying it will stop at a torn record: "
+				        + e.getMessage(), e);
+			}
+		}
+		try {
+			rollActiveSegment();
+		} catch (final IOException e) {
+			this.log.error("Failed to roll change log segment ["
+			        + this.activeSequence + "] - will retry on next append: "
+			        + e.getMessage(), e);
+		}
+	}
+
+	private void rollActiveSegment() throws IOException {
+		closeActiveSegment();
+		openSegment(this.activeSequence + 1);
+	}
+
+	/**
+	 * Make <code>sequence</code> the active segment and open it. Should
+	 * opening it fail, the next group commit retries.
+	 */
+	private void openSegment(final long sequence) throws IOException {
+		advanceTo(sequence);
+		openActiveSegment();
+	}
+
+	private void advanceTo(final long sequence) {
+		if (!this.markerPending) {
+			this.incompleteMaps.clear();
+		}
+		// Otherwise, carry over what we failed to mark to the new segment
+		this.activeSequence = sequence;
+	}
+
+	private void openActiveSegment() throws IOException {
+		final File segment = new File(this.directory, String.format(
+		        "%020d%s", this.activeSequence, SEGMENT_SUFFIX));
+		final FileChannel channel = new RandomAccessFile(segment, "rw")
+		        .getChannel();
+		channel.position(channel.size());
+		this.activeSegment = channel;
+		if (this.markerPending) {
+			writeMarker();
+		}
+	}
+
+	private void closeActiveSegment() {
+		if (this.activeSegment == null) {
+			return;
+		}
+		try {
+			this.activeSegment.force(true);
+			this.activeSegment.close();
+		} catch (final IOException e) {
+			this.log.warn("Failed to close change log segment ["
+			        + this.activeSequence + "]: " + e.getMessage(), e);
+		}
+		this.activeSegment = null;
+	}
+
+	private File markerOf(final long sequence) {
+		return new File(this.directory, String.format("%020d%s", sequence,
+		        INCOMPLETE_SUFFIX));
+	}
+
+	private static Set<String> readIncomplete(final File marker)
+	        throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+		        marker));
+		try {
+			final Set<String> result = new HashSet<String>();
+			for (int i = in.readInt(); i > 0; i--) {
+				result.add(in.readUTF());
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeIncomplete(final File marker,
+	        final Set<String> mapNames) throws IOException {
+		final FileOutputStream file = new FileOutputStream(marker);
+		try {
+			final DataOutputStream out = new DataOutputStream(file);
+			out.writeInt(mapNames.size());
+			for (final String mapName : mapNames) {
+				out.writeUTF(mapName);
+			}
+			out.flush();
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Helpers
+	// ------------------------------------------------------------------------
+
+	static List<String> loggedMapsIn(final Config config) {
+		return MapOptions.mapsSelecting(config, MapOptions.CHANGE_LOG,
+		        Boolean.TRUE.toString());
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ChangeLog@" + this.hashCode() + "[directory: "
+		        + this.directory + "|segmentSizeBytes: "
+		        + this.segmentSizeBytes + "|maxGroupCommitSize: "
+		        + this.maxGroupCommitSize + "|running: " + this.running + "]";
+	}
+
+	private static final class PendingRecord {
+
+		final String	mapName;
+
+		final byte[]	bytes;
+
+		final long		enqueuedNanos;
+
+		PendingRecord(final String mapName, final byte[] bytes,
+		        final long enqueuedNanos) {
+			this.mapName = mapName;
+			this.bytes = bytes;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Identifies the entry a {@link ChangeLogRecord} mutates.
+	 * </p>
+	 */
+	private static final class RecordKey {
+
+		private final String	mapName;
+
+		private final byte[]	key;
+
+		private final int		hash;
+
+		RecordKey(final ChangeLogRecord record) {
+			this.mapName = record.getMapName();
+			this.key = record.getKey();
+			this.hash = 31 * this.mapName.hashCode() + Arrays.hashCode(this.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof RecordKey)) {
+				return false;
+			}
+			final RecordKey other = (RecordKey) obj;
+			return this.mapName.equals(other.mapName)
+			        && Arrays.equals(this.key, other.key);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Appends all mutations of entries of a single map owned by the local
+	 * member.
+	 * </p>
+	 */
+	private final class MapChanges implements EntryListener<Object, Object> {
+
+		private final IMap<Object, Object>	map;
+
+		private final Cluster		       cluster;
+
+		@SuppressWarnings("unchecked")
+		MapChanges(final IMap<?, ?> map, final Cluster cluster) {
+			this.map = (IMap<Object, Object>) map;
+			this.cluster = cluster;
+		}
+
+		void attach() {
+			this.map.addLocalEntryListener(this);
+		}
+
+		void detach() {
+			this.map.removeEntryListener(this);
+		}
+
+		@Override
+		public void entryAdded(final EntryEvent<Object, Object> event) {
+			put(event);
+		}
+
+		@Override
+		public void entryUpdated(final EntryEvent<Object, Object> event) {
+			put(event);
+		}
+
+		@Override
+		public void entryRemoved(final EntryEvent<Object, Object> event) {
+			remove(event);
+		}
+
+		@Override
+		public void entryEvicted(final EntryEvent<Object, Object> event) {
+			// Evicting an entry frees memory, it does not delete data
+		}
+
+		private void put(final EntryEvent<Object, Object> event) {
+			append(ChangeLogRecord.put(this.map.getName(),
+			        this.cluster.getClusterTime(),
+			        HazelcastSerialization.toBytes(event.getKey()),
+			        HazelcastSerialization.toBytes(event.getValue())));
+		}
+
+		private void remove(final EntryEvent<Object, Object> event) {
+			append(ChangeLogRecord.remove(this.map.getName(),
+			        this.cluster.getClusterTime(),
+			        HazelcastSerialization.toBytes(event.getKey())));
+		}
+
+		@Override
+		public String toString() {
+			return "MapChanges@" + this.hashCode() + "[map: "
+			        + this.map.getName() + "]";
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A single mutation of a map as recorded in a {@link ChangeLog} segment,
+ * framed as
+ * 
+ * <pre>
+ * body length (int) | CRC32 of body (int)
+ * body: operation (byte) | timestamp (long) | map name (UTF) | key length (int) | key | value length (int) | value
+ * </pre>
+ * 
+ * where timestamp is the cluster time the mutation was logged at, and removals
+ * carry a value of length <code>0</code>. Records written before timestamps
+ * were introduced lack that field and carry different operation codes; they
+ * are read as having been made at time <code>0</code>, i.e. before any other
+ * record.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class ChangeLogRecord {
+
+	static final byte	        PUT	             = 3;
+
+	static final byte	        REMOVE	         = 4;
+
+	private static final byte	UNTIMED_PUT	     = 1;
+
+	private static final byte	UNTIMED_REMOVE	 = 2;
+
+	private static final byte[]	NO_VALUE	     = new byte[0];
+
+	/**
+	 * <p>
+	 * Callback for {@link ChangeLogRecord#readAll(File, Handler)}.
+	 * </p>
+	 */
+	interface Handler {
+
+		void handle(ChangeLogRecord record) throws IOException;
+	}
+
+	static ChangeLogRecord put(final String mapName, final long timestamp,
+	        final byte[] key, final byte[] value) {
+		return new ChangeLogRecord(PUT, timestamp, mapName, key, value);
+	}
+
+	static ChangeLogRecord remove(final String mapName, final long timestamp,
+	        final byte[] key) {
+		return new ChangeLogRecord(REMOVE, timestamp, mapName, key, NO_VALUE);
+	}
+
+	private final byte	 operation;
+
+	private final long	 timestamp;
+
+	private final String	mapName;
+
+	private final byte[]	key;
+
+	private final byte[]	value;
+
+	private ChangeLogRecord(final byte operation, final long timestamp,
+	        final String mapName, final byte[] key, final byte[] value) {
+		checkArgument(operation == PUT || operation == REMOVE,
+		        "Unknown operation: %s", operation);
+		this.operation = operation;
+		this.timestamp = timestamp;
+		this.mapName = checkNotNull(mapName,
+		        "Argument 'mapName' must not be null");
+		this.key = checkNotNull(key, "Argument 'key' must not be null");
+		this.value = checkNotNull(value, "Argument 'value' must not be null");
+	}
+
+	boolean isRemove() {
+		return this.operation == REMOVE;
+	}
+
+	/**
+	 * @return The cluster time this record's mutation was logged at
+	 */
+	long getTimestamp() {
+		return this.timestamp;
+	}
+
+	String getMapName() {
+		return this.mapName;
+	}
+
+	byte[] getKey() {
+		return this.key;
+	}
+
+	byte[] getValue() {
+		return this.value;
+	}
+
+	/**
+	 * @return This record, framed for appending to a segment
+	 */
+	byte[] encode() {
+		try {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream(
+			        this.key.length + this.value.length + 32);
+			final DataOutputStream out = new DataOutputStream(body);
+			out.writeByte(this.operation);
+			out.writeLong(this.timestamp);
+			out.writeUTF(this.mapName);
+			out.writeInt(this.key.length);
+			out.write(this.key);
+			out.writeInt(this.value.length);
+			out.write(this.value);
+			out.flush();
+			final byte[] bodyBytes = body.toByteArray();
+
+			final ByteArrayOutputStream result = new ByteArrayOutputStream(
+			        bodyBytes.length + 8);
+			final DataOutputStream framed = new DataOutputStream(result);
+			framed.writeInt(bodyBytes.length);
+			framed.writeInt(checksumOf(bodyBytes));
+			framed.write(bodyBytes);
+			framed.flush();
+			return result.toByteArray();
+		} catch (final IOException e) {
+			// Cannot happen when writing to memory
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Read all records from <code>segment</code>, in the order they were
+	 * appended, stopping at the first torn or corrupt record, as left behind
+	 * when crashing while appending.
+	 * 
+	 * @param segment
+	 * @param handler
+	 * @return <code>true</code> if all of <code>segment</code> could be read,
+	 *         <code>false</code> if it ends in a torn or corrupt record
+	 * @throws IOException
+	 */
+	static boolean readAll(final File segment, final Handler handler)
+	        throws IOException {
+		final DataInputStream in = new DataInputStream(
+		        new BufferedInputStream(new FileInputStream(segment)));
+		try {
+			while (true) {
+				final int bodyLength;
+				try {
+					bodyLength = in.readInt();
+				} catch (final EOFException e) {
+					return true;
+				}
+				final ChangeLogRecord record = readBody(in, bodyLength);
+				if (record == null) {
+					return false;
+				}
+				handler.handle(record);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ChangeLogRecord readBody(final DataInputStream in,
+	        final int bodyLength) throws IOException {
+		try {
+			// For files, available() is the number of bytes left
+			if (bodyLength <= 0 || bodyLength > in.available() - 4) {
+				return null;
+			}
+			final int checksum = in.readInt();
+			final byte[] bodyBytes = new byte[bodyLength];
+			in.readFully(bodyBytes);
+			if (checksumOf(bodyBytes) != checksum) {
+				return null;
+			}
+			final DataInputStream body = new DataInputStream(
+			        new ByteArrayInputStream(bodyBytes));
+			final byte code = body.readByte();
+			final byte operation;
+			final long timestamp;
+			if (code == UNTIMED_PUT || code == UNTIMED_REMOVE) {
+				operation = code == UNTIMED_PUT ? PUT : REMOVE;
+				timestamp = 0L;
+			} else {
+				operation = code;
+				timestamp = body.readLong();
+			}
+			final String mapName = body.readUTF();
+			final byte[] key = new byte[body.readInt()];
+			body.readFully(key);
+			final byte[] value = new byte[body.readInt()];
+			body.readFully(value);
+			return new ChangeLogRecord(operation, timestamp, mapName, key,
+			        value);
+		} catch (final EOFException e) {
+			return null;
+		} catch (final RuntimeException e) {
+			// NegativeArraySizeException, unknown operation ...
+			return null;
+		}
+	}
+
+	private static int checksumOf(final byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ChangeLogRecord@" + this.hashCode() + "[operation: "
+		        + (isRemove() ? "REMOVE" : "PUT") + "|timestamp: "
+		        + this.timestamp + "|mapName: "
+		        + this.mapName + "|key: " + this.key.length + " bytes|value: "
+		        + this.value.length + " bytes]";
+	}
+}
@@ -0,0 +1,754 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.AtomicNumber;
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.HazelcastSerialization;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * <p>
+ * Snapshots the entries owned by the local member of all maps that opt in
+ * via their deploy fragment
+ * 
+ * <pre>
+ * &lt;map-options name="sequence"&gt;
+ *     &lt;snapshot&gt;true&lt;/snapshot&gt;
+ * &lt;/map-options&gt;
+ * </pre>
+ * 
+ * to local disk, periodically and when stopped, and restores them when our
+ * {@link HazelcastInstance} is started again, so that their contents survive
+ * a full cluster restart without a <code>MapStore</code>.
+ * </p>
+ * <p>
+ * Each snapshot writes one checksummed {@link SnapshotSegment} per map and
+ * owned partition into a fresh directory, and only replaces the previous
+ * snapshot once complete. Entries are written along with their expiration
+ * time, and restored with whatever time to live they had left.
+ * </p>
+ * <p>
+ * Only members forming a fresh cluster restore their snapshot: the first
+ * member to restore records the cluster time it did so at in a cluster-wide
+ * {@link AtomicNumber}, and members starting to restore within
+ * {@link #setRestoreWindowSeconds(long) restoreWindowSeconds} of that time
+ * restore theirs, too. Restoring loads all segments in parallel. Each segment
+ * records the cluster time its entries were read at, and every member
+ * restores its entries via {@link RestoredVersions}, so that of all versions
+ * of an entry held by any member's snapshot or {@link ChangeLog} the latest
+ * one wins, while entries written since the cluster was formed are kept. Upon
+ * a full cluster restart every member thus contributes the entries it owned,
+ * whichever member owns them now. A member joining the cluster later
+ * on - e.g. after having crashed - discards its snapshot instead, since the
+ * running cluster's entries are current and restoring would bring back
+ * entries removed while that member was gone. Discarded snapshots and
+ * change logs are moved aside into a directory named
+ * <code>discarded-&lt;timestamp&gt;</code> rather than deleted, so that a
+ * member that merely started too late to restore - see
+ * {@link #setRestoreWindowSeconds(long)} - does not lose the only copy of
+ * the entries it owned.
+ * </p>
+ * <p>
+ * Mutations made in between snapshots may be recorded in a
+ * {@link ChangeLog}, which is replayed on top of the latest snapshot.
+ * </p>
+ * <p>
+ * Size, duration and throughput of the last snapshot and restore are
+ * published as gauges.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public class MapSnapshotter {
+
+	static final String	             CURRENT	                = "current";
+
+	static final String	             PREVIOUS	                = "previous";
+
+	static final String	             IN_PROGRESS	            = "in-progress";
+
+	static final String	             DISCARDED_PREFIX	        = "discarded-";
+
+	static final String	             SEGMENT_SUFFIX	            = ".seg";
+
+	static final String	             RESTORE_STARTED_AT	        = "hz-server-snapshot-restore-started-at";
+
+	private static final String	     ENCODING	                = "UTF-8";
+
+	private static final double	     BYTES_PER_MB	            = 1024.0 * 1024.0;
+
+	private final Logger	         log	                    = LoggerFactory
+	                                                                    .getLogger(getClass());
+
+	private final File	             directory;
+
+	private final Object	         snapshotLock	            = new Object();
+
+	private long	                 snapshotIntervalSeconds	= 300L;
+
+	private int	                     restoreParallelism	        = Runtime
+	                                                                    .getRuntime()
+	                                                                    .availableProcessors();
+
+	private long	                 restoreWindowSeconds	    = 120L;
+
+	private ChangeLog	             changeLog;
+
+	private HazelcastInstance	     hazelcastInstance;
+
+	private ScheduledExecutorService	executor;
+
+	private volatile Throughput	     lastSnapshot	            = Throughput.NONE;
+
+	private volatile Throughput	     lastRestore	            = Throughput.NONE;
+
+	/**
+	 * @param directory
+	 *            Where to store snapshots
+	 * @param metricsRegistry
+	 */
+	public MapSnapshotter(final File directory,
+	        final MetricsRegistry metricsRegistry) {
+		this.directory = checkNotNull(directory,
+		        "Argument 'directory' must not be null");
+		checkNotNull(metricsRegistry,
+		        "Argument 'metricsRegistry' must not be null");
+		metricsRegistry.newGauge(getClass(), "last-snapshot-bytes",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return MapSnapshotter.this.lastSnapshot.bytes;
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "last-snapshot-duration-millis",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return MapSnapshotter.this.lastSnapshot.durationMillis;
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "last-snapshot-mb-per-second",
+		        new Gauge<Double>() {
+			        @Override
+			        public Double value() {
+				        return MapSnapshotter.this.lastSnapshot
+				                .megabytesPerSecond();
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "last-restore-bytes",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return MapSnapshotter.this.lastRestore.bytes;
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "last-restore-duration-millis",
+		        new Gauge<Long>() {
+			        @Override
+			        public Long value() {
+				        return MapSnapshotter.this.lastRestore.durationMillis;
+			        }
+		        });
+		metricsRegistry.newGauge(getClass(), "last-restore-mb-per-second",
+		        new Gauge<Double>() {
+			        @Override
+			        public Double value() {
+				        return MapSnapshotter.this.lastRestore
+				                .megabytesPerSecond();
+			        }
+		        });
+	}
+
+	/**
+	 * @param snapshotIntervalSeconds
+	 *            How often to take a snapshot while running, <code>0</code>
+	 *            meaning only when stopped. Defaults to 5 minutes.
+	 */
+	public void setSnapshotIntervalSeconds(final long snapshotIntervalSeconds) {
+		checkArgument(snapshotIntervalSeconds >= 0,
+		        "Argument 'snapshotIntervalSeconds' must not be negative: %s",
+		        snapshotIntervalSeconds);
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+	}
+
+	/**
+	 * @param restoreParallelism
+	 *            How many segments to restore concurrently. Defaults to the
+	 *            number of available processors.
+	 */
+	public void setRestoreParallelism(final int restoreParallelism) {
+		checkArgument(restoreParallelism > 0,
+		        "Argument 'restoreParallelism' must be greater than 0: %s",
+		        restoreParallelism);
+		this.restoreParallelism = restoreParallelism;
+	}
+
+	/**
+	 * @param restoreWindowSeconds
+	 *            For how long after the first member of a fresh cluster has
+	 *            started to restore its snapshot other members starting up
+	 *            restore theirs, too, rather than discarding them. Defaults to
+	 *            2 minutes. This must cover the time it takes the last member
+	 *            of a full cluster restart to start up and join, measured from
+	 *            the first member having joined: a member starting any later
+	 *            moves its snapshot and change log aside and starts empty,
+	 *            logging where they went. Their entries may then be recovered
+	 *            by moving them back and restarting the whole cluster.
+	 */
+	public void setRestoreWindowSeconds(final long restoreWindowSeconds) {
+		checkArgument(restoreWindowSeconds >= 0,
+		        "Argument 'restoreWindowSeconds' must not be negative: %s",
+		        restoreWindowSeconds);
+		this.restoreWindowSeconds = restoreWindowSeconds;
+	}
+
+	/**
+	 * @param changeLog
+	 *            Logs mutations made in between snapshots, to be replayed on
+	 *            top of the latest snapshot upon restore. Started and stopped
+	 *            along with us. Optional.
+	 */
+	public void setChangeLog(final ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	// ------------------------------------------------------------------------
+	// Restore
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Configure the maps {@link RestoredVersions} records the versions it
+	 * restores into, one per map opting in to snapshots or to our
+	 * {@link ChangeLog}, if any. Must be called before a
+	 * {@link HazelcastInstance} is created from <code>config</code>.
+	 * 
+	 * @param config
+	 */
+	public void prepare(final Config config) {
+		checkNotNull(config, "Argument 'config' must not be null");
+		final Set<String> persistentMaps = new LinkedHashSet<String>(
+		        snapshottedMapsIn(config));
+		if (this.changeLog != null) {
+			persistentMaps.addAll(ChangeLog.loggedMapsIn(config));
+		}
+		for (final String mapName : persistentMaps) {
+			RestoredVersions.prepare(config, mapName);
+		}
+	}
+
+	/**
+	 * If <code>hazelcastInstance</code> takes part in forming a fresh
+	 * cluster, load the latest snapshot into all maps configured in it that
+	 * opt in to snapshots, superseded by the changes recorded in our
+	 * {@link ChangeLog}, if any, unless newer versions have already been
+	 * restored or written, and return once all of that is done. Otherwise,
+	 * move our snapshot and change log aside.
+	 * 
+	 * @param hazelcastInstance
+	 * @throws InterruptedException
+	 */
+	public void restore(final HazelcastInstance hazelcastInstance)
+	        throws InterruptedException {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		if (!isFormingCluster(hazelcastInstance)) {
+			this.log.info("Joined a cluster that has been running for more than [{}] s - discarding snapshot and change log",
+			        this.restoreWindowSeconds);
+			discard();
+			return;
+		}
+		final Config config = hazelcastInstance.getConfig();
+		final Set<String> persistentMaps = new LinkedHashSet<String>(
+		        snapshottedMapsIn(config));
+		if (this.changeLog != null) {
+			persistentMaps.addAll(ChangeLog.loggedMapsIn(config));
+		}
+		Map<String, Map<Object, ChangeLogRecord>> changes = Collections
+		        .emptyMap();
+		if (this.changeLog != null) {
+			try {
+				changes = this.changeLog.read(persistentMaps);
+			} catch (final IOException e) {
+				this.log.error("Failed to read " + this.changeLog + ": "
+				        + e.getMessage(), e);
+			}
+		}
+
+		final RestoredVersions restoredVersions = new RestoredVersions(
+		        hazelcastInstance, this.restoreWindowSeconds
+		                + RestoredVersions.MAX_RESTORE_SECONDS);
+		final File snapshot = latestSnapshot();
+		if (snapshot != null) {
+			restoreSnapshot(snapshot, hazelcastInstance, persistentMaps,
+			        changes, restoredVersions);
+		} else {
+			this.log.info("No snapshot found in [{}]", this.directory);
+		}
+		if (this.changeLog != null) {
+			this.changeLog.apply(hazelcastInstance, changes, restoredVersions);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if no member of
+	 *         <code>hazelcastInstance</code>'s cluster has started to restore
+	 *         its snapshot yet, or the first one to do so started no longer
+	 *         than {@link #restoreWindowSeconds} ago
+	 */
+	private boolean isFormingCluster(final HazelcastInstance hazelcastInstance) {
+		final AtomicNumber restoreStartedAt = hazelcastInstance
+		        .getAtomicNumber(RESTORE_STARTED_AT);
+		final long now = hazelcastInstance.getCluster().getClusterTime();
+		if (restoreStartedAt.compareAndSet(0L, now)) {
+			return true;
+		}
+		return now - restoreStartedAt.get() <= TimeUnit.SECONDS
+		        .toMillis(this.restoreWindowSeconds);
+	}
+
+	private void discard() {
+		final String discardedName = DISCARDED_PREFIX
+		        + System.currentTimeMillis();
+		try {
+			final File discarded = new File(this.directory, discardedName);
+			for (final String name : new String[] { CURRENT, PREVIOUS }) {
+				final File snapshot = new File(this.directory, name);
+				if (snapshot.exists()) {
+					mkdirs(discarded);
+					rename(snapshot, new File(discarded, name));
+				}
+			}
+			if (discarded.exists()) {
+				this.log.warn("Moved snapshot aside to [{}] - delete it once no longer needed",
+				        discarded);
+			}
+			if (this.changeLog != null) {
+				this.changeLog.discard(discardedName);
+			}
+		} catch (final IOException e) {
+			this.log.error("Failed to discard snapshot in [" + this.directory
+			        + "]: " + e.getMessage(), e);
+		}
+	}
+
+	private void restoreSnapshot(final File snapshot,
+	        final HazelcastInstance hazelcastInstance,
+	        final Collection<String> mapNames,
+	        final Map<String, Map<Object, ChangeLogRecord>> changes,
+	        final RestoredVersions restoredVersions)
+	        throws InterruptedException {
+		final List<Callable<Long>> segmentLoads = new ArrayList<Callable<Long>>();
+		for (final String mapName : mapNames) {
+			final File mapDirectory = new File(snapshot, encode(mapName));
+			final File[] segments = mapDirectory.listFiles();
+			if (segments == null) {
+				continue;
+			}
+			final IMap<Object, Object> map = hazelcastInstance
+			        .getMap(mapName);
+			final Map<Object, ChangeLogRecord> changed = changes
+			        .containsKey(mapName) ? changes.get(mapName) : Collections
+			        .<Object, ChangeLogRecord> emptyMap();
+			final Cluster cluster = hazelcastInstance.getCluster();
+			for (final File segment : segments) {
+				if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+					segmentLoads.add(new Callable<Long>() {
+						@Override
+						public Long call() throws IOException,
+						        InterruptedException, ExecutionException {
+							return load(segment, map, changed, cluster,
+							        restoredVersions);
+						}
+					});
+				}
+			}
+		}
+		if (segmentLoads.isEmpty()) {
+			return;
+		}
+
+		this.log.info("Restoring [{}] segments from snapshot [{}] ...",
+		        segmentLoads.size(), snapshot);
+		final long start = System.nanoTime();
+		final ExecutorService restorers = Executors.newFixedThreadPool(
+		        this.restoreParallelism, new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-snapshot-restore-%d")
+		                .setDaemon(true).build());
+		long bytes = 0;
+		try {
+			for (final Future<Long> segmentLoad : restorers
+			        .invokeAll(segmentLoads)) {
+				try {
+					bytes += segmentLoad.get().longValue();
+				} catch (final ExecutionException e) {
+					this.log.error("Failed to restore segment: "
+					        + e.getCause().getMessage(), e.getCause());
+				}
+			}
+		} finally {
+			restorers.shutdownNow();
+		}
+		this.lastRestore = new Throughput(bytes,
+		        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		this.log.info("Restored snapshot [{}]: {}", snapshot, this.lastRestore);
+	}
+
+	private long load(final File segmentFile, final IMap<Object, Object> map,
+	        final Map<Object, ChangeLogRecord> changed, final Cluster cluster,
+	        final RestoredVersions restoredVersions) throws IOException,
+	        InterruptedException, ExecutionException {
+		final SnapshotSegment segment = SnapshotSegment.readFrom(segmentFile);
+		final List<RestoredVersions.Candidate> candidates = new ArrayList<RestoredVersions.Candidate>(
+		        segment.size());
+		for (int i = 0; i < segment.size(); i++) {
+			final Object key = HazelcastSerialization.fromBytes(segment
+			        .keyAt(i));
+			// Superseded by a change we logged since this snapshot
+			final ChangeLogRecord change = changed.get(key);
+			if (change != null && change.getTimestamp() >= segment.takenAt()) {
+				continue;
+			}
+			candidates.add(new RestoredVersions.Candidate(key, segment
+			        .keyAt(i), segment.valueAt(i), segment.takenAt(), segment
+			        .expirationTimeAt(i)));
+		}
+		restoredVersions.restore(map, candidates, cluster.getClusterTime());
+		return segmentFile.length();
+	}
+
+	/**
+	 * @return The directory holding the latest complete snapshot, or
+	 *         <code>null</code> if there is none
+	 */
+	File latestSnapshot() {
+		final File current = new File(this.directory, CURRENT);
+		if (current.isDirectory()) {
+			return current;
+		}
+		// We might have crashed while replacing the previous snapshot
+		final File previous = new File(this.directory, PREVIOUS);
+		return previous.isDirectory() ? previous : null;
+	}
+
+	// ------------------------------------------------------------------------
+	// Snapshot
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Start taking periodic snapshots of <code>hazelcastInstance</code>'s
+	 * maps.
+	 * 
+	 * @param hazelcastInstance
+	 */
+	public synchronized void start(final HazelcastInstance hazelcastInstance) {
+		checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkState(this.hazelcastInstance == null,
+		        "%s has already been started", this);
+		this.hazelcastInstance = hazelcastInstance;
+		if (this.changeLog != null) {
+			try {
+				this.changeLog.start(hazelcastInstance);
+			} catch (final IOException e) {
+				this.log.error("Failed to start " + this.changeLog
+				        + " - changes since the last snapshot will be lost on restart: "
+				        + e.getMessage(), e);
+			}
+		}
+		if (this.snapshotIntervalSeconds == 0) {
+			return;
+		}
+		this.executor = Executors
+		        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		                .setNameFormat("hz-server-snapshot-%d")
+		                .setDaemon(true).build());
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					snapshot(hazelcastInstance);
+				} catch (final IOException e) {
+					MapSnapshotter.this.log.error("Failed to take snapshot: "
+					        + e.getMessage(), e);
+				}
+			}
+		}, this.snapshotIntervalSeconds, this.snapshotIntervalSeconds,
+		        TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #start(HazelcastInstance)} has been
+	 *         called, but {@link #stop()} has not
+	 */
+	public synchronized boolean isRunning() {
+		return this.hazelcastInstance != null;
+	}
+
+	/**
+	 * Stop taking periodic snapshots, take a final one and stop our
+	 * {@link ChangeLog}, if any. Must be called before our
+	 * {@link HazelcastInstance} is shut down.
+	 */
+	public synchronized void stop() {
+		if (this.hazelcastInstance == null) {
+			return;
+		}
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+		try {
+			snapshot(this.hazelcastInstance);
+		} catch (final IOException e) {
+			this.log.error("Failed to take final snapshot: " + e.getMessage(),
+			        e);
+		} finally {
+			if (this.changeLog != null) {
+				this.changeLog.stop();
+			}
+			this.hazelcastInstance = null;
+		}
+	}
+
+	/**
+	 * Write all entries of snapshotted maps owned by the local member to a
+	 * new snapshot, replacing the previous one once complete, and drop all
+	 * records of those maps our {@link ChangeLog} holds from before the new
+	 * snapshot was started.
+	 * 
+	 * @param hazelcastInstance
+	 * @throws IOException
+	 */
+	void snapshot(final HazelcastInstance hazelcastInstance)
+	        throws IOException {
+		synchronized (this.snapshotLock) {
+			final long start = System.nanoTime();
+			final long changeLogBoundary = this.changeLog != null ? this.changeLog
+			        .roll() : 0L;
+			final File inProgress = new File(this.directory, IN_PROGRESS);
+			delete(inProgress);
+			long bytes = 0;
+			final PartitionService partitionService = hazelcastInstance
+			        .getPartitionService();
+			final List<String> snapshottedMaps = snapshottedMapsIn(hazelcastInstance
+			        .getConfig());
+			for (final String mapName : snapshottedMaps) {
+				final File mapDirectory = new File(inProgress, encode(mapName));
+				mkdirs(mapDirectory);
+				final IMap<Object, Object> map = hazelcastInstance
+				        .getMap(mapName);
+				for (final Map.Entry<Integer, Set<Object>> keys : localKeysByPartition(
+				        map, partitionService).entrySet()) {
+					bytes += writeSegment(map, keys.getValue(), new File(
+					        mapDirectory, keys.getKey() + SEGMENT_SUFFIX),
+					        hazelcastInstance.getCluster());
+				}
+			}
+			replaceCurrentWith(inProgress);
+			if (this.changeLog != null) {
+				this.changeLog.truncate(changeLogBoundary,
+				        new HashSet<String>(snapshottedMaps));
+			}
+			this.lastSnapshot = new Throughput(bytes,
+			        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			this.log.info("Took snapshot in [{}]: {}", this.directory,
+			        this.lastSnapshot);
+		}
+	}
+
+	private Map<Integer, Set<Object>> localKeysByPartition(
+	        final IMap<Object, Object> map,
+	        final PartitionService partitionService) {
+		final Map<Integer, Set<Object>> result = new HashMap<Integer, Set<Object>>();
+		for (final Object key : map.localKeySet()) {
+			final Integer partitionId = Integer.valueOf(partitionService
+			        .getPartition(key).getPartitionId());
+			Set<Object> keys = result.get(partitionId);
+			if (keys == null) {
+				keys = new HashSet<Object>();
+				result.put(partitionId, keys);
+			}
+			keys.add(key);
+		}
+		return result;
+	}
+
+	private long writeSegment(final IMap<Object, Object> map,
+	        final Set<Object> keys, final File file, final Cluster cluster)
+	        throws IOException {
+		final long takenAt = cluster.getClusterTime();
+		// Hazelcast records expiration times in local time
+		final long clusterTimeOffset = takenAt - System.currentTimeMillis();
+		final SnapshotSegment.Writer segment = new SnapshotSegment.Writer(
+		        file, takenAt);
+		try {
+			for (final Object key : keys) {
+				final MapEntry<Object, Object> entry = map.getMapEntry(key);
+				// Removed since we collected its key
+				if (entry == null || entry.getValue() == null) {
+					continue;
+				}
+				final long expirationTime = entry.getExpirationTime();
+				segment.add(HazelcastSerialization.toBytes(key),
+				        HazelcastSerialization.toBytes(entry.getValue()),
+				        expirationTime == Long.MAX_VALUE ? SnapshotSegment.NO_EXPIRATION
+				                : expirationTime + clusterTimeOffset);
+			}
+			return segment.finish();
+		} finally {
+			segment.close();
+		}
+	}
+
+	private void replaceCurrentWith(final File inProgress) throws IOException {
+		final File current = new File(this.directory, CURRENT);
+		final File previous = new File(this.directory, PREVIOUS);
+		delete(previous);
+		if (current.exists()) {
+			rename(current, previous);
+		}
+		rename(inProgress, current);
+		delete(previous);
+	}
+
+	// ------------------------------------------------------------------------
+	// Helpers
+	// ------------------------------------------------------------------------
+
+	static List<String> snapshottedMapsIn(final Config config) {
+		return MapOptions.mapsSelecting(config, MapOptions.SNAPSHOT,
+		        Boolean.TRUE.toString());
+	}
+
+	static String encode(final String mapName) {
+		try {
+			return URLEncoder.encode(mapName, ENCODING);
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void mkdirs(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create directory [" + directory
+			        + "]");
+		}
+	}
+
+	private static void rename(final File from, final File to)
+	        throws IOException {
+		if (!from.renameTo(to)) {
+			throw new IOException("Failed to rename [" + from + "] to [" + to
+			        + "]");
+		}
+	}
+
+	private static void delete(final File file) throws IOException {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to delete [" + file + "]");
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MapSnapshotter@" + this.hashCode() + "[directory: "
+		        + this.directory + "|snapshotIntervalSeconds: "
+		        + this.snapshotIntervalSeconds + "|restoreParallelism: "
+		        + this.restoreParallelism + "]";
+	}
+
+	/**
+	 * <p>
+	 * How many bytes were written or read in how many milliseconds.
+	 * </p>
+	 */
+	static final class Throughput {
+
+		static final Throughput	NONE	= new Throughput(0L, 0L);
+
+		final long		        bytes;
+
+		final long		        durationMillis;
+
+		Throughput(final long bytes, final long durationMillis) {
+			this.bytes = bytes;
+			this.durationMillis = durationMillis;
+		}
+
+		double megabytesPerSecond() {
+			return this.durationMillis > 0 ? this.bytes / BYTES_PER_MB * 1000.0
+			        / this.durationMillis : 0.0;
+		}
+
+		@Override
+		public String toString() {
+			return "Throughput@" + this.hashCode() + "[bytes: " + this.bytes
+			        + "|durationMillis: " + this.durationMillis
+			        + "|megabytesPerSecond: "
+			        + String.format("%.2f", megabytesPerSecond()) + "]";
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+import com.hazelcast.partition.PartitionService;
+import com.obergner.hzserver.HazelcastSerialization;
+
+/**
+ * <p>
+ * Decides, across all members restoring their snapshots and change logs into
+ * a freshly formed cluster, which of the versions of an entry they hold wins:
+ * the one taken or logged at the latest cluster time, a removal included.
+ * </p>
+ * <p>
+ * For each map, the version restored per key is recorded in a companion map
+ * named {@link #MAP_PREFIX}<code>&lt;map name&gt;</code>, along with a hash
+ * of the value restored. Restoring a version locks its key, and replaces the
+ * current entry only if that version is newer than the one recorded and the
+ * current entry is still the one restored. Entries written since - by clients
+ * of members that have already started - thus always win, as they do when no
+ * version of their key has been restored at all. Recorded versions expire
+ * once all members can be assumed to have restored theirs. Companion maps
+ * are configured by {@link #prepare(Config, String)}, rather than inheriting
+ * whatever the <code>default</code> map configures, e.g. a map store or an
+ * eviction policy.
+ * </p>
+ * <p>
+ * Deciding on a version takes several map operations per key. Rather than
+ * issuing all of them across the network, versions are grouped by partition
+ * and sent in batches of up to {@link #BATCH_SIZE} to that partition's owner,
+ * which decides on them locally. A key and its recorded version share a
+ * partition, and thus an owner. Should partitions migrate while restoring, a
+ * batch's operations are merely remote again.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class RestoredVersions {
+
+	static final String	            MAP_PREFIX	        = "hz-server-restored-versions:";
+
+	/**
+	 * How long restoring a member's snapshot and change log may take at most
+	 * for restored versions to still be remembered: one hour.
+	 */
+	static final long	            MAX_RESTORE_SECONDS	= 3600L;
+
+	/**
+	 * How many versions to send to a partition's owner at once.
+	 */
+	static final int	            BATCH_SIZE	        = 1000;
+
+	private final HazelcastInstance	hazelcastInstance;
+
+	private final long	            retentionSeconds;
+
+	/**
+	 * @param hazelcastInstance
+	 * @param retentionSeconds
+	 *            For how long to remember restored versions
+	 */
+	RestoredVersions(final HazelcastInstance hazelcastInstance,
+	        final long retentionSeconds) {
+		this.hazelcastInstance = checkNotNull(hazelcastInstance,
+		        "Argument 'hazelcastInstance' must not be null");
+		checkArgument(retentionSeconds > 0,
+		        "Argument 'retentionSeconds' must be greater than 0: %s",
+		        retentionSeconds);
+		this.retentionSeconds = retentionSeconds;
+	}
+
+	/**
+	 * Add the configuration of the map recording the versions restored into
+	 * <code>mapName</code> to <code>config</code>: as many backups as
+	 * <code>mapName</code> has, and neither a map store nor eviction nor
+	 * expiry other than the per-entry time to live we set. Must be called
+	 * before a {@link HazelcastInstance} is created from <code>config</code>.
+	 * 
+	 * @param config
+	 * @param mapName
+	 */
+	static void prepare(final Config config, final String mapName) {
+		final MapConfig versionsConfig = new MapConfig(MAP_PREFIX + mapName);
+		versionsConfig.setBackupCount(config.getMapConfig(mapName)
+		        .getBackupCount());
+		versionsConfig.setAsyncBackupCount(0);
+		versionsConfig.setTimeToLiveSeconds(0);
+		versionsConfig.setMaxIdleSeconds(0);
+		versionsConfig.setEvictionPolicy(MapConfig.DEFAULT_EVICTION_POLICY);
+		versionsConfig.setMapStoreConfig(null);
+		versionsConfig.setNearCacheConfig(null);
+		config.addMapConfig(versionsConfig);
+	}
+
+	/**
+	 * Restore each of <code>candidates</code> as its key's entry in
+	 * <code>map</code>, unless a newer version has already been restored or
+	 * that entry has been written since, and return once all of them have
+	 * been decided on.
+	 * 
+	 * @param map
+	 * @param candidates
+	 * @param now
+	 *            The current cluster time
+	 * @return The number of <code>candidates</code> restored
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             If a batch could not be restored, e.g. because its owner
+	 *             left the cluster
+	 */
+	long restore(final IMap<Object, Object> map,
+	        final Collection<Candidate> candidates, final long now)
+	        throws InterruptedException, ExecutionException {
+		final PartitionService partitionService = this.hazelcastInstance
+		        .getPartitionService();
+		final Map<Integer, List<Candidate>> byPartition = new HashMap<Integer, List<Candidate>>();
+		for (final Candidate candidate : candidates) {
+			final Integer partitionId = Integer.valueOf(partitionService
+			        .getPartition(candidate.key).getPartitionId());
+			List<Candidate> partition = byPartition.get(partitionId);
+			if (partition == null) {
+				partition = new ArrayList<Candidate>();
+				byPartition.put(partitionId, partition);
+			}
+			partition.add(candidate);
+		}
+
+		final ExecutorService executor = this.hazelcastInstance
+		        .getExecutorService();
+		final List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+		for (final List<Candidate> partition : byPartition.values()) {
+			for (int from = 0; from < partition.size(); from += BATCH_SIZE) {
+				final ArrayList<Candidate> batch = new ArrayList<Candidate>(
+				        partition.subList(from,
+				                Math.min(from + BATCH_SIZE, partition.size())));
+				final DistributedTask<Integer> task = new DistributedTask<Integer>(
+				        new RestoreBatch(map.getName(), batch, now,
+				                this.retentionSeconds), batch.get(0).key);
+				executor.execute(task);
+				batches.add(task);
+			}
+		}
+		long result = 0;
+		for (final Future<Integer> batch : batches) {
+			result += batch.get().intValue();
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RestoredVersions@" + this.hashCode() + "[retentionSeconds: "
+		        + this.retentionSeconds + "|batchSize: " + BATCH_SIZE + "]";
+	}
+
+	/**
+	 * <p>
+	 * A version of an entry to restore, in serialized form.
+	 * </p>
+	 */
+	static final class Candidate implements Serializable {
+
+		private static final long	  serialVersionUID	= 1L;
+
+		/**
+		 * Only needed to route this candidate to its partition's owner.
+		 */
+		final transient Object		  key;
+
+		private final byte[]		  keyBytes;
+
+		private final byte[]		  value;
+
+		private final long		      version;
+
+		private final long		      expirationTime;
+
+		/**
+		 * @param key
+		 * @param keyBytes
+		 *            <code>key</code>, serialized
+		 * @param value
+		 *            The value serialized by Hazelcast, so that the member
+		 *            owning <code>key</code> may read it, or
+		 *            <code>null</code> if <code>key</code> has been removed
+		 * @param version
+		 *            The cluster time <code>value</code> was taken or logged
+		 *            at
+		 * @param expirationTime
+		 *            The cluster time <code>value</code> expires at, or
+		 *            {@link SnapshotSegment#NO_EXPIRATION}
+		 */
+		Candidate(final Object key, final byte[] keyBytes,
+		        final byte[] value, final long version,
+		        final long expirationTime) {
+			this.key = key;
+			this.keyBytes = keyBytes;
+			this.value = value;
+			this.version = version;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Decides on a batch of {@link Candidate}s on their partition's owner.
+	 * </p>
+	 */
+	static final class RestoreBatch implements Callable<Integer>,
+	        Serializable, HazelcastInstanceAware {
+
+		private static final long	        serialVersionUID	= 1L;
+
+		private final String		        mapName;
+
+		private final ArrayList<Candidate>	candidates;
+
+		private final long		            now;
+
+		private final long		            retentionSeconds;
+
+		private transient HazelcastInstance	hazelcastInstance;
+
+		RestoreBatch(final String mapName,
+		        final ArrayList<Candidate> candidates, final long now,
+		        final long retentionSeconds) {
+			this.mapName = mapName;
+			this.candidates = candidates;
+			this.now = now;
+			this.retentionSeconds = retentionSeconds;
+		}
+
+		@Override
+		public void setHazelcastInstance(
+		        final HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public Integer call() {
+			final IMap<Object, Object> map = this.hazelcastInstance
+			        .getMap(this.mapName);
+			final IMap<Object, Version> versions = this.hazelcastInstance
+			        .getMap(MAP_PREFIX + this.mapName);
+			int result = 0;
+			for (final Candidate candidate : this.candidates) {
+				if (restore(map, versions, candidate)) {
+					result++;
+				}
+			}
+			return Integer.valueOf(result);
+		}
+
+		private boolean restore(final IMap<Object, Object> map,
+		        final IMap<Object, Version> versions, final Candidate candidate) {
+			final Object key = HazelcastSerialization
+			        .fromBytes(candidate.keyBytes);
+			// An expired entry supersedes older versions as much as a removal
+			final Object live = candidate.value != null
+			        && candidate.expirationTime > this.now ? HazelcastSerialization
+			        .fromBytes(candidate.value) : null;
+			map.lock(key);
+			try {
+				final Version restored = versions.get(key);
+				final Object current = map.get(key);
+				if (restored == null ? current != null
+				        : restored.version >= candidate.version
+				                || !restored.holds(current)) {
+					return false;
+				}
+				if (live == null) {
+					map.remove(key);
+				} else if (candidate.expirationTime == SnapshotSegment.NO_EXPIRATION) {
+					map.put(key, live);
+				} else {
+					map.put(key, live, candidate.expirationTime - this.now,
+					        TimeUnit.MILLISECONDS);
+				}
+				versions.put(key, new Version(candidate.version, live),
+				        this.retentionSeconds, TimeUnit.SECONDS);
+				return true;
+			} finally {
+				map.unlock(key);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * The version of an entry restored, and a hash of its value.
+	 * </p>
+	 */
+	static final class Version implements Serializable {
+
+		private static final long	serialVersionUID	= 1L;
+
+		final long		          version;
+
+		private final int		  valueHash;
+
+		Version(final long version, final Object value) {
+			this.version = version;
+			this.valueHash = hashOf(value);
+		}
+
+		boolean holds(final Object value) {
+			return this.valueHash == hashOf(value);
+		}
+
+		private static int hashOf(final Object value) {
+			return value != null ? Arrays.hashCode(HazelcastSerialization
+			        .toBytes(value)) : 0;
+		}
+	}
+}
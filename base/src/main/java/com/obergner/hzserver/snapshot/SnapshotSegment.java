@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>
+ * The serialized entries of one partition of one map, as written to and read
+ * from a memory-mapped segment file laid out as
+ * 
+ * <pre>
+ * magic (int) | version (int) | entry count (int) | payload length (long) | taken at (long)
+ * payload: (key length (int) | key | value length (int) | value | expiration time (long))*
+ * CRC32 of payload (long)
+ * </pre>
+ * 
+ * where taken at is the cluster time the entries were read at, and
+ * expiration time is in cluster time, or {@link #NO_EXPIRATION}. Segments of
+ * version 1, which lack expiration times, and of version 2, which lack the
+ * time they were taken at, are still read, their entries never expiring and
+ * having been taken at time <code>0</code>, respectively.
+ * </p>
+ * <p>
+ * Instances are <strong>not</strong> thread safe. To write a segment without
+ * holding all of its entries in memory, use a {@link Writer}.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class SnapshotSegment {
+
+	static final int	       MAGIC	        = 0x485a5331;
+
+	static final int	       VERSION	        = 3;
+
+	static final long	       NO_EXPIRATION	= Long.MAX_VALUE;
+
+	private static final int	VERSION_1	    = 1;
+
+	private static final int	VERSION_2	    = 2;
+
+	private static final int	HEADER_LENGTH	= 4 + 4 + 4 + 8 + 8;
+
+	private static final int	HEADER_LENGTH_2	= 4 + 4 + 4 + 8;
+
+	private static final int	TRAILER_LENGTH	= 8;
+
+	private final List<byte[]>	keys	        = new ArrayList<byte[]>();
+
+	private final List<byte[]>	values	        = new ArrayList<byte[]>();
+
+	private final List<Long>	expirationTimes	= new ArrayList<Long>();
+
+	private final long	       takenAt;
+
+	private long	           payloadLength;
+
+	/**
+	 * @param takenAt
+	 *            The cluster time this segment's entries are read at
+	 */
+	SnapshotSegment(final long takenAt) {
+		this.takenAt = takenAt;
+	}
+
+	/**
+	 * @param key
+	 *            A serialized key
+	 * @param value
+	 *            Its serialized value
+	 * @param expirationTime
+	 *            When it expires, in cluster time, or {@link #NO_EXPIRATION}
+	 */
+	void add(final byte[] key, final byte[] value, final long expirationTime) {
+		checkNotNull(key, "Argument 'key' must not be null");
+		checkNotNull(value, "Argument 'value' must not be null");
+		this.keys.add(key);
+		this.values.add(value);
+		this.expirationTimes.add(Long.valueOf(expirationTime));
+		this.payloadLength += 4 + key.length + 4 + value.length + 8;
+	}
+
+	int size() {
+		return this.keys.size();
+	}
+
+	byte[] keyAt(final int index) {
+		return this.keys.get(index);
+	}
+
+	byte[] valueAt(final int index) {
+		return this.values.get(index);
+	}
+
+	long expirationTimeAt(final int index) {
+		return this.expirationTimes.get(index).longValue();
+	}
+
+	/**
+	 * @return The cluster time this segment's entries were read at
+	 */
+	long takenAt() {
+		return this.takenAt;
+	}
+
+	/**
+	 * @return How many bytes this segment takes up on disk
+	 */
+	long length() {
+		return HEADER_LENGTH + this.payloadLength + TRAILER_LENGTH;
+	}
+
+	/**
+	 * Write this segment to <code>file</code>, replacing its contents, and
+	 * force it to disk.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	void writeTo(final File file) throws IOException {
+		checkNotNull(file, "Argument 'file' must not be null");
+		final Writer writer = new Writer(file, this.takenAt);
+		try {
+			for (int i = 0; i < size(); i++) {
+				writer.add(this.keys.get(i), this.values.get(i),
+				        this.expirationTimes.get(i).longValue());
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return The segment stored in <code>file</code>
+	 * @throws IOException
+	 *             If <code>file</code> cannot be read, is not a segment file
+	 *             or its checksum does not match its contents
+	 */
+	static SnapshotSegment readFrom(final File file) throws IOException {
+		checkNotNull(file, "Argument 'file' must not be null");
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long fileLength = raf.length();
+			if (fileLength < HEADER_LENGTH_2 + TRAILER_LENGTH) {
+				throw new IOException("Snapshot segment [" + file
+				        + "] is truncated: " + fileLength + " bytes");
+			}
+			final MappedByteBuffer buffer = raf.getChannel().map(
+			        FileChannel.MapMode.READ_ONLY, 0, fileLength);
+			final int magic = buffer.getInt();
+			final int version = buffer.getInt();
+			if (magic != MAGIC
+			        || (version != VERSION && version != VERSION_2 && version != VERSION_1)) {
+				throw new IOException("[" + file
+				        + "] is not a snapshot segment of version " + VERSION);
+			}
+			final int entryCount = buffer.getInt();
+			final long payloadLength = buffer.getLong();
+			final long takenAt = version == VERSION ? buffer.getLong() : 0L;
+			final int headerLength = version == VERSION ? HEADER_LENGTH
+			        : HEADER_LENGTH_2;
+			if (payloadLength != fileLength - headerLength - TRAILER_LENGTH) {
+				throw new IOException("Snapshot segment [" + file
+				        + "] should hold " + payloadLength
+				        + " bytes of payload, but holds "
+				        + (fileLength - headerLength - TRAILER_LENGTH));
+			}
+			final SnapshotSegment result = new SnapshotSegment(takenAt);
+			final CRC32 crc = new CRC32();
+			for (int i = 0; i < entryCount; i++) {
+				final byte[] key = getChecked(buffer, file, crc);
+				final byte[] value = getChecked(buffer, file, crc);
+				result.add(key, value,
+				        version == VERSION_1 ? NO_EXPIRATION : getChecked(
+				                buffer, crc));
+			}
+			if (buffer.getLong() != crc.getValue()) {
+				throw new IOException("Snapshot segment [" + file
+				        + "] is corrupt: checksum mismatch");
+			}
+			return result;
+		} catch (final RuntimeException e) {
+			// BufferUnderflowException, NegativeArraySizeException ...
+			throw new IOException("Snapshot segment [" + file
+			        + "] is corrupt: " + e, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Streams entries to a segment file as they are added, leaving the header
+	 * for {@link #finish()} to fill in once the number of entries and the
+	 * length of the payload are known.
+	 * </p>
+	 * <p>
+	 * Instances are <strong>not</strong> thread safe.
+	 * </p>
+	 */
+	static final class Writer {
+
+		private final RandomAccessFile	 raf;
+
+		private final CRC32		         crc	= new CRC32();
+
+		private final DataOutputStream	payload;
+
+		private final long		         takenAt;
+
+		private int		                 entryCount;
+
+		private long		             payloadLength;
+
+		/**
+		 * @param file
+		 *            The file to write to, replacing its contents
+		 * @param takenAt
+		 *            The cluster time the entries to be added are read at
+		 * @throws IOException
+		 */
+		Writer(final File file, final long takenAt) throws IOException {
+			checkNotNull(file, "Argument 'file' must not be null");
+			this.raf = new RandomAccessFile(file, "rw");
+			this.raf.setLength(0L);
+			this.raf.seek(HEADER_LENGTH);
+			// DataOutputStream writes lengths and expiration times big
+			// endian, just as we checksum them when reading
+			this.payload = new DataOutputStream(new BufferedOutputStream(
+			        new CheckedOutputStream(Channels.newOutputStream(this.raf
+			                .getChannel()), this.crc)));
+			this.takenAt = takenAt;
+		}
+
+		/**
+		 * @param key
+		 *            A serialized key
+		 * @param value
+		 *            Its serialized value
+		 * @param expirationTime
+		 *            When it expires, in cluster time, or
+		 *            {@link #NO_EXPIRATION}
+		 * @throws IOException
+		 */
+		void add(final byte[] key, final byte[] value,
+		        final long expirationTime) throws IOException {
+			checkNotNull(key, "Argument 'key' must not be null");
+			checkNotNull(value, "Argument 'value' must not be null");
+			this.payload.writeInt(key.length);
+			this.payload.write(key);
+			this.payload.writeInt(value.length);
+			this.payload.write(value);
+			this.payload.writeLong(expirationTime);
+			this.entryCount++;
+			this.payloadLength += 4 + key.length + 4 + value.length + 8;
+		}
+
+		/**
+		 * Write header and trailer and force the segment to disk.
+		 * 
+		 * @return How many bytes the segment takes up on disk
+		 * @throws IOException
+		 */
+		long finish() throws IOException {
+			this.payload.flush();
+			this.raf.writeLong(this.crc.getValue());
+			this.raf.seek(0L);
+			this.raf.writeInt(MAGIC);
+			this.raf.writeInt(VERSION);
+			this.raf.writeInt(this.entryCount);
+			this.raf.writeLong(this.payloadLength);
+			this.raf.writeLong(this.takenAt);
+			this.raf.getChannel().force(true);
+			return HEADER_LENGTH + this.payloadLength + TRAILER_LENGTH;
+		}
+
+		void close() throws IOException {
+			this.raf.close();
+		}
+	}
+
+	private static byte[] getChecked(final MappedByteBuffer buffer,
+	        final File file, final CRC32 crc) throws IOException {
+		final int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining() - TRAILER_LENGTH) {
+			throw new IOException("Snapshot segment [" + file
+			        + "] is corrupt: invalid length " + length);
+		}
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+		final byte[] result = new byte[length];
+		buffer.get(result);
+		crc.update(result);
+		return result;
+	}
+
+	private static long getChecked(final MappedByteBuffer buffer,
+	        final CRC32 crc) {
+		final long result = buffer.getLong();
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (result >>> shift));
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SnapshotSegment@" + this.hashCode() + "[entries: " + size()
+		        + "|takenAt: " + this.takenAt + "|length: " + length() + "]";
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.QueueConfig;
+import com.hazelcast.config.TopicConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+public class DataStructurePreCreatorTest {
+
+	@After
+	public void shutdownAllHazelcastInstances() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void assertThatConstructorRejectsZeroParallelism() {
+		new DataStructurePreCreator(Metrics.defaultRegistry(), getClass(), 0);
+	}
+
+	@Test
+	public final void assertThatPreCreateAllCreatesConfiguredMapsQueuesAndTopics()
+	        throws InterruptedException {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("map-1"));
+		config.addMapConfig(new MapConfig("map-2"));
+		config.addQueueConfig(new QueueConfig().setName("queue"));
+		config.addTopicConfig(new TopicConfig().setName("topic"));
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+
+		final int created = new DataStructurePreCreator(
+		        Metrics.defaultRegistry(), getClass(), 2)
+		        .preCreateAll(hazelcastInstance);
+
+		assertEquals("preCreateAll() should have created 4 data structures",
+		        4, created);
+	}
+
+	@Test
+	public final void assertThatPreCreateAllIgnoresWildcardConfigurations()
+	        throws InterruptedException {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("wildcard-*"));
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+
+		final int created = new DataStructurePreCreator(
+		        Metrics.defaultRegistry(), getClass(), 2)
+		        .preCreateAll(hazelcastInstance);
+
+		assertEquals(
+		        "preCreateAll() should not have created any data structure", 0,
+		        created);
+	}
+
+	@Test
+	public final void assertThatRemoveMetricsRemovesCreationDurationGauges()
+	        throws InterruptedException {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("gauged-map"));
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+		final DataStructurePreCreator objectUnderTest = new DataStructurePreCreator(
+		        Metrics.defaultRegistry(), getClass(), 1);
+		objectUnderTest.preCreateAll(hazelcastInstance);
+
+		objectUnderTest.removeMetrics();
+
+		assertFalse(
+		        "removeMetrics() should have removed creation duration gauge",
+		        Metrics.defaultRegistry()
+		                .allMetrics()
+		                .containsKey(
+		                        new MetricName(getClass(),
+		                                "map-creation-duration-millis",
+		                                "gauged-map")));
+	}
+}
@@ -24,14 +24,22 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Test;
 
+import com.google.common.io.Files;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
 import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.obergner.hzserver.pluggable.DataFile;
+import com.obergner.hzserver.snapshot.MapSnapshotter;
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
 
 public class HazelcastServiceTest {
 
@@ -131,4 +139,163 @@ public class HazelcastServiceTest {
 		        runCalled.get());
 	}
 
+	@Test
+	public final void assertThatDeployedAddsMapConfigToRunningInstance() {
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.start();
+
+		final Config dataStructuresConfig = new Config();
+		dataStructuresConfig.addMapConfig(new MapConfig("hot-deployed-map"));
+		objectUnderTest.deployed(DataFile.of(new File("app/maps.xml")),
+		        dataStructuresConfig);
+
+		assertTrue(
+		        "deployed() should have added the deployed MapConfig to the running instance's Config",
+		        objectUnderTest.getHazelcastInstance().getConfig()
+		                .getMapConfigs().containsKey("hot-deployed-map"));
+	}
+
+	@Test
+	public final void assertThatStartPreCreatesConfiguredMaps() {
+		final Config configuration = new Config();
+		configuration.addMapConfig(new MapConfig("pre-created-map"));
+		final HazelcastService objectUnderTest = new HazelcastService(
+		        configuration, Metrics.defaultRegistry());
+		objectUnderTest.start();
+
+		assertTrue(
+		        "start() should have registered a creation duration gauge for pre-created map",
+		        Metrics.defaultRegistry()
+		                .allMetrics()
+		                .containsKey(
+		                        new MetricName(HazelcastService.class,
+		                                "map-creation-duration-millis",
+		                                "pre-created-map")));
+	}
+
+	@Test
+	public final void assertThatStartDoesNotPreCreateMapsIfDisabled() {
+		final Config configuration = new Config();
+		configuration.addMapConfig(new MapConfig("lazily-created-map"));
+		final HazelcastService objectUnderTest = new HazelcastService(
+		        configuration, Metrics.defaultRegistry());
+		objectUnderTest.setPreCreateDataStructures(false);
+		objectUnderTest.start();
+
+		assertFalse(
+		        "start() should not have pre-created map",
+		        Metrics.defaultRegistry()
+		                .allMetrics()
+		                .containsKey(
+		                        new MetricName(HazelcastService.class,
+		                                "map-creation-duration-millis",
+		                                "lazily-created-map")));
+	}
+
+	@Test
+	public final void assertThatStartRecordsNodeStartAndPartitionAssignment() {
+		final StartupTimeline startupTimeline = new StartupTimeline(
+		        Metrics.defaultRegistry());
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setStartupTimeline(startupTimeline);
+		objectUnderTest.start();
+
+		assertTrue("start() should have recorded node start",
+		        startupTimeline.getNodeStartMicros() >= 0);
+		assertTrue("start() should have recorded partition assignment",
+		        startupTimeline.getPartitionAssignmentMicros() >= 0);
+	}
+
+	@Test
+	public final void assertThatStartRecordsMigration() {
+		final StartupTimeline startupTimeline = new StartupTimeline(
+		        Metrics.defaultRegistry());
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setStartupTimeline(startupTimeline);
+		objectUnderTest.start();
+
+		assertTrue("start() should have recorded migration",
+		        startupTimeline.getMigrationMicros() >= 0);
+	}
+
+	@Test
+	public final void assertThatStartAwaitsMigrationsWhenJoiningCluster() {
+		final HazelcastInstance existingMember = Hazelcast
+		        .newHazelcastInstance(new Config());
+		for (int i = 0; i < 1000; i++) {
+			existingMember.getMap("migrated-map").put(Integer.valueOf(i),
+			        "value-" + i);
+		}
+		final StartupTimeline startupTimeline = new StartupTimeline(
+		        Metrics.defaultRegistry());
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setStartupTimeline(startupTimeline);
+		objectUnderTest.start();
+
+		assertEquals("start() should have joined existing member", 2,
+		        objectUnderTest.getHazelcastInstance().getCluster()
+		                .getMembers().size());
+		assertTrue("start() should have recorded migration",
+		        startupTimeline.getMigrationMicros() >= 0);
+	}
+
+	@Test
+	public final void assertThatIsRunningReturnsFalseWhileRestoringSnapshot() {
+		final AtomicBoolean runningWhileRestoring = new AtomicBoolean(true);
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setMapSnapshotter(new MapSnapshotter(Files
+		        .createTempDir(), new MetricsRegistry()) {
+			@Override
+			public void restore(final HazelcastInstance hazelcastInstance) {
+				runningWhileRestoring.set(objectUnderTest.isRunning());
+			}
+		});
+		objectUnderTest.start();
+
+		assertFalse(
+		        "isRunning() should return false until snapshot has been restored",
+		        runningWhileRestoring.get());
+		assertTrue("isRunning() should return true once started",
+		        objectUnderTest.isRunning());
+	}
+
+	@Test
+	public final void assertThatStopRemovesGaugesOfOwnStartupTimeline() {
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.start();
+		objectUnderTest.stop();
+
+		assertFalse(
+		        "stop() should have removed gauges of its own StartupTimeline",
+		        Metrics.defaultRegistry()
+		                .allMetrics()
+		                .containsKey(
+		                        new MetricName(StartupTimeline.class,
+		                                "migration-duration-micros")));
+	}
+
+	@Test
+	public final void assertThatFailingStartShutsDownHazelcastInstance() {
+		final HazelcastService objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setMapSnapshotter(new MapSnapshotter(Files
+		        .createTempDir(), new MetricsRegistry()) {
+			@Override
+			public void restore(final HazelcastInstance hazelcastInstance) {
+				throw new IllegalStateException("Restore failed");
+			}
+		});
+		try {
+			objectUnderTest.start();
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		assertNull("A failed start() should have shut down its instance",
+		        objectUnderTest.getHazelcastInstance());
+		assertTrue(
+		        "A failed start() should not leave any Hazelcast instance running",
+		        Hazelcast.getAllHazelcastInstances().isEmpty());
+		assertFalse("isRunning() should return false after a failed start()",
+		        objectUnderTest.isRunning());
+	}
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.IMap;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class HeapPressureEvictionControllerTest {
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatPressureLevelIsHighAtHighWatermark() {
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+
+		assertEquals(HeapPressureEvictionController.HIGH,
+		        objectUnderTest.pressureLevelFor(85,
+		                HeapPressureEvictionController.NORMAL));
+	}
+
+	@Test
+	public final void assertThatPressureLevelStaysHighUntilBelowLowWatermark() {
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+
+		assertEquals(HeapPressureEvictionController.HIGH,
+		        objectUnderTest.pressureLevelFor(80,
+		                HeapPressureEvictionController.HIGH));
+		assertEquals(HeapPressureEvictionController.NORMAL,
+		        objectUnderTest.pressureLevelFor(74,
+		                HeapPressureEvictionController.HIGH));
+	}
+
+	@Test
+	public final void assertThatPressureLevelIsElevatedBetweenWatermarksWhenNotEvicting() {
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+
+		assertEquals(HeapPressureEvictionController.ELEVATED,
+		        objectUnderTest.pressureLevelFor(80,
+		                HeapPressureEvictionController.NORMAL));
+	}
+
+	@Test
+	public final void assertThatEvictBatchEvictsLeastRecentlyUsedEntriesFirst()
+	        throws InterruptedException {
+		final IMap<Integer, String> map = Hazelcast.newHazelcastInstance(
+		        new Config()).getMap("lru");
+		fillAndAccessUpperHalf(map, 1);
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setEvictionBatchSize(5);
+
+		final int evicted = objectUnderTest.evictBatch(map,
+		        HeapPressureEvictionController.EvictionOrder.LRU);
+
+		assertEquals(5, evicted);
+		assertUpperHalfRemains(map);
+	}
+
+	@Test
+	public final void assertThatEvictBatchEvictsLeastFrequentlyUsedEntriesFirst()
+	        throws InterruptedException {
+		final IMap<Integer, String> map = Hazelcast.newHazelcastInstance(
+		        new Config()).getMap("lfu");
+		fillAndAccessUpperHalf(map, 3);
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setEvictionBatchSize(5);
+
+		final int evicted = objectUnderTest.evictBatch(map,
+		        HeapPressureEvictionController.EvictionOrder.LFU);
+
+		assertEquals(5, evicted);
+		assertUpperHalfRemains(map);
+	}
+
+	@Test
+	public final void assertThatSampleOfDrawsAtMostSampleSizeLocalKeys() {
+		final IMap<Integer, String> map = Hazelcast.newHazelcastInstance(
+		        new Config()).getMap("sampled");
+		for (int i = 0; i < 1000; i++) {
+			map.put(Integer.valueOf(i), "value-" + i);
+		}
+		final HeapPressureEvictionController objectUnderTest = newObjectUnderTest();
+
+		final List<Integer> sample = objectUnderTest.sampleOf(map, 20);
+
+		assertTrue("sampleOf() should have drawn between 1 and 20 keys, not "
+		        + sample.size(), sample.size() > 0 && sample.size() <= 20);
+		for (final Integer key : sample) {
+			assertTrue("sampleOf() should only have drawn keys in map",
+			        map.containsKey(key));
+		}
+	}
+
+	@Test
+	public final void assertThatRandomSampleOnlyCopiesAcceptedKeys() {
+		final IMap<Integer, String> map = Hazelcast.newHazelcastInstance(
+		        new Config()).getMap("sampled");
+		for (int i = 0; i < 100; i++) {
+			map.put(Integer.valueOf(i), "value-" + i);
+		}
+
+		assertTrue("A RandomSample accepting nothing should yield no keys", map
+		        .localKeySet(new HeapPressureEvictionController.RandomSample(0.0))
+		        .isEmpty());
+		assertEquals("A RandomSample accepting everything should yield all keys",
+		        100, map.localKeySet(
+		                new HeapPressureEvictionController.RandomSample(1.0))
+		                .size());
+	}
+
+	private static void fillAndAccessUpperHalf(final IMap<Integer, String> map,
+	        final int accesses) throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			map.put(Integer.valueOf(i), "value-" + i);
+		}
+		Thread.sleep(20);
+		for (int n = 0; n < accesses; n++) {
+			for (int i = 5; i < 10; i++) {
+				map.get(Integer.valueOf(i));
+			}
+		}
+	}
+
+	private static void assertUpperHalfRemains(final IMap<Integer, String> map) {
+		for (int i = 0; i < 5; i++) {
+			assertFalse("Entry " + i + " should have been evicted",
+			        map.containsKey(Integer.valueOf(i)));
+		}
+		for (int i = 5; i < 10; i++) {
+			assertTrue("Entry " + i + " should not have been evicted",
+			        map.containsKey(Integer.valueOf(i)));
+		}
+	}
+
+	private static HeapPressureEvictionController newObjectUnderTest() {
+		return new HeapPressureEvictionController(new MetricsRegistry());
+	}
+}
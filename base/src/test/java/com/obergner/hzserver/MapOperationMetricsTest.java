@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.impl.MProxy;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class MapOperationMetricsTest {
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatStartRegistersNoMetricsForUndeclaredMaps() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		hazelcastInstance.getMap("undeclared").put("key", "value");
+		objectUnderTest.start(hazelcastInstance);
+
+		assertFalse(
+		        "start() should not have registered metrics for an undeclared map",
+		        metricsRegistry.allMetrics().containsKey(
+		                latencyOf("get", "undeclared")));
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatOperationsOnMapCreatedBeforeStartAreTimed() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<String, String> timed = hazelcastInstance.getMap("timed");
+		objectUnderTest.start(hazelcastInstance);
+
+		timed.put("key", "value");
+		timed.get("key");
+		timed.get("key");
+		timed.lock("key");
+		timed.unlock("key");
+		timed.remove("key");
+
+		assertEquals("put should have been timed", 1L,
+		        histogram(metricsRegistry, "put", "timed").count());
+		assertEquals("get should have been timed", 2L,
+		        histogram(metricsRegistry, "get", "timed").count());
+		assertEquals("lock should have been timed", 1L,
+		        histogram(metricsRegistry, "lock", "timed").count());
+		assertEquals("remove should have been timed", 1L,
+		        histogram(metricsRegistry, "remove", "timed").count());
+		assertEquals("get should have been timed across all maps", 2L,
+		        histogram(metricsRegistry, "get", null).count());
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatOperationsOnMapCreatedAfterStartAreTimed()
+	        throws InterruptedException {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		objectUnderTest.start(hazelcastInstance);
+		final IMap<String, String> timed = hazelcastInstance.getMap("timed");
+		// Instance events are delivered asynchronously, and our histograms
+		// are registered before operations are routed through them
+		final long deadline = System.currentTimeMillis() + 5000L;
+		while (!isTimed(timed) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10L);
+		}
+
+		timed.put("key", "value");
+
+		assertEquals("put should have been timed", 1L,
+		        histogram(metricsRegistry, "put", "timed").count());
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatNothingIsTimedWhenDisabled() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<String, String> timed = hazelcastInstance.getMap("timed");
+		objectUnderTest.start(hazelcastInstance);
+		objectUnderTest.setEnabled(false);
+
+		timed.put("key", "value");
+
+		assertEquals("put should not have been timed while disabled", 0L,
+		        histogram(metricsRegistry, "put", "timed").count());
+		assertEquals("map should still work while disabled", "value",
+		        timed.get("key"));
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatStopRemovesAllMetricsAndStopsTiming() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<String, String> timed = hazelcastInstance.getMap("timed");
+		objectUnderTest.start(hazelcastInstance);
+		timed.put("key", "value");
+
+		objectUnderTest.stop();
+		timed.put("key", "other");
+
+		assertTrue("stop() should have removed all metrics", metricsRegistry
+		        .allMetrics().isEmpty());
+		assertEquals("map should still work after stop()", "other",
+		        timed.get("key"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public final void assertThatOperationExceptionsArePropagatedUnwrapped() {
+		final MapOperationMetrics objectUnderTest = new MapOperationMetrics(
+		        new MetricsRegistry());
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<String, String> timed = hazelcastInstance.getMap("timed");
+		objectUnderTest.start(hazelcastInstance);
+
+		try {
+			timed.put(null, "value");
+		} catch (final NullPointerException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			objectUnderTest.stop();
+		}
+	}
+
+	@Test
+	public final void assertThatDelegateFieldIsFoundByItsType() {
+		assertEquals("delegateField() should have found the map proxy's delegate",
+		        MProxy.class, MapOperationMetrics.delegateField().getType());
+	}
+
+	private static boolean isTimed(final IMap<?, ?> map) {
+		try {
+			final Field delegateField = MapOperationMetrics.delegateField();
+			delegateField.setAccessible(true);
+			return delegateField.get(map) instanceof TimedMProxy;
+		} catch (final IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static Histogram histogram(final MetricsRegistry metricsRegistry,
+	        final String operation, final String mapName) {
+		return (Histogram) metricsRegistry.allMetrics().get(
+		        latencyOf(operation, mapName));
+	}
+
+	private static MetricName latencyOf(final String operation,
+	        final String mapName) {
+		return new MetricName(MapOperationMetrics.class, operation
+		        + "-latency-micros", mapName);
+	}
+
+	private static Config newConfig() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("timed"));
+		return config;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class MapStatsCollectorTest {
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatSamplePublishesOwnedEntryCountGroupedByApplication() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapStatsCollector objectUnderTest = new MapStatsCollector(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		hazelcastInstance.getMap("first").put("key", "value");
+		hazelcastInstance.getMap("second").put("key1", "value1");
+		hazelcastInstance.getMap("second").put("key2", "value2");
+		objectUnderTest.setSampleIntervalMillis(Long.MAX_VALUE / 2);
+		objectUnderTest.start(hazelcastInstance);
+
+		objectUnderTest.sample();
+
+		assertEquals(Long.valueOf(2L),
+		        valueOf(metricsRegistry, new MetricName(MapStatsCollector.GROUP,
+		                "orders", "owned-entry-count", "second")));
+		assertEquals(Long.valueOf(3L),
+		        valueOf(metricsRegistry, new MetricName(MapStatsCollector.GROUP,
+		                "orders", "owned-entry-count")));
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatSampleAttributesMapsWithoutApplicationToGlobalApplication() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapStatsCollector objectUnderTest = new MapStatsCollector(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		hazelcastInstance.getMap("third").put("key", "value");
+		objectUnderTest.setSampleIntervalMillis(Long.MAX_VALUE / 2);
+		objectUnderTest.start(hazelcastInstance);
+
+		objectUnderTest.sample();
+
+		assertEquals(Long.valueOf(1L), valueOf(metricsRegistry,
+		        new MetricName(MapStatsCollector.GROUP,
+		                MapStatsCollector.GLOBAL_APPLICATION,
+		                "owned-entry-count", "third")));
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatStopRemovesAllGauges() {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final MapStatsCollector objectUnderTest = new MapStatsCollector(
+		        metricsRegistry);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		hazelcastInstance.getMap("first").put("key", "value");
+		objectUnderTest.setSampleIntervalMillis(Long.MAX_VALUE / 2);
+		objectUnderTest.start(hazelcastInstance);
+		objectUnderTest.sample();
+
+		objectUnderTest.stop();
+
+		assertFalse("stop() should have removed all gauges", metricsRegistry
+		        .allMetrics().containsKey(
+		                new MetricName(MapStatsCollector.GROUP, "orders",
+		                        "owned-entry-count", "first")));
+	}
+
+	private static Object valueOf(final MetricsRegistry metricsRegistry,
+	        final MetricName name) {
+		return ((Gauge<?>) metricsRegistry.allMetrics().get(name)).value();
+	}
+
+	private static Config newConfig() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("first"));
+		config.addMapConfig(new MapConfig("second"));
+		config.addMapConfig(new MapConfig("third"));
+		config.setProperty(
+		        MapOptions.propertyName("first", MapOptions.APPLICATION),
+		        "orders");
+		config.setProperty(
+		        MapOptions.propertyName("second", MapOptions.APPLICATION),
+		        "orders");
+		return config;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+public class StartupTimelineTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void assertThatBeginRejectsUnknownPhase() {
+		new StartupTimeline(Metrics.defaultRegistry()).begin("unknown-phase");
+	}
+
+	@Test
+	public final void assertThatEndRecordsPhaseDuration()
+	        throws InterruptedException {
+		final StartupTimeline objectUnderTest = new StartupTimeline(
+		        Metrics.defaultRegistry());
+		final StartupTimeline.Phase phase = objectUnderTest
+		        .begin(StartupTimeline.CONFIG_BUILD);
+		Thread.sleep(5);
+		phase.end();
+
+		assertTrue(
+		        "end() should have recorded a duration of at least 5 ms",
+		        objectUnderTest.getConfigBuildMicros() >= 5000);
+	}
+
+	@Test
+	public final void assertThatUnrecordedPhaseReportsMinusOne() {
+		final StartupTimeline objectUnderTest = new StartupTimeline(
+		        Metrics.defaultRegistry());
+
+		assertEquals("Unrecorded phase should report a duration of -1", -1L,
+		        objectUnderTest.getMigrationMicros());
+	}
+
+	@Test
+	public final void assertThatGetDurationNanosByPhaseListsAllPhasesInOrder() {
+		final StartupTimeline objectUnderTest = new StartupTimeline(
+		        Metrics.defaultRegistry());
+
+		assertEquals(StartupTimeline.PHASES, new ArrayList<String>(
+		        objectUnderTest.getDurationNanosByPhase().keySet()));
+	}
+
+	@Test
+	public final void assertThatRemoveMetricsRemovesAllGauges() {
+		final StartupTimeline objectUnderTest = new StartupTimeline(
+		        Metrics.defaultRegistry());
+		objectUnderTest.removeMetrics();
+
+		for (final String phase : StartupTimeline.PHASES) {
+			assertFalse("removeMetrics() should have removed gauge of phase "
+			        + phase, Metrics.defaultRegistry().allMetrics()
+			        .containsKey(new MetricName(StartupTimeline.class,
+			                phase + "-duration-micros")));
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class AdmissionEvictionTest {
+
+	private static final int	MAX_SIZE	= 271;
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatStartEvictsEntriesPresentBeyondMaxSize()
+	        throws InterruptedException {
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<Integer, String> map = hazelcastInstance.getMap("sessions");
+		for (int i = 0; i < 10 * MAX_SIZE; i++) {
+			map.put(Integer.valueOf(i), "value-" + i);
+		}
+		final AdmissionEviction objectUnderTest = new AdmissionEviction(
+		        new MetricsRegistry());
+
+		objectUnderTest.start(hazelcastInstance);
+
+		final long deadline = System.currentTimeMillis() + 10000L;
+		while (map.size() > MAX_SIZE && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		objectUnderTest.stop();
+		assertTrue("start() should have evicted entries beyond max-size, "
+		        + map.size() + " entries left", map.size() <= MAX_SIZE);
+		assertTrue("start() should not have evicted all entries",
+		        map.size() > 0);
+	}
+
+	private static Config newConfig() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("sessions"));
+		config.setProperty(
+		        MapOptions.propertyName("sessions", MapOptions.EVICTION_POLICY),
+		        AdmissionEviction.W_TINY_LFU);
+		config.setProperty(
+		        MapOptions.propertyName("sessions", MapOptions.MAX_SIZE),
+		        String.valueOf(MAX_SIZE));
+		return config;
+	}
+}
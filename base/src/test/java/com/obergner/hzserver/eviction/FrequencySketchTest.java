@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void assertThatConstructorRejectsNonPositiveCapacity() {
+		new FrequencySketch(0);
+	}
+
+	@Test
+	public final void assertThatFrequencyOfUnseenKeyIsZero() {
+		final FrequencySketch objectUnderTest = new FrequencySketch(1024);
+
+		assertEquals(0, objectUnderTest.frequency("unseen"));
+	}
+
+	@Test
+	public final void assertThatIncrementIncreasesFrequency() {
+		final FrequencySketch objectUnderTest = new FrequencySketch(1024);
+		for (int i = 0; i < 5; i++) {
+			objectUnderTest.increment("key");
+		}
+
+		assertTrue("frequency() should have returned at least 5",
+		        objectUnderTest.frequency("key") >= 5);
+	}
+
+	@Test
+	public final void assertThatFrequencyIsCappedAtFifteen() {
+		final FrequencySketch objectUnderTest = new FrequencySketch(1024);
+		for (int i = 0; i < 100; i++) {
+			objectUnderTest.increment("key");
+		}
+
+		assertEquals(15, objectUnderTest.frequency("key"));
+	}
+
+	@Test
+	public final void assertThatResetHalvesFrequencies() {
+		final FrequencySketch objectUnderTest = new FrequencySketch(1024);
+		for (int i = 0; i < 8; i++) {
+			objectUnderTest.increment("key");
+		}
+		final int before = objectUnderTest.frequency("key");
+
+		objectUnderTest.reset();
+
+		assertEquals(before / 2, objectUnderTest.frequency("key"));
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>
+ * Trace driven benchmark comparing {@link WTinyLfuPolicy} against simulations
+ * of Hazelcast's built-in LRU and LFU eviction, which remove
+ * <code>eviction-percentage</code> of a map's entries in one sweep once it
+ * exceeds its <code>max-size</code>. The trace consists of
+ * {@value #DEFAULT_REQUESTS} requests for {@value #DISTINCT_KEYS} distinct
+ * keys following a Zipf distribution with exponent {@value #ZIPF_EXPONENT},
+ * interrupted every {@value #SCAN_INTERVAL} requests by a scan of
+ * {@value #SCAN_LENGTH} keys that are never requested again.
+ * </p>
+ * <p>
+ * Reports each policy's hit ratio, its mean cost per request and the longest
+ * time a single request spent in eviction bookkeeping. Not a unit test - run
+ * its {@link #main(String[])} method from your IDE or via
+ * <code>mvn exec:java</code> using the test classpath, optionally passing the
+ * cache capacity and the number of requests.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public final class WTinyLfuBenchmark {
+
+	private static final int	DEFAULT_CAPACITY	        = 10000;
+
+	private static final int	DEFAULT_REQUESTS	        = 5000000;
+
+	private static final int	DISTINCT_KEYS	            = 1000000;
+
+	private static final double	ZIPF_EXPONENT	            = 0.99;
+
+	private static final int	SCAN_INTERVAL	            = 100000;
+
+	private static final int	SCAN_LENGTH	                = 5000;
+
+	private static final int	HAZELCAST_EVICTION_PERCENTAGE	= 25;
+
+	public static void main(final String[] args) {
+		final int capacity = args.length > 0 ? Integer.parseInt(args[0])
+		        : DEFAULT_CAPACITY;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1])
+		        : DEFAULT_REQUESTS;
+		final long[] trace = generateTrace(requests);
+
+		final List<SimulatedCache> caches = new ArrayList<SimulatedCache>();
+		caches.add(new SweepingCache("Hazelcast LRU", capacity, false));
+		caches.add(new SweepingCache("Hazelcast LFU", capacity, true));
+		caches.add(new WTinyLfuCache(capacity));
+
+		System.out.println(String.format(
+		        "%d requests for %d keys (Zipf %.2f, scans of %d keys every %d requests), capacity %d",
+		        requests, DISTINCT_KEYS, ZIPF_EXPONENT, SCAN_LENGTH,
+		        SCAN_INTERVAL, capacity));
+		System.out.println(String.format("%-16s %10s %12s %16s", "Policy",
+		        "Hit ratio", "ns/request", "Max pause (us)"));
+		for (final SimulatedCache cache : caches) {
+			// Warm up the JIT, then measure on a fresh cache
+			replay(cache.fresh(), trace);
+			final SimulatedCache measured = cache.fresh();
+			final long totalNanos = replay(measured, trace);
+			System.out.println(String.format("%-16s %9.2f%% %12.1f %16.1f",
+			        measured.name(), 100.0 * measured.hits / requests,
+			        (double) totalNanos / requests,
+			        measured.maxPauseNanos / 1000.0));
+		}
+	}
+
+	private static long replay(final SimulatedCache cache, final long[] trace) {
+		long totalNanos = 0;
+		for (final long key : trace) {
+			final long start = System.nanoTime();
+			cache.request(Long.valueOf(key));
+			final long pause = System.nanoTime() - start;
+			totalNanos += pause;
+			cache.maxPauseNanos = Math.max(cache.maxPauseNanos, pause);
+		}
+		return totalNanos;
+	}
+
+	private static long[] generateTrace(final int requests) {
+		final double[] cumulativeProbabilities = new double[DISTINCT_KEYS];
+		double sum = 0.0;
+		for (int i = 0; i < DISTINCT_KEYS; i++) {
+			sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cumulativeProbabilities[i] = sum;
+		}
+		final Random random = new Random(42L);
+		final long[] result = new long[requests];
+		long nextScanKey = DISTINCT_KEYS;
+		int i = 0;
+		while (i < requests) {
+			if (i > 0 && i % SCAN_INTERVAL == 0) {
+				for (int j = 0; j < SCAN_LENGTH && i < requests; j++) {
+					result[i++] = nextScanKey++;
+				}
+			}
+			if (i < requests) {
+				int rank = java.util.Arrays.binarySearch(
+				        cumulativeProbabilities, random.nextDouble() * sum);
+				rank = rank >= 0 ? rank : -rank - 1;
+				result[i++] = rank;
+			}
+		}
+		return result;
+	}
+
+	private abstract static class SimulatedCache {
+
+		long		hits;
+
+		long		maxPauseNanos;
+
+		abstract String name();
+
+		abstract void request(Long key);
+
+		abstract SimulatedCache fresh();
+	}
+
+	/**
+	 * <p>
+	 * Mimics Hazelcast's built-in eviction: entries record their last access
+	 * time and hits, and once the cache exceeds its capacity
+	 * {@value WTinyLfuBenchmark#HAZELCAST_EVICTION_PERCENTAGE}% of its entries
+	 * are removed in one sweep, least recently or least frequently used first.
+	 * </p>
+	 */
+	private static final class SweepingCache extends SimulatedCache {
+
+		private final String		    name;
+
+		private final int		        capacity;
+
+		private final boolean		    lfu;
+
+		private final Map<Long, long[]>	entries	= new HashMap<Long, long[]>();
+
+		private long		            clock;
+
+		SweepingCache(final String name, final int capacity, final boolean lfu) {
+			this.name = name;
+			this.capacity = capacity;
+			this.lfu = lfu;
+		}
+
+		@Override
+		String name() {
+			return this.name;
+		}
+
+		@Override
+		void request(final Long key) {
+			final long[] entry = this.entries.get(key);
+			if (entry != null) {
+				this.hits++;
+				entry[0] = ++this.clock;
+				entry[1]++;
+				return;
+			}
+			this.entries.put(key, new long[] { ++this.clock, 0L });
+			if (this.entries.size() > this.capacity) {
+				sweep();
+			}
+		}
+
+		private void sweep() {
+			final List<Map.Entry<Long, long[]>> all = new ArrayList<Map.Entry<Long, long[]>>(
+			        this.entries.entrySet());
+			final int column = this.lfu ? 1 : 0;
+			Collections.sort(all, new Comparator<Map.Entry<Long, long[]>>() {
+				@Override
+				public int compare(final Map.Entry<Long, long[]> first,
+				        final Map.Entry<Long, long[]> second) {
+					final long a = first.getValue()[column];
+					final long b = second.getValue()[column];
+					return a < b ? -1 : a == b ? 0 : 1;
+				}
+			});
+			final int toEvict = this.capacity * HAZELCAST_EVICTION_PERCENTAGE
+			        / 100;
+			final List<Long> victims = new ArrayList<Long>(toEvict);
+			for (int i = 0; i < toEvict; i++) {
+				victims.add(all.get(i).getKey());
+			}
+			for (final Long victim : victims) {
+				this.entries.remove(victim);
+			}
+		}
+
+		@Override
+		SimulatedCache fresh() {
+			return new SweepingCache(this.name, this.capacity, this.lfu);
+		}
+	}
+
+	private static final class WTinyLfuCache extends SimulatedCache {
+
+		private final int		              capacity;
+
+		private final WTinyLfuPolicy<Long>	policy;
+
+		WTinyLfuCache(final int capacity) {
+			this.capacity = capacity;
+			this.policy = new WTinyLfuPolicy<Long>(capacity);
+		}
+
+		@Override
+		String name() {
+			return "W-TinyLFU";
+		}
+
+		@Override
+		void request(final Long key) {
+			if (this.policy.contains(key)) {
+				this.hits++;
+				this.policy.recordAccess(key);
+			} else {
+				this.policy.recordInsert(key);
+			}
+		}
+
+		@Override
+		SimulatedCache fresh() {
+			return new WTinyLfuCache(this.capacity);
+		}
+	}
+}
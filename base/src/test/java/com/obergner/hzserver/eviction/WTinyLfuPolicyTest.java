@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.eviction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WTinyLfuPolicyTest {
+
+	@Test
+	public final void assertThatRecordInsertEvictsNothingBelowCapacity() {
+		final WTinyLfuPolicy<Integer> objectUnderTest = new WTinyLfuPolicy<Integer>(
+		        100);
+		for (int i = 0; i < 100; i++) {
+			assertNull(objectUnderTest.recordInsert(Integer.valueOf(i)));
+		}
+
+		assertEquals(100, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatRecordInsertEvictsExactlyOneKeyBeyondCapacity() {
+		final WTinyLfuPolicy<Integer> objectUnderTest = new WTinyLfuPolicy<Integer>(
+		        100);
+		for (int i = 0; i < 100; i++) {
+			objectUnderTest.recordInsert(Integer.valueOf(i));
+		}
+
+		final Integer evicted = objectUnderTest.recordInsert(Integer
+		        .valueOf(100));
+
+		assertTrue("recordInsert() should have evicted a key", evicted != null);
+		assertFalse("Evicted key should no longer be tracked",
+		        objectUnderTest.contains(evicted));
+		assertEquals(100, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatFrequentlyAccessedKeysSurviveScan() {
+		final WTinyLfuPolicy<Integer> objectUnderTest = new WTinyLfuPolicy<Integer>(
+		        100);
+		for (int i = 0; i < 100; i++) {
+			objectUnderTest.recordInsert(Integer.valueOf(i));
+		}
+		for (int n = 0; n < 5; n++) {
+			for (int i = 0; i < 50; i++) {
+				objectUnderTest.recordAccess(Integer.valueOf(i));
+			}
+		}
+
+		for (int i = 1000; i < 2000; i++) {
+			objectUnderTest.recordInsert(Integer.valueOf(i));
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue("Frequently accessed key " + i
+			        + " should have survived scan",
+			        objectUnderTest.contains(Integer.valueOf(i)));
+		}
+	}
+
+	@Test
+	public final void assertThatRecordRemovalForgetsKey() {
+		final WTinyLfuPolicy<Integer> objectUnderTest = new WTinyLfuPolicy<Integer>(
+		        100);
+		objectUnderTest.recordInsert(Integer.valueOf(1));
+
+		objectUnderTest.recordRemoval(Integer.valueOf(1));
+
+		assertFalse(objectUnderTest.contains(Integer.valueOf(1)));
+		assertEquals(0, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatRecordHitsPromotesKeysNextInLineForEviction() {
+		final WTinyLfuPolicy<Integer> objectUnderTest = new WTinyLfuPolicy<Integer>(
+		        100);
+		for (int i = 0; i < 100; i++) {
+			objectUnderTest.recordInsert(Integer.valueOf(i));
+		}
+		final Integer nextVictim = objectUnderTest.nextVictims(1).get(0);
+
+		objectUnderTest.recordHits(nextVictim, 3);
+
+		assertFalse("Key with new hits should no longer be next in line",
+		        objectUnderTest.nextVictims(1).contains(nextVictim));
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.expiry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	@Test
+	public final void assertThatAdvanceDoesNotExpireKeyBeforeItsDeadline() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        10L, 4, 0L);
+		objectUnderTest.schedule("key", 105L);
+
+		assertTrue(objectUnderTest.advance(100L).isEmpty());
+		assertEquals(1, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatAdvanceExpiresKeyWithinOneTickAfterItsDeadline() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        10L, 4, 0L);
+		objectUnderTest.schedule("key", 105L);
+
+		assertEquals(Collections.singletonList("key"),
+		        objectUnderTest.advance(110L));
+		assertEquals(0, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatAdvanceExpiresKeysScheduledBeyondFirstLevelExactlyOnTime() {
+		final TimingWheel<Integer> objectUnderTest = new TimingWheel<Integer>(
+		        1L, 3, 0L);
+		final Random random = new Random(42L);
+		final long[] deadlines = new long[1000];
+		for (int i = 0; i < deadlines.length; i++) {
+			deadlines[i] = 1 + random.nextInt(64 * 64 * 64);
+			objectUnderTest.schedule(Integer.valueOf(i), deadlines[i]);
+		}
+
+		for (long now = 1; now <= 64 * 64 * 64; now++) {
+			for (final Integer expired : objectUnderTest.advance(now)) {
+				assertEquals("Key " + expired + " expired at wrong time",
+				        deadlines[expired.intValue()], now);
+			}
+		}
+		assertEquals(0, objectUnderTest.size());
+	}
+
+	@Test
+	public final void assertThatAdvanceExpiresKeysScheduledBeyondItsSpan() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        1L, 1, 0L);
+		objectUnderTest.schedule("key", 200L);
+
+		final List<String> expired = new ArrayList<String>();
+		for (long now = 1; now < 200L; now++) {
+			expired.addAll(objectUnderTest.advance(now));
+		}
+		assertTrue(expired.isEmpty());
+		assertEquals(Collections.singletonList("key"),
+		        objectUnderTest.advance(200L));
+	}
+
+	@Test
+	public final void assertThatCancelPreventsKeyFromExpiring() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        10L, 4, 0L);
+		objectUnderTest.schedule("key", 100L);
+		objectUnderTest.cancel("key");
+
+		assertTrue(objectUnderTest.advance(1000L).isEmpty());
+		assertFalse(objectUnderTest.contains("key"));
+	}
+
+	@Test
+	public final void assertThatScheduleReplacesPreviousDeadline() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        10L, 4, 0L);
+		objectUnderTest.schedule("key", 100L);
+		objectUnderTest.schedule("key", 5000L);
+
+		assertTrue(objectUnderTest.advance(4990L).isEmpty());
+		assertEquals(Collections.singletonList("key"),
+		        objectUnderTest.advance(5000L));
+	}
+
+	@Test
+	public final void assertThatScheduleFilesPastDeadlineForNextTick() {
+		final TimingWheel<String> objectUnderTest = new TimingWheel<String>(
+		        10L, 4, 1000L);
+		objectUnderTest.schedule("key", 500L);
+
+		assertEquals(Collections.singletonList("key"),
+		        objectUnderTest.advance(1010L));
+	}
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.PartitionService;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class CoalescingMapStoreTest {
+
+	private static final long	LONG_DELAY_MILLIS	= 60000L;
+
+	@Test
+	public final void assertThatRepeatedWritesToSameKeyAreCoalesced()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 1000, LONG_DELAY_MILLIS);
+		objectUnderTest.store("key", "first");
+		objectUnderTest.store("key", "second");
+		objectUnderTest.store("key", "third");
+		objectUnderTest.store("other", "value");
+
+		final Thread flusher = startFlusher(objectUnderTest);
+		objectUnderTest.stop();
+		flusher.join(10000);
+
+		assertEquals("Coalesced writes should have been stored in one batch",
+		        1, delegate.batches.size());
+		assertEquals("Only latest value should have been stored", "third",
+		        delegate.entries.get("key"));
+		assertEquals("Batch should have held each key once", 2,
+		        delegate.batches.get(0).intValue());
+	}
+
+	@Test
+	public final void assertThatFullBatchIsStoredBeforeMaxDelay()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 10, 1000, LONG_DELAY_MILLIS);
+		final Thread flusher = startFlusher(objectUnderTest);
+		try {
+			for (int i = 0; i < 10; i++) {
+				objectUnderTest.store("key-" + i, "value-" + i);
+			}
+
+			assertTrue("Full batch should have been stored right away",
+			        delegate.awaitEntries(10, 10000));
+			assertEquals("Full batch should have been stored in one go",
+			        Integer.valueOf(10), delegate.batches.get(0));
+		} finally {
+			objectUnderTest.stop();
+			flusher.join(10000);
+		}
+	}
+
+	@Test
+	public final void assertThatPartialBatchIsStoredAfterMaxDelay()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 1000, 50L);
+		final Thread flusher = startFlusher(objectUnderTest);
+		try {
+			// Have our flusher wait on an empty buffer first
+			Thread.sleep(100L);
+			objectUnderTest.store("key", "value");
+
+			assertTrue("Partial batch should have been stored after max delay",
+			        delegate.awaitEntries(1, 10000));
+		} finally {
+			objectUnderTest.stop();
+			flusher.join(10000);
+		}
+	}
+
+	@Test
+	public final void assertThatLoadSeesBufferedWritesAndDeletes() {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		delegate.entries.put("deleted", "stored");
+		delegate.entries.put("unchanged", "stored");
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 1000, LONG_DELAY_MILLIS);
+		objectUnderTest.store("written", "buffered");
+		objectUnderTest.delete("deleted");
+
+		assertEquals("load() should have returned buffered value", "buffered",
+		        objectUnderTest.load("written"));
+		assertNull("load() should not have returned deleted value",
+		        objectUnderTest.load("deleted"));
+		assertEquals("load() should have returned stored value", "stored",
+		        objectUnderTest.load("unchanged"));
+		final Set<Object> keys = objectUnderTest.loadAllKeys();
+		assertTrue("loadAllKeys() should have returned buffered key",
+		        keys.contains("written"));
+		assertFalse("loadAllKeys() should not have returned deleted key",
+		        keys.contains("deleted"));
+	}
+
+	@Test
+	public final void assertThatWritersBlockWhileBacklogIsFull()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 2, LONG_DELAY_MILLIS);
+		objectUnderTest.store("first", "value");
+		objectUnderTest.store("second", "value");
+		objectUnderTest.store("second", "coalesced");
+		final CountDownLatch stored = new CountDownLatch(1);
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				objectUnderTest.store("third", "value");
+				stored.countDown();
+			}
+		};
+		writer.start();
+
+		assertFalse("Writer should have blocked while backlog is full",
+		        stored.await(200, TimeUnit.MILLISECONDS));
+
+		final Thread flusher = startFlusher(objectUnderTest);
+		try {
+			assertTrue("Writer should have resumed once backlog was flushed",
+			        stored.await(10, TimeUnit.SECONDS));
+		} finally {
+			objectUnderTest.stop();
+			flusher.join(10000);
+		}
+		assertEquals("All entries should have been stored", 3,
+		        delegate.entries.size());
+	}
+
+	@Test
+	public final void assertThatFailedBatchIsRetried()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		delegate.failures.set(1);
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 1, 1000, 50L);
+		final Thread flusher = startFlusher(objectUnderTest);
+		try {
+			objectUnderTest.store("key", "value");
+
+			assertTrue("Failed batch should have been retried",
+			        delegate.awaitEntries(1, 10000));
+		} finally {
+			objectUnderTest.stop();
+			flusher.join(10000);
+		}
+	}
+
+	@Test
+	public final void assertThatWritesAfterStopArePassedStraightThrough()
+	        throws InterruptedException {
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 1000, LONG_DELAY_MILLIS);
+		final Thread flusher = startFlusher(objectUnderTest);
+		objectUnderTest.stop();
+		flusher.join(10000);
+
+		objectUnderTest.store("key", "value");
+
+		assertEquals("Write after stop() should have been stored right away",
+		        "value", delegate.entries.get("key"));
+	}
+
+	@Test
+	public final void assertThatEntriesOfPartitionMigratingAwayAreStoredRightAway()
+	        throws InterruptedException {
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(new Config());
+		final RecordingMapStore delegate = new RecordingMapStore();
+		final CoalescingMapStore objectUnderTest = newObjectUnderTest(
+		        delegate, 100, 1000, LONG_DELAY_MILLIS);
+		objectUnderTest.init(hazelcastInstance, new Properties(), "coalescing");
+		final Thread flusher = startFlusher(objectUnderTest);
+		try {
+			final PartitionService partitionService = hazelcastInstance
+			        .getPartitionService();
+			final int migrating = partitionService.getPartition("migrating")
+			        .getPartitionId();
+			String staying = "staying";
+			while (partitionService.getPartition(staying).getPartitionId() == migrating) {
+				staying += "-";
+			}
+			objectUnderTest.store(staying, "value");
+			objectUnderTest.store("migrating", "value");
+
+			objectUnderTest.migrationStarted(new MigrationEvent(
+			        hazelcastInstance, migrating, hazelcastInstance
+			                .getCluster().getLocalMember(), null));
+
+			assertTrue(
+			        "Entry of partition migrating away should have been stored right away",
+			        delegate.awaitEntries(1, 10000));
+			assertEquals("Only entry of partition migrating away should have been stored",
+			        Collections.singleton("migrating"), delegate.entries.keySet());
+		} finally {
+			objectUnderTest.stop();
+			flusher.join(10000);
+			objectUnderTest.destroy();
+			Hazelcast.shutdownAll();
+		}
+	}
+
+	private static CoalescingMapStore newObjectUnderTest(
+	        final MapStore<Object, Object> delegate, final int maxBatchSize,
+	        final int maxPendingEntries, final long maxDelayMillis) {
+		return new CoalescingMapStore("coalescing", delegate, maxBatchSize,
+		        maxPendingEntries, maxDelayMillis, new MetricsRegistry());
+	}
+
+	private static Thread startFlusher(final CoalescingMapStore mapStore) {
+		final Thread result = new Thread(mapStore, "flusher");
+		result.setDaemon(true);
+		result.start();
+		return result;
+	}
+
+	private static final class RecordingMapStore implements
+	        MapStore<Object, Object> {
+
+		final Map<Object, Object>	entries	= new ConcurrentHashMap<Object, Object>();
+
+		final List<Integer>		  batches	= new ArrayList<Integer>();
+
+		final AtomicInteger		  failures	= new AtomicInteger();
+
+		synchronized boolean awaitEntries(final int count,
+		        final long timeoutMillis) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (this.entries.size() < count
+			        && System.currentTimeMillis() < deadline) {
+				wait(10);
+			}
+			return this.entries.size() >= count;
+		}
+
+		@Override
+		public Object load(final Object key) {
+			return this.entries.get(key);
+		}
+
+		@Override
+		public Map<Object, Object> loadAll(final Collection<Object> keys) {
+			final Map<Object, Object> result = new HashMap<Object, Object>();
+			for (final Object key : keys) {
+				if (this.entries.containsKey(key)) {
+					result.put(key, this.entries.get(key));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public Set<Object> loadAllKeys() {
+			return new HashSet<Object>(this.entries.keySet());
+		}
+
+		@Override
+		public void store(final Object key, final Object value) {
+			this.entries.put(key, value);
+		}
+
+		@Override
+		public synchronized void storeAll(final Map<Object, Object> map) {
+			if (this.failures.getAndDecrement() > 0) {
+				throw new IllegalStateException("Simulated failure");
+			}
+			this.batches.add(Integer.valueOf(map.size()));
+			this.entries.putAll(map);
+			notifyAll();
+		}
+
+		@Override
+		public void delete(final Object key) {
+			this.entries.remove(key);
+		}
+
+		@Override
+		public synchronized void deleteAll(final Collection<Object> keys) {
+			this.entries.keySet().removeAll(keys);
+			notifyAll();
+		}
+	}
+}
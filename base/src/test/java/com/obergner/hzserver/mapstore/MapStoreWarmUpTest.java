@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapStore;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.HealthCheckRegistry;
+
+public class MapStoreWarmUpTest {
+
+	private static final int	ENTRIES	= 2500;
+
+	@After
+	public void shutdownAllHazelcastInstances() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatStartLoadsAllEntriesOfWriteThroughMap()
+	        throws InterruptedException {
+		final InMemoryMapStore mapStore = new InMemoryMapStore(ENTRIES);
+		final Config config = newConfig("write-through", mapStore, 0);
+		final MapStoreWarmUp objectUnderTest = newObjectUnderTest();
+		objectUnderTest.prepare(config);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+
+		objectUnderTest.start(hazelcastInstance);
+		try {
+			assertTrue("Warm-up should have finished within 30 seconds",
+			        objectUnderTest.awaitCompletion(30, TimeUnit.SECONDS));
+
+			assertEquals("start() should have loaded all entries", ENTRIES,
+			        objectUnderTest.getLoadedEntries());
+			assertEquals("start() should have loaded all entries into map",
+			        ENTRIES, hazelcastInstance.getMap("write-through").size());
+			assertEquals(
+			        "start() should not have written loaded entries back to MapStore",
+			        0, mapStore.stored.get());
+		} finally {
+			objectUnderTest.stop();
+		}
+	}
+
+	@Test
+	public final void assertThatPrepareIgnoresWriteBehindMaps() {
+		final InMemoryMapStore mapStore = new InMemoryMapStore(ENTRIES);
+		final Config config = newConfig("write-behind", mapStore, 5);
+
+		newObjectUnderTest().prepare(config);
+
+		assertSame("prepare() should not have wrapped write-behind MapStore",
+		        mapStore, config.getMapConfig("write-behind")
+		                .getMapStoreConfig().getImplementation());
+	}
+
+	@Test
+	public final void assertThatPrepareDisablesHazelcastsInitialLoad() {
+		final Config config = newConfig("write-through", new InMemoryMapStore(
+		        ENTRIES), 0);
+
+		newObjectUnderTest().prepare(config);
+
+		final WarmUpMapLoader wrapper = (WarmUpMapLoader) config
+		        .getMapConfig("write-through").getMapStoreConfig()
+		        .getImplementation();
+		assertNull("Wrapped MapLoader should not return any keys",
+		        wrapper.loadAllKeys());
+	}
+
+	@Test
+	public final void assertThatHealthCheckIsUnhealthyUntilWarmUpHasFinished()
+	        throws InterruptedException {
+		final HealthCheckRegistry healthCheckRegistry = new HealthCheckRegistry();
+		final Config config = newConfig("write-through", new InMemoryMapStore(
+		        ENTRIES), 0);
+		final MapStoreWarmUp objectUnderTest = new MapStoreWarmUp(
+		        Metrics.defaultRegistry(), healthCheckRegistry);
+		objectUnderTest.prepare(config);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+
+		objectUnderTest.start(hazelcastInstance);
+		try {
+			objectUnderTest.awaitCompletion(30, TimeUnit.SECONDS);
+
+			assertTrue(
+			        "Health check should report healthy after warm-up has finished",
+			        healthCheckRegistry.runHealthChecks()
+			                .get(MapStoreWarmUp.HEALTH_CHECK).isHealthy());
+		} finally {
+			objectUnderTest.stop();
+		}
+	}
+
+	@Test
+	public final void assertThatPartitionAlignedBatchesRespectsBatchSize() {
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(new Config());
+		final MapStoreWarmUp objectUnderTest = newObjectUnderTest();
+		objectUnderTest.setBatchSize(100);
+		final Set<Object> keys = new HashSet<Object>();
+		for (int i = 0; i < ENTRIES; i++) {
+			keys.add(Integer.valueOf(i));
+		}
+
+		final List<List<Object>> batches = objectUnderTest
+		        .partitionAlignedBatches(
+		                hazelcastInstance.getPartitionService(), keys);
+
+		int batchedKeys = 0;
+		for (final List<Object> batch : batches) {
+			assertFalse("No batch should exceed batch size",
+			        batch.size() > 100);
+			batchedKeys += batch.size();
+		}
+		assertEquals("All keys should have been batched", ENTRIES,
+		        batchedKeys);
+	}
+
+	private MapStoreWarmUp newObjectUnderTest() {
+		return new MapStoreWarmUp(Metrics.defaultRegistry(),
+		        new HealthCheckRegistry());
+	}
+
+	private static Config newConfig(final String mapName,
+	        final MapStore<Object, Object> mapStore,
+	        final int writeDelaySeconds) {
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(mapStore);
+		mapStoreConfig.setWriteDelaySeconds(writeDelaySeconds);
+		final MapConfig mapConfig = new MapConfig(mapName);
+		mapConfig.setMapStoreConfig(mapStoreConfig);
+		final Config result = new Config();
+		result.addMapConfig(mapConfig);
+		return result;
+	}
+
+	private static final class InMemoryMapStore implements
+	        MapStore<Object, Object> {
+
+		private final Map<Object, Object>	entries	= new ConcurrentHashMap<Object, Object>();
+
+		final AtomicInteger		          stored	= new AtomicInteger();
+
+		InMemoryMapStore(final int size) {
+			for (int i = 0; i < size; i++) {
+				this.entries.put(Integer.valueOf(i), "value-" + i);
+			}
+		}
+
+		@Override
+		public Object load(final Object key) {
+			return this.entries.get(key);
+		}
+
+		@Override
+		public Map<Object, Object> loadAll(final Collection<Object> keys) {
+			final Map<Object, Object> result = new HashMap<Object, Object>();
+			for (final Object key : keys) {
+				result.put(key, this.entries.get(key));
+			}
+			return result;
+		}
+
+		@Override
+		public Set<Object> loadAllKeys() {
+			return new HashSet<Object>(this.entries.keySet());
+		}
+
+		@Override
+		public void store(final Object key, final Object value) {
+			this.stored.incrementAndGet();
+			this.entries.put(key, value);
+		}
+
+		@Override
+		public void storeAll(final Map<Object, Object> map) {
+			this.stored.addAndGet(map.size());
+			this.entries.putAll(map);
+		}
+
+		@Override
+		public void delete(final Object key) {
+			this.entries.remove(key);
+		}
+
+		@Override
+		public void deleteAll(final Collection<Object> keys) {
+			for (final Object key : keys) {
+				this.entries.remove(key);
+			}
+		}
+	}
+}
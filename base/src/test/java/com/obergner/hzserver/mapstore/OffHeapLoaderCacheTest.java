@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapStore;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class OffHeapLoaderCacheTest {
+
+	private final OffHeapLoaderCache	objectUnderTest	= new OffHeapLoaderCache(
+	                                                        new MetricsRegistry());
+
+	@After
+	public void releaseOffHeapLoaderCache() {
+		this.objectUnderTest.release();
+	}
+
+	@Test
+	public final void assertThatPrepareWrapsMapLoaderOfOptedInMap() {
+		final MapLoader<Object, Object> mapLoader = new EchoMapLoader();
+		final Config config = newConfig("off-heap");
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(mapLoader);
+		config.getMapConfig("off-heap").setMapStoreConfig(mapStoreConfig);
+
+		this.objectUnderTest.prepare(config);
+
+		final Object implementation = config.getMapConfig("off-heap")
+		        .getMapStoreConfig().getImplementation();
+		assertTrue("prepare() should have put an OffHeapCachingMapStore in front of "
+		        + "MapLoader", implementation instanceof OffHeapCachingMapStore);
+		assertSame("prepare() should have wrapped MapLoader", mapLoader,
+		        ((OffHeapCachingMapStore) implementation).getDelegate());
+	}
+
+	@Test
+	public final void assertThatPrepareRefusesOptedInMapWithoutMapLoader() {
+		final Config config = newConfig("off-heap");
+
+		this.objectUnderTest.prepare(config);
+
+		assertNull("prepare() should not have installed a MapStore for a map "
+		        + "without MapLoader", config.getMapConfig("off-heap")
+		        .getMapStoreConfig());
+	}
+
+	@Test
+	public final void assertThatPrepareWrapsMapLoaderOfOptedInMapWithTimeToLive() {
+		final Config config = newConfig("off-heap");
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(new EchoMapLoader());
+		config.getMapConfig("off-heap").setMapStoreConfig(mapStoreConfig);
+		config.getMapConfig("off-heap").setTimeToLiveSeconds(60);
+
+		this.objectUnderTest.prepare(config);
+
+		assertTrue("prepare() should have wrapped MapLoader of a map "
+		        + "expiring its entries", config.getMapConfig("off-heap")
+		        .getMapStoreConfig().getImplementation() instanceof
+		        OffHeapCachingMapStore);
+	}
+
+	@Test
+	public final void assertThatPrepareWrapsMapLoaderOfOptedInMapWhoseMaxIdleTimeWasTakenOver() {
+		final Config config = newConfig("off-heap");
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(new EchoMapLoader());
+		config.getMapConfig("off-heap").setMapStoreConfig(mapStoreConfig);
+		config.getMapConfig("off-heap").setMaxIdleSeconds(30);
+		MapOptions.takeOverLifetimes(config, "off-heap");
+
+		this.objectUnderTest.prepare(config);
+
+		assertTrue("prepare() should have wrapped MapLoader of a map "
+		        + "expiring its entries", config.getMapConfig("off-heap")
+		        .getMapStoreConfig().getImplementation() instanceof
+		        OffHeapCachingMapStore);
+	}
+
+	@Test
+	public final void assertThatMigrationDropsValuesOfPartitionsMovedAway()
+	        throws InterruptedException {
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final OffHeapLoaderCache firstCache = new OffHeapLoaderCache(
+		        metricsRegistry);
+		final OffHeapLoaderCache secondCache = new OffHeapLoaderCache(
+		        new MetricsRegistry());
+		try {
+			final HazelcastInstance first = Hazelcast
+			        .newHazelcastInstance(prepared(firstCache));
+			for (int i = 0; i < 100; i++) {
+				first.getMap("off-heap").put(Integer.valueOf(i), "value" + i);
+			}
+			@SuppressWarnings("unchecked")
+			final Gauge<Integer> entries = (Gauge<Integer>) metricsRegistry
+			        .allMetrics().get(
+			                new MetricName(OffHeapLoaderCache.class, "entries",
+			                        "off-heap"));
+			assertEquals(100, entries.value().intValue());
+
+			Hazelcast.newHazelcastInstance(prepared(secondCache));
+			// Partitions migrate asynchronously
+			Thread.sleep(5000L);
+
+			assertTrue("Migration should have dropped values of partitions "
+			        + "moved away: " + entries.value(),
+			        entries.value().intValue() < 100);
+		} finally {
+			Hazelcast.shutdownAll();
+			secondCache.release();
+			firstCache.release();
+		}
+	}
+
+	private static Config prepared(final OffHeapLoaderCache loaderCache) {
+		final Config result = newConfig("off-heap");
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(new EchoMapStore());
+		result.getMapConfig("off-heap").setMapStoreConfig(mapStoreConfig);
+		loaderCache.prepare(result);
+		return result;
+	}
+
+	private static Config newConfig(final String mapName) {
+		final Config result = new Config();
+		result.addMapConfig(new MapConfig(mapName));
+		result.setProperty(
+		        MapOptions.propertyName(mapName, MapOptions.LOADER_CACHE),
+		        OffHeapLoaderCache.OFF_HEAP);
+		return result;
+	}
+
+	private static final class EchoMapStore extends EchoMapLoader implements
+	        MapStore<Object, Object> {
+
+		@Override
+		public void store(final Object key, final Object value) {
+		}
+
+		@Override
+		public void storeAll(final Map<Object, Object> map) {
+		}
+
+		@Override
+		public void delete(final Object key) {
+		}
+
+		@Override
+		public void deleteAll(final Collection<Object> keys) {
+		}
+	}
+
+	private static class EchoMapLoader implements
+	        MapLoader<Object, Object> {
+
+		@Override
+		public Object load(final Object key) {
+			return key;
+		}
+
+		@Override
+		public Map<Object, Object> loadAll(final Collection<Object> keys) {
+			final Map<Object, Object> result = new HashMap<Object, Object>();
+			for (final Object key : keys) {
+				result.put(key, key);
+			}
+			return result;
+		}
+
+		@Override
+		public Set<Object> loadAllKeys() {
+			return Collections.emptySet();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OffHeapSlabsTest {
+
+	private static final int	SLAB_SIZE_BYTES	= 256;
+
+	@Test
+	public final void assertThatGetReturnsLatestValuePut() {
+		final OffHeapSlabs objectUnderTest = new OffHeapSlabs(
+		        SLAB_SIZE_BYTES, SLAB_SIZE_BYTES);
+		objectUnderTest.put("key", 0, bytes(10, 1));
+		objectUnderTest.put("key", 0, bytes(20, 2));
+
+		assertArrayEquals(bytes(20, 2), objectUnderTest.get("key"));
+		assertEquals(1, objectUnderTest.size());
+		assertEquals(32, objectUnderTest.usedBytes());
+		objectUnderTest.clear();
+	}
+
+	@Test
+	public final void assertThatRemovedValueIsGone() {
+		final OffHeapSlabs objectUnderTest = new OffHeapSlabs(
+		        SLAB_SIZE_BYTES, SLAB_SIZE_BYTES);
+		objectUnderTest.put("key", 0, bytes(10, 1));
+
+		assertTrue(objectUnderTest.remove("key"));
+		assertNull(objectUnderTest.get("key"));
+		assertEquals(0, objectUnderTest.usedBytes());
+		objectUnderTest.clear();
+	}
+
+	@Test
+	public final void assertThatPutCompactsSlabOnceFull() {
+		final OffHeapSlabs objectUnderTest = new OffHeapSlabs(
+		        SLAB_SIZE_BYTES, SLAB_SIZE_BYTES);
+		// 8 chunks of 32 bytes fill the slab
+		for (int i = 0; i < 8; i++) {
+			assertTrue(objectUnderTest.put("key-" + i, 0, bytes(24, i)));
+		}
+		objectUnderTest.remove("key-1");
+		objectUnderTest.remove("key-4");
+
+		// Needs 64 bytes, i.e. both freed chunks coalesced
+		assertTrue(objectUnderTest.put("large", 0, bytes(56, 42)));
+
+		assertEquals(1, objectUnderTest.compactions());
+		assertArrayEquals(bytes(56, 42), objectUnderTest.get("large"));
+		for (final int i : new int[] { 0, 2, 3, 5, 6, 7 }) {
+			assertArrayEquals(bytes(24, i), objectUnderTest.get("key-" + i));
+		}
+		objectUnderTest.clear();
+	}
+
+	@Test
+	public final void assertThatPutRejectsValueOnceCapacityIsReached() {
+		final OffHeapSlabs objectUnderTest = new OffHeapSlabs(
+		        SLAB_SIZE_BYTES, SLAB_SIZE_BYTES);
+		objectUnderTest.put("replaced", 0, bytes(24, 1));
+		for (int i = 0; i < 7; i++) {
+			objectUnderTest.put("key-" + i, 0, bytes(24, i));
+		}
+
+		assertFalse(objectUnderTest.put("replaced", 0, bytes(56, 2)));
+		assertNull(objectUnderTest.get("replaced"));
+		assertEquals(SLAB_SIZE_BYTES, objectUnderTest.committedBytes());
+		objectUnderTest.clear();
+	}
+
+	@Test
+	public final void assertThatRemovePartitionRemovesOnlyValuesOfThatPartition() {
+		final OffHeapSlabs objectUnderTest = new OffHeapSlabs(
+		        SLAB_SIZE_BYTES, SLAB_SIZE_BYTES);
+		objectUnderTest.put("migrated", 1, bytes(10, 1));
+		objectUnderTest.put("kept", 2, bytes(10, 2));
+
+		assertEquals(1, objectUnderTest.removePartition(1));
+
+		assertNull(objectUnderTest.get("migrated"));
+		assertArrayEquals(bytes(10, 2), objectUnderTest.get("kept"));
+		assertEquals(32, objectUnderTest.usedBytes());
+		objectUnderTest.clear();
+	}
+
+	private static byte[] bytes(final int length, final int fill) {
+		final byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (fill + i);
+		}
+		return result;
+	}
+}
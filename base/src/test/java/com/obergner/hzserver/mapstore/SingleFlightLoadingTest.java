@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.mapstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoader;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class SingleFlightLoadingTest {
+
+	private static final int	CONCURRENT_LOADS	= 16;
+
+	@After
+	public void shutdownAllHazelcastInstances() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatConcurrentLoadsOfSameKeyShareOneLoad()
+	        throws Exception {
+		final CountingMapLoader delegate = new CountingMapLoader();
+		delegate.blockLoads = new CountDownLatch(1);
+		final SingleFlightMapLoader objectUnderTest = new SingleFlightMapLoader(
+		        "single-flight", delegate, 0L, 0L, new MetricsRegistry());
+
+		final ExecutorService clients = Executors
+		        .newFixedThreadPool(CONCURRENT_LOADS);
+		try {
+			final List<Future<Object>> values = new ArrayList<Future<Object>>();
+			for (int i = 0; i < CONCURRENT_LOADS; i++) {
+				values.add(clients.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						return objectUnderTest.load("key");
+					}
+				}));
+			}
+			assertTrue("First load should have reached MapLoader",
+			        delegate.loadStarted.await(10, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			delegate.blockLoads.countDown();
+
+			for (final Future<Object> value : values) {
+				assertEquals("Every load should have returned loaded value",
+				        "value-of-key", value.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			clients.shutdownNow();
+		}
+		assertEquals("Concurrent loads of same key should have been coalesced",
+		        1, delegate.loads.get());
+	}
+
+	@Test
+	public final void assertThatFailedLoadIsRetriedByNextLoad() {
+		final CountingMapLoader delegate = new CountingMapLoader();
+		delegate.failures.set(1);
+		final SingleFlightMapLoader objectUnderTest = new SingleFlightMapLoader(
+		        "single-flight", delegate, 0L, 0L, new MetricsRegistry());
+
+		try {
+			objectUnderTest.load("key");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		assertEquals("Next load should have been passed to MapLoader again",
+		        "value-of-key", objectUnderTest.load("key"));
+	}
+
+	@Test
+	public final void assertThatPrepareWrapsMapLoaderOfOptedInMap() {
+		final CountingMapLoader mapLoader = new CountingMapLoader();
+		final Config config = newConfig("single-flight", mapLoader, 0, null);
+		final Config otherConfig = newConfig("other", mapLoader, 0, null);
+		config.addMapConfig(otherConfig.getMapConfig("other"));
+
+		new SingleFlightLoading(new MetricsRegistry()).prepare(config);
+
+		final SingleFlightMapLoader wrapper = (SingleFlightMapLoader) config
+		        .getMapConfig("single-flight").getMapStoreConfig()
+		        .getImplementation();
+		assertSame("prepare() should have wrapped MapLoader", mapLoader,
+		        wrapper.getDelegate());
+		assertSame("prepare() should not have wrapped MapLoader of other map",
+		        mapLoader, config.getMapConfig("other").getMapStoreConfig()
+		                .getImplementation());
+	}
+
+	@Test
+	public final void assertThatRecentlyReadEntryIsRefreshedAheadOfExpiry()
+	        throws InterruptedException {
+		final CountingMapLoader mapLoader = new CountingMapLoader();
+		final Config config = newConfig("refresh-ahead", mapLoader, 4, "2");
+		final SingleFlightLoading objectUnderTest = new SingleFlightLoading(
+		        new MetricsRegistry());
+		objectUnderTest.setRefreshIntervalMillis(100);
+		objectUnderTest.prepare(config);
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(config);
+		objectUnderTest.start(hazelcastInstance);
+		try {
+			final IMap<Object, Object> map = hazelcastInstance
+			        .getMap("refresh-ahead");
+			final long until = System.currentTimeMillis() + 7000;
+			while (System.currentTimeMillis() < until) {
+				assertNotNull("Entry read regularly should not have expired",
+				        map.get("key"));
+				Thread.sleep(250);
+			}
+
+			assertTrue("Entry should have been refreshed",
+			        mapLoader.refreshes.get() > 0);
+			assertEquals(
+			        "Entry should not have been loaded again on a miss",
+			        1, mapLoader.loads.get() - mapLoader.refreshes.get());
+		} finally {
+			objectUnderTest.stop();
+		}
+	}
+
+	private static Config newConfig(final String mapName,
+	        final MapLoader<Object, Object> mapLoader,
+	        final int timeToLiveSeconds, final String refreshAheadSeconds) {
+		final MapStoreConfig mapStoreConfig = new MapStoreConfig();
+		mapStoreConfig.setEnabled(true);
+		mapStoreConfig.setImplementation(mapLoader);
+		final MapConfig mapConfig = new MapConfig(mapName);
+		mapConfig.setMapStoreConfig(mapStoreConfig);
+		mapConfig.setTimeToLiveSeconds(timeToLiveSeconds);
+		final Config result = new Config();
+		result.addMapConfig(mapConfig);
+		result.setProperty(
+		        MapOptions.propertyName(mapName, MapOptions.LOADING),
+		        SingleFlightLoading.SINGLE_FLIGHT);
+		if (refreshAheadSeconds != null) {
+			result.setProperty(MapOptions.propertyName(mapName,
+			        MapOptions.REFRESH_AHEAD_SECONDS), refreshAheadSeconds);
+		}
+		return result;
+	}
+
+	private static final class CountingMapLoader implements
+	        MapLoader<Object, Object> {
+
+		final AtomicInteger	loads	     = new AtomicInteger();
+
+		final AtomicInteger	refreshes	 = new AtomicInteger();
+
+		final AtomicInteger	failures	 = new AtomicInteger();
+
+		final CountDownLatch	loadStarted	= new CountDownLatch(1);
+
+		volatile CountDownLatch	blockLoads;
+
+		@Override
+		public Object load(final Object key) {
+			this.loads.incrementAndGet();
+			if (Thread.currentThread().getName()
+			        .startsWith("hz-server-refresh-ahead")) {
+				this.refreshes.incrementAndGet();
+			}
+			this.loadStarted.countDown();
+			if (this.blockLoads != null) {
+				try {
+					this.blockLoads.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (this.failures.getAndDecrement() > 0) {
+				throw new IllegalStateException("Simulated failure");
+			}
+			return "value-of-" + key;
+		}
+
+		@Override
+		public Map<Object, Object> loadAll(final Collection<Object> keys) {
+			final Map<Object, Object> result = new HashMap<Object, Object>();
+			for (final Object key : keys) {
+				result.put(key, load(key));
+			}
+			return result;
+		}
+
+		@Override
+		public Set<Object> loadAllKeys() {
+			return Collections.emptySet();
+		}
+	}
+}
@@ -20,9 +20,12 @@ package com.obergner.hzserver.pluggable;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
@@ -78,4 +81,30 @@ public class ComposableXmlConfigBuilderTest {
 		return new File(resultUrl.getPath());
 	}
 
+	@Test
+	public final void assertThatBuildRendersXmlConfigToMergedXmlConfigIfSet()
+	        throws IOException {
+		final File mergedXmlConfigFile = File.createTempFile(
+		        "composable-xml-config-builder-test", ".xml");
+		try {
+			final MergedXmlConfig mergedXmlConfig = new MergedXmlConfig(
+			        mergedXmlConfigFile);
+			final ComposableXmlConfigBuilder objectUnderTest = new ComposableXmlConfigBuilder(
+			        loadTestXmlAsStream(CONFIG_FILE));
+			objectUnderTest
+			        .addDistributedDataStructuresConfiguration(loadTestXmlAsFile(MAPS_FILE));
+			objectUnderTest.renderXmlConfigTo(mergedXmlConfig);
+
+			final Config config = objectUnderTest.build();
+
+			assertNull(
+			        "build() should not have set xmlConfig string when rendering to a MergedXmlConfig",
+			        config.getXmlConfig());
+			assertTrue(
+			        "build() should have rendered merged configuration to MergedXmlConfig",
+			        mergedXmlConfig.getXmlConfig().contains("<map"));
+		} finally {
+			mergedXmlConfigFile.delete();
+		}
+	}
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+/**
+ * <p>
+ * Startup benchmark comparing the former XPath based merge (see
+ * {@link XPathFragmentMerger}) against {@link ComposableXmlConfigParser}'s
+ * single-pass {@link StreamingFragmentMerger} on a deploy tree of
+ * {@value #DEFAULT_NUMBER_OF_FRAGMENTS} generated fragments. Not a unit test -
+ * run its {@link #main(String[])} method from your IDE or via
+ * <code>mvn exec:java</code> using the test classpath.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+public final class ComposableXmlConfigParserBenchmark {
+
+	private static final String	CONFIG_FILE	               = "global/composable-xml-config-test-config.xml";
+
+	private static final int	DEFAULT_NUMBER_OF_FRAGMENTS	= 1000;
+
+	private static final int	WARMUP_ROUNDS	           = 3;
+
+	private static final int	MEASURED_ROUNDS	           = 5;
+
+	public static void main(final String[] args) throws Exception {
+		final int numberOfFragments = args.length > 0 ? Integer
+		        .parseInt(args[0]) : DEFAULT_NUMBER_OF_FRAGMENTS;
+		final List<File> fragments = generateFragments(numberOfFragments);
+
+		final int parallelism = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			runXPathBasedMerge(fragments);
+			runStreamingMerge(fragments, 1);
+			runStreamingMerge(fragments, parallelism);
+		}
+
+		long xpathNanos = 0;
+		long streamingNanos = 0;
+		long parallelNanos = 0;
+		for (int i = 0; i < MEASURED_ROUNDS; i++) {
+			xpathNanos += runXPathBasedMerge(fragments);
+			streamingNanos += runStreamingMerge(fragments, 1);
+			parallelNanos += runStreamingMerge(fragments, parallelism);
+		}
+
+		final double xpathMillis = xpathNanos / MEASURED_ROUNDS / 1000000.0;
+		final double streamingMillis = streamingNanos / MEASURED_ROUNDS
+		        / 1000000.0;
+		final double parallelMillis = parallelNanos / MEASURED_ROUNDS
+		        / 1000000.0;
+		System.out.println(String.format(
+		        "Merging %d fragments (avg of %d rounds):", numberOfFragments,
+		        MEASURED_ROUNDS));
+		System.out.println(String.format("%-30s: %10.2f ms",
+		        "XPath based merge", xpathMillis));
+		System.out.println(String.format("%-30s: %10.2f ms",
+		        "Single-pass streaming merge", streamingMillis));
+		System.out.println(String.format("%-30s: %10.2f ms",
+		        "Parallel streaming merge (" + parallelism + ")",
+		        parallelMillis));
+		System.out.println(String.format("%-30s: %10.2f x", "Speedup",
+		        xpathMillis / streamingMillis));
+		System.out.println(String.format("%-30s: %10.2f x",
+		        "Speedup (parallel)", xpathMillis / parallelMillis));
+	}
+
+	private static long runXPathBasedMerge(final List<File> fragments)
+	        throws Exception {
+		final long start = System.nanoTime();
+		final DocumentBuilder documentBuilder = DocumentBuilderFactory
+		        .newInstance().newDocumentBuilder();
+		final Document result = documentBuilder.parse(globalConfig());
+		final XPathFragmentMerger merger = new XPathFragmentMerger(
+		        documentBuilder);
+		for (final File fragment : fragments) {
+			merger.merge(fragment, result.getDocumentElement());
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runStreamingMerge(final List<File> fragments,
+	        final int parallelism) throws Exception {
+		final long start = System.nanoTime();
+		final ComposableXmlConfigParser parser = new ComposableXmlConfigParser(
+		        globalConfig());
+		for (final File fragment : fragments) {
+			parser.addDistributedDataStructuresConfiguration(fragment);
+		}
+		parser.parallelism(parallelism).parse();
+		return System.nanoTime() - start;
+	}
+
+	private static InputStream globalConfig() {
+		return ComposableXmlConfigParserBenchmark.class
+		        .getResourceAsStream(CONFIG_FILE);
+	}
+
+	private static List<File> generateFragments(final int numberOfFragments)
+	        throws IOException {
+		final File deployDir = new File(System.getProperty("java.io.tmpdir"),
+		        "hz-server-parser-benchmark-" + System.currentTimeMillis());
+		if (!deployDir.mkdirs()) {
+			throw new IOException("Failed to create directory " + deployDir);
+		}
+		final List<File> result = new ArrayList<File>(numberOfFragments);
+		for (int i = 0; i < numberOfFragments; i++) {
+			final File fragment = new File(deployDir, "app-" + i + ".xml");
+			fragment.deleteOnExit();
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(
+			        fragment), "UTF-8");
+			try {
+				writer.write(fragmentContent(i));
+			} finally {
+				writer.close();
+			}
+			result.add(fragment);
+		}
+		deployDir.deleteOnExit();
+		return result;
+	}
+
+	private static String fragmentContent(final int index) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		        + "<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\">\n"
+		        + "    <queue name=\"tasks-" + index + "\">\n"
+		        + "        <max-size-per-jvm>10000</max-size-per-jvm>\n"
+		        + "        <backing-map-ref>queue-map-" + index
+		        + "</backing-map-ref>\n" + "    </queue>\n"
+		        + "    <map name=\"queue-map-" + index + "\">\n"
+		        + "        <backup-count>1</backup-count>\n" + "    </map>\n"
+		        + "    <map name=\"cache-" + index + "\">\n"
+		        + "        <backup-count>1</backup-count>\n"
+		        + "        <time-to-live-seconds>0</time-to-live-seconds>\n"
+		        + "        <eviction-policy>NONE</eviction-policy>\n"
+		        + "        <max-size policy=\"cluster_wide_map_size\">0</max-size>\n"
+		        + "    </map>\n" + "    <topic name=\"events-" + index
+		        + "\"/>\n" + "</hazelcast>\n";
+	}
+}
@@ -19,6 +19,7 @@
 package com.obergner.hzserver.pluggable;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -38,6 +39,9 @@ import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 public class ComposableXmlConfigParserTest {
 
 	private static final String	CONFIG_FILE	= "global/composable-xml-config-test-config.xml";
@@ -123,4 +127,80 @@ public class ComposableXmlConfigParserTest {
 		assertNotNull(document);
 		assertNodePresent(document, "//hazelcast/queue");
 	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void assertThatParallelismRejectsZero() {
+		new ComposableXmlConfigParser(new ByteArrayInputStream(
+		        "DUMMY".getBytes())).parallelism(0);
+	}
+
+	@Test
+	public final void assertThatParallelParseProducesSameDocumentAsSequentialParse()
+	        throws Exception {
+		final Document sequentiallyParsed = new ComposableXmlConfigParser(
+		        loadTestXmlAsStream(CONFIG_FILE))
+		        .addDistributedDataStructuresConfiguration(
+		                loadTestXmlAsFile(MAPS_FILE))
+		        .addDistributedDataStructuresConfiguration(
+		                loadTestXmlAsFile(QUEUES_FILE)).parse();
+
+		final Document parallelParsed = new ComposableXmlConfigParser(
+		        loadTestXmlAsStream(CONFIG_FILE))
+		        .addDistributedDataStructuresConfiguration(
+		                loadTestXmlAsFile(MAPS_FILE))
+		        .addDistributedDataStructuresConfiguration(
+		                loadTestXmlAsFile(QUEUES_FILE)).parallelism(4).parse();
+
+		assertTrue(
+		        "Parsing in parallel should have produced the same document as parsing sequentially",
+		        sequentiallyParsed.isEqualNode(parallelParsed));
+	}
+
+	@Test
+	public final void assertThatParseRecordsApplicationDeployingEachMap()
+	        throws Exception {
+		final Document document = new ComposableXmlConfigParser(
+		        loadTestXmlAsStream(CONFIG_FILE))
+		        .addDistributedDataStructuresConfiguration(
+		                loadTestXmlAsFile(MAPS_FILE)).parse();
+
+		assertNodePresent(document,
+		        "//hazelcast/properties/property[@name='hzserver.map.sequence.application' and text()='subdir']");
+	}
+
+	@Test
+	public final void assertThatParseRecordsMapOptionsAsPropertiesInsteadOfMergingThem()
+	        throws Exception {
+		final File application = new File(Files.createTempDir(), "orders");
+		final File fragment = new File(application, "orders-maps.xml");
+		Files.createParentDirs(fragment);
+		Files.write(
+		        "<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\">"
+		                + "<map name=\"orders\"/><map-options name=\"orders\">"
+		                + "<heap-pressure-eviction>LRU</heap-pressure-eviction>"
+		                + "</map-options></hazelcast>", fragment,
+		        Charsets.UTF_8);
+
+		final Document document = new ComposableXmlConfigParser(
+		        loadTestXmlAsStream(CONFIG_FILE))
+		        .addDistributedDataStructuresConfiguration(fragment).parse();
+
+		assertNodePresent(document,
+		        "//hazelcast/properties/property[@name='hzserver.map.orders.heap-pressure-eviction' and text()='LRU']");
+		assertNodePresent(document,
+		        "//hazelcast/properties/property[@name='hzserver.map.orders.application' and text()='orders']");
+		assertNodeAbsent(document, "//hazelcast/map-options");
+	}
+
+	private void assertNodeAbsent(final Document doc, final String xpath)
+	        throws XPathExpressionException {
+		final XPath xpathInst = XPathFactory.newInstance().newXPath();
+		final XPathExpression xpathExpr = xpathInst.compile(xpath);
+		final NodeList matchingNodes = (NodeList) xpathExpr.evaluate(
+		        doc.getDocumentElement(), XPathConstants.NODESET);
+		if (matchingNodes.getLength() > 0) {
+			throw new AssertionFailedError("Found unexpected node(s) matching \""
+			        + xpath + "\" in document \"" + doc + "\"");
+		}
+	}
 }
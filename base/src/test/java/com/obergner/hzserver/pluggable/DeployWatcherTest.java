@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+
+import com.hazelcast.config.Config;
+import com.yammer.metrics.Metrics;
+
+public class DeployWatcherTest {
+
+	private File	        dataRootDirectory;
+
+	private File	        appDirectory;
+
+	private final List<Config>	deployed	= new ArrayList<Config>();
+
+	private DeployWatcher	objectUnderTest;
+
+	@Before
+	public void createDataRootDirectory() throws IOException {
+		this.dataRootDirectory = File.createTempFile("deploy-watcher-test",
+		        "");
+		this.dataRootDirectory.delete();
+		this.appDirectory = new File(this.dataRootDirectory, "app");
+		if (!this.appDirectory.mkdirs()) {
+			throw new IOException("Failed to create " + this.appDirectory);
+		}
+		this.objectUnderTest = new DeployWatcher(this.dataRootDirectory,
+		        ".xml", new DeployWatcher.Listener() {
+			        @Override
+			        public void deployed(final DataFile dataFile,
+			                final Config dataStructuresConfig) {
+				        DeployWatcherTest.this.deployed
+				                .add(dataStructuresConfig);
+			        }
+		        }, Metrics.defaultRegistry());
+		this.objectUnderTest.setScanIntervalMillis(Long.MAX_VALUE / 2);
+	}
+
+	@After
+	public void stopObjectUnderTest() {
+		if (this.objectUnderTest.isRunning()) {
+			this.objectUnderTest.stop();
+		}
+		for (final File dataFile : this.appDirectory.listFiles()) {
+			dataFile.delete();
+		}
+		this.appDirectory.delete();
+		this.dataRootDirectory.delete();
+	}
+
+	@Test
+	public final void assertThatScanDoesNotDeployDataFilesPresentOnStart()
+	        throws IOException {
+		writeDataFile("maps.xml", "boot-map");
+		this.objectUnderTest.start();
+
+		final int deployedFiles = this.objectUnderTest.scan();
+
+		assertEquals("scan() should not have deployed any data file", 0,
+		        deployedFiles);
+	}
+
+	@Test
+	public final void assertThatScanDeploysDataFileAddedAfterBootConfigHasBeenBuilt()
+	        throws Exception {
+		writeDataFile("maps.xml", "boot-map");
+		final File globalXmlConfigFile = new File(this.appDirectory,
+		        "hazelcast.global");
+		writeDataFile(globalXmlConfigFile, "global-map");
+		final ComposableXmlConfigFactoryBean bootConfig = new ComposableXmlConfigFactoryBean();
+		bootConfig.setGlobalXmlConfigFile(new FileSystemResource(
+		        globalXmlConfigFile));
+		bootConfig.setDataRootDirectory(new FileSystemResource(
+		        this.dataRootDirectory));
+		bootConfig.setDataFileSuffix(".xml");
+		bootConfig.afterPropertiesSet();
+		writeDataFile("late-maps.xml", "late-map");
+		this.objectUnderTest.setBootConfig(bootConfig);
+		this.objectUnderTest.start();
+
+		final int deployedFiles = this.objectUnderTest.scan();
+
+		assertEquals("scan() should have deployed exactly one data file", 1,
+		        deployedFiles);
+		assertNotNull(
+		        "scan() should have passed a Config containing the late map to its listener",
+		        this.deployed.get(0).getMapConfigs().get("late-map"));
+	}
+
+	@Test
+	public final void assertThatScanDeploysNewDataFile() throws IOException {
+		this.objectUnderTest.start();
+		writeDataFile("maps.xml", "hot-deployed-map");
+
+		final int deployedFiles = this.objectUnderTest.scan();
+
+		assertEquals("scan() should have deployed exactly one data file", 1,
+		        deployedFiles);
+		assertNotNull(
+		        "scan() should have passed a Config containing the new map to its listener",
+		        this.deployed.get(0).getMapConfigs().get("hot-deployed-map"));
+	}
+
+	@Test
+	public final void assertThatScanDeploysEachNewDataFileOnlyOnce()
+	        throws IOException {
+		this.objectUnderTest.start();
+		writeDataFile("maps.xml", "hot-deployed-map");
+		this.objectUnderTest.scan();
+
+		final int deployedFiles = this.objectUnderTest.scan();
+
+		assertEquals("Second scan() should not have deployed any data file",
+		        0, deployedFiles);
+	}
+
+	@Test
+	public final void assertThatScanDeploysNewDataFileInDeployBundle()
+	        throws IOException {
+		this.objectUnderTest.start();
+		final ZipOutputStream bundle = new ZipOutputStream(
+		        new FileOutputStream(new File(this.appDirectory, "maps.jar")));
+		try {
+			bundle.putNextEntry(new ZipEntry("META-INF/maps.xml"));
+			writeDataFile(bundle, "bundled-map");
+		} finally {
+			bundle.close();
+		}
+
+		final int deployedFiles = this.objectUnderTest.scan();
+
+		assertEquals("scan() should have deployed exactly one data file", 1,
+		        deployedFiles);
+		assertNotNull(
+		        "scan() should have passed a Config containing the bundled map to its listener",
+		        this.deployed.get(0).getMapConfigs().get("bundled-map"));
+	}
+
+	private void writeDataFile(final String name, final String mapName)
+	        throws IOException {
+		writeDataFile(new File(this.appDirectory, name), mapName);
+	}
+
+	private void writeDataFile(final File file, final String mapName)
+	        throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			writeDataFile(out, mapName);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeDataFile(final OutputStream out, final String mapName)
+	        throws IOException {
+		final Writer writer = new OutputStreamWriter(out, "UTF-8");
+		writer.write("<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\">"
+		        + "<map name=\""
+		        + mapName
+		        + "\"><backup-count>1</backup-count></map></hazelcast>");
+		writer.flush();
+	}
+}
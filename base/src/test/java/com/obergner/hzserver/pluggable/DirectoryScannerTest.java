@@ -19,14 +19,55 @@
 package com.obergner.hzserver.pluggable;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
 public class DirectoryScannerTest {
 
+	private static final String	DATA_FILE_CONTENT	= "<hazelcast/>";
+
+	private File	            deployDirectory;
+
+	@Before
+	public void createDeployDirectory() {
+		this.deployDirectory = Files.createTempDir();
+	}
+
+	@After
+	public void deleteDeployDirectory() throws IOException {
+		delete(this.deployDirectory);
+	}
+
+	private static void delete(final File file) throws IOException {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to delete [" + file + "]");
+		}
+	}
+
 	@Test
 	public final void assertThanScanCallsCallbackForEveryMatchingFile() {
 		final File rootDir = new File(getClass().getResource("data/").getPath());
@@ -35,7 +76,7 @@ public class DirectoryScannerTest {
 		        ".xml", new DirectoryScanner.Callback() {
 
 			        @Override
-			        public void scanned(final File scannedFile) {
+			        public void scanned(final DataFile scannedFile) {
 				        noScannedFiles.incrementAndGet();
 			        }
 		        });
@@ -46,4 +87,176 @@ public class DirectoryScannerTest {
 		        "Scanning directory should have called callback two times for two matching files",
 		        2, noScannedFiles.get());
 	}
+
+	@Test
+	public final void assertThatScanCallsCallbackInLexicographicalOrder() {
+		final File rootDir = new File(getClass().getResource("data/").getPath());
+		final List<String> scannedFileNames = new ArrayList<String>();
+		final DirectoryScanner objectUnderTest = new DirectoryScanner(rootDir,
+		        ".xml", new DirectoryScanner.Callback() {
+
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        scannedFileNames.add(new File(scannedFile
+				                .getLocation()).getName());
+			        }
+		        });
+
+		objectUnderTest.scan();
+
+		assertEquals("composable-xml-config-test-maps.xml",
+		        scannedFileNames.get(0));
+		assertEquals("composable-xml-config-test-queues.xml",
+		        scannedFileNames.get(1));
+	}
+
+	@Test
+	public final void assertThatScanDescendsIntoNestedDirectories()
+	        throws IOException {
+		newDataFile("app/maps.xml");
+		newDataFile("app/a/b/c/queues.xml");
+		newDataFile("app/a/ignored.txt");
+
+		final List<String> scannedLocations = scanDeployDirectory();
+
+		assertEquals(
+		        Arrays.asList(location("app/a/b/c/queues.xml"),
+		                location("app/maps.xml")), scannedLocations);
+	}
+
+	@Test
+	public final void assertThatScanReadsDataFilesFromDeployBundles()
+	        throws IOException {
+		newDeployBundle("bundled-app.zip", "META-INF/maps.xml", "topics.xml",
+		        "ignored.txt");
+		newDeployBundle("app/nested.jar", "queues.xml");
+
+		final List<String> scannedLocations = scanDeployDirectory();
+
+		assertEquals(Arrays.asList(location("app/nested.jar") + "!/queues.xml",
+		        location("bundled-app.zip") + "!/META-INF/maps.xml",
+		        location("bundled-app.zip") + "!/topics.xml"),
+		        scannedLocations);
+	}
+
+	@Test
+	public final void assertThatScanPassesDeployBundleContents()
+	        throws IOException {
+		newDeployBundle("bundled-app.zip", "maps.xml");
+		final List<DataFile> scannedFiles = new ArrayList<DataFile>();
+		new DirectoryScanner(this.deployDirectory, ".xml",
+		        new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        scannedFiles.add(scannedFile);
+			        }
+		        }).scan();
+
+		assertEquals(1, scannedFiles.size());
+		assertEquals("bundled-app", scannedFiles.get(0).getApplication());
+		assertEquals(DATA_FILE_CONTENT, new String(
+		        ByteStreams.toByteArray(scannedFiles.get(0).openStream()),
+		        Charsets.UTF_8));
+	}
+
+	@Test
+	public final void assertThatScanAttributesDataFilesToTopLevelApplication()
+	        throws IOException {
+		newDataFile("app/a/b/maps.xml");
+		final List<String> applications = new ArrayList<String>();
+		new DirectoryScanner(this.deployDirectory, ".xml",
+		        new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        applications.add(scannedFile.getApplication());
+			        }
+		        }).scan();
+
+		assertEquals(Arrays.asList("app"), applications);
+	}
+
+	@Test
+	public final void assertThatRescanDoesNotReopenUnchangedDeployBundles()
+	        throws IOException {
+		newDeployBundle("bundled-app.zip", "maps.xml");
+		final List<DataFile> scannedFiles = new ArrayList<DataFile>();
+		final DirectoryScanner objectUnderTest = new DirectoryScanner(
+		        this.deployDirectory, ".xml", new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        scannedFiles.add(scannedFile);
+			        }
+		        });
+
+		objectUnderTest.scan();
+		objectUnderTest.scan();
+
+		assertEquals(2, scannedFiles.size());
+		assertSame(
+		        "Rescan should have handed out the entry read from the unchanged bundle",
+		        scannedFiles.get(0), scannedFiles.get(1));
+	}
+
+	@Test
+	public final void assertThatRescanRereadsChangedDeployBundles()
+	        throws IOException {
+		final File bundle = new File(this.deployDirectory, "bundled-app.zip");
+		newDeployBundle("bundled-app.zip", "maps.xml");
+		final List<DataFile> scannedFiles = new ArrayList<DataFile>();
+		final DirectoryScanner objectUnderTest = new DirectoryScanner(
+		        this.deployDirectory, ".xml", new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        scannedFiles.add(scannedFile);
+			        }
+		        });
+
+		objectUnderTest.scan();
+		newDeployBundle("bundled-app.zip", "maps.xml");
+		bundle.setLastModified(bundle.lastModified() + 10000L);
+		objectUnderTest.scan();
+
+		assertEquals(2, scannedFiles.size());
+		assertNotSame("Rescan should have reread the changed bundle",
+		        scannedFiles.get(0), scannedFiles.get(1));
+	}
+
+	private List<String> scanDeployDirectory() {
+		final List<String> result = new ArrayList<String>();
+		new DirectoryScanner(this.deployDirectory, ".xml",
+		        new DirectoryScanner.Callback() {
+			        @Override
+			        public void scanned(final DataFile scannedFile) {
+				        result.add(scannedFile.getLocation());
+			        }
+		        }).scan();
+		return result;
+	}
+
+	private String location(final String relativePath) {
+		return new File(this.deployDirectory, relativePath).getAbsolutePath();
+	}
+
+	private void newDataFile(final String relativePath) throws IOException {
+		final File dataFile = new File(this.deployDirectory, relativePath);
+		Files.createParentDirs(dataFile);
+		Files.write(DATA_FILE_CONTENT, dataFile, Charsets.UTF_8);
+	}
+
+	private void newDeployBundle(final String relativePath,
+	        final String... entryNames) throws IOException {
+		final File bundle = new File(this.deployDirectory, relativePath);
+		Files.createParentDirs(bundle);
+		final ZipOutputStream bundleStream = new ZipOutputStream(
+		        new FileOutputStream(bundle));
+		try {
+			for (final String entryName : entryNames) {
+				bundleStream.putNextEntry(new ZipEntry(entryName));
+				bundleStream.write(DATA_FILE_CONTENT.getBytes(Charsets.UTF_8));
+				bundleStream.closeEntry();
+			}
+		} finally {
+			bundleStream.close();
+		}
+	}
 }
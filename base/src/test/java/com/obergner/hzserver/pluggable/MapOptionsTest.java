@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+
+public class MapOptionsTest {
+
+	@Test
+	public final void assertThatMapsSelectingIgnoresDefaultAndWildcardConfigs() {
+		final Config config = new Config();
+		for (final String mapName : Arrays.asList("default", "cache*", "cache")) {
+			config.addMapConfig(new MapConfig(mapName));
+			config.setProperty(
+			        MapOptions.propertyName(mapName, MapOptions.EXPIRY),
+			        "TIMING-WHEEL");
+		}
+
+		assertEquals(
+		        "mapsSelecting() should have returned only the concrete map",
+		        Collections.singletonList("cache"), MapOptions.mapsSelecting(
+		                config, MapOptions.EXPIRY, "TIMING-WHEEL"));
+	}
+
+	@Test
+	public final void assertThatMapsSelectingIgnoresCaseButNotOtherValues() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("selecting"));
+		config.setProperty(
+		        MapOptions.propertyName("selecting", MapOptions.SNAPSHOT),
+		        "TRUE");
+		config.addMapConfig(new MapConfig("declining"));
+		config.setProperty(
+		        MapOptions.propertyName("declining", MapOptions.SNAPSHOT),
+		        "false");
+
+		assertEquals(
+		        "mapsSelecting() should have returned only the selecting map",
+		        Collections.singletonList("selecting"), MapOptions
+		                .mapsSelecting(config, MapOptions.SNAPSHOT, "true"));
+	}
+
+	@Test
+	public final void assertThatMapsSettingReturnsMapsSettingAnyValue() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("evicting"));
+		config.setProperty(MapOptions.propertyName("evicting",
+		        MapOptions.EVICTION_POLICY), "UNKNOWN");
+		config.addMapConfig(new MapConfig("plain"));
+
+		assertEquals("mapsSetting() should have returned the setting map",
+		        Collections.singletonList("evicting"),
+		        MapOptions.mapsSetting(config, MapOptions.EVICTION_POLICY));
+	}
+
+	@Test
+	public final void assertThatTakenOverLifetimesSurviveTakingThemOverAgain() {
+		final Config config = new Config();
+		final MapConfig mapConfig = new MapConfig("sessions");
+		mapConfig.setTimeToLiveSeconds(60);
+		mapConfig.setMaxIdleSeconds(30);
+		config.addMapConfig(mapConfig);
+
+		MapOptions.takeOverLifetimes(config, "sessions");
+		MapOptions.takeOverLifetimes(config, "sessions");
+
+		assertEquals("takeOverLifetimes() should have cleared time to live",
+		        0, mapConfig.getTimeToLiveSeconds());
+		assertEquals(
+		        "timeToLiveSecondsOf() should have returned taken over time to live",
+		        60, MapOptions.timeToLiveSecondsOf(config, "sessions"));
+		assertEquals(
+		        "maxIdleSecondsOf() should have returned taken over max idle time",
+		        30, MapOptions.maxIdleSecondsOf(config, "sessions"));
+	}
+}
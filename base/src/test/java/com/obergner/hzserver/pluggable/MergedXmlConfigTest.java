@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class MergedXmlConfigTest {
+
+	private static final String	MERGED_CONFIG	= "<hazelcast><map name=\"m\u00e4p\"/></hazelcast>";
+
+	private File	            file;
+
+	@Before
+	public void createFile() throws IOException {
+		this.file = File.createTempFile("merged-xml-config-test", ".xml");
+	}
+
+	@After
+	public void deleteFile() {
+		this.file.delete();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public final void assertThatConstructorRejectsNullFile() {
+		new MergedXmlConfig(null);
+	}
+
+	@Test
+	public final void assertThatGetXmlConfigReturnsRenderedConfig()
+	        throws IOException {
+		final MergedXmlConfig objectUnderTest = new MergedXmlConfig(this.file);
+		objectUnderTest.render(MERGED_CONFIG.getBytes(Charsets.UTF_8));
+
+		assertEquals("getXmlConfig() should have returned rendered config",
+		        MERGED_CONFIG, objectUnderTest.getXmlConfig());
+	}
+
+	@Test
+	public final void assertThatRenderXmlConfigReturnsRenderedConfig()
+	        throws IOException {
+		final MergedXmlConfig objectUnderTest = new MergedXmlConfig(this.file);
+		objectUnderTest.render(MERGED_CONFIG.getBytes(Charsets.UTF_8));
+
+		assertEquals("renderXmlConfig() should have returned rendered config",
+		        MERGED_CONFIG, objectUnderTest.renderXmlConfig());
+	}
+
+	@Test
+	public final void assertThatGetSizeInBytesReturnsRenderedConfigsSize()
+	        throws IOException {
+		final MergedXmlConfig objectUnderTest = new MergedXmlConfig(this.file);
+		objectUnderTest.render(MERGED_CONFIG.getBytes(Charsets.UTF_8));
+
+		assertEquals(
+		        "getSizeInBytes() should have returned rendered config's size",
+		        MERGED_CONFIG.getBytes(Charsets.UTF_8).length,
+		        objectUnderTest.getSizeInBytes());
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URL;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class StreamingFragmentMergerTest {
+
+	private static final String	CONFIG_FILE	= "global/composable-xml-config-test-config.xml";
+
+	private static final String	MAPS_FILE	= "data/subdir/composable-xml-config-test-maps.xml";
+
+	private static final String	QUEUES_FILE	= "data/subdir/composable-xml-config-test-queues.xml";
+
+	@Test(expected = NullPointerException.class)
+	public final void assertThatMergeRejectsNullFile() throws Exception {
+		new StreamingFragmentMerger().merge((File) null, newTargetDocument()
+		        .getDocumentElement());
+	}
+
+	@Test
+	public final void assertThatMergeProducesSameDocumentAsXPathBasedMerge()
+	        throws Exception {
+		final DocumentBuilder documentBuilder = DocumentBuilderFactory
+		        .newInstance().newDocumentBuilder();
+		final Document expected = documentBuilder
+		        .parse(loadTestXmlAsStream(CONFIG_FILE));
+		final XPathFragmentMerger referenceMerger = new XPathFragmentMerger(
+		        documentBuilder);
+		referenceMerger.merge(loadTestXmlAsFile(MAPS_FILE),
+		        expected.getDocumentElement());
+		referenceMerger.merge(loadTestXmlAsFile(QUEUES_FILE),
+		        expected.getDocumentElement());
+
+		final Document actual = newTargetDocument();
+		final StreamingFragmentMerger objectUnderTest = new StreamingFragmentMerger();
+		objectUnderTest.merge(loadTestXmlAsFile(MAPS_FILE),
+		        actual.getDocumentElement());
+		objectUnderTest.merge(loadTestXmlAsFile(QUEUES_FILE),
+		        actual.getDocumentElement());
+
+		assertTrue(
+		        "StreamingFragmentMerger should have produced the same document as the XPath based merge",
+		        expected.isEqualNode(actual));
+	}
+
+	@Test
+	public final void assertThatMergeGroupsDataStructuresByTypeAndIgnoresOtherElements()
+	        throws Exception {
+		final String fragment = "<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\">"
+		        + "<map name=\"m1\"/><network/><queue name=\"q1\"/>"
+		        + "<topic name=\"t1\"/><map name=\"m2\"/></hazelcast>";
+		final Document target = newTargetDocument();
+		final int childrenBefore = target.getDocumentElement()
+		        .getChildNodes().getLength();
+
+		final int appended = new StreamingFragmentMerger().merge(
+		        new ByteArrayInputStream(fragment.getBytes("UTF-8")),
+		        target.getDocumentElement());
+
+		assertEquals("merge() should have appended 4 data structures", 4,
+		        appended);
+		assertEquals("q1", nameOfChild(target, childrenBefore));
+		assertEquals("m1", nameOfChild(target, childrenBefore + 1));
+		assertEquals("m2", nameOfChild(target, childrenBefore + 2));
+		assertEquals("t1", nameOfChild(target, childrenBefore + 3));
+	}
+
+	private String nameOfChild(final Document document, final int index) {
+		return document.getDocumentElement().getChildNodes().item(index)
+		        .getAttributes().getNamedItem("name").getNodeValue();
+	}
+
+	private Document newTargetDocument() throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+		        .parse(loadTestXmlAsStream(CONFIG_FILE));
+	}
+
+	private InputStream loadTestXmlAsStream(final String fileName)
+	        throws FileNotFoundException {
+		final InputStream result = getClass().getResourceAsStream(fileName);
+		if (result == null) {
+			throw new FileNotFoundException(fileName);
+		}
+		return result;
+	}
+
+	private File loadTestXmlAsFile(final String fileName)
+	        throws FileNotFoundException {
+		final URL resultUrl = getClass().getResource(fileName);
+		if (resultUrl == null) {
+			throw new FileNotFoundException(fileName);
+		}
+		return new File(resultUrl.getPath());
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.pluggable;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * <p>
+ * The XPath based merge {@link ComposableXmlConfigParser} used before
+ * switching to {@link StreamingFragmentMerger}: parses each fragment once per
+ * selector. Kept as the reference implementation for equivalence tests and
+ * benchmarks.
+ * </p>
+ * 
+ * @author obergner <a href="olaf.bergner@gmx.de">Olaf Bergner</a>
+ * 
+ */
+final class XPathFragmentMerger {
+
+	private static final String[]	SELECTORS	= { "//hazelcast/queue",
+	        "//hazelcast/map", "//hazelcast/multimap", "//hazelcast/topic",
+	        "//hazelcast/semaphore"	         };
+
+	private final DocumentBuilder	documentBuilder;
+
+	private final XPathFactory	  xpathFactory	= XPathFactory.newInstance();
+
+	XPathFragmentMerger(final DocumentBuilder documentBuilder) {
+		this.documentBuilder = documentBuilder;
+	}
+
+	void merge(final File fragmentFile, final Node parentNode)
+	        throws Exception {
+		for (final String selector : SELECTORS) {
+			appendFragmentToParentNode(parentNode, fragmentFile, selector);
+		}
+	}
+
+	private void appendFragmentToParentNode(final Node parentNode,
+	        final File xmlFragmentFile, final String nodesToAppendSelector)
+	        throws Exception {
+		final Reader fragmentReader = new FileReader(xmlFragmentFile);
+		final Document importedDocument;
+		try {
+			importedDocument = this.documentBuilder.parse(new InputSource(
+			        fragmentReader));
+		} finally {
+			fragmentReader.close();
+		}
+
+		final XPathExpression selectorExpr = this.xpathFactory.newXPath()
+		        .compile(nodesToAppendSelector);
+		final NodeList nodesToAppend = (NodeList) selectorExpr.evaluate(
+		        importedDocument, XPathConstants.NODESET);
+
+		for (int i = 0; i < nodesToAppend.getLength(); i++) {
+			final Node importedNodeToAppend = parentNode.getOwnerDocument()
+			        .importNode(nodesToAppend.item(i), true);
+			parentNode.appendChild(importedNodeToAppend);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ChangeLogRecordTest {
+
+	@Test
+	public final void assertThatReadAllReturnsRecordsInOrderTheyWereWritten()
+	        throws IOException {
+		final File segment = new File(Files.createTempDir(), "1.log");
+		write(segment,
+		        ChangeLogRecord.put("map", 1L, bytes("key1"), bytes("value1")),
+		        ChangeLogRecord.remove("map", 2L, bytes("key2")));
+
+		final List<ChangeLogRecord> read = readAll(segment);
+
+		assertEquals(2, read.size());
+		assertFalse(read.get(0).isRemove());
+		assertEquals(1L, read.get(0).getTimestamp());
+		assertEquals("map", read.get(0).getMapName());
+		assertArrayEquals(bytes("key1"), read.get(0).getKey());
+		assertArrayEquals(bytes("value1"), read.get(0).getValue());
+		assertTrue(read.get(1).isRemove());
+		assertArrayEquals(bytes("key2"), read.get(1).getKey());
+	}
+
+	@Test
+	public final void assertThatReadAllReadsUntimedRecordAsLoggedAtTimeZero()
+	        throws IOException {
+		final File segment = new File(Files.createTempDir(), "1.log");
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(body);
+		out.writeByte(1);
+		out.writeUTF("map");
+		out.writeInt(4);
+		out.write(bytes("key1"));
+		out.writeInt(6);
+		out.write(bytes("value1"));
+		out.flush();
+		final CRC32 crc = new CRC32();
+		crc.update(body.toByteArray());
+		final DataOutputStream framed = new DataOutputStream(
+		        new FileOutputStream(segment));
+		try {
+			framed.writeInt(body.size());
+			framed.writeInt((int) crc.getValue());
+			framed.write(body.toByteArray());
+		} finally {
+			framed.close();
+		}
+
+		final List<ChangeLogRecord> read = readAll(segment);
+
+		assertEquals(1, read.size());
+		assertFalse(read.get(0).isRemove());
+		assertEquals(0L, read.get(0).getTimestamp());
+		assertArrayEquals(bytes("value1"), read.get(0).getValue());
+	}
+
+	@Test
+	public final void assertThatReadAllStopsAtTornRecord() throws IOException {
+		final File segment = new File(Files.createTempDir(), "1.log");
+		final byte[] torn = ChangeLogRecord.put("map", 1L, bytes("key2"),
+		        bytes("value2")).encode();
+		write(segment,
+		        ChangeLogRecord.put("map", 1L, bytes("key1"), bytes("value1")));
+		final FileOutputStream out = new FileOutputStream(segment, true);
+		try {
+			out.write(Arrays.copyOf(torn, torn.length - 3));
+		} finally {
+			out.close();
+		}
+
+		final List<ChangeLogRecord> read = new ArrayList<ChangeLogRecord>();
+		final boolean complete = ChangeLogRecord.readAll(segment,
+		        new ChangeLogRecord.Handler() {
+			        @Override
+			        public void handle(final ChangeLogRecord record) {
+				        read.add(record);
+			        }
+		        });
+
+		assertFalse("readAll() should have reported torn record", complete);
+		assertEquals(1, read.size());
+		assertArrayEquals(bytes("key1"), read.get(0).getKey());
+	}
+
+	@Test
+	public final void assertThatReadAllStopsAtCorruptRecord()
+	        throws IOException {
+		final File segment = new File(Files.createTempDir(), "1.log");
+		final byte[] corrupt = ChangeLogRecord.put("map", 1L, bytes("key2"),
+		        bytes("value2")).encode();
+		corrupt[corrupt.length - 1] ^= 0xff;
+		write(segment,
+		        ChangeLogRecord.put("map", 1L, bytes("key1"), bytes("value1")));
+		final FileOutputStream out = new FileOutputStream(segment, true);
+		try {
+			out.write(corrupt);
+		} finally {
+			out.close();
+		}
+
+		assertEquals(1, readAll(segment).size());
+	}
+
+	private static byte[] bytes(final String string) {
+		return string.getBytes(Charsets.UTF_8);
+	}
+
+	private static void write(final File segment,
+	        final ChangeLogRecord... records) throws IOException {
+		final FileOutputStream out = new FileOutputStream(segment);
+		try {
+			for (final ChangeLogRecord record : records) {
+				out.write(record.encode());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<ChangeLogRecord> readAll(final File segment)
+	        throws IOException {
+		final List<ChangeLogRecord> result = new ArrayList<ChangeLogRecord>();
+		ChangeLogRecord.readAll(segment, new ChangeLogRecord.Handler() {
+			@Override
+			public void handle(final ChangeLogRecord record) {
+				result.add(record);
+			}
+		});
+		return result;
+	}
+}
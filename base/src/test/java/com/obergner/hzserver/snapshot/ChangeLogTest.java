@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.obergner.hzserver.HazelcastSerialization;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class ChangeLogTest {
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatReplayRestoresMutationsLoggedBeforeStop()
+	        throws IOException, InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog logging = new ChangeLog(directory,
+		        new MetricsRegistry());
+		logging.start(first);
+		final IMap<Object, Object> map = first.getMap("logged");
+		map.put("kept", "first");
+		map.put("kept", "second");
+		map.put("removed", "value");
+		map.remove("removed");
+		awaitEventDelivery();
+		logging.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        new MetricsRegistry());
+		objectUnderTest.replay(second, Collections.singleton("logged"));
+
+		final IMap<Object, Object> replayed = second.getMap("logged");
+		assertEquals("second", replayed.get("kept"));
+		assertNull(replayed.get("removed"));
+	}
+
+	@Test
+	public final void assertThatCompactKeepsOnlyLatestRecordPerKey()
+	        throws IOException, InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        new MetricsRegistry());
+		objectUnderTest.setCompactionIntervalSeconds(0);
+		objectUnderTest.start(hazelcastInstance);
+		final IMap<Object, Object> map = hazelcastInstance.getMap("logged");
+		for (int i = 0; i < 3; i++) {
+			map.put("key", "value" + i);
+			awaitEventDelivery();
+			objectUnderTest.roll();
+		}
+
+		objectUnderTest.compact();
+
+		// One compacted segment, plus the active one
+		assertEquals(2, objectUnderTest.segments().size());
+		objectUnderTest.stop();
+		hazelcastInstance.getMap("logged").clear();
+		objectUnderTest.replay(hazelcastInstance,
+		        Collections.singleton("logged"));
+		assertEquals("value2", map.get("key"));
+	}
+
+	@Test
+	public final void assertThatTruncateDropsRecordsOfCoveredMaps()
+	        throws IOException, InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        new MetricsRegistry());
+		objectUnderTest.start(hazelcastInstance);
+		hazelcastInstance.getMap("logged").put("key", "value");
+		awaitEventDelivery();
+		final long boundary = objectUnderTest.roll();
+
+		objectUnderTest.truncate(boundary, Collections.singleton("logged"));
+
+		assertEquals(Long.valueOf(boundary), objectUnderTest.segments()
+		        .firstKey());
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatEvictionsAreNotLogged() throws IOException,
+	        InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog logging = new ChangeLog(directory,
+		        new MetricsRegistry());
+		logging.start(first);
+		final IMap<Object, Object> map = first.getMap("logged");
+		map.put("evicted", "value");
+		awaitEventDelivery();
+		map.evict("evicted");
+		awaitEventDelivery();
+		logging.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		new ChangeLog(directory, new MetricsRegistry()).replay(second,
+		        Collections.singleton("logged"));
+
+		assertEquals("Evicting an entry should not have been logged as removing it",
+		        "value", second.getMap("logged").get("evicted"));
+	}
+
+	@Test
+	public final void assertThatReplayDoesNotOverwritePresentEntries()
+	        throws IOException, InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        new MetricsRegistry());
+		objectUnderTest.start(hazelcastInstance);
+		final IMap<Object, Object> map = hazelcastInstance.getMap("logged");
+		map.put("key", "stale");
+		awaitEventDelivery();
+		objectUnderTest.stop();
+		map.put("key", "fresh");
+
+		objectUnderTest.replay(hazelcastInstance,
+		        Collections.singleton("logged"));
+
+		assertEquals("fresh", map.get("key"));
+	}
+
+	@Test
+	public final void assertThatAppendDropsRecordsOnceQueueIsFull()
+	        throws IOException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        metricsRegistry);
+		objectUnderTest.setQueueCapacity(1);
+		objectUnderTest.start(hazelcastInstance);
+
+		appendMany(objectUnderTest);
+		objectUnderTest.stop();
+
+		final Meter droppedRecords = (Meter) metricsRegistry.allMetrics().get(
+		        new MetricName(ChangeLog.class, "dropped-records"));
+		assertTrue("Appending to a full queue should have dropped records",
+		        droppedRecords.count() > 0);
+		assertFalse("Dropping records should have marked segment incomplete",
+		        objectUnderTest.incompleteSegments().isEmpty());
+		assertTrue("Map missing records should not be replayed",
+		        objectUnderTest.read(Collections.singleton("logged"))
+		                .isEmpty());
+	}
+
+	@Test
+	public final void assertThatTruncateClearsMarkOfCoveredMaps()
+	        throws IOException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        new MetricsRegistry());
+		objectUnderTest.setQueueCapacity(1);
+		objectUnderTest.start(hazelcastInstance);
+		appendMany(objectUnderTest);
+		final long boundary = objectUnderTest.roll();
+
+		objectUnderTest.truncate(boundary, Collections.singleton("logged"));
+
+		assertTrue("Snapshot covering map should have cleared its mark",
+		        objectUnderTest.incompleteSegments().isEmpty());
+		objectUnderTest.stop();
+	}
+
+	@Test
+	public final void assertThatReplayRestoresLatestOfRecordsLoggedByAllMembers()
+	        throws IOException, InterruptedException {
+		final File firstDirectory = Files.createTempDir();
+		final File secondDirectory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		write(secondDirectory,
+		        ChangeLogRecord.put("logged", 2L,
+		                HazelcastSerialization.toBytes("key"),
+		                HazelcastSerialization.toBytes("fresh")),
+		        ChangeLogRecord.remove("logged", 2L,
+		                HazelcastSerialization.toBytes("removed")));
+		write(firstDirectory,
+		        ChangeLogRecord.put("logged", 1L,
+		                HazelcastSerialization.toBytes("key"),
+		                HazelcastSerialization.toBytes("stale")),
+		        ChangeLogRecord.put("logged", 1L,
+		                HazelcastSerialization.toBytes("removed"),
+		                HazelcastSerialization.toBytes("stale")));
+
+		new ChangeLog(secondDirectory, new MetricsRegistry()).replay(
+		        hazelcastInstance, Collections.singleton("logged"));
+		new ChangeLog(firstDirectory, new MetricsRegistry()).replay(
+		        hazelcastInstance, Collections.singleton("logged"));
+
+		final IMap<Object, Object> replayed = hazelcastInstance
+		        .getMap("logged");
+		assertEquals("Record logged last should have won", "fresh",
+		        replayed.get("key"));
+		assertNull("Removal logged last should have won",
+		        replayed.get("removed"));
+	}
+
+	@Test
+	public final void assertThatWriterSurvivesFailingToOpenSegment()
+	        throws IOException, InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final MetricsRegistry metricsRegistry = new MetricsRegistry();
+		final ChangeLog objectUnderTest = new ChangeLog(directory,
+		        metricsRegistry);
+		objectUnderTest.setSegmentSizeBytes(1L);
+		objectUnderTest.start(hazelcastInstance);
+		final File moved = new File(directory.getParentFile(),
+		        directory.getName() + "-moved");
+		assertTrue(directory.renameTo(moved));
+
+		// Written to the moved segment, but rolling fails
+		objectUnderTest.append(putRecord("first"));
+		awaitEventDelivery();
+		// Opening a segment fails again, as does marking it
+		objectUnderTest.append(putRecord("lost"));
+		awaitEventDelivery();
+		assertTrue(directory.mkdir());
+		objectUnderTest.append(putRecord("kept"));
+		awaitEventDelivery();
+		objectUnderTest.stop();
+
+		final Meter appendedRecords = (Meter) metricsRegistry.allMetrics()
+		        .get(new MetricName(ChangeLog.class, "appended-records"));
+		assertEquals("Writer should have appended records once it could "
+		        + "open a segment again", 2L, appendedRecords.count());
+		assertFalse("Failing to append should have marked segment incomplete "
+		        + "once it could", objectUnderTest.incompleteSegments()
+		        .isEmpty());
+		assertTrue("Map missing records should not be replayed",
+		        objectUnderTest.read(Collections.singleton("logged"))
+		                .isEmpty());
+	}
+
+	private static ChangeLogRecord putRecord(final String key) {
+		return ChangeLogRecord.put("logged", 1L,
+		        HazelcastSerialization.toBytes(key),
+		        HazelcastSerialization.toBytes("value"));
+	}
+
+	private static void appendMany(final ChangeLog changeLog) {
+		for (int i = 0; i < 1000; i++) {
+			changeLog.append(ChangeLogRecord.put("logged", i,
+			        HazelcastSerialization.toBytes(Integer.valueOf(i)),
+			        HazelcastSerialization.toBytes(Integer.valueOf(i))));
+		}
+	}
+
+	private static void write(final File directory,
+	        final ChangeLogRecord... records) throws IOException {
+		final FileOutputStream out = new FileOutputStream(new File(directory,
+		        "1" + ChangeLog.SEGMENT_SUFFIX));
+		try {
+			for (final ChangeLogRecord record : records) {
+				out.write(record.encode());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void awaitEventDelivery() throws InterruptedException {
+		// Hazelcast delivers entry events asynchronously
+		Thread.sleep(500L);
+	}
+
+	private static Config newConfig() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("logged"));
+		config.setProperty(
+		        MapOptions.propertyName("logged", MapOptions.CHANGE_LOG),
+		        "true");
+		return config;
+	}
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.obergner.hzserver.pluggable.MapOptions;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class MapSnapshotterTest {
+
+	@After
+	public void shutdownHazelcast() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public final void assertThatRestoreLoadsEntriesWrittenByStop()
+	        throws InterruptedException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		for (int i = 0; i < 100; i++) {
+			first.getMap("snapshotted").put(Integer.valueOf(i), "value" + i);
+			first.getMap("volatile").put(Integer.valueOf(i), "value" + i);
+		}
+		final MapSnapshotter snapshotter = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+		snapshotter.setSnapshotIntervalSeconds(0);
+		snapshotter.start(first);
+		snapshotter.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final MapSnapshotter objectUnderTest = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+		objectUnderTest.restore(second);
+
+		final IMap<Object, Object> restored = second.getMap("snapshotted");
+		assertEquals(100, restored.size());
+		assertEquals("value42", restored.get(Integer.valueOf(42)));
+		assertTrue("Map not opted in to snapshots should not be restored",
+		        second.getMap("volatile").isEmpty());
+	}
+
+	@Test
+	public final void assertThatPrepareConfiguresRestoredVersionsMapsIgnoringDefaultMapConfig() {
+		final Config config = newConfig();
+		final MapConfig defaultConfig = new MapConfig("default");
+		defaultConfig.setMapStoreConfig(new MapStoreConfig().setEnabled(true)
+		        .setClassName("com.acme.DBMapStore"));
+		config.addMapConfig(defaultConfig);
+
+		new MapSnapshotter(Files.createTempDir(), new MetricsRegistry())
+		        .prepare(config);
+
+		final MapConfig versionsConfig = config.getMapConfigs().get(
+		        RestoredVersions.MAP_PREFIX + "snapshotted");
+		assertNotNull(
+		        "prepare() should have configured the map recording restored versions",
+		        versionsConfig);
+		assertNull(
+		        "The map recording restored versions should not inherit the default map store",
+		        versionsConfig.getMapStoreConfig());
+	}
+
+	@Test
+	public final void assertThatRestoreDoesNotOverwriteNonEmptyMap()
+	        throws InterruptedException, IOException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<Object, Object> map = hazelcastInstance
+		        .getMap("snapshotted");
+		map.put("key", "stale");
+		final MapSnapshotter objectUnderTest = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+		objectUnderTest.snapshot(hazelcastInstance);
+		map.put("key", "fresh");
+
+		objectUnderTest.restore(hazelcastInstance);
+
+		assertEquals("fresh", map.get("key"));
+	}
+
+	@Test
+	public final void assertThatRestoreLoadsEntriesOfAllMembersAfterFullClusterRestart()
+	        throws InterruptedException, IOException {
+		final File firstDirectory = Files.createTempDir();
+		final File secondDirectory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		for (int i = 0; i < 1000; i++) {
+			first.getMap("snapshotted").put(Integer.valueOf(i), "value" + i);
+		}
+		new MapSnapshotter(firstDirectory, new MetricsRegistry())
+		        .snapshot(first);
+		new MapSnapshotter(secondDirectory, new MetricsRegistry())
+		        .snapshot(second);
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance restartedFirst = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final HazelcastInstance restartedSecond = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		new MapSnapshotter(firstDirectory, new MetricsRegistry())
+		        .restore(restartedFirst);
+		new MapSnapshotter(secondDirectory, new MetricsRegistry())
+		        .restore(restartedSecond);
+
+		final IMap<Object, Object> restored = restartedFirst
+		        .getMap("snapshotted");
+		assertEquals("Every member should have restored its own entries",
+		        1000, restored.size());
+		assertEquals("value42", restored.get(Integer.valueOf(42)));
+		assertEquals("value999", restored.get(Integer.valueOf(999)));
+	}
+
+	@Test
+	public final void assertThatMemberJoiningRunningClusterDiscardsSnapshot()
+	        throws InterruptedException, IOException {
+		final File staleDirectory = Files.createTempDir();
+		final HazelcastInstance crashed = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		crashed.getMap("snapshotted").put("removed", "value");
+		new MapSnapshotter(staleDirectory, new MetricsRegistry())
+		        .snapshot(crashed);
+		Hazelcast.shutdownAll();
+		final HazelcastInstance running = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		new MapSnapshotter(Files.createTempDir(), new MetricsRegistry())
+		        .restore(running);
+		Thread.sleep(100L);
+
+		final HazelcastInstance joining = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final MapSnapshotter objectUnderTest = new MapSnapshotter(
+		        staleDirectory, new MetricsRegistry());
+		objectUnderTest.setRestoreWindowSeconds(0);
+		objectUnderTest.restore(joining);
+
+		assertNull("Member joining running cluster should not have restored "
+		        + "its snapshot", running.getMap("snapshotted").get("removed"));
+		assertNull("Member joining running cluster should have discarded its "
+		        + "snapshot", objectUnderTest.latestSnapshot());
+		final File[] discarded = staleDirectory.listFiles();
+		assertEquals("Member joining running cluster should have moved its "
+		        + "snapshot aside rather than deleting it", 1, discarded.length);
+		assertTrue(discarded[0].getName().startsWith(
+		        MapSnapshotter.DISCARDED_PREFIX));
+		assertTrue(new File(discarded[0], MapSnapshotter.CURRENT).isDirectory());
+	}
+
+	@Test
+	public final void assertThatRestoreKeepsRemainingTimeToLive()
+	        throws InterruptedException, IOException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<Object, Object> map = first.getMap("snapshotted");
+		map.put("long-lived", "value", 60, TimeUnit.SECONDS);
+		map.put("short-lived", "value", 1, TimeUnit.SECONDS);
+		new MapSnapshotter(directory, new MetricsRegistry()).snapshot(first);
+		Hazelcast.shutdownAll();
+		Thread.sleep(1500L);
+
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		new MapSnapshotter(directory, new MetricsRegistry()).restore(second);
+
+		final IMap<Object, Object> restored = second.getMap("snapshotted");
+		assertNull("Entry expired since snapshot should not be restored",
+		        restored.get("short-lived"));
+		final long remainingMillis = restored.getMapEntry("long-lived")
+		        .getExpirationTime() - System.currentTimeMillis();
+		assertTrue("Restored entry should keep its remaining time to live: "
+		        + remainingMillis, remainingMillis > 0
+		        && remainingMillis < 59000L);
+	}
+
+	@Test
+	public final void assertThatChangesLoggedSinceSnapshotSupersedeIt()
+	        throws InterruptedException, IOException {
+		final File directory = Files.createTempDir();
+		final File changeLogDirectory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog changeLog = new ChangeLog(changeLogDirectory,
+		        new MetricsRegistry());
+		final MapSnapshotter snapshotter = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+		snapshotter.setSnapshotIntervalSeconds(0);
+		snapshotter.setChangeLog(changeLog);
+		snapshotter.start(first);
+		final IMap<Object, Object> map = first.getMap("snapshotted");
+		map.put("removed", "value");
+		map.put("updated", "stale");
+		awaitEventDelivery();
+		snapshotter.snapshot(first);
+		map.remove("removed");
+		map.put("updated", "fresh");
+		awaitEventDelivery();
+		changeLog.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final MapSnapshotter objectUnderTest = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+		objectUnderTest.setChangeLog(new ChangeLog(changeLogDirectory,
+		        new MetricsRegistry()));
+		objectUnderTest.restore(second);
+
+		final IMap<Object, Object> restored = second.getMap("snapshotted");
+		assertNull("Removal logged since snapshot should supersede it",
+		        restored.get("removed"));
+		assertEquals("Update logged since snapshot should supersede it",
+		        "fresh", restored.get("updated"));
+	}
+
+	@Test
+	public final void assertThatRestoreReplaysChangeLogsOfAllMembersAfterFullClusterRestart()
+	        throws InterruptedException, IOException {
+		final File firstDirectory = Files.createTempDir();
+		final File secondDirectory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final HazelcastInstance second = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final ChangeLog firstChangeLog = new ChangeLog(firstDirectory,
+		        new MetricsRegistry());
+		final ChangeLog secondChangeLog = new ChangeLog(secondDirectory,
+		        new MetricsRegistry());
+		firstChangeLog.start(first);
+		secondChangeLog.start(second);
+		for (int i = 0; i < 1000; i++) {
+			first.getMap("snapshotted").put(Integer.valueOf(i), "value" + i);
+		}
+		awaitEventDelivery();
+		firstChangeLog.stop();
+		secondChangeLog.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance restartedFirst = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final HazelcastInstance restartedSecond = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		restoreFromChangeLog(firstDirectory, restartedFirst);
+		restoreFromChangeLog(secondDirectory, restartedSecond);
+
+		assertEquals("Every member should have replayed its own change log",
+		        1000, restartedFirst.getMap("snapshotted").size());
+	}
+
+	@Test
+	public final void assertThatRestoreKeepsChangeLoggedByOtherMemberSinceSnapshot()
+	        throws InterruptedException, IOException {
+		final File snapshotDirectory = Files.createTempDir();
+		final File changeLogDirectory = Files.createTempDir();
+		final HazelcastInstance first = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final IMap<Object, Object> map = first.getMap("snapshotted");
+		map.put("updated", "stale");
+		map.put("removed", "stale");
+		new MapSnapshotter(snapshotDirectory, new MetricsRegistry())
+		        .snapshot(first);
+		Thread.sleep(10L);
+		// Stands in for the member owning these entries after a migration
+		final ChangeLog changeLog = new ChangeLog(changeLogDirectory,
+		        new MetricsRegistry());
+		changeLog.start(first);
+		map.put("updated", "fresh");
+		map.remove("removed");
+		awaitEventDelivery();
+		changeLog.stop();
+		Hazelcast.shutdownAll();
+
+		final HazelcastInstance restartedFirst = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		final HazelcastInstance restartedSecond = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		restoreFromChangeLog(changeLogDirectory, restartedSecond);
+		new MapSnapshotter(snapshotDirectory, new MetricsRegistry())
+		        .restore(restartedFirst);
+
+		final IMap<Object, Object> restored = restartedFirst
+		        .getMap("snapshotted");
+		assertEquals("Update logged by other member since snapshot should "
+		        + "have won", "fresh", restored.get("updated"));
+		assertNull("Removal logged by other member since snapshot should "
+		        + "have won", restored.get("removed"));
+	}
+
+	private static void restoreFromChangeLog(final File changeLogDirectory,
+	        final HazelcastInstance hazelcastInstance)
+	        throws InterruptedException {
+		final MapSnapshotter snapshotter = new MapSnapshotter(
+		        Files.createTempDir(), new MetricsRegistry());
+		snapshotter.setChangeLog(new ChangeLog(changeLogDirectory,
+		        new MetricsRegistry()));
+		snapshotter.restore(hazelcastInstance);
+	}
+
+	private static void awaitEventDelivery() throws InterruptedException {
+		// Hazelcast delivers entry events asynchronously
+		Thread.sleep(500L);
+	}
+
+	@Test
+	public final void assertThatSnapshotReplacesPreviousSnapshot()
+	        throws IOException {
+		final File directory = Files.createTempDir();
+		final HazelcastInstance hazelcastInstance = Hazelcast
+		        .newHazelcastInstance(newConfig());
+		hazelcastInstance.getMap("snapshotted").put("key", "value");
+		final MapSnapshotter objectUnderTest = new MapSnapshotter(directory,
+		        new MetricsRegistry());
+
+		objectUnderTest.snapshot(hazelcastInstance);
+		objectUnderTest.snapshot(hazelcastInstance);
+
+		assertEquals(new File(directory, MapSnapshotter.CURRENT),
+		        objectUnderTest.latestSnapshot());
+		assertTrue("Previous snapshot should have been deleted", !new File(
+		        directory, MapSnapshotter.PREVIOUS).exists());
+		assertTrue("In-progress snapshot should have been renamed", !new File(
+		        directory, MapSnapshotter.IN_PROGRESS).exists());
+	}
+
+	private static Config newConfig() {
+		final Config config = new Config();
+		config.addMapConfig(new MapConfig("snapshotted"));
+		config.addMapConfig(new MapConfig("volatile"));
+		config.setProperty(
+		        MapOptions.propertyName("snapshotted", MapOptions.SNAPSHOT),
+		        "true");
+		config.setProperty(
+		        MapOptions.propertyName("snapshotted", MapOptions.CHANGE_LOG),
+		        "true");
+		return config;
+	}
+}
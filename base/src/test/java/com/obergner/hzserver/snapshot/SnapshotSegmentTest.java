@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2012.
+ * Olaf Bergner.
+ * Hamburg, Germany. olaf.bergner@gmx.de
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.obergner.hzserver.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class SnapshotSegmentTest {
+
+	@Test
+	public final void assertThatReadFromReturnsEntriesWrittenByWriteTo()
+	        throws IOException {
+		final File file = new File(Files.createTempDir(), "0.seg");
+		final SnapshotSegment written = new SnapshotSegment(42L);
+		for (int i = 0; i < 100; i++) {
+			written.add(("key" + i).getBytes(Charsets.UTF_8),
+			        ("value" + i).getBytes(Charsets.UTF_8), i % 2 == 0 ? 1000L * i
+			                : SnapshotSegment.NO_EXPIRATION);
+		}
+		written.writeTo(file);
+
+		final SnapshotSegment read = SnapshotSegment.readFrom(file);
+
+		assertEquals(100, read.size());
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(written.keyAt(i), read.keyAt(i));
+			assertArrayEquals(written.valueAt(i), read.valueAt(i));
+			assertEquals(written.expirationTimeAt(i), read.expirationTimeAt(i));
+		}
+		assertEquals(42L, read.takenAt());
+		assertEquals(file.length(), read.length());
+	}
+
+	@Test
+	public final void assertThatReadFromReadsVersion1SegmentAsNeverExpiring()
+	        throws IOException {
+		final File file = new File(Files.createTempDir(), "0.seg");
+		final byte[] key = "key".getBytes(Charsets.UTF_8);
+		final byte[] value = "value".getBytes(Charsets.UTF_8);
+		final ByteBuffer payload = ByteBuffer.allocate(4 + key.length + 4
+		        + value.length);
+		payload.putInt(key.length).put(key).putInt(value.length).put(value);
+		final CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		final ByteBuffer segment = ByteBuffer
+		        .allocate(4 + 4 + 4 + 8 + payload.capacity() + 8);
+		segment.putInt(SnapshotSegment.MAGIC).putInt(1).putInt(1)
+		        .putLong(payload.capacity()).put(payload.array())
+		        .putLong(crc.getValue());
+		Files.write(segment.array(), file);
+
+		final SnapshotSegment read = SnapshotSegment.readFrom(file);
+
+		assertEquals(1, read.size());
+		assertArrayEquals(value, read.valueAt(0));
+		assertEquals(SnapshotSegment.NO_EXPIRATION, read.expirationTimeAt(0));
+		assertEquals(0L, read.takenAt());
+	}
+
+	@Test
+	public final void assertThatReadFromAcceptsEmptySegment()
+	        throws IOException {
+		final File file = new File(Files.createTempDir(), "0.seg");
+		new SnapshotSegment(42L).writeTo(file);
+
+		assertEquals(0, SnapshotSegment.readFrom(file).size());
+	}
+
+	@Test(expected = IOException.class)
+	public final void assertThatReadFromRejectsCorruptSegment()
+	        throws IOException {
+		final File file = new File(Files.createTempDir(), "0.seg");
+		final SnapshotSegment written = new SnapshotSegment(42L);
+		written.add("key".getBytes(Charsets.UTF_8),
+		        "value".getBytes(Charsets.UTF_8), SnapshotSegment.NO_EXPIRATION);
+		written.writeTo(file);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(file.length() - 9);
+			raf.write('X');
+		} finally {
+			raf.close();
+		}
+
+		SnapshotSegment.readFrom(file);
+	}
+
+	@Test(expected = IOException.class)
+	public final void assertThatReadFromRejectsTruncatedSegment()
+	        throws IOException {
+		final File file = new File(Files.createTempDir(), "0.seg");
+		final SnapshotSegment written = new SnapshotSegment(42L);
+		written.add("key".getBytes(Charsets.UTF_8),
+		        "value".getBytes(Charsets.UTF_8), SnapshotSegment.NO_EXPIRATION);
+		written.writeTo(file);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(file.length() - 3);
+		} finally {
+			raf.close();
+		}
+
+		SnapshotSegment.readFrom(file);
+	}
+}